@@ -0,0 +1,500 @@
+/**
+ *
+ */
+package de.sfdccommander.controller;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.axis.message.MessageElement;
+
+import com.sforce.soap.partner.Field;
+import com.sforce.soap.partner.sobject.SObject;
+
+import de.sfdccommander.controller.helper.CommanderException;
+import de.sfdccommander.viewer.SfdcCommander;
+
+/**
+ * Writes the records of a backup into the tables of a SQLite database. The
+ * records of an object are inserted with one prepared statement in batches of
+ * {@value #BATCH_SIZE} rows, and committed every {@value #COMMIT_SIZE} rows
+ * instead of one transaction per row. The database runs in WAL mode. A
+ * database written by a single backup is not synced on commit, a crash
+ * during the backup loses the backup anyway. A database kept across backups,
+ * as the one of an incremental backup, is synced at the checkpoints of the
+ * WAL, so a crash cannot corrupt the backups it already holds. The writer
+ * is not thread-safe, it is meant to be used by the single thread writing the
+ * backup. Values are bound in the storage class of their field, see
+ * {@link SqliteColumnType}.
+ *
+ * @author jochen
+ *
+ */
+public class BackupTableWriter {
+
+    /**
+     * Rows sent to the database at once.
+     */
+    public static final int BATCH_SIZE = 1000;
+
+    /**
+     * Rows inserted in one transaction.
+     */
+    public static final int COMMIT_SIZE = 50000;
+
+    /**
+     * Connection to the backup database.
+     */
+    private final Connection connection;
+
+    /**
+     * Insert statements of the started tables.
+     */
+    private final Map<String, TableInsert> inserts = new HashMap<String, TableInsert>();
+
+    /**
+     * Rows inserted since the last commit.
+     */
+    private int uncommittedRows;
+
+    /**
+     * Prepared insert of a table and its pending batch.
+     */
+    private static final class TableInsert {
+
+        private final PreparedStatement statement;
+
+        private final SqliteColumnType[] columnTypes;
+
+        private int batchRows;
+
+        private TableInsert(PreparedStatement aStatement,
+                SqliteColumnType[] aColumnTypes) {
+            statement = aStatement;
+            columnTypes = aColumnTypes;
+        }
+    }
+
+    /**
+     * @param aConnection
+     *            connection to the database of a single backup, closed by
+     *            {@link #close()}
+     * @throws CommanderException
+     *             if the database cannot be prepared for the backup
+     */
+    public BackupTableWriter(Connection aConnection)
+            throws CommanderException {
+        this(aConnection, false);
+    }
+
+    /**
+     * @param aConnection
+     *            connection to the backup database, closed by
+     *            {@link #close()}
+     * @param aKept
+     *            whether the database is kept across backups and has to
+     *            survive a crash
+     * @throws CommanderException
+     *             if the database cannot be prepared for the backup
+     */
+    public BackupTableWriter(Connection aConnection, boolean aKept)
+            throws CommanderException {
+        connection = aConnection;
+        try {
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute("PRAGMA journal_mode=WAL;");
+                statement.execute(aKept ? "PRAGMA synchronous=NORMAL;"
+                        : "PRAGMA synchronous=OFF;");
+                statement.execute("PRAGMA temp_store=MEMORY;");
+                statement.execute("PRAGMA cache_size=-65536;");
+            } finally {
+                statement.close();
+            }
+            connection.setAutoCommit(false);
+        } catch (SQLException e) {
+            throw new CommanderException("Could not prepare backup database",
+                    e);
+        }
+    }
+
+    /**
+     * Execute a statement outside of the inserts, e.g. to create a table.
+     *
+     * @param aStatement
+     *            sql statement
+     * @throws CommanderException
+     *             if the statement fails
+     */
+    public void execute(String aStatement) throws CommanderException {
+        try {
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute(aStatement);
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new CommanderException(
+                    "Could not execute statement: " + aStatement, e);
+        }
+    }
+
+    /**
+     * Execute a statement with parameters outside of the inserts.
+     *
+     * @param aStatement
+     *            sql statement
+     * @param aParameters
+     *            values of the parameters of the statement
+     * @throws CommanderException
+     *             if the statement fails
+     */
+    public void update(String aStatement, String... aParameters)
+            throws CommanderException {
+        try {
+            PreparedStatement statement = connection
+                    .prepareStatement(aStatement);
+            try {
+                for (int i = 0; i < aParameters.length; i++) {
+                    statement.setString(i + 1, aParameters[i]);
+                }
+                statement.executeUpdate();
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new CommanderException(
+                    "Could not execute statement: " + aStatement, e);
+        }
+    }
+
+    /**
+     * @param aStatement
+     *            query with two columns
+     * @return values of the second column keyed by the first
+     * @throws CommanderException
+     *             if the query fails
+     */
+    public Map<String, String> queryMap(String aStatement)
+            throws CommanderException {
+        Map<String, String> values = new HashMap<String, String>();
+        try {
+            Statement statement = connection.createStatement();
+            try {
+                ResultSet rs = statement.executeQuery(aStatement);
+                while (rs.next()) {
+                    values.put(rs.getString(1), rs.getString(2));
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new CommanderException(
+                    "Could not execute query: " + aStatement, e);
+        }
+        return values;
+    }
+
+    /**
+     * @param aStatement
+     *            query with one column
+     * @param aParameters
+     *            values of the parameters of the query
+     * @return values of the column
+     * @throws CommanderException
+     *             if the query fails
+     */
+    public List<String> queryList(String aStatement, String... aParameters)
+            throws CommanderException {
+        List<String> values = new ArrayList<String>();
+        try {
+            PreparedStatement statement = connection
+                    .prepareStatement(aStatement);
+            try {
+                for (int i = 0; i < aParameters.length; i++) {
+                    statement.setString(i + 1, aParameters[i]);
+                }
+                ResultSet rs = statement.executeQuery();
+                while (rs.next()) {
+                    values.add(rs.getString(1));
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new CommanderException(
+                    "Could not execute query: " + aStatement, e);
+        }
+        return values;
+    }
+
+    /**
+     * Commit the statements executed since the last commit. The pending
+     * batches of the started tables are not affected.
+     *
+     * @throws CommanderException
+     *             if the commit fails
+     */
+    public void commit() throws CommanderException {
+        try {
+            connection.commit();
+        } catch (SQLException e) {
+            throw new CommanderException("Could not commit backup", e);
+        }
+    }
+
+    /**
+     * @param aTableName
+     *            name of a table
+     * @return names of the columns of the table, empty if it does not exist
+     * @throws CommanderException
+     *             if the table cannot be read
+     */
+    public Set<String> getColumns(String aTableName)
+            throws CommanderException {
+        Set<String> columns = new HashSet<String>();
+        try {
+            Statement statement = connection.createStatement();
+            try {
+                ResultSet rs = statement.executeQuery(
+                        "PRAGMA table_info(`" + aTableName + "`);");
+                while (rs.next()) {
+                    columns.add(rs.getString("name"));
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new CommanderException(
+                    "Could not read columns of table " + aTableName, e);
+        }
+        return columns;
+    }
+
+    /**
+     * Start inserting the records of an object. Several tables can be filled
+     * at the same time, a table which is already started is finished first.
+     *
+     * @param aObjectName
+     *            name of the object and its table
+     * @param aFields
+     *            fields of the object, in the order of the queried values
+     * @throws CommanderException
+     *             if the insert statement cannot be prepared
+     */
+    public void startTable(String aObjectName, Field[] aFields)
+            throws CommanderException {
+        startTable(aObjectName, aFields, false);
+    }
+
+    /**
+     * Start inserting the records of an object.
+     *
+     * @param aObjectName
+     *            name of the object and its table
+     * @param aFields
+     *            fields of the object, in the order of the queried values
+     * @param aReplace
+     *            true to replace rows with the same unique key
+     * @throws CommanderException
+     *             if the insert statement cannot be prepared
+     */
+    public void startTable(String aObjectName, Field[] aFields,
+            boolean aReplace) throws CommanderException {
+        finishTable(aObjectName);
+        String statement = generateInsertStatement(aObjectName, aFields,
+                aReplace);
+        SfdcCommander.getInstance().debug(statement);
+        SqliteColumnType[] columnTypes = new SqliteColumnType[aFields.length];
+        for (int i = 0; i < aFields.length; i++) {
+            columnTypes[i] = SqliteColumnType.getColumnType(aFields[i]);
+        }
+        try {
+            inserts.put(aObjectName, new TableInsert(
+                    connection.prepareStatement(statement), columnTypes));
+        } catch (SQLException e) {
+            throw new CommanderException(
+                    "Could not prepare insert into " + aObjectName, e);
+        }
+    }
+
+    /**
+     * @param aObjectName
+     *            name of a started table
+     * @param aSObject
+     *            queried record of the object
+     * @throws CommanderException
+     *             if the record cannot be inserted
+     */
+    public void insert(String aObjectName, SObject aSObject)
+            throws CommanderException {
+        TableInsert insert = getInsert(aObjectName);
+        MessageElement[] values = aSObject.get_any();
+        try {
+            for (int i = 0; i < insert.columnTypes.length; i++) {
+                setValue(insert, i, values[i].getValue());
+            }
+            addBatch(insert);
+        } catch (SQLException e) {
+            throw new CommanderException(
+                    "Could not insert record " + aSObject.getId(), e);
+        }
+    }
+
+    /**
+     * @param aObjectName
+     *            name of a started table
+     * @param aValues
+     *            values of a row in the order of the fields, null for empty
+     *            values
+     * @throws CommanderException
+     *             if the row cannot be inserted
+     */
+    public void insert(String aObjectName, String[] aValues)
+            throws CommanderException {
+        TableInsert insert = getInsert(aObjectName);
+        try {
+            for (int i = 0; i < insert.columnTypes.length; i++) {
+                setValue(insert, i, i < aValues.length ? aValues[i] : null);
+            }
+            addBatch(insert);
+        } catch (SQLException e) {
+            throw new CommanderException(
+                    "Could not insert row into " + aObjectName, e);
+        }
+    }
+
+    /**
+     * Insert the remaining records of a table and commit them.
+     *
+     * @param aObjectName
+     *            name of the table, ignored if it has not been started
+     * @throws CommanderException
+     *             if the records cannot be inserted
+     */
+    public void finishTable(String aObjectName) throws CommanderException {
+        TableInsert insert = inserts.remove(aObjectName);
+        if (insert == null) {
+            return;
+        }
+        try {
+            try {
+                executeBatch(insert);
+                connection.commit();
+                uncommittedRows = 0;
+            } finally {
+                insert.statement.close();
+            }
+        } catch (SQLException e) {
+            throw new CommanderException(
+                    "Could not commit backup of " + aObjectName, e);
+        }
+    }
+
+    /**
+     * Finish the started tables and close the connection.
+     *
+     * @throws CommanderException
+     *             if the database cannot be closed
+     */
+    public void close() throws CommanderException {
+        try {
+            try {
+                for (String objectName : new ArrayList<String>(
+                        inserts.keySet())) {
+                    finishTable(objectName);
+                }
+                connection.commit();
+                connection.setAutoCommit(true);
+            } finally {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            throw new CommanderException("Could not close backup database", e);
+        }
+    }
+
+    private TableInsert getInsert(String aObjectName)
+            throws CommanderException {
+        TableInsert insert = inserts.get(aObjectName);
+        if (insert == null) {
+            throw new CommanderException(
+                    "Table " + aObjectName + " has not been started");
+        }
+        return insert;
+    }
+
+    private static void setValue(TableInsert aInsert, int aIndex,
+            String aValue) throws SQLException {
+        aInsert.columnTypes[aIndex].bind(aInsert.statement, aIndex + 1,
+                aValue);
+    }
+
+    private void addBatch(TableInsert aInsert) throws SQLException {
+        aInsert.statement.addBatch();
+        if (++aInsert.batchRows == BATCH_SIZE) {
+            executeBatch(aInsert);
+        }
+    }
+
+    private void executeBatch(TableInsert aInsert) throws SQLException {
+        if (aInsert.batchRows == 0) {
+            return;
+        }
+        aInsert.statement.executeBatch();
+        uncommittedRows += aInsert.batchRows;
+        aInsert.batchRows = 0;
+        if (uncommittedRows >= COMMIT_SIZE) {
+            connection.commit();
+            uncommittedRows = 0;
+        }
+    }
+
+    /**
+     * @param aObjectName
+     *            name of the table
+     * @param aFields
+     *            columns of the table
+     * @return insert statement with a parameter per column
+     */
+    static String generateInsertStatement(String aObjectName,
+            Field[] aFields) {
+        return generateInsertStatement(aObjectName, aFields, false);
+    }
+
+    /**
+     * @param aObjectName
+     *            name of the table
+     * @param aFields
+     *            columns of the table
+     * @param aReplace
+     *            true to replace rows with the same unique key
+     * @return insert statement with a parameter per column
+     */
+    static String generateInsertStatement(String aObjectName, Field[] aFields,
+            boolean aReplace) {
+        StringBuilder columns = new StringBuilder();
+        StringBuilder parameters = new StringBuilder();
+        for (Field field : aFields) {
+            if (columns.length() > 0) {
+                columns.append(", ");
+                parameters.append(", ");
+            }
+            columns.append("`" + field.getName() + "`");
+            parameters.append("?");
+        }
+        return (aReplace ? "INSERT OR REPLACE" : "INSERT") + " INTO `"
+                + aObjectName + "` (" + columns + ") VALUES ("
+                + parameters + ");";
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ *
+ */
+package de.sfdccommander.controller;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import de.sfdccommander.controller.helper.CommanderException;
+
+/**
+ * Content-addressed store of the files of base64 fields. A file is stored
+ * once under the SHA-256 hash of its content in
+ * {@code <root>/<first two digits>/<hash>}, the backup tables keep the hash
+ * as reference. The same file attached to several records takes the space
+ * only once. The store can be used by several threads.
+ *
+ * @author jochen
+ *
+ */
+public class BlobStore {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File root;
+
+    /**
+     * @param aRoot
+     *            folder of the store, created on demand
+     */
+    public BlobStore(File aRoot) {
+        root = aRoot;
+    }
+
+    /**
+     * Copy the content into the store. It is written to a temporary file
+     * while its hash is computed, and moved to its place afterwards.
+     *
+     * @param aIn
+     *            content, not closed
+     * @return hash of the content
+     * @throws CommanderException
+     *             if the content cannot be stored
+     */
+    public String store(InputStream aIn) throws CommanderException {
+        File tmpFile = null;
+        try {
+            root.mkdirs();
+            tmpFile = File.createTempFile("blob", ".tmp", root);
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            OutputStream out = new DigestOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmpFile), BUFFER_SIZE), digest);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = aIn.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+            String hash = toHex(digest.digest());
+            File file = getFile(hash);
+            if (!file.exists()) {
+                file.getParentFile().mkdirs();
+                // the same content may arrive in parallel, either copy wins
+                Files.move(tmpFile.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+            return hash;
+        } catch (IOException e) {
+            throw new CommanderException("Could not store file in " + root,
+                    e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new CommanderException("Could not hash file", e);
+        } finally {
+            if (tmpFile != null && tmpFile.exists()) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * @param aHash
+     *            hash returned by {@link #store(InputStream)}
+     * @return file of the content
+     */
+    public File getFile(String aHash) {
+        return new File(new File(root, aHash.substring(0, 2)), aHash);
+    }
+
+    private static String toHex(byte[] aBytes) {
+        char[] hex = new char[aBytes.length * 2];
+        for (int i = 0; i < aBytes.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(aBytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[aBytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
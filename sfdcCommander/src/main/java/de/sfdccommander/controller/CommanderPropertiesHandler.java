@@ -9,6 +9,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Properties;
 
+import de.sfdccommander.controller.connection.DescribeService;
+import de.sfdccommander.controller.connection.PooledHttpSender;
 import de.sfdccommander.controller.helper.CommanderException;
 import de.sfdccommander.model.CommanderConfig;
 import de.sfdccommander.model.SfdcConfig;
@@ -62,6 +64,16 @@ public class CommanderPropertiesHandler {
                 properties.getProperty(CommanderConfig.SF_PASSWORD));
         sourceSfdcConfig.setLoginUrl(
                 properties.getProperty(CommanderConfig.SF_SERVERURL));
+        sourceSfdcConfig.setMaxConcurrentCalls(getIntProperty(properties,
+                CommanderConfig.SF_MAX_CONCURRENT_CALLS,
+                SfdcConfig.DEFAULT_MAX_CONCURRENT_CALLS));
+        sourceSfdcConfig.setRetrieveChunkSize(getIntProperty(properties,
+                CommanderConfig.SF_RETRIEVE_CHUNK_SIZE,
+                SfdcConfig.DEFAULT_RETRIEVE_CHUNK_SIZE));
+        sourceSfdcConfig.setQueryBatchSize(getIntProperty(properties,
+                CommanderConfig.SF_QUERY_BATCH_SIZE, 0));
+        sourceSfdcConfig.setIncrementalRetrieve(getBooleanProperty(properties,
+                CommanderConfig.SF_INCREMENTAL_RETRIEVE, true));
         config.setSourceSfdcConfig(sourceSfdcConfig);
         SvnConfig svnConfig = new SvnConfig();
         svnConfig.setSvnRepository(
@@ -72,9 +84,26 @@ public class CommanderPropertiesHandler {
         config.setSvnConfig(svnConfig);
         config.setRenderPath(
                 properties.getProperty(CommanderConfig.RENDER_PATH));
+        config.setRenderServePort(getIntProperty(properties,
+                CommanderConfig.RENDER_SERVE_PORT,
+                DocumentationServer.DEFAULT_PORT));
+        config.setRenderServeAddress(
+                properties.getProperty(CommanderConfig.RENDER_SERVE_ADDRESS));
         config.setBackupPath(
                 properties.getProperty(CommanderConfig.BACKUP_PATH));
+        config.setBackupIncremental(getBooleanProperty(properties,
+                CommanderConfig.BACKUP_INCREMENTAL, false));
+        config.setBackupBulkThreshold(getIntProperty(properties,
+                CommanderConfig.BACKUP_BULK_THRESHOLD,
+                DatabaseHandler.DEFAULT_BULK_THRESHOLD));
         config.setXlsPath(properties.getProperty(CommanderConfig.XLS_PATH));
+        config.setCachePath(
+                properties.getProperty(CommanderConfig.CACHE_PATH, "cache/"));
+        config.setSessionCacheEnabled(getBooleanProperty(properties,
+                CommanderConfig.SESSION_CACHE, true));
+        config.setDescribeCacheTtl(getIntProperty(properties,
+                CommanderConfig.DESCRIBE_CACHE_TTL,
+                DescribeService.DEFAULT_CACHE_TTL));
         SfdcConfig targetSfdcConfig = new SfdcConfig();
         targetSfdcConfig.setSystemName(
                 properties.getProperty(CommanderConfig.SF_TARGET_SYSTEMNAME));
@@ -84,11 +113,69 @@ public class CommanderPropertiesHandler {
                 properties.getProperty(CommanderConfig.SF_TARGET_PASSWORD));
         targetSfdcConfig.setLoginUrl(
                 properties.getProperty(CommanderConfig.SF_TARGET_SERVERURL));
+        targetSfdcConfig.setMaxConcurrentCalls(getIntProperty(properties,
+                CommanderConfig.SF_TARGET_MAX_CONCURRENT_CALLS,
+                SfdcConfig.DEFAULT_MAX_CONCURRENT_CALLS));
+        targetSfdcConfig.setRetrieveChunkSize(getIntProperty(properties,
+                CommanderConfig.SF_TARGET_RETRIEVE_CHUNK_SIZE,
+                SfdcConfig.DEFAULT_RETRIEVE_CHUNK_SIZE));
+        targetSfdcConfig.setQueryBatchSize(getIntProperty(properties,
+                CommanderConfig.SF_TARGET_QUERY_BATCH_SIZE, 0));
+        targetSfdcConfig.setIncrementalRetrieve(getBooleanProperty(properties,
+                CommanderConfig.SF_TARGET_INCREMENTAL_RETRIEVE, true));
         config.setTargetSfdcConfig(targetSfdcConfig);
         config.setHttpProxyHost(
                 properties.getProperty(CommanderConfig.HTTP_PROXY_HOST));
         config.setHttpProxyPort(
                 properties.getProperty(CommanderConfig.HTTP_PROXY_PORT));
+        config.setHttpMaxConnectionsPerHost(getIntProperty(properties,
+                CommanderConfig.HTTP_MAX_CONNECTIONS_PER_HOST,
+                PooledHttpSender.DEFAULT_MAX_CONNECTIONS_PER_HOST));
+        config.setHttpCompression(getBooleanProperty(properties,
+                CommanderConfig.HTTP_COMPRESSION, true));
         return config;
     }
+
+    /**
+     * @param aProperties
+     *            loaded properties
+     * @param aKey
+     *            key of the numeric property
+     * @param aDefault
+     *            value if the property is not set
+     * @return value of the property
+     * @throws CommanderException
+     *             If the property is not a number.
+     */
+    private int getIntProperty(final Properties aProperties,
+            final String aKey, final int aDefault) throws CommanderException {
+        String value = aProperties.getProperty(aKey);
+        if (value == null || value.trim().equals("")) {
+            return aDefault;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new CommanderException("Property " + aKey
+                    + " must be a number but is: " + value, e);
+        }
+    }
+
+    /**
+     * @param aProperties
+     *            loaded properties
+     * @param aKey
+     *            key of the boolean property
+     * @param aDefault
+     *            value if the property is not set
+     * @return value of the property
+     */
+    private boolean getBooleanProperty(final Properties aProperties,
+            final String aKey, final boolean aDefault) {
+        String value = aProperties.getProperty(aKey);
+        if (value == null || value.trim().equals("")) {
+            return aDefault;
+        }
+        return Boolean.parseBoolean(value.trim());
+    }
 }
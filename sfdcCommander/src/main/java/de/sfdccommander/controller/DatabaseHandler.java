@@ -4,25 +4,50 @@
 package de.sfdccommander.controller;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.rmi.RemoteException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
+import org.apache.axis.message.MessageElement;
+
+import com.sforce.soap.partner.DeletedRecord;
 import com.sforce.soap.partner.DescribeGlobalResult;
 import com.sforce.soap.partner.DescribeGlobalSObjectResult;
 import com.sforce.soap.partner.DescribeSObjectResult;
 import com.sforce.soap.partner.Field;
 import com.sforce.soap.partner.QueryResult;
-import com.sforce.soap.partner.SoapBindingStub;
-import com.sforce.soap.partner.fault.UnexpectedErrorFault;
+import com.sforce.soap.partner.Soap;
 import com.sforce.soap.partner.sobject.SObject;
 
+import de.sfdccommander.controller.connection.BulkQueryClient;
+import de.sfdccommander.controller.connection.DescribeService;
 import de.sfdccommander.controller.connection.SfdcConnectionPool;
 import de.sfdccommander.controller.helper.CommanderException;
+import de.sfdccommander.controller.helper.ConcurrentTaskRunner;
+import de.sfdccommander.controller.helper.CsvReader;
 import de.sfdccommander.model.SfdcConfig;
 import de.sfdccommander.model.SpecialQuerySObjectSet;
 import de.sfdccommander.model.SqliteDataTypeMap;
@@ -54,17 +79,110 @@ public class DatabaseHandler {
      */
     private SfdcConnectionPool connPool;
 
+    /**
+     * Pages of query results waiting for the writer.
+     */
+    private static final int QUEUE_CAPACITY = 16;
+
+    /**
+     * High-water mark of each object in an incremental backup.
+     */
+    private static final String WATERMARK_TABLE = "_backup_watermark";
+
+    /**
+     * Deleted records found by an incremental backup.
+     */
+    private static final String DELETED_TABLE = "_backup_deleted";
+
+    private static final String MODSTAMP_FIELD = "SystemModstamp";
+
+    /**
+     * Folder of the files of base64 fields next to the databases.
+     */
+    private static final String BLOB_FOLDER = "blobs";
+
+    /**
+     * Records of an object above which it is split into slices.
+     */
+    private static final int SLICE_RECORDS = 250000;
+
+    /**
+     * Default number of records of an object above which it is extracted
+     * with the bulk api.
+     */
+    public static final int DEFAULT_BULK_THRESHOLD = 500000;
+
+    /**
+     * Records per batch of a bulk query with primary key chunking.
+     */
+    private static final int BULK_CHUNK_SIZE = 100000;
+
+    /**
+     * Csv rows of a bulk query result handed to the writer at once.
+     */
+    private static final int BULK_PAGE_SIZE = 2000;
+
+    /**
+     * Types of fields which cannot be queried with the bulk api.
+     */
+    private static final Set<String> BULK_COMPOUND_TYPES = new HashSet<String>(
+            Arrays.asList("address", "location"));
+
+    private static final String BASE64_TYPE = "base64";
+
+    /**
+     * Type of the lookup fields holding the Id of another record.
+     */
+    private static final String REFERENCE_TYPE = "reference";
+
+    /**
+     * Records whose files are downloaded at once.
+     */
+    private static final int BLOB_CHUNK_SIZE = 200;
+
     private final SqliteDataTypeMap dataTypeMap;
     private final SpecialQuerySObjectSet unsupportedSObjects;
 
     /**
-     * 
+     * Update one database instead of creating a new one.
+     */
+    private final boolean incremental;
+
+    /**
+     * SystemModstamp up to which the objects have been backed up, keyed by
+     * object.
+     */
+    private Map<String, String> watermarks = new HashMap<String, String>();
+
+    /**
+     * Server time at the start of the backup, the next high-water mark.
+     */
+    private Calendar startTime;
+
+    /**
+     * Records of an object above which it is extracted with the bulk api, 0
+     * to query all objects with queryAll.
      */
-    static SoapBindingStub sfBinding;
+    private int bulkThreshold = DEFAULT_BULK_THRESHOLD;
 
     public DatabaseHandler(SfdcConfig aConfig, String aBackupPath) {
+        this(aConfig, aBackupPath, false);
+    }
+
+    /**
+     * @param aConfig
+     *            org to backup
+     * @param aBackupPath
+     *            folder of the backups
+     * @param aIncremental
+     *            true to update the database of the last backup with the
+     *            records changed since then
+     */
+    public DatabaseHandler(SfdcConfig aConfig, String aBackupPath,
+            boolean aIncremental) {
         this.config = aConfig;
         this.backupPath = aBackupPath;
+        this.incremental = aIncremental;
         commander = SfdcCommander.getInstance();
 
         dataTypeMap = new SqliteDataTypeMap();
@@ -72,6 +190,15 @@ public class DatabaseHandler {
 
     }
 
+    /**
+     * @param aBulkThreshold
+     *            records of an object above which it is extracted with the
+     *            bulk api, 0 to query all objects with queryAll
+     */
+    public void setBulkThreshold(int aBulkThreshold) {
+        bulkThreshold = Math.max(0, aBulkThreshold);
+    }
+
     public void backupOrganization() throws CommanderException {
         Date date = new Date();
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
@@ -81,73 +208,69 @@ public class DatabaseHandler {
 
         File backupFolder = new File(backupPath + config.getSystemName());
         backupFolder.mkdirs();
+        connPool = SfdcConnectionPool.getInstance();
         try {
             Class.forName("org.sqlite.JDBC");
-            Connection dbConnection = DriverManager.getConnection(
-                    "jdbc:sqlite:" + backupFolder.getAbsolutePath()
-                            + File.separator + config.getSystemName() + "_"
-                            + sdf.format(date) + ".sqlite");
-
-            connPool = SfdcConnectionPool.getInstance();
-            sfBinding = connPool.getBinding(config);
-
-            // run the different examples
-            DescribeGlobalResult global;
-            global = sfBinding.describeGlobal();
-            String createTableStatement;
-            String dropTableStatement;
-            String soqlSelect;
-            String insertStatement;
-            Statement tmpStatement = dbConnection.createStatement();
-            tmpStatement.setQueryTimeout(30);
+            // an incremental backup keeps updating the same database
+            String dbName = incremental ? config.getSystemName()
+                    : config.getSystemName() + "_" + sdf.format(date);
+            Connection dbConnection = DriverManager
+                    .getConnection("jdbc:sqlite:" + backupFolder
+                            .getAbsolutePath() + File.separator + dbName
+                            + ".sqlite");
+
+            // describe all objects up front in batches
+            DescribeService describer = DescribeService.getInstance();
+            DescribeGlobalResult global = describer.describeGlobal(config);
+            List<String> objectNames = new ArrayList<String>();
             for (DescribeGlobalSObjectResult objectGlobalResult : global
                     .getSobjects()) {
-                // create tables and download data
-                DescribeSObjectResult tmpDescribeSObject = sfBinding
-                        .describeSObject(objectGlobalResult.getName());
-                if (tmpDescribeSObject.isQueryable()) {
-                    if (!unsupportedSObjects
-                            .contains(tmpDescribeSObject.getName())) {
-                        commander.info(
-                                "Object: " + tmpDescribeSObject.getName());
-                        commander.info("Preparing database table.");
-                        Field[] fields = tmpDescribeSObject.getFields();
-                        dropTableStatement = generateDropTableStatement(
-                                tmpDescribeSObject.getName());
-                        tmpStatement.execute(dropTableStatement);
-                        createTableStatement = generateCreateTableStatement(
-                                tmpDescribeSObject.getName(), fields);
-                        tmpStatement.execute(createTableStatement);
-                        soqlSelect = generateSOQLSelectQuery(
-                                tmpDescribeSObject.getName(), fields);
-                        commander.info("Downloading data...");
-                        commander.info("");
-                        QueryResult queryResults = sfBinding
-                                .queryAll(soqlSelect);
-                        boolean done = false;
-                        if (queryResults.getSize() > 0) {
-                            while (!done) {
-                                for (SObject tmpSObject : queryResults
-                                        .getRecords()) {
-                                    insertStatement = generateInsertStatementForSObject(
-                                            tmpSObject,
-                                            tmpDescribeSObject.getName(),
-                                            fields);
-                                    tmpStatement.execute(insertStatement);
-                                }
-                                if (queryResults.isDone()) {
-                                    done = true;
-                                } else {
-                                    queryResults = sfBinding.queryMore(
-                                            queryResults.getQueryLocator());
-                                }
-                            }
-                        }
-                    }
+                objectNames.add(objectGlobalResult.getName());
+            }
+            Map<String, DescribeSObjectResult> describes = describer
+                    .describeSObjects(config, objectNames, true);
+            List<DescribeSObjectResult> backupObjects = new ArrayList<DescribeSObjectResult>();
+            for (DescribeSObjectResult tmpDescribeSObject : describes
+                    .values()) {
+                if (tmpDescribeSObject.isQueryable() && !unsupportedSObjects
+                        .contains(tmpDescribeSObject.getName())) {
+                    backupObjects.add(tmpDescribeSObject);
                 }
             }
-            tmpStatement.close();
-            dbConnection.close();
+
+            BackupTableWriter writer = new BackupTableWriter(dbConnection,
+                    incremental);
+            try {
+                if (incremental) {
+                    startTime = getServerTimestamp();
+                    writer.execute("CREATE TABLE IF NOT EXISTS `"
+                            + WATERMARK_TABLE + "` (`object` VARCHAR(255) "
+                            + "PRIMARY KEY, `modstamp` DATETIME);");
+                    writer.execute("CREATE TABLE IF NOT EXISTS `"
+                            + DELETED_TABLE + "` (`object` VARCHAR(255), "
+                            + "`Id` VARCHAR(20), `deletedDate` DATETIME, "
+                            + "PRIMARY KEY (`object`, `Id`));");
+                    watermarks = writer.queryMap("SELECT `object`, "
+                            + "`modstamp` FROM `" + WATERMARK_TABLE + "`;");
+                }
+
+                // the largest objects determine the duration, start them
+                // first
+                Map<String, Integer> recordCounts = countRecords(
+                        backupObjects);
+                sortLargestFirst(backupObjects, recordCounts);
+
+                // very large objects are queried in parallel slices
+                List<BackupSlice> slices = planSlices(backupObjects,
+                        recordCounts);
+                writeBackup(writer, backupObjects.size(), slices);
+
+                // files of base64 fields, stored once per content
+                downloadFiles(writer, backupObjects, new BlobStore(
+                        new File(backupFolder, BLOB_FOLDER)));
+            } finally {
+                writer.close();
+            }
 
             commander.info("Backup sucessfully created.");
 
@@ -157,10 +280,1133 @@ public class DatabaseHandler {
                     e);
         } catch (SQLException e) {
             throw new CommanderException(e);
-        } catch (UnexpectedErrorFault e) {
-            throw new CommanderException(e);
+        }
+    }
+
+    /**
+     * Download the records of the objects and write them to the database.
+     * The slices are queried by {@link SfdcConfig#getMaxConcurrentCalls()}
+     * fetchers, which hand the pages of their query results to this thread
+     * through a queue of at most {@value #QUEUE_CAPACITY} pages. A fetcher
+     * waits while the queue is full, so the pages in memory are bounded and
+     * the org is queried while the database is written. The slices are
+     * fetched in the given order, the slices of an object are written into
+     * the same table.
+     *
+     * @param aWriter
+     *            writer of the backup database
+     * @param aObjectCount
+     *            number of objects to backup
+     * @param aSlices
+     *            slices of the objects
+     * @throws CommanderException
+     *             if an object cannot be queried or written
+     */
+    private void writeBackup(final BackupTableWriter aWriter,
+            final int aObjectCount, final List<BackupSlice> aSlices)
+            throws CommanderException {
+        final BlockingQueue<BackupPage> queue = new ArrayBlockingQueue<BackupPage>(
+                QUEUE_CAPACITY);
+        ExecutorService executor = ConcurrentTaskRunner.newExecutor(
+                "backup-fetch", Math.max(1, Math.min(aSlices.size(),
+                        config.getMaxConcurrentCalls())));
+        try {
+            for (final BackupSlice slice : aSlices) {
+                executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws InterruptedException {
+                        fetchRecords(slice, queue);
+                        return null;
+                    }
+                });
+            }
+            // slices of each started object which are still being fetched
+            Map<String, Integer> pendingSlices = new HashMap<String, Integer>();
+            int pending = aObjectCount;
+            while (pending > 0) {
+                BackupPage page = queue.take();
+                DescribeSObjectResult describe = page.slice.describe;
+                String objectName = describe.getName();
+                if (page.failure != null) {
+                    throw new CommanderException(
+                            "Could not backup object " + objectName,
+                            page.failure);
+                }
+                if (!pendingSlices.containsKey(objectName)) {
+                    // first page of an object
+                    startTable(aWriter, describe);
+                    pendingSlices.put(objectName, page.slice.sliceCount);
+                }
+                for (SObject tmpSObject : page.records) {
+                    aWriter.insert(objectName, tmpSObject);
+                }
+                for (String[] row : page.rows) {
+                    aWriter.insert(objectName, row);
+                }
+                if (!page.last) {
+                    continue;
+                }
+                recordDeletions(aWriter, objectName, page.deleted);
+                int slicesLeft = pendingSlices.get(objectName) - 1;
+                pendingSlices.put(objectName, slicesLeft);
+                if (slicesLeft == 0) {
+                    if (incremental && hasField(describe, MODSTAMP_FIELD)) {
+                        // committed together with the records of the object
+                        aWriter.update("INSERT OR REPLACE INTO `"
+                                + WATERMARK_TABLE + "` (`object`, `modstamp`)"
+                                + " VALUES (?, ?);", objectName,
+                                formatDateTime(startTime));
+                    }
+                    aWriter.finishTable(objectName);
+                    createIndexes(aWriter, describe);
+                    pending--;
+                    commander.info("Object " + objectName + " written, "
+                            + (aObjectCount - pending) + " of " + aObjectCount
+                            + " objects done.");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommanderException("Backup has been interrupted.", e);
+        } finally {
+            // stops fetchers waiting for the queue after a failure
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Download the files of the base64 fields of the written records into the
+     * blob store, up to {@link SfdcConfig#getMaxConcurrentCalls()} at once.
+     * The columns of the base64 fields get the hash of the file, or an empty
+     * value if the field is empty. A column stays NULL if its download
+     * fails, the next incremental backup tries it again, as well as the
+     * files of changed records.
+     *
+     * @param aWriter
+     *            writer of the backup database
+     * @param aObjects
+     *            backed up objects
+     * @param aStore
+     *            store of the files
+     * @throws CommanderException
+     *             if the database cannot be updated
+     */
+    private void downloadFiles(BackupTableWriter aWriter,
+            List<DescribeSObjectResult> aObjects, final BlobStore aStore)
+            throws CommanderException {
+        for (DescribeSObjectResult describe : aObjects) {
+            final String objectName = describe.getName();
+            final List<String> blobFields = getBlobFields(
+                    describe.getFields());
+            if (blobFields.isEmpty() || !hasField(describe, "Id")) {
+                continue;
+            }
+            StringBuilder pending = new StringBuilder();
+            StringBuilder update = new StringBuilder();
+            for (String field : blobFields) {
+                pending.append(pending.length() == 0 ? "(" : " OR ")
+                        .append("`" + field + "` IS NULL");
+                update.append(update.length() == 0 ? "" : ", ")
+                        .append("`" + field + "` = ?");
+            }
+            pending.append(")");
+            String count = aWriter.queryList("SELECT COUNT(*) FROM `"
+                    + objectName + "` WHERE " + pending + ";").get(0);
+            if ("0".equals(count)) {
+                continue;
+            }
+            commander.info("Downloading files of " + count + " records of "
+                    + "object " + objectName + "...");
+            int failures = 0;
+            String lastId = "";
+            while (true) {
+                List<String> ids = aWriter.queryList("SELECT `Id` FROM `"
+                        + objectName + "` WHERE " + pending
+                        + " AND `Id` > ? ORDER BY `Id` LIMIT "
+                        + BLOB_CHUNK_SIZE + ";", lastId);
+                if (ids.isEmpty()) {
+                    break;
+                }
+                lastId = ids.get(ids.size() - 1);
+                List<Callable<String[]>> tasks = new ArrayList<Callable<String[]>>();
+                for (final String id : ids) {
+                    tasks.add(new Callable<String[]>() {
+                        @Override
+                        public String[] call() {
+                            return downloadFiles(aStore, objectName, id,
+                                    blobFields);
+                        }
+                    });
+                }
+                List<String[]> hashes = ConcurrentTaskRunner.invokeAll(
+                        "backup-blob", config.getMaxConcurrentCalls(),
+                        tasks);
+                for (int i = 0; i < ids.size(); i++) {
+                    String[] values = Arrays.copyOf(hashes.get(i),
+                            blobFields.size() + 1);
+                    values[blobFields.size()] = ids.get(i);
+                    for (String hash : hashes.get(i)) {
+                        if (hash == null) {
+                            failures++;
+                        }
+                    }
+                    aWriter.update("UPDATE `" + objectName + "` SET "
+                            + update + " WHERE `Id` = ?;", values);
+                }
+                aWriter.commit();
+            }
+            commander.info("Files of object " + objectName + " downloaded"
+                    + (failures == 0 ? "."
+                            : ", " + failures + " downloads failed."));
+        }
+    }
+
+    /**
+     * @return hash of the file of each field, empty for an empty field, null
+     *         if the download failed
+     */
+    private String[] downloadFiles(BlobStore aStore, String aObjectName,
+            String aId, List<String> aFields) {
+        String[] hashes = new String[aFields.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            try {
+                InputStream in = connPool.openBlob(config, aObjectName, aId,
+                        aFields.get(i));
+                if (in == null) {
+                    hashes[i] = "";
+                    continue;
+                }
+                try {
+                    hashes[i] = aStore.store(in);
+                } finally {
+                    in.close();
+                }
+            } catch (CommanderException e) {
+                commander.debug(e.getMessage());
+            } catch (IOException e) {
+                commander.debug("Could not close download of " + aId);
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * @param aFields
+     *            fields of an object
+     * @return fields which are queried, without the base64 fields
+     */
+    static Field[] getRecordFields(Field[] aFields) {
+        List<Field> fields = new ArrayList<Field>();
+        for (Field field : aFields) {
+            if (!BASE64_TYPE.equals(field.getType().getValue())) {
+                fields.add(field);
+            }
+        }
+        return fields.toArray(new Field[fields.size()]);
+    }
+
+    /**
+     * @param aFields
+     *            fields of an object
+     * @return names of the Id and the lookup fields, which restores and
+     *         investigations join and filter by
+     */
+    static List<String> getIndexFields(Field[] aFields) {
+        List<String> names = new ArrayList<String>();
+        for (Field field : aFields) {
+            if ("Id".equals(field.getName())
+                    || REFERENCE_TYPE.equals(field.getType().getValue())) {
+                names.add(field.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Index the Id and the lookup fields of a loaded object. The indexes are
+     * built once after the rows are inserted instead of being updated with
+     * every row, an incremental backup keeps the existing ones.
+     *
+     * @param aWriter
+     *            writer of the backup database
+     * @param aDescribe
+     *            describe of the object
+     * @throws CommanderException
+     *             if an index cannot be created
+     */
+    private void createIndexes(BackupTableWriter aWriter,
+            DescribeSObjectResult aDescribe) throws CommanderException {
+        String objectName = aDescribe.getName();
+        for (String fieldName : getIndexFields(
+                getRecordFields(aDescribe.getFields()))) {
+            aWriter.execute(generateCreateIndexStatement(objectName,
+                    fieldName));
+        }
+        aWriter.commit();
+    }
+
+    /**
+     * @param aObjectName
+     *            name of the table
+     * @param aFieldName
+     *            column to index
+     * @return statement creating the index unless it exists
+     */
+    static String generateCreateIndexStatement(String aObjectName,
+            String aFieldName) {
+        // the unique Id index of incremental backups has the same name
+        return "CREATE INDEX IF NOT EXISTS `" + aObjectName + "_"
+                + aFieldName + "` ON `" + aObjectName + "` (`" + aFieldName
+                + "`);";
+    }
+
+    /**
+     * @param aFields
+     *            fields of an object
+     * @return names of the base64 fields
+     */
+    static List<String> getBlobFields(Field[] aFields) {
+        List<String> names = new ArrayList<String>();
+        for (Field field : aFields) {
+            if (BASE64_TYPE.equals(field.getType().getValue())) {
+                names.add(field.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Prepare the table of an object. A full backup recreates the table, an
+     * incremental backup adds the new fields of the object to its table.
+     *
+     * @param aWriter
+     *            writer of the backup database
+     * @param aDescribe
+     *            describe of the object
+     * @throws CommanderException
+     *             if the table cannot be prepared
+     */
+    private void startTable(BackupTableWriter aWriter,
+            DescribeSObjectResult aDescribe) throws CommanderException {
+        String objectName = aDescribe.getName();
+        Field[] fields = aDescribe.getFields();
+        if (getFilter(aDescribe) == null) {
+            aWriter.execute(generateDropTableStatement(objectName));
+            aWriter.execute(generateCreateTableStatement(objectName, fields));
+        } else {
+            Set<String> columns = aWriter.getColumns(objectName);
+            for (Field field : fields) {
+                if (!columns.contains(field.getName())) {
+                    aWriter.execute(generateAddColumnStatement(objectName,
+                            field));
+                }
+            }
+        }
+        boolean replace = incremental && hasField(aDescribe, "Id");
+        if (replace) {
+            // the unique key lets changed records replace their old rows
+            aWriter.execute("CREATE UNIQUE INDEX IF NOT EXISTS `"
+                    + objectName + "_Id` ON `" + objectName + "` (`Id`);");
+        }
+        // the files of base64 fields are downloaded after the records
+        aWriter.startTable(objectName, getRecordFields(fields), replace);
+    }
+
+    /**
+     * @param aWriter
+     *            writer of the backup database
+     * @param aObjectName
+     *            name of the object
+     * @param aDeleted
+     *            records of the object deleted since the last backup
+     * @throws CommanderException
+     *             if the database cannot be updated
+     */
+    private void recordDeletions(BackupTableWriter aWriter, String aObjectName,
+            DeletedRecord[] aDeleted) throws CommanderException {
+        for (DeletedRecord deleted : aDeleted) {
+            aWriter.update("INSERT OR REPLACE INTO `" + DELETED_TABLE
+                    + "` (`object`, `Id`, `deletedDate`) VALUES (?, ?, ?);",
+                    aObjectName, deleted.getId(),
+                    formatDateTime(deleted.getDeletedDate()));
+        }
+    }
+
+    /**
+     * @param aDescribe
+     *            describe of an object
+     * @return SOQL condition selecting the records changed since the last
+     *         backup, null if all records are backed up. The watermark is
+     *         the start of the last backup in whole seconds, so the records
+     *         changed in that second are selected again; the upsert of an
+     *         incremental backup stores them once.
+     */
+    private String getFilter(DescribeSObjectResult aDescribe) {
+        String watermark = watermarks.get(aDescribe.getName());
+        if (watermark == null || !hasField(aDescribe, MODSTAMP_FIELD)) {
+            return null;
+        }
+        return MODSTAMP_FIELD + " >= " + watermark;
+    }
+
+    /**
+     * Get the records deleted since the last backup. The org keeps them for a
+     * limited time, older deletions are lost.
+     *
+     * @param aBinding
+     *            binding of the fetcher
+     * @param aDescribe
+     *            describe of the object
+     * @return deleted records, empty if they cannot be determined
+     */
+    private DeletedRecord[] getDeleted(Soap aBinding,
+            DescribeSObjectResult aDescribe) {
+        String watermark = watermarks.get(aDescribe.getName());
+        if (watermark == null || !aDescribe.isReplicateable()) {
+            return new DeletedRecord[0];
+        }
+        try {
+            DeletedRecord[] deleted = aBinding.getDeleted(aDescribe.getName(),
+                    parseDateTime(watermark), startTime).getDeletedRecords();
+            return deleted == null ? new DeletedRecord[0] : deleted;
         } catch (RemoteException e) {
-            throw new CommanderException(e);
+            commander.info("Could not get deleted records of "
+                    + aDescribe.getName() + ": " + e.getMessage());
+        } catch (ParseException e) {
+            commander.info("Invalid high-water mark of "
+                    + aDescribe.getName() + ": " + watermark);
+        }
+        return new DeletedRecord[0];
+    }
+
+    private Calendar getServerTimestamp() throws CommanderException {
+        Soap sfBinding = connPool.acquireBinding(config);
+        try {
+            return sfBinding.getServerTimestamp().getTimestamp();
+        } catch (RemoteException e) {
+            throw new CommanderException("Could not get server time", e);
+        } finally {
+            connPool.releaseBinding(config, sfBinding);
+        }
+    }
+
+    private static boolean hasField(DescribeSObjectResult aDescribe,
+            String aFieldName) {
+        for (Field field : aDescribe.getFields()) {
+            if (aFieldName.equals(field.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param aDate
+     *            point in time
+     * @return SOQL datetime literal in UTC
+     */
+    static String formatDateTime(Calendar aDate) {
+        return createDateTimeFormat().format(aDate.getTime());
+    }
+
+    private static Calendar parseDateTime(String aDate) throws ParseException {
+        Calendar date = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        date.setTime(createDateTimeFormat().parse(aDate));
+        return date;
+    }
+
+    private static SimpleDateFormat createDateTimeFormat() {
+        SimpleDateFormat format = new SimpleDateFormat(
+                "yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format;
+    }
+
+    /**
+     * Query the records of a slice and put the pages into the queue. The
+     * last page is flagged. A failure is put into the queue instead of the
+     * remaining pages.
+     *
+     * @param aSlice
+     *            slice of an object
+     * @param aQueue
+     *            queue of the writer
+     * @throws InterruptedException
+     *             if the backup is aborted
+     */
+    private void fetchRecords(BackupSlice aSlice,
+            BlockingQueue<BackupPage> aQueue) throws InterruptedException {
+        DescribeSObjectResult describe = aSlice.describe;
+        String name = describe.getName();
+        if (aSlice.sliceCount > 1) {
+            name += " (slice " + (aSlice.index + 1) + " of "
+                    + aSlice.sliceCount + ")";
+        }
+        BackupPage page = null;
+        try {
+            if (aSlice.bulk) {
+                page = fetchBulk(aSlice, aQueue);
+            }
+            if (page == null && FieldGroupReader
+                    .isWide(getRecordFields(describe.getFields()))) {
+                page = fetchFieldGroups(aSlice, name, aQueue);
+            } else if (page == null) {
+                Soap sfBinding = connPool.acquireBinding(config);
+                try {
+                    commander.info("Downloading data of object " + name
+                            + (aSlice.recordCount == null ? ""
+                                    : ", about " + aSlice.recordCount
+                                            + " records")
+                            + "...");
+                    String soqlSelect = generateSOQLSelectQuery(
+                            describe.getName(),
+                            getRecordFields(describe.getFields()))
+                            + getWhereClause(getFilter(describe),
+                                    aSlice.condition);
+                    QueryPageSizer sizer = new QueryPageSizer(
+                            getRecordFields(describe.getFields()).length,
+                            config.getQueryBatchSize());
+                    connPool.setQueryBatchSize(config, sfBinding,
+                            sizer.getBatchSize());
+                    long start = System.currentTimeMillis();
+                    QueryResult queryResults = sfBinding
+                            .queryAll(soqlSelect);
+                    sizer.update(getRecords(queryResults),
+                            System.currentTimeMillis() - start);
+                    int fetched = 0;
+                    int reported = 0;
+                    while (!queryResults.isDone()) {
+                        SObject[] records = getRecords(queryResults);
+                        aQueue.put(
+                                new BackupPage(aSlice, records, false, null));
+                        fetched += records.length;
+                        // report every tenth of the slice
+                        int total = queryResults.getSize();
+                        if (fetched * 10L >= (reported + 1L) * total) {
+                            reported = (int) (fetched * 10L / total);
+                            commander.info("Object " + name + ": "
+                                    + fetched + " of " + total
+                                    + " records downloaded.");
+                        }
+                        connPool.setQueryBatchSize(config, sfBinding,
+                                sizer.getBatchSize());
+                        start = System.currentTimeMillis();
+                        queryResults = sfBinding
+                                .queryMore(queryResults.getQueryLocator());
+                        sizer.update(getRecords(queryResults),
+                                System.currentTimeMillis() - start);
+                    }
+                    page = new BackupPage(aSlice, getRecords(queryResults),
+                            true, null);
+                    if (incremental && aSlice.index == 0) {
+                        page.deleted = getDeleted(sfBinding, describe);
+                    }
+                } finally {
+                    connPool.releaseBinding(config, sfBinding);
+                }
+            }
+        } catch (CommanderException e) {
+            page = new BackupPage(aSlice, null, true, e);
+        } catch (RemoteException e) {
+            page = new BackupPage(aSlice, null, true, e);
+        } catch (RuntimeException e) {
+            page = new BackupPage(aSlice, null, true, e);
+        }
+        aQueue.put(page);
+    }
+
+    /**
+     * @param aDescribe
+     *            describe of an object
+     * @param aRecordCount
+     *            number of records of the object
+     * @return true if the object is extracted with the bulk api
+     */
+    private boolean isBulk(DescribeSObjectResult aDescribe, int aRecordCount) {
+        return bulkThreshold > 0 && aRecordCount > bulkThreshold
+                && isBulkQueryable(aDescribe);
+    }
+
+    /**
+     * @param aDescribe
+     *            describe of an object
+     * @return true if the bulk api can extract the object: it has Ids for
+     *         the chunks and the query is not too long
+     */
+    static boolean isBulkQueryable(DescribeSObjectResult aDescribe) {
+        return hasField(aDescribe, "Id") && !FieldGroupReader
+                .isWide(getRecordFields(aDescribe.getFields()));
+    }
+
+    /**
+     * @param aFields
+     *            fields of an object
+     * @return names of the fields of a bulk query, without the compound
+     *         fields which the bulk api cannot return
+     */
+    static List<String> getBulkFields(Field[] aFields) {
+        List<String> names = new ArrayList<String>();
+        for (Field field : aFields) {
+            if (!BULK_COMPOUND_TYPES.contains(field.getType().getValue())) {
+                names.add(field.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @param aHeader
+     *            header of a csv result
+     * @param aFields
+     *            fields of the object
+     * @return column of each field in the csv result, -1 if it is missing
+     */
+    static int[] getColumnPositions(String[] aHeader, Field[] aFields) {
+        Map<String, Integer> columns = new HashMap<String, Integer>();
+        for (int i = 0; i < aHeader.length; i++) {
+            columns.put(aHeader[i].toLowerCase(Locale.ENGLISH), i);
+        }
+        int[] positions = new int[aFields.length];
+        for (int i = 0; i < aFields.length; i++) {
+            Integer column = columns
+                    .get(aFields[i].getName().toLowerCase(Locale.ENGLISH));
+            positions[i] = column == null ? -1 : column;
+        }
+        return positions;
+    }
+
+    /**
+     * @param aValues
+     *            values of a csv row
+     * @param aPositions
+     *            column of each field
+     * @return values in the order of the fields, empty values as null like
+     *         the values of queryAll
+     */
+    static String[] toRow(String[] aValues, int[] aPositions) {
+        String[] row = new String[aPositions.length];
+        for (int i = 0; i < aPositions.length; i++) {
+            int column = aPositions[i];
+            if (column >= 0 && column < aValues.length
+                    && !aValues[column].isEmpty()) {
+                row[i] = aValues[column];
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Extract the records of an object with a bulk query job with primary
+     * key chunking and put the csv rows into the queue while the results are
+     * downloaded. If the job fails before any record has been handed to the
+     * writer, the object is queried with queryAll instead.
+     *
+     * @param aSlice
+     *            slice with all records of an object
+     * @param aQueue
+     *            queue of the writer
+     * @return last page of the object, null if the object has to be queried
+     *         with queryAll
+     * @throws CommanderException
+     *             if the job fails after records have been written
+     */
+    private BackupPage fetchBulk(final BackupSlice aSlice,
+            final BlockingQueue<BackupPage> aQueue)
+            throws CommanderException {
+        final DescribeSObjectResult describe = aSlice.describe;
+        final String name = describe.getName();
+        final Field[] fields = getRecordFields(describe.getFields());
+        StringBuilder soql = new StringBuilder("SELECT ");
+        for (String field : getBulkFields(fields)) {
+            soql.append(soql.length() > 7 ? ", " : "").append(field);
+        }
+        soql.append(" FROM ").append(name)
+                .append(getWhereClause(getFilter(describe), null));
+        commander.info("Downloading data of object " + name
+                + " with the bulk api"
+                + (aSlice.recordCount == null ? ""
+                        : ", about " + aSlice.recordCount + " records")
+                + "...");
+        final int[] fetched = new int[2];
+        try {
+            connPool.getBulkQueryClient(config).query(name, soql.toString(),
+                    BULK_CHUNK_SIZE, new BulkQueryClient.ResultHandler() {
+                        @Override
+                        public void handleResult(InputStream aCsv)
+                                throws IOException, CommanderException {
+                            CsvReader reader = new CsvReader(
+                                    new InputStreamReader(aCsv, "UTF-8"));
+                            String[] header = reader.readRecord();
+                            if (header == null || header.length == 1
+                                    && header[0].startsWith(
+                                            "Records not found")) {
+                                return;
+                            }
+                            int[] positions = getColumnPositions(header,
+                                    fields);
+                            List<String[]> rows = new ArrayList<String[]>();
+                            String[] values;
+                            while ((values = reader.readRecord()) != null) {
+                                rows.add(toRow(values, positions));
+                                if (rows.size() == BULK_PAGE_SIZE) {
+                                    putRows(aSlice, rows, aQueue, fetched);
+                                    rows = new ArrayList<String[]>();
+                                }
+                            }
+                            putRows(aSlice, rows, aQueue, fetched);
+                        }
+                    });
+        } catch (CommanderException e) {
+            if (fetched[0] > 0) {
+                throw e;
+            }
+            commander.info("Could not extract object " + name
+                    + " with the bulk api, querying it instead: "
+                    + e.getMessage());
+            return null;
+        }
+        BackupPage page = new BackupPage(aSlice, new SObject[0], true, null);
+        if (incremental) {
+            Soap sfBinding = connPool.acquireBinding(config);
+            try {
+                page.deleted = getDeleted(sfBinding, describe);
+            } finally {
+                connPool.releaseBinding(config, sfBinding);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * @param aFetched
+     *            rows handed to the writer and the last reported tenth of
+     *            the expected records
+     */
+    private void putRows(BackupSlice aSlice, List<String[]> aRows,
+            BlockingQueue<BackupPage> aQueue, int[] aFetched)
+            throws CommanderException {
+        if (aRows.isEmpty()) {
+            return;
+        }
+        try {
+            aQueue.put(new BackupPage(aSlice, new SObject[0], aRows, false,
+                    null));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommanderException("Backup has been interrupted.", e);
+        }
+        aFetched[0] += aRows.size();
+        if (aSlice.recordCount != null && aSlice.recordCount > 0
+                && aFetched[0] * 10L >= (aFetched[1] + 1L)
+                        * aSlice.recordCount) {
+            aFetched[1] = (int) (aFetched[0] * 10L / aSlice.recordCount);
+            commander.info("Object " + aSlice.describe.getName() + ": "
+                    + aFetched[0] + " of about " + aSlice.recordCount
+                    + " records downloaded.");
+        }
+    }
+
+    /**
+     * Query the records of a slice of a wide object in groups of fields and
+     * put the joined pages into the queue. The groups lease a binding for
+     * each call, a fetcher never holds a binding while it waits for another.
+     *
+     * @param aSlice
+     *            slice of an object
+     * @param aName
+     *            name of the slice in the log
+     * @param aQueue
+     *            queue of the writer
+     * @return last page of the slice
+     * @throws CommanderException
+     *             if a query fails
+     * @throws InterruptedException
+     *             if the backup is aborted
+     */
+    private BackupPage fetchFieldGroups(BackupSlice aSlice, String aName,
+            BlockingQueue<BackupPage> aQueue)
+            throws CommanderException, InterruptedException {
+        DescribeSObjectResult describe = aSlice.describe;
+        commander.info("Downloading data of object " + aName
+                + " in groups of fields"
+                + (aSlice.recordCount == null ? ""
+                        : ", about " + aSlice.recordCount + " records")
+                + "...");
+        FieldGroupReader reader = new FieldGroupReader(describe.getName(),
+                getRecordFields(describe.getFields()),
+                getWhereClause(getFilter(describe), aSlice.condition),
+                config.getQueryBatchSize(), new FieldGroupReader.QueryCall() {
+                    @Override
+                    public QueryResult call(String aSoql,
+                            String aQueryLocator, int aBatchSize)
+                            throws RemoteException, CommanderException {
+                        Soap sfBinding = connPool.acquireBinding(config);
+                        try {
+                            connPool.setQueryBatchSize(config, sfBinding,
+                                    aBatchSize);
+                            if (aSoql == null) {
+                                return sfBinding.queryMore(aQueryLocator);
+                            }
+                            commander.debug(aSoql);
+                            return sfBinding.queryAll(aSoql);
+                        } finally {
+                            connPool.releaseBinding(config, sfBinding);
+                        }
+                    }
+                });
+        try {
+            int fetched = 0;
+            int reported = 0;
+            SObject[] records = reader.nextPage();
+            while (records != null) {
+                aQueue.put(new BackupPage(aSlice, records, false, null));
+                fetched += records.length;
+                // report every tenth of the slice
+                int total = Math.max(1, reader.getSize());
+                if (fetched * 10L >= (reported + 1L) * total) {
+                    reported = (int) (fetched * 10L / total);
+                    commander.info("Object " + aName + ": " + fetched
+                            + " of " + reader.getSize()
+                            + " records downloaded.");
+                }
+                records = reader.nextPage();
+            }
+        } finally {
+            reader.close();
+        }
+        BackupPage page = new BackupPage(aSlice, new SObject[0], true, null);
+        if (incremental && aSlice.index == 0) {
+            Soap sfBinding = connPool.acquireBinding(config);
+            try {
+                page.deleted = getDeleted(sfBinding, describe);
+            } finally {
+                connPool.releaseBinding(config, sfBinding);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Split the objects with more than {@value #SLICE_RECORDS} records into
+     * slices of Id ranges, which are queried in parallel. The boundaries of
+     * the ranges are sampled from the ordered Ids of an object.
+     *
+     * @param aObjects
+     *            objects in the order of the backup
+     * @param aRecordCounts
+     *            number of records of each object
+     * @return slices in the order of the objects
+     * @throws CommanderException
+     *             if the sampling is interrupted
+     */
+    private List<BackupSlice> planSlices(List<DescribeSObjectResult> aObjects,
+            Map<String, Integer> aRecordCounts) throws CommanderException {
+        final Map<String, List<String>> boundaries = new HashMap<String, List<String>>();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final DescribeSObjectResult describe : aObjects) {
+            final Integer count = aRecordCounts.get(describe.getName());
+            if (count != null && count > SLICE_RECORDS
+                    && hasField(describe, "Id")
+                    && !isBulk(describe, count)) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws CommanderException {
+                        List<String> ids = sampleBoundaries(describe, count,
+                                (count + SLICE_RECORDS - 1) / SLICE_RECORDS);
+                        synchronized (boundaries) {
+                            boundaries.put(describe.getName(), ids);
+                        }
+                        return null;
+                    }
+                });
+            }
+        }
+        ConcurrentTaskRunner.invokeAll("backup-sample",
+                config.getMaxConcurrentCalls(), tasks);
+
+        List<BackupSlice> slices = new ArrayList<BackupSlice>();
+        for (DescribeSObjectResult describe : aObjects) {
+            Integer count = aRecordCounts.get(describe.getName());
+            if (count != null && isBulk(describe, count)) {
+                // the bulk api chunks the object itself
+                slices.add(new BackupSlice(describe, null, 0, 1, count, true));
+                continue;
+            }
+            List<String> ids = boundaries.get(describe.getName());
+            List<String> conditions = getSliceConditions(
+                    ids == null ? new ArrayList<String>() : ids);
+            for (int i = 0; i < conditions.size(); i++) {
+                slices.add(new BackupSlice(describe, conditions.get(i), i,
+                        conditions.size(), count == null ? null
+                                : count / conditions.size(),
+                        false));
+            }
+        }
+        return slices;
+    }
+
+    /**
+     * Sample the Ids at even offsets of the ordered records of an object.
+     * The query locator of the ordered Ids is moved to each offset, so each
+     * boundary costs one call instead of reading all Ids.
+     *
+     * @param aDescribe
+     *            describe of the object
+     * @param aRecordCount
+     *            number of records of the object
+     * @param aSliceCount
+     *            number of slices
+     * @return increasing boundaries between the slices, empty if the object
+     *         cannot be sliced
+     * @throws CommanderException
+     *             if no binding can be leased
+     */
+    private List<String> sampleBoundaries(DescribeSObjectResult aDescribe,
+            int aRecordCount, int aSliceCount) throws CommanderException {
+        List<String> boundaries = new ArrayList<String>();
+        Soap sfBinding = connPool.acquireBinding(config);
+        try {
+            connPool.setQueryBatchSize(config, sfBinding,
+                    QueryPageSizer.MIN_BATCH_SIZE);
+            QueryResult ids = sfBinding.queryAll("SELECT Id FROM "
+                    + aDescribe.getName()
+                    + getWhereClause(getFilter(aDescribe), null)
+                    + " ORDER BY Id");
+            String locator = ids.getQueryLocator();
+            if (ids.isDone() || locator == null
+                    || locator.lastIndexOf('-') < 0) {
+                return boundaries;
+            }
+            String cursor = locator.substring(0, locator.lastIndexOf('-'));
+            for (int i = 1; i < aSliceCount; i++) {
+                long offset = (long) aRecordCount * i / aSliceCount;
+                SObject[] records = getRecords(
+                        sfBinding.queryMore(cursor + "-" + offset));
+                if (records.length == 0) {
+                    break;
+                }
+                String id = getId(records[0]);
+                if (id != null && (boundaries.isEmpty() || id.compareTo(
+                        boundaries.get(boundaries.size() - 1)) > 0)) {
+                    boundaries.add(id);
+                }
+            }
+        } catch (RemoteException e) {
+            commander.info("Could not split object " + aDescribe.getName()
+                    + ", it is queried at once: " + e.getMessage());
+            boundaries.clear();
+        } finally {
+            connPool.releaseBinding(config, sfBinding);
+        }
+        return boundaries;
+    }
+
+    /**
+     * @param aBoundaries
+     *            increasing Ids between the slices
+     * @return SOQL condition of each slice, a single null for an object
+     *         without boundaries
+     */
+    static List<String> getSliceConditions(List<String> aBoundaries) {
+        List<String> conditions = new ArrayList<String>();
+        for (int i = 0; i <= aBoundaries.size(); i++) {
+            StringBuilder condition = new StringBuilder();
+            if (i > 0) {
+                condition.append("Id >= '" + aBoundaries.get(i - 1) + "'");
+            }
+            if (i < aBoundaries.size()) {
+                if (condition.length() > 0) {
+                    condition.append(" AND ");
+                }
+                condition.append("Id < '" + aBoundaries.get(i) + "'");
+            }
+            conditions.add(condition.length() == 0 ? null
+                    : condition.toString());
+        }
+        return conditions;
+    }
+
+    /**
+     * @param aFilter
+     *            condition of an incremental backup, may be null
+     * @param aCondition
+     *            condition of a slice, may be null
+     * @return WHERE clause of both conditions, empty if there is none
+     */
+    static String getWhereClause(String aFilter, String aCondition) {
+        if (aFilter == null && aCondition == null) {
+            return "";
+        }
+        if (aFilter == null || aCondition == null) {
+            return " WHERE " + (aFilter == null ? aCondition : aFilter);
+        }
+        return " WHERE " + aFilter + " AND " + aCondition;
+    }
+
+    private static String getId(SObject aRecord) {
+        if (aRecord.getId() != null) {
+            return aRecord.getId();
+        }
+        MessageElement[] fields = aRecord.get_any();
+        return fields == null || fields.length == 0 ? null
+                : fields[0].getValue();
+    }
+
+    /**
+     * Count the records of the objects in parallel.
+     *
+     * @param aObjects
+     *            objects to backup
+     * @return number of records of each object which can be counted
+     * @throws CommanderException
+     *             if the counting is interrupted
+     */
+    private Map<String, Integer> countRecords(
+            List<DescribeSObjectResult> aObjects) throws CommanderException {
+        commander.info("Counting records of " + aObjects.size() + " objects.");
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (final DescribeSObjectResult describe : aObjects) {
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() throws CommanderException {
+                    Soap sfBinding = connPool.acquireBinding(config);
+                    try {
+                        String filter = getFilter(describe);
+                        return sfBinding.queryAll("SELECT COUNT() FROM "
+                                + describe.getName()
+                                + (filter == null ? "" : " WHERE " + filter))
+                                .getSize();
+                    } catch (RemoteException e) {
+                        // some objects cannot be counted, e.g. without filter
+                        commander.debug("Could not count records of "
+                                + describe.getName() + ": " + e.getMessage());
+                        return null;
+                    } finally {
+                        connPool.releaseBinding(config, sfBinding);
+                    }
+                }
+            });
+        }
+        List<Integer> counts = ConcurrentTaskRunner.invokeAll("backup-count",
+                config.getMaxConcurrentCalls(), tasks);
+        Map<String, Integer> recordCounts = new HashMap<String, Integer>();
+        for (int i = 0; i < aObjects.size(); i++) {
+            if (counts.get(i) != null) {
+                recordCounts.put(aObjects.get(i).getName(), counts.get(i));
+            }
+        }
+        return recordCounts;
+    }
+
+    /**
+     * Sort the objects by their number of records, largest first. Objects
+     * which could not be counted come first, their size is unknown.
+     *
+     * @param aObjects
+     *            objects to sort
+     * @param aRecordCounts
+     *            number of records of each object
+     */
+    static void sortLargestFirst(List<DescribeSObjectResult> aObjects,
+            final Map<String, Integer> aRecordCounts) {
+        Collections.sort(aObjects, new Comparator<DescribeSObjectResult>() {
+            @Override
+            public int compare(DescribeSObjectResult aFirst,
+                    DescribeSObjectResult aSecond) {
+                long first = getCount(aFirst);
+                long second = getCount(aSecond);
+                if (first != second) {
+                    return first > second ? -1 : 1;
+                }
+                return aFirst.getName().compareTo(aSecond.getName());
+            }
+
+            private long getCount(DescribeSObjectResult aDescribe) {
+                Integer count = aRecordCounts.get(aDescribe.getName());
+                return count == null ? Long.MAX_VALUE : count;
+            }
+        });
+    }
+
+    private static SObject[] getRecords(QueryResult aQueryResult) {
+        SObject[] records = aQueryResult.getRecords();
+        return records == null ? new SObject[0] : records;
+    }
+
+    /**
+     * Part of the records of an object, queried by one fetcher.
+     */
+    private static final class BackupSlice {
+
+        private final DescribeSObjectResult describe;
+
+        /**
+         * Id range of the slice, null for all records.
+         */
+        private final String condition;
+
+        private final int index;
+
+        private final int sliceCount;
+
+        /**
+         * Expected number of records, null if unknown.
+         */
+        private final Integer recordCount;
+
+        /**
+         * Extract the records with the bulk api.
+         */
+        private final boolean bulk;
+
+        private BackupSlice(DescribeSObjectResult aDescribe, String aCondition,
+                int aIndex, int aSliceCount, Integer aRecordCount,
+                boolean aBulk) {
+            describe = aDescribe;
+            condition = aCondition;
+            index = aIndex;
+            sliceCount = aSliceCount;
+            recordCount = aRecordCount;
+            bulk = aBulk;
+        }
+    }
+
+    /**
+     * Page of queried records on its way from a fetcher to the writer.
+     */
+    private static final class BackupPage {
+
+        private final BackupSlice slice;
+
+        private final SObject[] records;
+
+        /**
+         * Rows of a bulk query result in the order of the fields.
+         */
+        private final List<String[]> rows;
+
+        private final boolean last;
+
+        private final Exception failure;
+
+        /**
+         * Records deleted since the last backup, set on the last page.
+         */
+        private DeletedRecord[] deleted = new DeletedRecord[0];
+
+        private BackupPage(BackupSlice aSlice, SObject[] aRecords,
+                boolean aLast, Exception aFailure) {
+            this(aSlice, aRecords, Collections.<String[]> emptyList(), aLast,
+                    aFailure);
+        }
+
+        private BackupPage(BackupSlice aSlice, SObject[] aRecords,
+                List<String[]> aRows, boolean aLast, Exception aFailure) {
+            slice = aSlice;
+            records = aRecords;
+            rows = aRows;
+            last = aLast;
+            failure = aFailure;
         }
     }
 
@@ -186,6 +1432,22 @@ public class DatabaseHandler {
         return tmpStatement;
     }
 
+    /**
+     * @param aObjectName
+     *            name of the table
+     * @param aField
+     *            new field of the object
+     * @return statement adding a column for the field
+     */
+    protected String generateAddColumnStatement(String aObjectName,
+            Field aField) {
+        String tmpStatement = "ALTER TABLE `" + aObjectName
+                + "` ADD COLUMN `" + aField.getName() + "` "
+                + convertSfdcFieldType(aField.getType().getValue()) + ";";
+        commander.debug(tmpStatement);
+        return tmpStatement;
+    }
+
     protected String convertSfdcFieldType(String sfdcFieldType) {
         String dbType = dataTypeMap.get(sfdcFieldType);
         if (dbType == null) {
@@ -207,30 +1469,4 @@ public class DatabaseHandler {
         return soqlQuery.toString();
     }
 
-    private String generateInsertStatementForSObject(SObject aSObject,
-            String aObjectName, Field[] aFields) {
-        StringBuffer insertStatement = new StringBuffer();
-        insertStatement.append("INSERT INTO `" + aObjectName + "` (");
-        // Field List
-        for (Field field : aFields) {
-            insertStatement.append("`" + field.getName() + "`, ");
-        }
-        insertStatement.setLength(insertStatement.length() - 2);
-        // Values
-        insertStatement.append(") VALUES (");
-        // for (Field field : aFields) {
-        // String test = (aSObject.getField(field) + "").replace("\'", "\'\'");
-        // insertStatement.append("'" + test + "', ");
-        // }
-        for (int i = 0; i < aFields.length; i++) {
-            String test = (aSObject.get_any()[i].getValue() + "").replace("\'",
-                    "\'\'");
-            insertStatement.append("'" + test + "', ");
-        }
-        insertStatement.setLength(insertStatement.length() - 2);
-        insertStatement.append(");");
-        commander.debug(insertStatement.toString());
-        return insertStatement.toString();
-    }
-
 }
@@ -0,0 +1,172 @@
+/**
+ *
+ */
+package de.sfdccommander.controller;
+
+import java.io.ByteArrayInputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.om.DocumentInfo;
+import net.sf.saxon.trans.XPathException;
+
+import de.sfdccommander.controller.helper.CommanderException;
+
+/**
+ * Parsed metadata files of the {@link DocumentationServer}. A file is parsed
+ * into an immutable Saxon TinyTree, which is kept for the next request of a
+ * page of the file. The trees are kept until the size of their sources
+ * exceeds the limit of the store, the least recently used ones are evicted
+ * first. A tree is identified by the path of its file and the hash of the
+ * content it has been parsed from, a changed file is parsed again. The
+ * store can be used by several threads.
+ *
+ * @author jochen
+ *
+ */
+public class DocumentStore {
+
+    /**
+     * Default limit of the sources of the kept trees in bytes.
+     */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Configuration the trees are built for, the stylesheets transforming
+     * them have to be compiled with it.
+     */
+    private final Configuration configuration;
+
+    private final long maxBytes;
+
+    /**
+     * Trees in the order of their last use.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+            16, 0.75f, true);
+
+    /**
+     * Size of the sources of the kept trees.
+     */
+    private long bytes;
+
+    /**
+     * Tree of a file and the content it has been parsed from.
+     */
+    private static final class Entry {
+
+        private final String hash;
+
+        private final DocumentInfo document;
+
+        private final long size;
+
+        private Entry(String aHash, DocumentInfo aDocument, long aSize) {
+            hash = aHash;
+            document = aDocument;
+            size = aSize;
+        }
+    }
+
+    /**
+     * @param aConfiguration
+     *            configuration the trees are built for
+     * @param aMaxBytes
+     *            limit of the sources of the kept trees in bytes
+     */
+    public DocumentStore(Configuration aConfiguration, long aMaxBytes) {
+        configuration = aConfiguration;
+        maxBytes = aMaxBytes;
+    }
+
+    /**
+     * @return configuration the trees are built for
+     */
+    public Configuration getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * @param aPath
+     *            path of the file
+     * @param aHash
+     *            hash of the content, see {@link RenderManifest#hash(byte[])}
+     * @param aContent
+     *            content of the file, parsed unless the tree of the same
+     *            content is kept
+     * @param aSystemId
+     *            base uri of the document
+     * @return tree of the file
+     * @throws CommanderException
+     *             if the file cannot be parsed
+     */
+    public DocumentInfo getDocument(String aPath, String aHash,
+            byte[] aContent, String aSystemId) throws CommanderException {
+        DocumentInfo document = getCached(aPath, aHash);
+        if (document != null) {
+            return document;
+        }
+        // parsed outside the lock, a file read twice at once is parsed twice
+        return put(aPath, aHash, new StreamSource(
+                new ByteArrayInputStream(aContent), aSystemId),
+                aContent.length);
+    }
+
+    private DocumentInfo parse(String aPath, Source aSource)
+            throws CommanderException {
+        try {
+            return configuration.buildDocument(aSource);
+        } catch (XPathException e) {
+            throw new CommanderException("Could not parse " + aPath, e);
+        }
+    }
+
+    private DocumentInfo put(String aPath, String aHash, Source aSource,
+            long aSize) throws CommanderException {
+        DocumentInfo document = parse(aPath, aSource);
+        synchronized (this) {
+            Entry previous = entries.put(aPath,
+                    new Entry(aHash, document, aSize));
+            if (previous != null) {
+                bytes -= previous.size;
+            }
+            bytes += aSize;
+            evict();
+        }
+        return document;
+    }
+
+    /**
+     * @return number of the kept trees
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private synchronized DocumentInfo getCached(String aPath, String aHash) {
+        Entry entry = entries.get(aPath);
+        if (entry == null || !entry.hash.equals(aHash)) {
+            return null;
+        }
+        return entry.document;
+    }
+
+    /**
+     * Drop the least recently used trees until the limit is kept, the tree
+     * added last is kept even if it exceeds the limit on its own.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet()
+                .iterator();
+        while (bytes > maxBytes && entries.size() > 1) {
+            Entry entry = iterator.next().getValue();
+            iterator.remove();
+            bytes -= entry.size;
+        }
+    }
+}
@@ -0,0 +1,518 @@
+/**
+ *
+ */
+package de.sfdccommander.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.sfdccommander.controller.helper.CodeFileNameFilter;
+import de.sfdccommander.controller.helper.CommanderException;
+import de.sfdccommander.controller.helper.ConcurrentTaskRunner;
+import de.sfdccommander.controller.helper.XmlFileNameFilter;
+import de.sfdccommander.viewer.SfdcCommander;
+
+/**
+ * Serves the documentation of the retrieved metadata of an org over http.
+ * A page is rendered with the stylesheets of the transformer folder when it
+ * is requested, instead of rendering the whole org up front. The urls are
+ * the same as the paths of the output of {@link HtmlRenderer}, so the links
+ * between the pages work unchanged. Rendered pages are kept in a cache keyed
+ * by the hash of their source and evicted least recently used first; a
+ * changed source gets a new key and is rendered again. The lists of the files
+ * and the index are generated once when the server is started. Css, scripts,
+ * images and fonts are served straight from the transformer folder. Without
+ * an explicit bind address the server only listens on the loopback interface,
+ * as the pages are served without authentication.
+ *
+ * @author jochen
+ *
+ */
+public class DocumentationServer {
+
+    /**
+     * Default port of the server.
+     */
+    public static final int DEFAULT_PORT = 8080;
+
+    /**
+     * Default limit of the cached pages in bytes.
+     */
+    public static final long DEFAULT_CACHE_BYTES = 32L * 1024 * 1024;
+
+    private static final String[] STATIC_FOLDERS = { "css", "images",
+            "script", "fonts" };
+
+    private static final String[] CODE_ENTITIES = { "triggers", "classes",
+            "pages", "scontrols" };
+
+    private static final String[] MERGED_ENTITIES = { "roles",
+            "territories" };
+
+    private static final String LISTS = "lists";
+
+    private static final String HTML = ".html";
+
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<String, String>();
+
+    static {
+        CONTENT_TYPES.put("html", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("css", "text/css");
+        CONTENT_TYPES.put("js", "application/javascript");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("woff", "application/font-woff");
+        CONTENT_TYPES.put("woff2", "font/woff2");
+        CONTENT_TYPES.put("ttf", "application/x-font-ttf");
+        CONTENT_TYPES.put("eot", "application/vnd.ms-fontobject");
+        for (String extension : CodeFileNameFilter.extensions) {
+            CONTENT_TYPES.put(extension, "text/plain; charset=utf-8");
+        }
+    }
+
+    /**
+     * System name of the org, its folder holds the retrieved metadata.
+     */
+    private final String systemName;
+
+    /**
+     * Folder of the stylesheets and the static files.
+     */
+    private final File transformerFolder;
+
+    private final long maxCacheBytes;
+
+    private final HtmlRenderer renderer;
+
+    /**
+     * Parsed sources of the pages, kept for the next request of a page of
+     * the same source.
+     */
+    private final DocumentStore documents;
+
+    private final MetadataTree tree;
+
+    /**
+     * Rendered pages by stylesheet and hash of their source, in the order of
+     * their last use.
+     */
+    private final LinkedHashMap<String, byte[]> pages = new LinkedHashMap<String, byte[]>(
+            16, 0.75f, true);
+
+    private long cacheBytes;
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    /**
+     * @param aSystemName
+     *            system name of the org
+     * @param aTransformerFolder
+     *            folder of the stylesheets
+     * @param aMaxCacheBytes
+     *            limit of the cached pages in bytes
+     * @throws CommanderException
+     *             if the retrieved metadata cannot be read
+     */
+    public DocumentationServer(String aSystemName, File aTransformerFolder,
+            long aMaxCacheBytes) throws CommanderException {
+        systemName = aSystemName;
+        transformerFolder = aTransformerFolder.getAbsoluteFile();
+        maxCacheBytes = aMaxCacheBytes;
+        renderer = new HtmlRenderer(aSystemName, "");
+        documents = new DocumentStore(renderer.getConfiguration(),
+                DocumentStore.DEFAULT_MAX_BYTES);
+        tree = new MetadataTree(new File(aSystemName));
+    }
+
+    /**
+     * Start serving on the loopback interface.
+     *
+     * @param aPort
+     *            port of the server, 0 for any free port
+     * @throws CommanderException
+     *             if the server cannot be started
+     */
+    public void start(int aPort) throws CommanderException {
+        start(null, aPort);
+    }
+
+    /**
+     * Start serving. Roles and territories are merged first, as they are
+     * for a rendering of the whole org, then the lists are generated.
+     *
+     * @param aBindAddress
+     *            host name or address to listen on, null or empty for the
+     *            loopback interface
+     * @param aPort
+     *            port of the server, 0 for any free port
+     * @throws CommanderException
+     *             if the server cannot be started
+     */
+    public void start(String aBindAddress, int aPort)
+            throws CommanderException {
+        for (String entity : MERGED_ENTITIES) {
+            String sourceFolder = "unpackaged/" + entity;
+            if (tree.isDirectory(sourceFolder) && hasUnmergedFiles(entity,
+                    tree.list(sourceFolder, null))) {
+                renderer.mergeFiles(entity, tree, sourceFolder);
+            }
+        }
+        tree.save();
+        generateLists();
+        try {
+            InetAddress address = aBindAddress == null
+                    || aBindAddress.isEmpty()
+                            ? InetAddress.getLoopbackAddress()
+                            : InetAddress.getByName(aBindAddress);
+            server = HttpServer.create(new InetSocketAddress(address, aPort),
+                    0);
+        } catch (UnknownHostException e) {
+            throw new CommanderException(
+                    "Unknown bind address " + aBindAddress, e);
+        } catch (IOException e) {
+            throw new CommanderException(
+                    "Could not start server on port " + aPort, e);
+        }
+        executor = ConcurrentTaskRunner.newExecutor("serve",
+                Runtime.getRuntime().availableProcessors());
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange aExchange)
+                    throws IOException {
+                handleRequest(aExchange);
+            }
+        });
+        server.start();
+        SfdcCommander.getInstance().info("Serving documentation of "
+                + systemName + " on http://"
+                + server.getAddress().getHostString() + ":" + getPort()
+                + "/");
+    }
+
+    /**
+     * @return address the server listens on
+     */
+    public InetAddress getAddress() {
+        return server.getAddress().getAddress();
+    }
+
+    /**
+     * @return port the server listens on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Wait until the server is stopped.
+     *
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting
+     */
+    public void join() throws InterruptedException {
+        stopped.await();
+    }
+
+    /**
+     * Stop serving and release waiting threads.
+     */
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+        stopped.countDown();
+    }
+
+    /**
+     * @return number of cached pages
+     */
+    public synchronized int getCachedPages() {
+        return pages.size();
+    }
+
+    private void handleRequest(final HttpExchange aExchange)
+            throws IOException {
+        try {
+            String path = aExchange.getRequestURI().getPath();
+            byte[] content = null;
+            if (path != null && !path.contains("..")) {
+                content = getContent(path.startsWith("/") ? path.substring(1)
+                        : path);
+            }
+            if (content == null) {
+                respond(aExchange, 404, "text/plain; charset=utf-8",
+                        ("Not found: " + path).getBytes("UTF-8"));
+            } else {
+                respond(aExchange, 200, getContentType(path), content);
+            }
+        } catch (CommanderException e) {
+            SfdcCommander.getInstance().error(e.getMessage(), e);
+            respond(aExchange, 500, "text/plain; charset=utf-8",
+                    String.valueOf(e.getMessage()).getBytes("UTF-8"));
+        } catch (RuntimeException e) {
+            SfdcCommander.getInstance().error(e.getMessage(), e);
+            respond(aExchange, 500, "text/plain; charset=utf-8",
+                    String.valueOf(e.getMessage()).getBytes("UTF-8"));
+        }
+    }
+
+    /**
+     * @param aPath
+     *            requested path without the leading slash
+     * @return content of the path, null if there is none
+     * @throws CommanderException
+     *             if the page cannot be rendered
+     */
+    byte[] getContent(String aPath) throws CommanderException {
+        if (aPath.isEmpty() || aPath.equals("index" + HTML)) {
+            return getIndexPage();
+        }
+        int slash = aPath.indexOf('/');
+        String folder = slash < 0 ? "" : aPath.substring(0, slash);
+        String name = aPath.substring(slash + 1);
+        for (String staticFolder : STATIC_FOLDERS) {
+            if (staticFolder.equals(folder)) {
+                return readFile(new File(transformerFolder, aPath));
+            }
+        }
+        if (LISTS.equals(folder) && name.endsWith(HTML)) {
+            return getListPage(name.substring(0,
+                    name.length() - HTML.length()));
+        }
+        File stylesheet = new File(transformerFolder, folder + ".xslt");
+        if (!folder.isEmpty() && name.indexOf('/') < 0
+                && stylesheet.isFile()) {
+            String sourceFolder = "unpackaged/" + folder;
+            if (name.endsWith(HTML)) {
+                String baseName = name.substring(0,
+                        name.length() - HTML.length());
+                for (String xmlFile : tree.list(sourceFolder,
+                        new XmlFileNameFilter())) {
+                    if (xmlFile.substring(0, xmlFile.lastIndexOf("."))
+                            .equals(baseName)) {
+                        return getPage(stylesheet,
+                                sourceFolder + "/" + xmlFile);
+                    }
+                }
+            } else if (isCodeEntity(folder)
+                    && tree.exists(sourceFolder + "/" + name)) {
+                return read(tree.open(sourceFolder + "/" + name));
+            }
+        }
+        // documents are copied to the root of the rendered output
+        String documentPath = "unpackaged/documents/" + aPath;
+        if (tree.exists(documentPath)
+                && !tree.isDirectory(documentPath)) {
+            return read(tree.open(documentPath));
+        }
+        return null;
+    }
+
+    /**
+     * Render a file of the tree unless it is cached.
+     */
+    private byte[] getPage(File aStylesheet, String aPath)
+            throws CommanderException {
+        byte[] content = read(tree.open(aPath));
+        return getPage(aStylesheet, aPath, content,
+                new File(tree.getRootFolder(), aPath).toURI().toString());
+    }
+
+    private byte[] getPage(File aStylesheet, String aPath, byte[] aContent,
+            String aSystemId) throws CommanderException {
+        String hash = RenderManifest.hash(aContent);
+        String key = aStylesheet.getName() + ":" + hash;
+        synchronized (this) {
+            byte[] page = pages.get(key);
+            if (page != null) {
+                return page;
+            }
+        }
+        byte[] page = renderer.renderPage(aStylesheet, aPath,
+                documents.getDocument(aPath, hash, aContent, aSystemId));
+        synchronized (this) {
+            byte[] previous = pages.put(key, page);
+            if (previous != null) {
+                cacheBytes -= previous.length;
+            }
+            cacheBytes += page.length;
+            Iterator<byte[]> iterator = pages.values().iterator();
+            while (cacheBytes > maxCacheBytes && pages.size() > 1) {
+                cacheBytes -= iterator.next().length;
+                iterator.remove();
+            }
+        }
+        return page;
+    }
+
+    /**
+     * @param aEntity
+     *            entity of the list
+     * @return list of the files of the entity, null if the entity is unknown
+     */
+    private byte[] getListPage(String aEntity) throws CommanderException {
+        if (LISTS.equals(aEntity)) {
+            return null;
+        }
+        File listFile = new File(getListFolder(), aEntity + ".xml");
+        if (!listFile.isFile()) {
+            return null;
+        }
+        return getPage(new File(transformerFolder, LISTS + ".xslt"),
+                listFile.getAbsolutePath(), readFile(listFile),
+                listFile.toURI().toString());
+    }
+
+    /**
+     * @return index of the lists of all entities
+     */
+    private byte[] getIndexPage() throws CommanderException {
+        File indexFile = new File(systemName + "/" + LISTS + ".xml");
+        return getPage(new File(transformerFolder, "index.xsl"),
+                indexFile.getAbsolutePath(), readFile(indexFile),
+                indexFile.toURI().toString());
+    }
+
+    /**
+     * Generate the lists of the files of all entities with a stylesheet and
+     * the list of these lists, which is the source of the index.
+     */
+    private void generateLists() throws CommanderException {
+        File listFolder = getListFolder();
+        File[] stylesheets = transformerFolder.listFiles();
+        if (stylesheets != null) {
+            for (File stylesheet : stylesheets) {
+                String name = stylesheet.getName();
+                if (!name.endsWith(".xslt")) {
+                    continue;
+                }
+                String entity = name.substring(0, name.lastIndexOf("."));
+                if (!LISTS.equals(entity)
+                        && tree.isDirectory("unpackaged/" + entity)) {
+                    renderer.generateFileList(entity, tree,
+                            "unpackaged/" + entity, listFolder);
+                }
+            }
+        }
+        renderer.generateFileList(LISTS, listFolder, new File(systemName));
+    }
+
+    private File getListFolder() {
+        File listFolder = new File(systemName + "/unpackaged/" + LISTS);
+        listFolder.mkdirs();
+        return listFolder;
+    }
+
+    private static boolean hasUnmergedFiles(String aEntity,
+            List<String> aFiles) {
+        for (String file : aFiles) {
+            if (!file.equals("all_" + aEntity + ".xml")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isCodeEntity(String aEntity) {
+        for (String entity : CODE_ENTITIES) {
+            if (entity.equals(aEntity)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return content type by the extension of the path
+     */
+    private static String getContentType(String aPath) {
+        String path = aPath.endsWith("/") || aPath.isEmpty() ? "index" + HTML
+                : aPath;
+        String contentType = CONTENT_TYPES.get(path
+                .substring(path.lastIndexOf('.') + 1).toLowerCase());
+        return contentType == null ? "application/octet-stream"
+                : contentType;
+    }
+
+    /**
+     * @return content of a file, null if it does not exist
+     */
+    private static byte[] readFile(File aFile) throws CommanderException {
+        if (!aFile.isFile()) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(aFile.toPath());
+        } catch (IOException e) {
+            throw new CommanderException(
+                    "Could not read file " + aFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * @return content of the stream, which is closed
+     */
+    private static byte[] read(InputStream aIn) throws CommanderException {
+        try {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = aIn.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                return out.toByteArray();
+            } finally {
+                aIn.close();
+            }
+        } catch (IOException e) {
+            throw new CommanderException("Could not read source", e);
+        }
+    }
+
+    private static void respond(final HttpExchange aExchange,
+            final int aStatus, final String aContentType, final byte[] aBody)
+            throws IOException {
+        aExchange.getResponseHeaders().set("Content-Type", aContentType);
+        if ("HEAD".equals(aExchange.getRequestMethod())) {
+            aExchange.sendResponseHeaders(aStatus, -1);
+            aExchange.close();
+            return;
+        }
+        aExchange.sendResponseHeaders(aStatus, aBody.length);
+        OutputStream out = aExchange.getResponseBody();
+        try {
+            out.write(aBody);
+        } finally {
+            out.close();
+        }
+    }
+}
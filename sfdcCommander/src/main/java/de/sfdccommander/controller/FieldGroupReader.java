@@ -0,0 +1,383 @@
+/**
+ *
+ */
+package de.sfdccommander.controller;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.axis.message.MessageElement;
+
+import com.sforce.soap.partner.Field;
+import com.sforce.soap.partner.QueryResult;
+import com.sforce.soap.partner.sobject.SObject;
+
+import de.sfdccommander.controller.helper.CommanderException;
+import de.sfdccommander.controller.helper.ConcurrentTaskRunner;
+
+/**
+ * Reads the records of a wide object in groups of fields. A query of all
+ * fields of an object with hundreds of fields exceeds the length of a SOQL
+ * statement and returns huge pages. The fields are split into groups of at
+ * most {@value #MAX_GROUP_FIELDS} fields, each with the Id. The groups are
+ * queried in parallel, ordered by Id, and their rows are joined by Id into
+ * records with all fields. As all groups are ordered by Id, the rows are
+ * joined like sorted lists: rows before the highest first Id of all groups
+ * are missing in one of the groups, so only the groups behind fetch their
+ * next page.
+ *
+ * <p>
+ * A record which is missing in a group, e.g. because it has been deleted
+ * or modified between the queries, is dropped. An incremental backup picks
+ * it up the next time.
+ * </p>
+ *
+ * <p>
+ * The pages of the groups are fetched by the threads of the reader, which
+ * are released by {@link #close()}.
+ * </p>
+ *
+ * @author jochen
+ *
+ */
+public class FieldGroupReader {
+
+    /**
+     * Maximum number of fields of a group.
+     */
+    static final int MAX_GROUP_FIELDS = 200;
+
+    /**
+     * Maximum length of the field list of a group.
+     */
+    static final int MAX_GROUP_LENGTH = 10000;
+
+    private static final String ID_FIELD = "Id";
+
+    /**
+     * Call of query or queryMore for a group.
+     */
+    public interface QueryCall {
+
+        /**
+         * @param aSoql
+         *            query of the first page, null for the next page
+         * @param aQueryLocator
+         *            locator of the next page, null for the first page
+         * @param aBatchSize
+         *            records per page
+         * @return page of the group
+         * @throws RemoteException
+         *             if the call fails
+         * @throws CommanderException
+         *             if no binding can be leased
+         */
+        QueryResult call(String aSoql, String aQueryLocator, int aBatchSize)
+                throws RemoteException, CommanderException;
+    }
+
+    /**
+     * Query cursor of a group with the rows which are not joined yet.
+     */
+    private static final class GroupCursor {
+
+        private final String soql;
+
+        /**
+         * Position of each queried field in the joined record.
+         */
+        private final int[] positions;
+
+        private final QueryPageSizer sizer;
+
+        private final LinkedHashMap<String, SObject> rows = new LinkedHashMap<String, SObject>();
+
+        private String queryLocator;
+
+        private boolean started;
+
+        private boolean done;
+
+        private int size;
+
+        private GroupCursor(String aSoql, int[] aPositions,
+                QueryPageSizer aSizer) {
+            soql = aSoql;
+            positions = aPositions;
+            sizer = aSizer;
+        }
+    }
+
+    private final String objectName;
+
+    private final int fieldCount;
+
+    private final QueryCall queryCall;
+
+    private final List<GroupCursor> cursors = new ArrayList<GroupCursor>();
+
+    /**
+     * Threads fetching the pages of the groups, created with the first page.
+     */
+    private ExecutorService executor;
+
+    /**
+     * @param aObjectName
+     *            name of the object
+     * @param aFields
+     *            fields of the object, the order of the joined records
+     * @param aWhereClause
+     *            where clause of the queries, may be empty
+     * @param aBatchSize
+     *            configured batch size, 0 for an adaptive size
+     * @param aQueryCall
+     *            query calls of the groups
+     */
+    public FieldGroupReader(String aObjectName, Field[] aFields,
+            String aWhereClause, int aBatchSize, QueryCall aQueryCall) {
+        objectName = aObjectName;
+        fieldCount = aFields.length;
+        queryCall = aQueryCall;
+        Map<String, Integer> positions = new HashMap<String, Integer>();
+        for (int i = 0; i < aFields.length; i++) {
+            positions.put(aFields[i].getName(), i);
+        }
+        for (List<String> group : getFieldGroups(aFields)) {
+            StringBuilder soql = new StringBuilder("SELECT ");
+            int[] groupPositions = new int[group.size()];
+            for (int i = 0; i < group.size(); i++) {
+                soql.append(i == 0 ? "" : ", ").append(group.get(i));
+                Integer position = positions.get(group.get(i));
+                groupPositions[i] = position == null ? -1 : position;
+            }
+            soql.append(" FROM ").append(aObjectName).append(aWhereClause)
+                    .append(" ORDER BY Id");
+            cursors.add(new GroupCursor(soql.toString(), groupPositions,
+                    new QueryPageSizer(group.size(), aBatchSize)));
+        }
+    }
+
+    /**
+     * @param aFields
+     *            fields of an object
+     * @return true if the fields are queried in several groups
+     */
+    public static boolean isWide(Field[] aFields) {
+        return getFieldGroups(aFields).size() > 1;
+    }
+
+    /**
+     * Split the fields into groups which start with the Id.
+     *
+     * @param aFields
+     *            fields of an object
+     * @return names of the fields of each group
+     */
+    static List<List<String>> getFieldGroups(Field[] aFields) {
+        List<List<String>> groups = new ArrayList<List<String>>();
+        List<String> group = null;
+        int length = 0;
+        for (Field field : aFields) {
+            String name = field.getName();
+            if (ID_FIELD.equals(name)) {
+                continue;
+            }
+            if (group == null || group.size() >= MAX_GROUP_FIELDS
+                    || length + name.length() + 2 > MAX_GROUP_LENGTH) {
+                group = new ArrayList<String>();
+                group.add(ID_FIELD);
+                length = ID_FIELD.length();
+                groups.add(group);
+            }
+            group.add(name);
+            length += name.length() + 2;
+        }
+        if (groups.isEmpty()) {
+            List<String> idGroup = new ArrayList<String>();
+            idGroup.add(ID_FIELD);
+            groups.add(idGroup);
+        }
+        return groups;
+    }
+
+    /**
+     * @return number of records reported by the first group, 0 before the
+     *         first page
+     */
+    public int getSize() {
+        return cursors.get(0).size;
+    }
+
+    /**
+     * Read the next joined records. The groups which have no row left fetch
+     * their next page in parallel.
+     *
+     * @return joined records, null if all records have been read
+     * @throws CommanderException
+     *             if a query fails
+     */
+    public SObject[] nextPage() throws CommanderException {
+        while (true) {
+            List<SObject> records = new ArrayList<SObject>();
+            List<GroupCursor> empty = getEmptyCursors();
+            while (empty.isEmpty()) {
+                String id = getLastFirstId();
+                boolean joined = true;
+                for (GroupCursor cursor : cursors) {
+                    // rows before the id are missing in another group
+                    Iterator<String> ids = cursor.rows.keySet().iterator();
+                    while (ids.hasNext() && ids.next().compareTo(id) < 0) {
+                        ids.remove();
+                    }
+                    joined &= !cursor.rows.isEmpty()
+                            && id.equals(getFirstId(cursor));
+                }
+                if (joined) {
+                    records.add(join(id));
+                    for (GroupCursor cursor : cursors) {
+                        cursor.rows.remove(id);
+                    }
+                }
+                empty = getEmptyCursors();
+            }
+            if (!records.isEmpty()) {
+                return records.toArray(new SObject[records.size()]);
+            }
+            for (GroupCursor cursor : empty) {
+                if (cursor.done) {
+                    // the remaining rows of the other groups are missing in
+                    // this one
+                    return null;
+                }
+            }
+            fetch(empty);
+        }
+    }
+
+    /**
+     * Release the threads of the reader.
+     */
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<GroupCursor> getEmptyCursors() {
+        List<GroupCursor> empty = new ArrayList<GroupCursor>();
+        for (GroupCursor cursor : cursors) {
+            if (cursor.rows.isEmpty()) {
+                empty.add(cursor);
+            }
+        }
+        return empty;
+    }
+
+    private static String getFirstId(GroupCursor aCursor) {
+        return aCursor.rows.keySet().iterator().next();
+    }
+
+    /**
+     * @return highest first Id of the rows of the groups, none of them is
+     *         empty
+     */
+    private String getLastFirstId() {
+        String last = null;
+        for (GroupCursor cursor : cursors) {
+            String id = getFirstId(cursor);
+            if (last == null || id.compareTo(last) > 0) {
+                last = id;
+            }
+        }
+        return last;
+    }
+
+    private SObject join(String aId) {
+        MessageElement[] values = new MessageElement[fieldCount];
+        for (GroupCursor cursor : cursors) {
+            MessageElement[] groupValues = cursor.rows.get(aId).get_any();
+            for (int i = 0; i < cursor.positions.length
+                    && i < groupValues.length; i++) {
+                if (cursor.positions[i] >= 0) {
+                    values[cursor.positions[i]] = groupValues[i];
+                }
+            }
+        }
+        SObject record = new SObject();
+        record.setType(objectName);
+        record.setId(aId);
+        record.set_any(values);
+        return record;
+    }
+
+    private void fetch(List<GroupCursor> aCursors) throws CommanderException {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final GroupCursor cursor : aCursors) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws CommanderException {
+                    fetch(cursor);
+                    return null;
+                }
+            });
+        }
+        if (executor == null) {
+            executor = ConcurrentTaskRunner.newExecutor("backup-group",
+                    cursors.size());
+        }
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (Callable<Void> task : tasks) {
+            futures.add(executor.submit(task));
+        }
+        for (Future<Void> future : futures) {
+            ConcurrentTaskRunner.getResult(future);
+        }
+    }
+
+    private void fetch(GroupCursor aCursor) throws CommanderException {
+        long start = System.currentTimeMillis();
+        QueryResult result;
+        try {
+            if (aCursor.started) {
+                result = queryCall.call(null, aCursor.queryLocator,
+                        aCursor.sizer.getBatchSize());
+            } else {
+                result = queryCall.call(aCursor.soql, null,
+                        aCursor.sizer.getBatchSize());
+                aCursor.started = true;
+            }
+        } catch (RemoteException e) {
+            throw new CommanderException(
+                    "Could not query fields of " + objectName, e);
+        }
+        SObject[] records = result.getRecords() == null ? new SObject[0]
+                : result.getRecords();
+        aCursor.sizer.update(records, System.currentTimeMillis() - start);
+        for (SObject record : records) {
+            String id = getId(record);
+            if (id != null) {
+                aCursor.rows.put(id, record);
+            }
+        }
+        aCursor.size = result.getSize();
+        aCursor.queryLocator = result.getQueryLocator();
+        aCursor.done = result.isDone();
+    }
+
+    private static String getId(SObject aRecord) {
+        if (aRecord.getId() != null) {
+            return aRecord.getId();
+        }
+        MessageElement[] fields = aRecord.get_any();
+        return fields == null || fields.length == 0 ? null
+                : fields[0].getValue();
+    }
+}
@@ -3,19 +3,40 @@
  */
 package de.sfdccommander.controller;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
@@ -24,13 +45,17 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
+import net.sf.saxon.Configuration;
+import net.sf.saxon.TransformerFactoryImpl;
+import net.sf.saxon.om.DocumentInfo;
+import net.sf.saxon.trans.XPathException;
+
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.xml.sax.SAXException;
 
 import de.sfdccommander.controller.helper.CodeFileNameFilter;
 import de.sfdccommander.controller.helper.CommanderException;
+import de.sfdccommander.controller.helper.ConcurrentTaskRunner;
 import de.sfdccommander.controller.helper.CopyDirVisitor;
 import de.sfdccommander.controller.helper.DeleteDirVisitor;
 import de.sfdccommander.controller.helper.XmlFileNameFilter;
@@ -38,11 +63,25 @@ import de.sfdccommander.controller.helper.XsltFileNameFilter;
 import de.sfdccommander.viewer.SfdcCommander;
 
 /**
+ * Renders the retrieved metadata to html. Each stylesheet is compiled once
+ * into {@link Templates}, which are thread-safe, and the files of an entity
+ * are rendered on {@value #RENDER_THREADS_PER_CPU} worker threads per cpu.
+ * The output is rendered incrementally, see {@link RenderManifest}: pages
+ * whose source is unchanged are kept, the whole output is only rendered
+ * again when a stylesheet changes.
+ *
  * @author jochen
  * 
  */
 public class HtmlRenderer {
 
+    /**
+     * Files rendered at the same time per available processor.
+     */
+    private static final int RENDER_THREADS_PER_CPU = 1;
+
+    private static final String METADATA_NAMESPACE = "http://soap.sforce.com/2006/04/metadata";
+
     /**
      * System name renderings.
      */
@@ -58,6 +97,43 @@ public class HtmlRenderer {
      */
     private SfdcCommander commander;
 
+    /**
+     * Configuration the sources are parsed with, the stylesheets are compiled
+     * for it.
+     */
+    private final Configuration configuration = new Configuration();
+
+    /**
+     * Factory compiling the stylesheets for the parsed sources, not
+     * thread-safe.
+     */
+    private final TransformerFactory transformerFactory = new TransformerFactoryImpl(
+            configuration);
+
+    /**
+     * Compiled stylesheets by their file.
+     */
+    private final Map<File, Templates> templates = new HashMap<File, Templates>();
+
+    /**
+     * Folder of the rendered pages of the current run.
+     */
+    private File outputFolder;
+
+    /**
+     * Sources of the pages of the last run.
+     */
+    private RenderManifest previousManifest;
+
+    /**
+     * Sources of the pages of the current run.
+     */
+    private RenderManifest manifest;
+
+    private final AtomicInteger renderedPages = new AtomicInteger();
+
+    private final AtomicInteger unchangedPages = new AtomicInteger();
+
     /**
      * @param aConfig
      *            Config for renderings.
@@ -74,8 +150,23 @@ public class HtmlRenderer {
         File transformerFolder = new File("config/transformer");
 
         // prepare HTML output folder
-        File outputFolder = new File(renderPath + "/" + systemName);
-        if (outputFolder.exists()) {
+        outputFolder = new File(renderPath + "/" + systemName)
+                .getAbsoluteFile();
+        File manifestFile = new File(outputFolder, RenderManifest.FILE_NAME);
+        String stylesheetVersion = transformerFolder.isDirectory()
+                ? RenderManifest.getStylesheetVersion(transformerFolder)
+                : null;
+        previousManifest = RenderManifest.read(manifestFile);
+        manifest = new RenderManifest(stylesheetVersion);
+        renderedPages.set(0);
+        unchangedPages.set(0);
+        if (stylesheetVersion == null || !stylesheetVersion
+                .equals(previousManifest.getStylesheetVersion())) {
+            // the pages of other stylesheets are rendered again
+            previousManifest = new RenderManifest(null);
+        }
+        if (outputFolder.exists()
+                && previousManifest.getStylesheetVersion() == null) {
             try {
                 // delete output folder
                 Files.walkFileTree(outputFolder.toPath(),
@@ -86,6 +177,8 @@ public class HtmlRenderer {
             }
         }
         outputFolder.mkdirs();
+        // retrieved files are read from the archive where possible
+        MetadataTree tree = new MetadataTree(new File(systemName));
 
         if (transformerFolder.isDirectory()) {
 
@@ -107,18 +200,12 @@ public class HtmlRenderer {
             }
 
             // copy documents if available
-            File documentsFolder = new File(
-                    systemName + "/unpackaged/documents");
-            if (documentsFolder.exists()) {
+            String documentsFolder = "unpackaged/documents";
+            if (tree.isDirectory(documentsFolder)) {
                 commander.info("Copying documents");
-                try {
-                    Files.walkFileTree(documentsFolder.toPath(),
-                            new CopyDirVisitor(documentsFolder.toPath(),
-                                    outputFolder.toPath()));
-                } catch (IOException e) {
-                    throw new CommanderException("Could not copy folder "
-                            + documentsFolder.getAbsolutePath() + " to "
-                            + outputFolder.getAbsolutePath());
+                for (String document : tree.listAll(documentsFolder)) {
+                    copyChanged(tree, documentsFolder + "/" + document,
+                            new File(outputFolder, document));
                 }
             }
 
@@ -135,16 +222,15 @@ public class HtmlRenderer {
                 tmpOutputFolder.mkdirs();
 
                 // get folder with sfdc source files
-                File sourceFolder = new File(
-                        systemName + "/unpackaged/" + tmpTransformerName);
+                String sourceFolder = "unpackaged/" + tmpTransformerName;
 
                 File targetFolder;
 
-                if (sourceFolder.exists()) {
+                if (tree.isDirectory(sourceFolder)) {
                     // join roles and territories
                     if (tmpTransformerName.equals("roles")
                             || tmpTransformerName.equals("territories")) {
-                        mergeFiles(tmpTransformerName, sourceFolder);
+                        mergeFiles(tmpTransformerName, tree, sourceFolder);
                     }
                     if (!tmpTransformerName.equals("lists")) {
                         commander.info("Generating output for "
@@ -152,44 +238,30 @@ public class HtmlRenderer {
                         targetFolder = new File(
                                 systemName + "/unpackaged/lists");
                         targetFolder.mkdirs();
-                        generateFileList(tmpTransformerName, sourceFolder,
-                                targetFolder);
+                        generateFileList(tmpTransformerName, tree,
+                                sourceFolder, targetFolder);
                         // generate html files
-                        File[] xmlFileList = sourceFolder
-                                .listFiles(new XmlFileNameFilter());
-                        Arrays.sort(xmlFileList);
-                        for (File xmlFile : xmlFileList) {
-                            render(transformer, xmlFile,
+                        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+                        for (String xmlFile : tree.list(sourceFolder,
+                                new XmlFileNameFilter())) {
+                            tasks.add(newRenderTask(transformer, tree,
+                                    sourceFolder + "/" + xmlFile,
                                     new File(tmpOutputFolder.getAbsolutePath()
                                             + "/"
-                                            + xmlFile.getName().substring(0,
-                                                    xmlFile.getName()
-                                                            .lastIndexOf("."))
-                                            + ".html"));
+                                            + xmlFile.substring(0,
+                                                    xmlFile.lastIndexOf("."))
+                                            + ".html")));
                         }
+                        renderAll(tasks);
                         if (tmpTransformerName.equals("triggers")
                                 || tmpTransformerName.equals("classes")
                                 || tmpTransformerName.equals("pages")
                                 || tmpTransformerName.equals("scontrols")) {
-                            File[] codeFileList = sourceFolder
-                                    .listFiles(new CodeFileNameFilter());
-                            Arrays.sort(codeFileList);
-                            for (File codeFile : codeFileList) {
-                                File codeTargetFile = new File(
-                                        tmpOutputFolder.getAbsolutePath() + "/"
-                                                + codeFile.getName());
-                                try {
-                                    Files.copy(codeFile.toPath(),
-                                            codeTargetFile.toPath());
-                                } catch (IOException e) {
-                                    throw new CommanderException(
-                                            "Could not copy file "
-                                                    + codeFile.getAbsolutePath()
-                                                    + " to "
-                                                    + codeTargetFile
-                                                            .getAbsolutePath(),
-                                            e);
-                                }
+                            for (String codeFile : tree.list(sourceFolder,
+                                    new CodeFileNameFilter())) {
+                                copyChanged(tree,
+                                        sourceFolder + "/" + codeFile,
+                                        new File(tmpOutputFolder, codeFile));
                             }
                         }
                     }
@@ -201,13 +273,15 @@ public class HtmlRenderer {
             generateFileList("lists", listFolder, new File(systemName));
             File listTransformer = new File(
                     transformerFolder.getAbsolutePath() + "/lists.xslt");
+            List<Callable<Void>> listTasks = new ArrayList<Callable<Void>>();
             for (File xmlFile : listFolder.listFiles()) {
-                render(listTransformer, xmlFile,
+                listTasks.add(newRenderTask(listTransformer, xmlFile,
                         new File(outputFolder.getAbsolutePath() + "/lists/"
                                 + xmlFile.getName().substring(0,
                                         xmlFile.getName().lastIndexOf("."))
-                        + ".html"));
+                        + ".html")));
             }
+            renderAll(listTasks);
 
             // Generate Index
             File indexTransformer = new File(
@@ -215,9 +289,217 @@ public class HtmlRenderer {
             File indexSource = new File(systemName + "/lists.xml");
             File indexOutput = new File(
                     outputFolder.getAbsolutePath() + "/index.html");
-            render(indexTransformer, indexSource, indexOutput);
-            commander.info("Output generated");
+            renderChanged(indexTransformer, indexSource, indexOutput);
+
+            int removedPages = removePages();
+            manifest.write(manifestFile);
+            commander.info("Output generated, " + renderedPages.get()
+                    + " pages rendered, " + unchangedPages.get()
+                    + " unchanged, " + removedPages + " removed");
+        }
+        tree.save();
+    }
+
+    /**
+     * Delete the pages of the last run whose source is gone.
+     *
+     * @return number of deleted pages
+     */
+    private int removePages() {
+        int removed = 0;
+        Set<String> pages = manifest.getPages();
+        for (String page : previousManifest.getPages()) {
+            if (!pages.contains(page)
+                    && new File(outputFolder, page).delete()) {
+                commander.debug("Removed page " + page);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Record the source of a page in the manifest.
+     *
+     * @param aPage
+     *            rendered or copied file
+     * @param aHash
+     *            hash of the content of the source of the page
+     * @return true if the page exists and has been generated from the same
+     *         content by the last run
+     */
+    private boolean isUnchanged(final File aPage, final String aHash) {
+        String page = outputFolder.toPath()
+                .relativize(aPage.getAbsoluteFile().toPath()).toString()
+                .replace(File.separatorChar, '/');
+        String hash = aHash;
+        manifest.put(page, hash);
+        if (hash.equals(previousManifest.getHash(page)) && aPage.isFile()) {
+            unchangedPages.incrementAndGet();
+            return true;
+        }
+        renderedPages.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Render a file of the tree unless its page is unchanged.
+     */
+    private void renderChanged(final File xslFile, final MetadataTree aTree,
+            final String aPath, final File htmlFile)
+            throws CommanderException {
+        byte[] content = read(aTree.open(aPath), aPath);
+        String hash = RenderManifest.hash(content);
+        if (!isUnchanged(htmlFile, hash)) {
+            render(xslFile,
+                    parse(aPath, content,
+                            new File(aTree.getRootFolder(), aPath).toURI()
+                                    .toString()),
+                    aPath, htmlFile);
+        }
+    }
+
+    /**
+     * Render a file unless its page is unchanged.
+     */
+    private void renderChanged(final File xslFile, final File xmlFile,
+            final File htmlFile) throws CommanderException {
+        byte[] content;
+        try {
+            content = Files.readAllBytes(xmlFile.toPath());
+        } catch (IOException e) {
+            throw new CommanderException(
+                    "Could not read file " + xmlFile.getAbsolutePath(), e);
         }
+        String hash = RenderManifest.hash(content);
+        if (!isUnchanged(htmlFile, hash)) {
+            render(xslFile,
+                    parse(xmlFile.getAbsolutePath(), content,
+                            xmlFile.toURI().toString()),
+                    xmlFile.getAbsolutePath(), htmlFile);
+        }
+    }
+
+    /**
+     * Parse a source into a Saxon tree of the configuration of the
+     * stylesheets, which the transformation does not have to copy.
+     *
+     * @param aPath
+     *            path of the source
+     * @param aContent
+     *            content of the source
+     * @param aSystemId
+     *            base uri of the source
+     * @return tree of the source
+     * @throws CommanderException
+     *             if the source cannot be parsed
+     */
+    private DocumentInfo parse(final String aPath, final byte[] aContent,
+            final String aSystemId) throws CommanderException {
+        try {
+            return configuration.buildDocument(new StreamSource(
+                    new ByteArrayInputStream(aContent), aSystemId));
+        } catch (XPathException e) {
+            throw new CommanderException("Could not parse " + aPath, e);
+        }
+    }
+
+    /**
+     * @param aTree
+     *            retrieved metadata
+     * @param aPath
+     *            path of the file in the tree
+     * @param aTarget
+     *            copy of the file, kept if it is unchanged
+     * @throws CommanderException
+     *             if the file cannot be copied
+     */
+    private void copyChanged(final MetadataTree aTree, final String aPath,
+            final File aTarget) throws CommanderException {
+        byte[] content = read(aTree.open(aPath), aPath);
+        if (isUnchanged(aTarget, RenderManifest.hash(content))) {
+            return;
+        }
+        aTarget.getParentFile().mkdirs();
+        try {
+            Files.write(aTarget.toPath(), content);
+        } catch (IOException e) {
+            throw new CommanderException("Could not copy file " + aPath
+                    + " to " + aTarget.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * @param aIn
+     *            content of a file, closed
+     * @param aPath
+     *            path of the file
+     * @return the content
+     * @throws CommanderException
+     *             if the file cannot be read
+     */
+    private static byte[] read(final InputStream aIn, final String aPath)
+            throws CommanderException {
+        try {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = aIn.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                return out.toByteArray();
+            } finally {
+                aIn.close();
+            }
+        } catch (IOException e) {
+            throw new CommanderException("Could not read file " + aPath, e);
+        }
+    }
+
+    /**
+     * @return task rendering a file of the tree
+     */
+    private Callable<Void> newRenderTask(final File xslFile,
+            final MetadataTree aTree, final String aPath,
+            final File htmlFile) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws CommanderException {
+                renderChanged(xslFile, aTree, aPath, htmlFile);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * @return task rendering a file
+     */
+    private Callable<Void> newRenderTask(final File xslFile,
+            final File xmlFile, final File htmlFile) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws CommanderException {
+                renderChanged(xslFile, xmlFile, htmlFile);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Run render tasks on the worker threads and wait for them.
+     *
+     * @param aTasks
+     *            render tasks
+     * @throws CommanderException
+     *             first failure of a task
+     */
+    private void renderAll(List<Callable<Void>> aTasks)
+            throws CommanderException {
+        ConcurrentTaskRunner.invokeAll("render",
+                RENDER_THREADS_PER_CPU
+                        * Runtime.getRuntime().availableProcessors(),
+                aTasks);
     }
 
     /**
@@ -231,25 +513,56 @@ public class HtmlRenderer {
      */
     public final void render(final File xslFile, final File xmlFile,
             final File htmlFile) throws CommanderException {
+        render(xslFile, new StreamSource(xmlFile), xmlFile.getAbsolutePath(),
+                htmlFile);
+    }
 
-        TransformerFactory tfactory = TransformerFactory.newInstance();
+    /**
+     * @param xslFile
+     *            Transformation file for rendering.
+     * @param aTree
+     *            retrieved metadata
+     * @param aPath
+     *            path of the data file in the tree
+     * @param htmlFile
+     *            output file for rendering.
+     * @throws CommanderException
+     */
+    public final void render(final File xslFile, final MetadataTree aTree,
+            final String aPath, final File htmlFile)
+            throws CommanderException {
+        InputStream in = aTree.open(aPath);
         try {
-            FileOutputStream fos = new FileOutputStream(htmlFile);
+            render(xslFile,
+                    new StreamSource(in, new File(aTree.getRootFolder(), aPath)
+                            .toURI().toString()),
+                    aPath, htmlFile);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                throw new CommanderException("Could not close file " + aPath,
+                        e);
+            }
+        }
+    }
 
-            // Create a transformer for the stylesheet.
-            Transformer transformer;
-            transformer = tfactory.newTransformer(new StreamSource(xslFile));
+    private void render(final File xslFile, final Source xmlSource,
+            final String xmlName, final File htmlFile)
+            throws CommanderException {
 
-            // Transform the source XML to System.out.
-            transformer.transform(new StreamSource(xmlFile),
-                    new StreamResult(fos));
-            fos.close();
-        } catch (TransformerConfigurationException e) {
-            throw new CommanderException("Could not configure transformer "
-                    + xslFile.getAbsolutePath(), e);
+        // Create a transformer for the stylesheet.
+        Transformer transformer = newTransformer(xslFile);
+        try {
+            FileOutputStream fos = new FileOutputStream(htmlFile);
+            try {
+                transformer.transform(xmlSource, new StreamResult(fos));
+            } finally {
+                fos.close();
+            }
         } catch (TransformerException e) {
-            throw new CommanderException(
-                    "Could not transform file " + xmlFile.getAbsolutePath(), e);
+            throw new CommanderException("Could not transform file " + xmlName,
+                    e);
         } catch (FileNotFoundException e) {
             throw new CommanderException(
                     "Could not create new file " + htmlFile.getAbsolutePath()
@@ -261,6 +574,78 @@ public class HtmlRenderer {
         }
     }
 
+    /**
+     * @return configuration the sources are parsed with, trees of other
+     *         configurations are copied by each transformation
+     */
+    public Configuration getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * Render a page into memory, e.g. for a request of the
+     * {@link DocumentationServer}.
+     *
+     * @param xslFile
+     *            Transformation file for rendering.
+     * @param aPath
+     *            path of the source
+     * @param aDocument
+     *            tree of the source, see {@link #getConfiguration()}
+     * @return rendered page
+     * @throws CommanderException
+     *             if the page cannot be rendered
+     */
+    public byte[] renderPage(final File xslFile, final String aPath,
+            final Source aDocument) throws CommanderException {
+        Transformer transformer = newTransformer(xslFile);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            transformer.transform(aDocument, new StreamResult(out));
+        } catch (TransformerException e) {
+            throw new CommanderException("Could not transform file " + aPath,
+                    e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param xslFile
+     *            Transformation file for rendering.
+     * @return new transformer of the compiled stylesheet, a transformer is
+     *         used by one thread only
+     * @throws CommanderException
+     *             if the stylesheet cannot be compiled
+     */
+    private Transformer newTransformer(final File xslFile)
+            throws CommanderException {
+        try {
+            return getTemplates(xslFile).newTransformer();
+        } catch (TransformerConfigurationException e) {
+            throw new CommanderException("Could not configure transformer "
+                    + xslFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * @param xslFile
+     *            Transformation file for rendering.
+     * @return stylesheet compiled on first use
+     * @throws TransformerConfigurationException
+     *             if the stylesheet cannot be compiled
+     */
+    private synchronized Templates getTemplates(final File xslFile)
+            throws TransformerConfigurationException {
+        File key = xslFile.getAbsoluteFile();
+        Templates compiled = templates.get(key);
+        if (compiled == null) {
+            compiled = transformerFactory
+                    .newTemplates(new StreamSource(key));
+            templates.put(key, compiled);
+        }
+        return compiled;
+    }
+
     /**
      * @param entity
      *            Entity which should be merged (e.g. roles)
@@ -271,68 +656,180 @@ public class HtmlRenderer {
      */
     public void mergeFiles(String entity, File sourceFolder)
             throws CommanderException {
+        mergeFiles(entity, new MetadataTree(sourceFolder.getParentFile()),
+                sourceFolder.getName());
+    }
 
-        File allRecordsFile = new File(sourceFolder.getAbsolutePath() + "/"
-                + "all_" + entity + ".xml");
-        DocumentBuilderFactory docFactory = DocumentBuilderFactory
-                .newInstance();
-        docFactory.setNamespaceAware(true);
+    /**
+     * Merge the files of an entity into one file. The root element of each
+     * file is streamed into <code>all_&lt;entity&gt;.xml</code> with StAX, so
+     * the memory does not grow with the number of files. The files are
+     * deleted once the merged file is complete.
+     *
+     * @param entity
+     *            Entity which should be merged (e.g. roles)
+     * @param aTree
+     *            retrieved metadata
+     * @param aSourceFolder
+     *            path of the entity files in the tree
+     * @throws CommanderException
+     *             Exception if merge did not work.
+     */
+    public void mergeFiles(String entity, MetadataTree aTree,
+            String aSourceFolder) throws CommanderException {
+        String allRecordsName = "all_" + entity + ".xml";
+        File allRecordsFile = new File(aTree.getRootFolder(),
+                aSourceFolder + "/" + allRecordsName);
+        File sourceFolder = allRecordsFile.getParentFile();
+        List<String> recordPaths = new ArrayList<String>();
+        for (String recordFile : aTree.list(aSourceFolder, null)) {
+            if (!recordFile.equals(allRecordsName)) {
+                recordPaths.add(aSourceFolder + "/" + recordFile);
+            }
+        }
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        File tmpFile = null;
         try {
-            DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
-
-            // root elements
-            Document doc = docBuilder.newDocument();
-
-            Element rootElement = doc.createElement(entity);
-            rootElement.setAttributeNS("http://www.w3.org/2000/xmlns/", "xmlns",
-                    "http://soap.sforce.com/2006/04/metadata");
-            doc.appendChild(rootElement);
-            File[] recordFileList = sourceFolder.listFiles();
-            Arrays.sort(recordFileList);
-            for (File recordFile : recordFileList) {
-                if (!recordFile.getAbsolutePath()
-                        .equals(allRecordsFile.getAbsolutePath())) {
-                    Document entryDoc = docBuilder.parse(recordFile);
-                    Node importNode = doc
-                            .importNode(entryDoc.getDocumentElement(), true);
-                    rootElement.appendChild(importNode);
-                    recordFile.delete();
+            sourceFolder.mkdirs();
+            tmpFile = File.createTempFile(entity, ".tmp", sourceFolder);
+            OutputStream out = new BufferedOutputStream(
+                    new FileOutputStream(tmpFile));
+            try {
+                XMLStreamWriter writer = XMLOutputFactory.newInstance()
+                        .createXMLStreamWriter(out, "UTF-8");
+                writer.writeStartDocument("UTF-8", "1.0");
+                writer.writeStartElement("", entity, METADATA_NAMESPACE);
+                writer.writeDefaultNamespace(METADATA_NAMESPACE);
+                for (String recordPath : recordPaths) {
+                    writer.writeCharacters("\n");
+                    InputStream in = aTree.open(recordPath);
+                    try {
+                        XMLStreamReader reader = inputFactory
+                                .createXMLStreamReader(in);
+                        try {
+                            copyRootElement(reader, writer);
+                        } finally {
+                            reader.close();
+                        }
+                    } catch (XMLStreamException e) {
+                        throw new CommanderException(
+                                "Could not parse " + recordPath, e);
+                    } finally {
+                        in.close();
+                    }
                 }
+                writer.writeCharacters("\n");
+                writer.writeEndElement();
+                writer.writeEndDocument();
+                writer.close();
+            } finally {
+                out.close();
             }
-            TransformerFactory transformerFactory = TransformerFactory
-                    .newInstance();
-            Transformer transformer = transformerFactory.newTransformer();
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.transform(new DOMSource(doc),
-                    new StreamResult(allRecordsFile));
-        } catch (ParserConfigurationException e) {
-            throw new CommanderException(
-                    "Could not configure document builder for "
-                            + allRecordsFile.getAbsolutePath(),
-                    e);
-        } catch (SAXException e) {
-            throw new CommanderException(
-                    "Could not parse one of the xml files in "
-                            + sourceFolder.getAbsolutePath(),
-                    e);
+            Files.move(tmpFile.toPath(), allRecordsFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (XMLStreamException e) {
+            throw new CommanderException("Could not write xml-result into file "
+                    + allRecordsFile.getAbsolutePath(), e);
         } catch (IOException e) {
             throw new CommanderException(
-                    "Could not open one of the xml files in "
+                    "Could not merge the xml files in "
                             + sourceFolder.getAbsolutePath(),
                     e);
-        } catch (TransformerConfigurationException e) {
-            throw new CommanderException(
-                    "Could not configure xml-transformer for "
-                            + allRecordsFile.getAbsolutePath(),
-                    e);
-        } catch (TransformerException e) {
-            new CommanderException("Could not transform xml-result into file "
-                    + allRecordsFile.getAbsolutePath(), e);
+        } finally {
+            if (tmpFile != null && tmpFile.exists()) {
+                tmpFile.delete();
+            }
+        }
+        for (String recordPath : recordPaths) {
+            aTree.delete(recordPath);
+        }
+    }
+
+    /**
+     * Copy the root element of a document with its content.
+     *
+     * @param aReader
+     *            reader at the start of the document
+     * @param aWriter
+     *            writer inside the merged element
+     * @throws XMLStreamException
+     *             if the document cannot be read or written
+     */
+    private static void copyRootElement(XMLStreamReader aReader,
+            XMLStreamWriter aWriter) throws XMLStreamException {
+        int depth = 0;
+        while (aReader.hasNext()) {
+            int event = aReader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                String prefix = aReader.getPrefix();
+                String namespace = aReader.getNamespaceURI();
+                aWriter.writeStartElement(prefix == null ? "" : prefix,
+                        aReader.getLocalName(),
+                        namespace == null ? "" : namespace);
+                for (int i = 0; i < aReader.getNamespaceCount(); i++) {
+                    String nsPrefix = aReader.getNamespacePrefix(i);
+                    if (nsPrefix == null || nsPrefix.isEmpty()) {
+                        aWriter.writeDefaultNamespace(
+                                aReader.getNamespaceURI(i));
+                    } else {
+                        aWriter.writeNamespace(nsPrefix,
+                                aReader.getNamespaceURI(i));
+                    }
+                }
+                for (int i = 0; i < aReader.getAttributeCount(); i++) {
+                    String attrPrefix = aReader.getAttributePrefix(i);
+                    String attrNamespace = aReader.getAttributeNamespace(i);
+                    if (attrNamespace == null || attrNamespace.isEmpty()) {
+                        aWriter.writeAttribute(aReader.getAttributeLocalName(i),
+                                aReader.getAttributeValue(i));
+                    } else {
+                        aWriter.writeAttribute(
+                                attrPrefix == null ? "" : attrPrefix,
+                                attrNamespace, aReader.getAttributeLocalName(i),
+                                aReader.getAttributeValue(i));
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                aWriter.writeEndElement();
+                if (--depth == 0) {
+                    return;
+                }
+            } else if (depth > 0) {
+                if (event == XMLStreamConstants.CHARACTERS
+                        || event == XMLStreamConstants.SPACE) {
+                    aWriter.writeCharacters(aReader.getTextCharacters(),
+                            aReader.getTextStart(), aReader.getTextLength());
+                } else if (event == XMLStreamConstants.CDATA) {
+                    aWriter.writeCData(aReader.getText());
+                } else if (event == XMLStreamConstants.COMMENT) {
+                    aWriter.writeComment(aReader.getText());
+                }
+            }
         }
     }
 
     public void generateFileList(final String entity, final File sourceFolder,
             final File targetFolder) throws CommanderException {
+        generateFileList(entity, new MetadataTree(sourceFolder.getParentFile()),
+                sourceFolder.getName(), targetFolder);
+    }
+
+    /**
+     * @param entity
+     *            Entity of the list (e.g. roles)
+     * @param aTree
+     *            retrieved metadata
+     * @param aSourceFolder
+     *            path of the entity files in the tree
+     * @param targetFolder
+     *            folder of the generated list
+     * @throws CommanderException
+     *             if the list cannot be generated
+     */
+    public void generateFileList(final String entity,
+            final MetadataTree aTree, final String aSourceFolder,
+            final File targetFolder) throws CommanderException {
         File generatedFileList = new File(
                 targetFolder.getAbsolutePath() + "/" + entity + ".xml");
         DocumentBuilderFactory docFactory = DocumentBuilderFactory
@@ -353,12 +850,11 @@ public class HtmlRenderer {
             entityElement.setAttributeNS("http://www.w3.org/2000/xmlns/",
                     "xmlns", "http://soap.sforce.com/2006/04/metadata");
             rootElement.appendChild(entityElement);
-            File[] fileList = sourceFolder.listFiles(new XmlFileNameFilter());
-            Arrays.sort(fileList);
-            for (File actFile : fileList) {
+            for (String actFile : aTree.list(aSourceFolder,
+                    new XmlFileNameFilter())) {
                 Element newFileElement = doc.createElement("file");
-                newFileElement.appendChild(doc.createTextNode(actFile.getName()
-                        .substring(0, actFile.getName().lastIndexOf("."))));
+                newFileElement.appendChild(doc.createTextNode(
+                        actFile.substring(0, actFile.lastIndexOf("."))));
                 newFileElement.setAttributeNS("http://www.w3.org/2000/xmlns/",
                         "xmlns", "http://soap.sforce.com/2006/04/metadata");
                 rootElement.appendChild(newFileElement);
@@ -1,24 +1,76 @@
 /**
- * 
+ *
  */
 package de.sfdccommander.controller;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
 
 import de.sfdccommander.controller.helper.CommanderException;
 import de.sfdccommander.model.SfdcConfig;
-import net.lingala.zip4j.core.ZipFile;
-import net.lingala.zip4j.exception.ZipException;
+import de.sfdccommander.viewer.SfdcCommander;
 
 /**
  * @author jochen
- * 
+ *
  */
 public class MetadataExporter {
 
     /**
-     * 
+     * Files which are part of every retrieve chunk and have to be merged.
+     */
+    private static final String[] MERGED_SUFFIXES = {".profile",
+            ".permissionset" };
+
+    /**
+     * Folders of the merged files.
+     */
+    private static final String[] MERGED_FOLDERS = {"profiles",
+            "permissionsets" };
+
+    /**
+     * Suffix of the file with the metadata of source files.
+     */
+    private static final String META_SUFFIX = "-meta.xml";
+
+    /**
+     * Folder of the retrieved files.
+     */
+    private static final String UNPACKAGED = "unpackaged/";
+
+    /**
+     * Package of a retrieve inside the zip-file.
+     */
+    private static final String PACKAGE_ENTRY = UNPACKAGED + "package.xml";
+
+    /**
+     *
      */
     private final SfdcConfig config;
 
@@ -32,32 +84,395 @@ public class MetadataExporter {
 
     /**
      * Method to export SFDC entities.
-     * 
+     *
      * @throws CommanderException
-     * 
+     *
      * @throws Exception
      * @throws RemoteException
      */
     public final void getEntities() throws CommanderException {
+        getEntities(true);
+    }
+
+    /**
+     * Retrieve the metadata of the org into its {@link MetadataTree}.
+     *
+     * @param aExtract
+     *            extract all files, otherwise they are read from the
+     *            retrieved zip-files until a consumer needs a real file
+     * @throws CommanderException
+     *             if the metadata cannot be retrieved
+     */
+    public final void getEntities(final boolean aExtract)
+            throws CommanderException {
         MetadataRetriever retriever;
-        retriever = new MetadataRetriever(config.getUsername(),
-                config.getPassword(), config.getLoginUrl());
+        retriever = new MetadataRetriever(config);
         String systemName = config.getSystemName();
         retriever.setSystemName(systemName);
+        List<File> zipFiles;
         try {
-            retriever.retrieveZip();
-            // Export ZIP
-            ZipFile sourceZip = new ZipFile(systemName + ".zip");
-            sourceZip.extractAll(systemName);
-            File sourceFile = new File(systemName + ".zip");
-            sourceFile.delete();
+            zipFiles = retriever.retrieveZips();
         } catch (CommanderException e) {
             throw new CommanderException(
                     "Could not download zip-File from your Org.", e);
-        } catch (ZipException e) {
-            throw new CommanderException("Could not extract zip-File.", e);
         }
+        MetadataTree tree = new MetadataTree(new File(systemName));
+        if (!retriever.isIncremental()) {
+            // everything has been retrieved, older archives are outdated
+            tree.clear();
+        }
+        deleteMembers(tree, retriever.getDeletedMembers());
+        // the chunks are merged into one tree
+        Set<String> extracted = new HashSet<String>();
+        for (File zipFile : zipFiles) {
+            archiveZip(tree, zipFile, extracted, retriever.isIncremental());
+        }
+        retriever.writePackageXml(tree.getFile(PACKAGE_ENTRY));
+        if (aExtract) {
+            commander().info("Extracting metadata to " + systemName);
+            tree.extract("");
+        }
+        tree.save();
+        retriever.writeSnapshot();
+    }
+
+    /**
+     * Remove the files of members deleted in the org and their permissions
+     * from the profiles and permission sets.
+     *
+     * @param aTree
+     *            metadata tree of the org
+     * @param aDeleted
+     *            files of the deleted members keyed by member key
+     * @throws CommanderException
+     *             if a profile or permission set cannot be updated
+     */
+    private void deleteMembers(final MetadataTree aTree,
+            final Map<String, String> aDeleted) throws CommanderException {
+        if (aDeleted.isEmpty()) {
+            return;
+        }
+        Set<String> names = new HashSet<String>();
+        for (Map.Entry<String, String> member : aDeleted.entrySet()) {
+            names.add(MetadataSnapshot.getFullName(member.getKey()));
+            String path = UNPACKAGED + member.getValue();
+            aTree.delete(path);
+            aTree.delete(path + META_SUFFIX);
+        }
+        for (String folderName : MERGED_FOLDERS) {
+            String folder = UNPACKAGED + folderName;
+            for (String name : aTree.list(folder, null)) {
+                if (isMergedFile(name)) {
+                    mergeXml(aTree.getFile(folder + "/" + name), null, names);
+                }
+            }
+        }
+    }
+
+    /**
+     * Move a retrieved chunk into the archive of the tree. Profiles and
+     * permission sets are merged with the versions of the other chunks and,
+     * for an incremental retrieve, with the versions of previous runs.
+     *
+     * @param aTree
+     *            metadata tree of the org
+     * @param aZipFile
+     *            retrieved chunk
+     * @param aExtracted
+     *            merged files already written by other chunks of this run
+     * @param aMergeLocal
+     *            merge files written by previous runs as well
+     * @throws CommanderException
+     *             if the zip-file cannot be read
+     */
+    private void archiveZip(final MetadataTree aTree, final File aZipFile,
+            final Set<String> aExtracted, final boolean aMergeLocal)
+            throws CommanderException {
+        List<String> archived = new ArrayList<String>();
+        ZipFile zip = null;
+        try {
+            zip = new ZipFile(aZipFile);
+            Set<String> members = getPackageMembers(zip);
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (entry.isDirectory() || PACKAGE_ENTRY.equals(name)) {
+                    continue;
+                }
+                if (!isMergedFile(name)) {
+                    archived.add(name);
+                    continue;
+                }
+                boolean merge = !aExtracted.add(name)
+                        || (aMergeLocal && aTree.exists(name));
+                InputStream in = zip.getInputStream(entry);
+                try {
+                    if (merge) {
+                        mergeXml(aTree.getFile(name), in, members);
+                    } else {
+                        aTree.write(name, in);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } catch (IOException e) {
+            throw new CommanderException("Could not read zip-File.", e);
+        } finally {
+            if (zip != null) {
+                try {
+                    zip.close();
+                } catch (IOException e) {
+                    throw new CommanderException(
+                            "Could not close zip-File after reading.", e);
+                }
+            }
+        }
+        aTree.addZip(aZipFile, archived);
+    }
+
+    /**
+     * @param aZip
+     *            retrieved chunk
+     * @return members of the chunk's package.xml
+     * @throws CommanderException
+     *             if the package.xml cannot be read
+     */
+    private Set<String> getPackageMembers(final ZipFile aZip)
+            throws CommanderException {
+        Set<String> members = new HashSet<String>();
+        ZipEntry entry = aZip.getEntry(PACKAGE_ENTRY);
+        if (entry == null) {
+            return members;
+        }
+        try {
+            InputStream in = aZip.getInputStream(entry);
+            try {
+                DocumentBuilderFactory dbFactory = DocumentBuilderFactory
+                        .newInstance();
+                dbFactory.setNamespaceAware(true);
+                NodeList nodes = dbFactory.newDocumentBuilder().parse(in)
+                        .getElementsByTagNameNS("*", "members");
+                for (int i = 0; i < nodes.getLength(); i++) {
+                    members.add(nodes.item(i).getTextContent().trim());
+                }
+            } finally {
+                in.close();
+            }
+        } catch (ParserConfigurationException e) {
+            throw new CommanderException(
+                    "Could not configure parser to read " + PACKAGE_ENTRY, e);
+        } catch (SAXException e) {
+            throw new CommanderException("Could not parse " + PACKAGE_ENTRY,
+                    e);
+        } catch (IOException e) {
+            throw new CommanderException("Could not read " + PACKAGE_ENTRY,
+                    e);
+        }
+        return members;
+    }
+
+    private static List<Element> getChildElements(final Element aParent) {
+        List<Element> elements = new ArrayList<Element>();
+        NodeList children = aParent.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            if (children.item(i).getNodeType() == Node.ELEMENT_NODE) {
+                elements.add((Element) children.item(i));
+            }
+        }
+        return elements;
+    }
 
+    /**
+     * @param aElement
+     *            element of a profile or permission set
+     * @param aMembers
+     *            full names of metadata members
+     * @return true if a value of the element names one of the members or a
+     *         child of one, e.g. the field Account.Name of the object Account
+     */
+    private static boolean refersTo(final Element aElement,
+            final Set<String> aMembers) {
+        for (Element value : getChildElements(aElement)) {
+            String text = value.getTextContent().trim();
+            int dot = text.indexOf('.');
+            if (aMembers.contains(text)
+                    || (dot > 0 && aMembers.contains(text.substring(0, dot)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Insert an element at the position the metadata api would return it
+     * at. The api sorts the elements of a profile or permission set by their
+     * name, and elements of the same name by the values of their children,
+     * e.g. field permissions by the field.
+     *
+     * @param aRoot
+     *            root element of the profile or permission set
+     * @param aElement
+     *            element of the document to insert
+     */
+    private static void insertOrdered(final Element aRoot,
+            final Element aElement) {
+        List<Element> existing = getChildElements(aRoot);
+        Element reference = null;
+        for (Element element : existing) {
+            int order = element.getLocalName()
+                    .compareTo(aElement.getLocalName());
+            if (order == 0) {
+                order = getSortKey(element).compareTo(getSortKey(aElement));
+            }
+            if (order > 0) {
+                reference = element;
+                break;
+            }
+        }
+        if (reference != null) {
+            aRoot.insertBefore(aElement, reference);
+            Node indent = getIndent(aElement);
+            if (indent != null) {
+                aRoot.insertBefore(indent.cloneNode(false), reference);
+            }
+        } else if (existing.isEmpty()) {
+            aRoot.appendChild(aElement);
+        } else {
+            // behind the last element, before the closing whitespace
+            Element last = existing.get(existing.size() - 1);
+            aRoot.insertBefore(aElement, last.getNextSibling());
+            Node indent = getIndent(last);
+            if (indent != null) {
+                aRoot.insertBefore(indent.cloneNode(false), aElement);
+            }
+        }
+    }
+
+    /**
+     * @return whitespace in front of the node, null if there is none
+     */
+    private static Node getIndent(final Node aNode) {
+        Node previous = aNode.getPreviousSibling();
+        if (previous != null && previous.getNodeType() == Node.TEXT_NODE
+                && previous.getTextContent().trim().isEmpty()) {
+            return previous;
+        }
+        return null;
+    }
+
+    /**
+     * @param aElement
+     *            element of a profile or permission set
+     * @return values of the children of the element which are no flags, e.g.
+     *         the field of a field permission
+     */
+    private static String getSortKey(final Element aElement) {
+        StringBuilder key = new StringBuilder();
+        for (Element value : getChildElements(aElement)) {
+            String text = value.getTextContent().trim();
+            if (!"true".equals(text) && !"false".equals(text)) {
+                key.append(text).append('\n');
+            }
+        }
+        return key.toString();
+    }
+
+    private static void removeWithWhitespace(final Node aNode) {
+        Node indent = getIndent(aNode);
+        if (indent != null) {
+            aNode.getParentNode().removeChild(indent);
+        }
+        aNode.getParentNode().removeChild(aNode);
+    }
+
+    private static SfdcCommander commander() {
+        return SfdcCommander.getInstance();
+    }
+
+    private boolean isMergedFile(final String aName) {
+        for (String suffix : MERGED_SUFFIXES) {
+            if (aName.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Merge another retrieve's version of a profile or permission set into
+     * the extracted file. Elements referring to one of the given members are
+     * replaced by the new version. Elements which refer to no member, like
+     * user permissions, are replaced if the new version contains them.
+     *
+     * @param aFile
+     *            file extracted from a previous chunk or run
+     * @param aChunkContent
+     *            content of the same file in the current chunk, null to only
+     *            remove the elements of the members
+     * @param aMembers
+     *            members retrieved with the chunk or deleted in the org
+     * @throws CommanderException
+     *             if the files cannot be merged
+     */
+    static void mergeXml(final File aFile, final InputStream aChunkContent,
+            final Set<String> aMembers) throws CommanderException {
+        try {
+            DocumentBuilderFactory dbFactory = DocumentBuilderFactory
+                    .newInstance();
+            dbFactory.setNamespaceAware(true);
+            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
+            Document doc = dBuilder.parse(aFile);
+            Element root = doc.getDocumentElement();
+            List<Element> children = new ArrayList<Element>();
+            Set<String> referringNames = new HashSet<String>();
+            Set<String> replacedNames = new HashSet<String>();
+            if (aChunkContent != null) {
+                children = getChildElements(dBuilder.parse(aChunkContent)
+                        .getDocumentElement());
+                for (Element child : children) {
+                    if (refersTo(child, aMembers)) {
+                        referringNames.add(child.getLocalName());
+                    } else {
+                        replacedNames.add(child.getLocalName());
+                    }
+                }
+                replacedNames.removeAll(referringNames);
+            }
+            for (Element existing : getChildElements(root)) {
+                if (replacedNames.contains(existing.getLocalName())
+                        || refersTo(existing, aMembers)) {
+                    removeWithWhitespace(existing);
+                }
+            }
+            List<Element> existing = getChildElements(root);
+            for (Element child : children) {
+                boolean found = false;
+                for (int j = 0; j < existing.size() && !found; j++) {
+                    found = existing.get(j).isEqualNode(child);
+                }
+                if (!found) {
+                    insertOrdered(root, (Element) doc.importNode(child, true));
+                }
+            }
+            Transformer transformer = TransformerFactory.newInstance()
+                    .newTransformer();
+            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+            transformer.transform(new DOMSource(doc), new StreamResult(aFile));
+        } catch (ParserConfigurationException e) {
+            throw new CommanderException("Could not configure parser to read "
+                    + aFile.getAbsolutePath(), e);
+        } catch (SAXException e) {
+            throw new CommanderException(
+                    "Could not parse " + aFile.getAbsolutePath(), e);
+        } catch (IOException e) {
+            throw new CommanderException(
+                    "Could not open file: " + aFile.getAbsolutePath(), e);
+        } catch (TransformerException e) {
+            throw new CommanderException(
+                    "Could not update file: " + aFile.getAbsolutePath(), e);
+        }
     }
 
 }
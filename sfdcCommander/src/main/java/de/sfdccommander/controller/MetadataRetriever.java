@@ -1,54 +1,80 @@
 package de.sfdccommander.controller;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
 import java.rmi.RemoteException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-
-import javax.xml.rpc.ServiceException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 
 import com.sforce.soap._2006._04.metadata.AsyncResult;
 import com.sforce.soap._2006._04.metadata.DescribeMetadataObject;
 import com.sforce.soap._2006._04.metadata.DescribeMetadataResult;
 import com.sforce.soap._2006._04.metadata.FileProperties;
 import com.sforce.soap._2006._04.metadata.ListMetadataQuery;
-import com.sforce.soap._2006._04.metadata.MetadataBindingStub;
-import com.sforce.soap._2006._04.metadata.MetadataServiceLocator;
+import com.sforce.soap._2006._04.metadata.MetadataPortType;
 import com.sforce.soap._2006._04.metadata.PackageTypeMembers;
 import com.sforce.soap._2006._04.metadata.RetrieveMessage;
 import com.sforce.soap._2006._04.metadata.RetrieveRequest;
 import com.sforce.soap._2006._04.metadata.RetrieveResult;
 import com.sforce.soap._2006._04.metadata.RetrieveStatus;
-import com.sforce.soap._2006._04.metadata.SessionHeader;
-import com.sforce.soap.partner.LoginResult;
-import com.sforce.soap.partner.SforceServiceLocator;
-import com.sforce.soap.partner.SoapBindingStub;
-import com.sforce.soap.partner.fault.InvalidIdFault;
-import com.sforce.soap.partner.fault.LoginFault;
-import com.sforce.soap.partner.fault.UnexpectedErrorFault;
 
+import de.sfdccommander.controller.connection.SfdcConnectionPool;
 import de.sfdccommander.controller.helper.CommanderException;
+import de.sfdccommander.controller.helper.ConcurrentTaskRunner;
+import de.sfdccommander.model.SfdcConfig;
+import de.sfdccommander.model.WildcardMetadataTypeSet;
 import de.sfdccommander.viewer.SfdcCommander;
 
 public class MetadataRetriever {
 
-    // Binding for the metadata WSDL used for making metadata API calls
-    private MetadataBindingStub metaBinding;
+    // Org of the metadata API calls
+    private final SfdcConfig config;
+
+    // Pool which leases the metadata bindings of the org
+    private final SfdcConnectionPool connPool;
 
     private String systemName;
 
+    // package of the last retrieve
+    private com.sforce.soap._2006._04.metadata._package retrievedPackage;
+
+    // versions of the members listed by the last retrieve
+    private MetadataSnapshot snapshot;
+
+    // snapshot of the previous run, null if everything is retrieved
+    private MetadataSnapshot previousSnapshot;
+
+    // parent types whose children could not be listed
+    private final Set<String> unlistedTypes = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
     private final static long ONE_SECOND = 1000;
 
     static BufferedReader rdr = new BufferedReader(
@@ -57,153 +83,477 @@ public class MetadataRetriever {
     // maximum number of attempts to retrieve the results
     private static final int MAX_NUM_POLL_REQUESTS = 100;
 
+    // maximum wait between two polls of the running retrieves
+    private static final long MAX_POLL_WAIT = 30 * ONE_SECOND;
+
+    private static final String METADATA_NAMESPACE = "http://soap.sforce.com/2006/04/metadata";
+
     private static final double API_VERSION = 34.0;
 
+    // maximum number of queries per listMetadata call
+    private static final int QUERIES_PER_CALL = 3;
+
+    // types which are retrieved without listing their members
+    private final WildcardMetadataTypeSet wildcardTypes;
+
     private final SfdcCommander commander;
 
-    public MetadataRetriever(String username, String password, String loginUrl)
-            throws CommanderException {
-        createMetadataConnection(username, password, loginUrl);
+    public MetadataRetriever(SfdcConfig aConfig) {
+        config = aConfig;
+        connPool = SfdcConnectionPool.getInstance();
         commander = SfdcCommander.getInstance();
+        wildcardTypes = new WildcardMetadataTypeSet();
     }
 
-    public void retrieveZip() throws CommanderException {
-        RetrieveRequest retrieveRequest = new RetrieveRequest();
-        // The version in package.xml overrides the version in RetrieveRequest
-        retrieveRequest.setApiVersion(API_VERSION);
-        retrieveRequest.setUnpackaged(buildPackage());
+    /**
+     * Retrieve the metadata of the org. The package is split into chunks by
+     * the {@link RetrievePlanner}, the chunks are retrieved concurrently and
+     * polled from a single loop. Finished chunks are downloaded in the
+     * background while the others are still running.
+     *
+     * @return zip files of the chunks, in the order of the plan
+     * @throws CommanderException
+     *             if a retrieve fails or times out
+     */
+    public List<File> retrieveZips() throws CommanderException {
+        retrievedPackage = buildPackage();
+        com.sforce.soap._2006._04.metadata._package retrievePackage = retrievedPackage;
+        previousSnapshot = null;
+        if (config.isIncrementalRetrieve()) {
+            MetadataSnapshot previous = MetadataSnapshot
+                    .read(getSnapshotFile());
+            if (!previous.getKeys().isEmpty()) {
+                previousSnapshot = previous;
+                retrievePackage = buildChangedPackage();
+                if (retrievePackage == null) {
+                    commander.info(
+                            "Metadata is unchanged since the last snapshot.");
+                    return new ArrayList<File>();
+                }
+            }
+        }
+        final List<com.sforce.soap._2006._04.metadata._package> chunks = new RetrievePlanner(
+                config.getRetrieveChunkSize()).plan(retrievePackage);
+        commander.info("Retrieving metadata in " + chunks.size()
+                + " chunk(s).");
+
+        int maxRetrieves = config.getMaxConcurrentCalls();
+        ExecutorService downloader = ConcurrentTaskRunner
+                .newExecutor("retrieve-download", maxRetrieves);
+        List<Future<File>> downloads = new ArrayList<Future<File>>();
+        Deque<Integer> pending = new ArrayDeque<Integer>();
+        for (int i = 0; i < chunks.size(); i++) {
+            pending.add(i);
+        }
+        // running retrieves with their chunk and number of polls
+        Map<String, int[]> inFlight = new LinkedHashMap<String, int[]>();
         try {
-
-            // Start the retrieve operation
-            AsyncResult asyncResult = metaBinding.retrieve(retrieveRequest);
-            String asyncResultId = asyncResult.getId();
-
-            // Wait for the retrieve to complete
-            int poll = 0;
             long waitTimeMilliSecs = ONE_SECOND;
-            RetrieveResult result = null;
-            do {
+            while (!pending.isEmpty() || !inFlight.isEmpty()) {
+                while (inFlight.size() < maxRetrieves && !pending.isEmpty()) {
+                    int chunk = pending.poll();
+                    inFlight.put(startRetrieve(chunks.get(chunk)),
+                            new int[] {chunk, 0 });
+                }
+
                 Thread.sleep(waitTimeMilliSecs);
                 // Double the wait time for the next iteration
-                if (waitTimeMilliSecs < 100 * ONE_SECOND) {
+                if (waitTimeMilliSecs < MAX_POLL_WAIT) {
                     waitTimeMilliSecs *= 2;
                 }
-                if (poll++ > MAX_NUM_POLL_REQUESTS) {
-                    throw new CommanderException(
-                            "Request timed out.  If this is a large set "
-                                    + "of metadata components, check that the time allowed "
-                                    + "by MAX_NUM_POLL_REQUESTS is sufficient.");
-                }
-                result = metaBinding.checkRetrieveStatus(asyncResultId, true);
-                commander.info("Retrieve Status: " + result.getStatus());
-            } while (!result.isDone());
-
-            if (result.getStatus() == RetrieveStatus.Failed) {
-                throw new CommanderException(result.getErrorStatusCode()
-                        + " msg: " + result.getErrorMessage());
-            } else if (result.getStatus() == RetrieveStatus.Succeeded) {
-                // Print out any warning messages
-                StringBuilder buf = new StringBuilder();
-                if (result.getMessages() != null) {
-                    for (RetrieveMessage rm : result.getMessages()) {
-                        buf.append(rm.getFileName() + " - " + rm.getProblem()
-                                + "\r\n");
+                Iterator<Map.Entry<String, int[]>> it = inFlight.entrySet()
+                        .iterator();
+                while (it.hasNext()) {
+                    Map.Entry<String, int[]> retrieve = it.next();
+                    final String asyncResultId = retrieve.getKey();
+                    final int chunk = retrieve.getValue()[0];
+                    if (retrieve.getValue()[1]++ > MAX_NUM_POLL_REQUESTS) {
+                        throw new CommanderException(
+                                "Request timed out.  If this is a large set "
+                                        + "of metadata components, check that the time allowed "
+                                        + "by MAX_NUM_POLL_REQUESTS is sufficient.");
+                    }
+                    RetrieveResult result = checkRetrieveStatus(
+                            asyncResultId);
+                    commander.info("Retrieve Status of chunk " + (chunk + 1)
+                            + "/" + chunks.size() + ": " + result.getStatus());
+                    if (result.isDone()) {
+                        it.remove();
+                        downloads.add(downloader.submit(new Callable<File>() {
+                            @Override
+                            public File call() throws CommanderException {
+                                return downloadZip(asyncResultId, chunk);
+                            }
+                        }));
                     }
                 }
-                if (buf.length() > 0) {
-                    commander.info("Retrieve warnings:\n" + buf);
-                }
-
-                // Write the zip to the file system
-                File resultsFile = new File(systemName + ".zip");
-                writeZip(result.getZipFile(), resultsFile);
-
             }
-        } catch (RemoteException e) {
-            throw new CommanderException("Could not retrieve metadata.", e);
 
+            List<File> zipFiles = new ArrayList<File>(chunks.size());
+            for (Future<File> download : downloads) {
+                zipFiles.add(ConcurrentTaskRunner.getResult(download));
+            }
+            Collections.sort(zipFiles);
+            return zipFiles;
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new CommanderException(
                     "Metdata download request has been interrupted.", e);
+        } finally {
+            downloader.shutdownNow();
         }
     }
 
-    private void writeZip(byte[] content, File zipFile)
-            throws CommanderException {
-        commander.info("Writing results to zip file");
-        ByteArrayInputStream bais = new ByteArrayInputStream(content);
-        FileOutputStream os = null;
+    /**
+     * Write the package.xml of all members retrieved by
+     * {@link #retrieveZips()}.
+     *
+     * @param aPackageFile
+     *            target file
+     * @throws CommanderException
+     *             if the file cannot be written
+     */
+    public void writePackageXml(File aPackageFile) throws CommanderException {
         try {
-            os = new FileOutputStream(zipFile);
-            ReadableByteChannel src = Channels.newChannel(bais);
-            FileChannel dest = os.getChannel();
-            copy(src, dest);
+            Document doc = DocumentBuilderFactory.newInstance()
+                    .newDocumentBuilder().newDocument();
+            Element root = doc.createElementNS(METADATA_NAMESPACE, "Package");
+            doc.appendChild(root);
+            for (PackageTypeMembers type : retrievedPackage.getTypes()) {
+                if (type.getMembers() == null) {
+                    continue;
+                }
+                Element typeElement = doc.createElementNS(METADATA_NAMESPACE,
+                        "types");
+                for (String member : type.getMembers()) {
+                    Element memberElement = doc
+                            .createElementNS(METADATA_NAMESPACE, "members");
+                    memberElement.setTextContent(member);
+                    typeElement.appendChild(memberElement);
+                }
+                Element nameElement = doc.createElementNS(METADATA_NAMESPACE,
+                        "name");
+                nameElement.setTextContent(type.getName());
+                typeElement.appendChild(nameElement);
+                root.appendChild(typeElement);
+            }
+            Element version = doc.createElementNS(METADATA_NAMESPACE,
+                    "version");
+            version.setTextContent(retrievedPackage.getVersion());
+            root.appendChild(version);
+
+            aPackageFile.getParentFile().mkdirs();
+            Transformer transformer = TransformerFactory.newInstance()
+                    .newTransformer();
+            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+            transformer.transform(new DOMSource(doc),
+                    new StreamResult(aPackageFile));
+        } catch (ParserConfigurationException e) {
+            throw new CommanderException("Could not create package.xml", e);
+        } catch (TransformerException e) {
+            throw new CommanderException("Could not write file: "
+                    + aPackageFile.getAbsolutePath(), e);
+        }
+    }
 
-            commander.info("Results written to " + zipFile.getAbsolutePath());
-        } catch (FileNotFoundException e) {
-            throw new CommanderException(
-                    "Could not find zip-file: " + zipFile.getAbsolutePath(), e);
-        } catch (IOException e) {
-            throw new CommanderException(
-                    "Could not write zip-File: " + zipFile.getAbsolutePath(),
-                    e);
-        } finally {
-            try {
-                os.close();
-            } catch (IOException e) {
-                throw new CommanderException(
-                        "Could not close zip-file after creation.", e);
+    /**
+     * @return true if only the changes since the previous snapshot have been
+     *         retrieved by {@link #retrieveZips()}
+     */
+    public boolean isIncremental() {
+        return previousSnapshot != null;
+    }
+
+    /**
+     * @return files of the members removed from the org since the previous
+     *         snapshot relative to the unpackaged folder, keyed by member key
+     */
+    public Map<String, String> getDeletedMembers() {
+        Map<String, String> deleted = new LinkedHashMap<String, String>();
+        if (previousSnapshot != null) {
+            for (String key : previousSnapshot.getKeys()) {
+                if (snapshot.getVersion(key) == null) {
+                    deleted.put(key, previousSnapshot.getFileName(key));
+                }
             }
         }
+        return deleted;
+    }
+
+    /**
+     * Store the versions of the members retrieved by {@link #retrieveZips()}
+     * for the next incremental retrieve.
+     *
+     * @throws CommanderException
+     *             if the snapshot cannot be written
+     */
+    public void writeSnapshot() throws CommanderException {
+        if (config.isIncrementalRetrieve() && snapshot != null) {
+            snapshot.write(getSnapshotFile());
+        }
+    }
+
+    private File getSnapshotFile() {
+        return new File(systemName, MetadataSnapshot.FILE_NAME);
+    }
+
+    private com.sforce.soap._2006._04.metadata._package buildChangedPackage() {
+        return buildChangedPackage(retrievedPackage, snapshot,
+                previousSnapshot, unlistedTypes,
+                new File(systemName, "unpackaged"),
+                getDeletedMembers().size());
     }
 
     /**
-     * Helper method to copy from a readable channel to a writable channel,
-     * using an in-memory buffer.
+     * Compare the listed members with the previous snapshot. A member is
+     * retrieved if it is new, its version changed or its file is missing in
+     * the local tree. Shared types are retrieved completely if anything
+     * changed, as they only contain the permissions of the other members.
+     *
+     * @param aRetrievedPackage
+     *            package of all listed members
+     * @param aSnapshot
+     *            snapshot of the listed members
+     * @param aPreviousSnapshot
+     *            snapshot of the last retrieve
+     * @param aUnlistedTypes
+     *            types whose children could not be listed, all their members
+     *            are retrieved
+     * @param aTreeFolder
+     *            folder of the retrieved files
+     * @param aDeletedCount
+     *            number of deleted members, for the log
+     * @return package of the changed members, null if nothing changed
      */
-    private void copy(ReadableByteChannel src, WritableByteChannel dest)
-            throws IOException {
-        // Use an in-memory byte buffer
-        ByteBuffer buffer = ByteBuffer.allocate(8092);
-        while (src.read(buffer) != -1) {
-            buffer.flip();
-            while (buffer.hasRemaining()) {
-                dest.write(buffer);
+    static com.sforce.soap._2006._04.metadata._package buildChangedPackage(
+            com.sforce.soap._2006._04.metadata._package aRetrievedPackage,
+            MetadataSnapshot aSnapshot, MetadataSnapshot aPreviousSnapshot,
+            Set<String> aUnlistedTypes, File aTreeFolder,
+            int aDeletedCount) {
+        List<PackageTypeMembers> changedTypes = new ArrayList<PackageTypeMembers>();
+        List<PackageTypeMembers> sharedTypes = new ArrayList<PackageTypeMembers>();
+        int changedCount = 0;
+        boolean sharedChanged = false;
+        for (PackageTypeMembers type : aRetrievedPackage.getTypes()) {
+            if (type.getMembers() == null) {
+                continue;
+            }
+            List<String> changed = new ArrayList<String>();
+            for (String member : type.getMembers()) {
+                String key = MetadataSnapshot.getKey(type.getName(), member);
+                String version = aSnapshot.getVersion(key);
+                String fileName = aSnapshot.getFileName(key);
+                if (aUnlistedTypes.contains(type.getName())
+                        || !version.equals(aPreviousSnapshot.getVersion(key))
+                        || (fileName != null
+                                && !new File(aTreeFolder, fileName).exists())) {
+                    changed.add(member);
+                }
+            }
+            if (RetrievePlanner.SHARED_TYPES.contains(type.getName())) {
+                sharedTypes.add(type);
+                sharedChanged |= !changed.isEmpty();
+            } else if (!changed.isEmpty()) {
+                PackageTypeMembers changedType = new PackageTypeMembers();
+                changedType.setName(type.getName());
+                changedType.setMembers(
+                        changed.toArray(new String[changed.size()]));
+                changedTypes.add(changedType);
+                changedCount += changed.size();
             }
-            buffer.clear();
         }
+        SfdcCommander.getInstance().info(changedCount + " changed and "
+                + aDeletedCount
+                + " deleted metadata members since the last snapshot.");
+        if (changedCount == 0 && !sharedChanged) {
+            return null;
+        }
+        changedTypes.addAll(sharedTypes);
+        com.sforce.soap._2006._04.metadata._package changedPackage = new com.sforce.soap._2006._04.metadata._package();
+        changedPackage.setTypes(changedTypes
+                .toArray(new PackageTypeMembers[changedTypes.size()]));
+        changedPackage.setVersion(aRetrievedPackage.getVersion());
+        return changedPackage;
+    }
+
+    private String startRetrieve(
+            com.sforce.soap._2006._04.metadata._package aChunk)
+            throws CommanderException {
+        RetrieveRequest retrieveRequest = new RetrieveRequest();
+        // The version in package.xml overrides the version in RetrieveRequest
+        retrieveRequest.setApiVersion(API_VERSION);
+        retrieveRequest.setUnpackaged(aChunk);
+        MetadataPortType metaBinding = connPool
+                .acquireMetadataBinding(config);
+        try {
+            AsyncResult asyncResult = metaBinding.retrieve(retrieveRequest);
+            return asyncResult.getId();
+        } catch (RemoteException e) {
+            throw new CommanderException("Could not retrieve metadata.", e);
+        } finally {
+            connPool.releaseMetadataBinding(config, metaBinding);
+        }
+    }
+
+    private RetrieveResult checkRetrieveStatus(String aAsyncResultId)
+            throws CommanderException {
+        MetadataPortType metaBinding = connPool
+                .acquireMetadataBinding(config);
+        try {
+            return metaBinding.checkRetrieveStatus(aAsyncResultId, false);
+        } catch (RemoteException e) {
+            throw new CommanderException("Could not retrieve metadata.", e);
+        } finally {
+            connPool.releaseMetadataBinding(config, metaBinding);
+        }
+    }
+
+    private File downloadZip(String aAsyncResultId, int aChunk)
+            throws CommanderException {
+        // the zip is streamed to disk, it may be larger than the heap
+        File resultsFile = new File(
+                String.format("%s_%03d.zip", systemName, aChunk + 1));
+        commander.info("Writing results to zip file");
+        RetrieveResult result = connPool.checkRetrieveStatus(config,
+                aAsyncResultId, resultsFile);
+        if (result.getStatus() == RetrieveStatus.Failed) {
+            resultsFile.delete();
+            throw new CommanderException(result.getErrorStatusCode()
+                    + " msg: " + result.getErrorMessage());
+        }
+        // Print out any warning messages
+        StringBuilder buf = new StringBuilder();
+        if (result.getMessages() != null) {
+            for (RetrieveMessage rm : result.getMessages()) {
+                buf.append(rm.getFileName() + " - " + rm.getProblem()
+                        + "\r\n");
+            }
+        }
+        if (buf.length() > 0) {
+            commander.info("Retrieve warnings:\n" + buf);
+        }
+        if (!resultsFile.isFile()) {
+            throw new CommanderException(
+                    "Retrieve " + aAsyncResultId + " returned no zip-file.");
+        }
+        commander.info("Results written to " + resultsFile.getAbsolutePath());
+        return resultsFile;
     }
 
     private com.sforce.soap._2006._04.metadata._package buildPackage()
             throws CommanderException {
         SfdcCommander commander = SfdcCommander.getInstance();
         commander.info("Gathering Metadata from your Org...");
-        List<PackageTypeMembers> pd = new ArrayList<PackageTypeMembers>();
+        DescribeMetadataResult metadataResult;
+        MetadataPortType metaBinding = connPool
+                .acquireMetadataBinding(config);
         try {
-            DescribeMetadataResult metadataResult = metaBinding
-                    .describeMetadata(API_VERSION);
-            for (DescribeMetadataObject objectType : metadataResult
-                    .getMetadataObjects()) {
-                PackageTypeMembers pdi = new PackageTypeMembers();
-                pdi.setName(objectType.getXmlName());
-
-                ListMetadataQuery[] queries = new ListMetadataQuery[1];
-                queries[0] = new ListMetadataQuery();
-                queries[0].setType(objectType.getXmlName());
-                FileProperties[] tmpListMetadata = metaBinding
-                        .listMetadata(queries, API_VERSION);
-                if (tmpListMetadata != null) {
-                    List<String> members = new ArrayList<String>();
-                    for (FileProperties member : tmpListMetadata) {
-                        members.add(URLDecoder.decode(member.getFullName()));
-                    }
-                    pdi.setMembers(members.toArray(new String[members.size()]));
-                }
-                pd.add(pdi);
-            }
+            metadataResult = metaBinding.describeMetadata(API_VERSION);
         } catch (RemoteException e) {
             throw new CommanderException(
                     "Could not describe metadata to build package.xml", e);
+        } finally {
+            connPool.releaseMetadataBinding(config, metaBinding);
+        }
+
+        // a snapshot needs the dates of all members, so nothing is
+        // retrieved by wildcard and the children are listed as well
+        boolean listAll = config.isIncrementalRetrieve();
+        boolean packagesInstalled = !listAll && hasInstalledPackages();
+        snapshot = new MetadataSnapshot();
+        unlistedTypes.clear();
+
+        // members of each type, in the order of the describe
+        Map<String, List<String>> typeMembers = new LinkedHashMap<String, List<String>>();
+        List<ListMetadataQuery> queries = new ArrayList<ListMetadataQuery>();
+        // parent type of each child type
+        Map<String, String> childTypes = new HashMap<String, String>();
+        for (DescribeMetadataObject objectType : metadataResult
+                .getMetadataObjects()) {
+            List<String> members = new ArrayList<String>();
+            typeMembers.put(objectType.getXmlName(), members);
+            if (!listAll && wildcardTypes.isWildcard(objectType.getXmlName(),
+                    objectType.isInFolder(), packagesInstalled)) {
+                members.add(WildcardMetadataTypeSet.WILDCARD);
+            } else {
+                ListMetadataQuery query = new ListMetadataQuery();
+                query.setType(objectType.getXmlName());
+                queries.add(query);
+            }
+            if (listAll && objectType.getChildXmlNames() != null) {
+                for (String childType : objectType.getChildXmlNames()) {
+                    childTypes.put(childType, objectType.getXmlName());
+                }
+            }
+        }
+        List<ListMetadataQuery> childQueries = new ArrayList<ListMetadataQuery>();
+        for (String childType : childTypes.keySet()) {
+            if (!typeMembers.containsKey(childType)) {
+                ListMetadataQuery query = new ListMetadataQuery();
+                query.setType(childType);
+                childQueries.add(query);
+            }
+        }
+
+        // list the remaining types, several queries per call
+        List<Callable<FileProperties[]>> tasks = new ArrayList<Callable<FileProperties[]>>();
+        addListTasks(tasks, queries, null);
+        addListTasks(tasks, childQueries, childTypes);
+        List<FileProperties> listedChildren = new ArrayList<FileProperties>();
+        for (FileProperties[] tmpListMetadata : ConcurrentTaskRunner.invokeAll(
+                "list-metadata", config.getMaxConcurrentCalls(),
+                tasks)) {
+            if (tmpListMetadata != null) {
+                for (FileProperties member : tmpListMetadata) {
+                    if (!typeMembers.containsKey(member.getType())
+                            && childTypes.containsKey(member.getType())) {
+                        listedChildren.add(member);
+                        continue;
+                    }
+                    List<String> members = typeMembers.get(member.getType());
+                    if (members == null) {
+                        members = new ArrayList<String>();
+                        typeMembers.put(member.getType(), members);
+                    }
+                    String fullName = decodeFullName(member.getFullName());
+                    members.add(fullName);
+                    snapshot.addMember(
+                            MetadataSnapshot.getKey(member.getType(), fullName),
+                            member.getFileName(),
+                            member.getLastModifiedDate());
+                }
+            }
+        }
+        for (FileProperties child : listedChildren) {
+            String parentType = childTypes.get(child.getType());
+            String fullName = decodeFullName(child.getFullName());
+            String childKey = MetadataSnapshot.getKey(child.getType(),
+                    fullName);
+            int dot = fullName.indexOf('.');
+            if (dot > 0) {
+                snapshot.addChild(
+                        MetadataSnapshot.getKey(parentType,
+                                fullName.substring(0, dot)),
+                        childKey, child.getLastModifiedDate());
+            } else {
+                // children without the name of their parent, e.g. labels
+                for (String parent : typeMembers.get(parentType)) {
+                    snapshot.addChild(
+                            MetadataSnapshot.getKey(parentType, parent),
+                            childKey, child.getLastModifiedDate());
+                }
+            }
+        }
+
+        List<PackageTypeMembers> pd = new ArrayList<PackageTypeMembers>();
+        for (Map.Entry<String, List<String>> entry : typeMembers.entrySet()) {
+            PackageTypeMembers pdi = new PackageTypeMembers();
+            pdi.setName(entry.getKey());
+            if (!entry.getValue().isEmpty()) {
+                pdi.setMembers(entry.getValue()
+                        .toArray(new String[entry.getValue().size()]));
+            }
+            pd.add(pdi);
         }
 
         com.sforce.soap._2006._04.metadata._package r = new com.sforce.soap._2006._04.metadata._package();
@@ -213,53 +563,77 @@ public class MetadataRetriever {
 
     }
 
-    private void createMetadataConnection(final String username,
-            final String password, String loginUrl) throws CommanderException {
+    /**
+     * @param aTasks
+     *            tasks to add the listMetadata calls to
+     * @param aQueries
+     *            queries to run, several per call
+     * @param aChildTypes
+     *            parent type of each child type, null if the queries list
+     *            members of the package. A failing child query marks its
+     *            parent types as unlisted instead of failing the retrieve.
+     */
+    private void addListTasks(List<Callable<FileProperties[]>> aTasks,
+            List<ListMetadataQuery> aQueries,
+            final Map<String, String> aChildTypes) {
+        for (int i = 0; i < aQueries.size(); i += QUERIES_PER_CALL) {
+            final ListMetadataQuery[] batch = aQueries
+                    .subList(i, Math.min(i + QUERIES_PER_CALL, aQueries.size()))
+                    .toArray(new ListMetadataQuery[0]);
+            aTasks.add(new Callable<FileProperties[]>() {
+                @Override
+                public FileProperties[] call() throws CommanderException {
+                    if (aChildTypes == null) {
+                        return listMetadata(batch);
+                    }
+                    try {
+                        return listMetadata(batch);
+                    } catch (CommanderException e) {
+                        for (ListMetadataQuery query : batch) {
+                            commander.debug("Could not list " + query.getType()
+                                    + ", all members of "
+                                    + aChildTypes.get(query.getType())
+                                    + " are retrieved: " + e.getMessage());
+                            unlistedTypes.add(aChildTypes.get(query.getType()));
+                        }
+                        return null;
+                    }
+                }
+            });
+        }
+    }
 
-        MetadataServiceLocator metaDataSL = new MetadataServiceLocator();
-        SforceServiceLocator salesForceSL = new SforceServiceLocator();
-        salesForceSL.setSoapEndpointAddress(loginUrl + "/services/Soap/u/34.0");
+    /**
+     * @return true if the org has installed packages, whose components are
+     *         not matched by a wildcard member
+     * @throws CommanderException
+     *             if the installed packages cannot be listed
+     */
+    private boolean hasInstalledPackages() throws CommanderException {
+        ListMetadataQuery query = new ListMetadataQuery();
+        query.setType(WildcardMetadataTypeSet.INSTALLED_PACKAGE);
+        FileProperties[] packages = listMetadata(
+                new ListMetadataQuery[] { query });
+        if (packages != null && packages.length > 0) {
+            commander.info("Org has installed packages, members are listed "
+                    + "instead of retrieved by wildcard");
+            return true;
+        }
+        return false;
+    }
 
+    private FileProperties[] listMetadata(ListMetadataQuery[] aQueries)
+            throws CommanderException {
+        MetadataPortType metaBinding = connPool
+                .acquireMetadataBinding(config);
         try {
-
-            SoapBindingStub soapBinding = (SoapBindingStub) salesForceSL
-                    .getSoap();
-            soapBinding.setTimeout(60000);
-            LoginResult loginResult = soapBinding.login(username, password);
-
-            SessionHeader sh = new SessionHeader();
-            sh.setSessionId(loginResult.getSessionId());
-
-            MetadataBindingStub metaBinding = (MetadataBindingStub) metaDataSL
-                    .getMetadata();
-
-            metaBinding._setProperty(SoapBindingStub.ENDPOINT_ADDRESS_PROPERTY,
-                    loginResult.getMetadataServerUrl());
-
-            metaBinding.setHeader(metaDataSL.getServiceName().getNamespaceURI(),
-                    "SessionHeader", sh);
-
-            this.metaBinding = metaBinding;
-
-        } catch (ServiceException e) {
-            throw new CommanderException(
-                    "Could not connection to salesforce-API.", e);
-        } catch (LoginFault e) {
-            throw new CommanderException(
-                    "Login failed for the following reason: "
-                            + e.getFaultReason(),
-                    e);
-        } catch (UnexpectedErrorFault e) {
-            throw new CommanderException(
-                    "Login failed due to an unexcepted error. Please check the log file for details.",
-                    e);
-        } catch (InvalidIdFault e) {
-            throw new CommanderException("Login failed. Invalid Id.", e);
+            return metaBinding.listMetadata(aQueries, API_VERSION);
         } catch (RemoteException e) {
             throw new CommanderException(
-                    "Login failed due to a remote issue: " + e.getMessage(), e);
+                    "Could not list metadata to build package.xml", e);
+        } finally {
+            connPool.releaseMetadataBinding(config, metaBinding);
         }
-
     }
 
     /**
@@ -277,4 +651,19 @@ public class MetadataRetriever {
         systemName = aSystemName;
     }
 
+    /**
+     * @param aFullName
+     *            full name of a member as listed, url encoded
+     * @return decoded full name
+     * @throws CommanderException
+     *             if UTF-8 is not supported
+     */
+    private static String decodeFullName(final String aFullName)
+            throws CommanderException {
+        try {
+            return URLDecoder.decode(aFullName, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new CommanderException("Could not decode " + aFullName, e);
+        }
+    }
 }
@@ -0,0 +1,224 @@
+/**
+ *
+ */
+package de.sfdccommander.controller;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import de.sfdccommander.controller.helper.CommanderException;
+
+/**
+ * Versions of the metadata members of an org at the time of a retrieve. The
+ * version of a member is the lastModifiedDate reported by listMetadata. The
+ * children of a member, e.g. the fields of an object, do not always touch the
+ * date of their parent, so their dates are folded into the version of the
+ * parent.
+ *
+ * <p>
+ * The snapshot is stored as one line per member with its key
+ * <code>type:fullName</code>, its version and its file name in the retrieved
+ * tree.
+ * </p>
+ *
+ * @author jochen
+ *
+ */
+public class MetadataSnapshot {
+
+    /**
+     * Name of the snapshot file in the folder of an org.
+     */
+    public static final String FILE_NAME = ".snapshot";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String SEPARATOR = "\t";
+
+    /**
+     * Version of each member, keyed by type:fullName.
+     */
+    private final Map<String, String> versions = new TreeMap<String, String>();
+
+    /**
+     * File of each member relative to the unpackaged folder.
+     */
+    private final Map<String, String> fileNames = new HashMap<String, String>();
+
+    /**
+     * Checksums of the children of each member.
+     */
+    private final Map<String, long[]> children = new HashMap<String, long[]>();
+
+    /**
+     * @param aType
+     *            metadata type
+     * @param aFullName
+     *            decoded full name of the member
+     * @return key of the member
+     */
+    public static String getKey(String aType, String aFullName) {
+        return aType + ":" + aFullName;
+    }
+
+    /**
+     * @param aKey
+     *            key of a member
+     * @return full name of the member
+     */
+    public static String getFullName(String aKey) {
+        return aKey.substring(aKey.indexOf(':') + 1);
+    }
+
+    /**
+     * @param aKey
+     *            key of the member
+     * @param aFileName
+     *            file of the member in the retrieved tree
+     * @param aLastModified
+     *            last modification of the member
+     */
+    public void addMember(String aKey, String aFileName,
+            Calendar aLastModified) {
+        versions.put(aKey, String.valueOf(toMillis(aLastModified)));
+        fileNames.put(aKey, aFileName);
+    }
+
+    /**
+     * @param aParentKey
+     *            key of the member containing the child
+     * @param aChildKey
+     *            key of the child
+     * @param aLastModified
+     *            last modification of the child
+     */
+    public void addChild(String aParentKey, String aChildKey,
+            Calendar aLastModified) {
+        CRC32 crc = new CRC32();
+        crc.update((aChildKey + "@" + toMillis(aLastModified))
+                .getBytes(UTF_8));
+        long[] sum = children.get(aParentKey);
+        if (sum == null) {
+            sum = new long[2];
+            children.put(aParentKey, sum);
+        }
+        // order independent, the children are listed in parallel
+        sum[0] += crc.getValue();
+        sum[1]++;
+    }
+
+    /**
+     * @param aKey
+     *            key of a member
+     * @return version of the member and its children, null if unknown
+     */
+    public String getVersion(String aKey) {
+        String version = versions.get(aKey);
+        long[] sum = children.get(aKey);
+        if (version == null || sum == null) {
+            return version;
+        }
+        return version + "-" + sum[1] + "-" + Long.toHexString(sum[0]);
+    }
+
+    /**
+     * @param aKey
+     *            key of a member
+     * @return file of the member relative to the unpackaged folder
+     */
+    public String getFileName(String aKey) {
+        return fileNames.get(aKey);
+    }
+
+    /**
+     * @return keys of all members
+     */
+    public Set<String> getKeys() {
+        return versions.keySet();
+    }
+
+    /**
+     * @param aFile
+     *            stored snapshot
+     * @return the snapshot, empty if the file does not exist
+     * @throws CommanderException
+     *             if the file cannot be read
+     */
+    public static MetadataSnapshot read(File aFile) throws CommanderException {
+        MetadataSnapshot snapshot = new MetadataSnapshot();
+        if (!aFile.isFile()) {
+            return snapshot;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(aFile), UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] columns = line.split(SEPARATOR, 3);
+                    if (columns.length == 3) {
+                        snapshot.versions.put(columns[0], columns[1]);
+                        snapshot.fileNames.put(columns[0], columns[2]);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new CommanderException(
+                    "Could not read snapshot: " + aFile.getAbsolutePath(), e);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Replace the stored snapshot with this one.
+     *
+     * @param aFile
+     *            target file
+     * @throws CommanderException
+     *             if the file cannot be written
+     */
+    public void write(File aFile) throws CommanderException {
+        try {
+            aFile.getAbsoluteFile().getParentFile().mkdirs();
+            File tmpFile = File.createTempFile("snapshot", ".tmp",
+                    aFile.getAbsoluteFile().getParentFile());
+            Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tmpFile), UTF_8));
+            try {
+                for (String key : versions.keySet()) {
+                    writer.write(key + SEPARATOR + getVersion(key) + SEPARATOR
+                            + fileNames.get(key) + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+            Files.move(tmpFile.toPath(), aFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new CommanderException(
+                    "Could not write snapshot: " + aFile.getAbsolutePath(), e);
+        }
+    }
+
+    private static long toMillis(Calendar aDate) {
+        return aDate == null ? 0 : aDate.getTimeInMillis();
+    }
+}
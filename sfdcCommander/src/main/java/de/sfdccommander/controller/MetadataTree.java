@@ -0,0 +1,522 @@
+/**
+ *
+ */
+package de.sfdccommander.controller;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import de.sfdccommander.controller.helper.CommanderException;
+
+/**
+ * Metadata files of an org, read from the retrieved zip-files where possible.
+ * The zip-files of a retrieve are kept in the {@value #ARCHIVE_FOLDER}
+ * folder of the org together with an index of the files they provide. A file
+ * is extracted when a consumer needs a real path, from then on the extracted
+ * file is used. Files which are not archived are read from the folder of the
+ * org, so a tree without archive is a plain folder.
+ *
+ * <p>
+ * Paths are relative to the folder of the org and separated by slashes, like
+ * the entries of the zip-files, e.g. <code>unpackaged/objects/Account.object</code>.
+ * </p>
+ *
+ * @author jochen
+ *
+ */
+public class MetadataTree {
+
+    /**
+     * Folder of the retrieved zip-files inside the folder of the org.
+     */
+    public static final String ARCHIVE_FOLDER = ".archive";
+
+    private static final String INDEX_FILE = "index";
+
+    private static final String FILE_LINE = "file";
+
+    private static final String SIZE_LINE = "size";
+
+    private static final String SEPARATOR = "\t";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Folder of the org.
+     */
+    private final File rootFolder;
+
+    /**
+     * Folder of the zip-files.
+     */
+    private final File archiveFolder;
+
+    /**
+     * Zip-file of each archived file.
+     */
+    private final TreeMap<String, String> entries = new TreeMap<String, String>();
+
+    /**
+     * Number of files each zip-file provided when it was added.
+     */
+    private final Map<String, Integer> zipSizes = new HashMap<String, Integer>();
+
+    /**
+     * Opened zip-files.
+     */
+    private final Map<String, ZipFile> zipFiles = new HashMap<String, ZipFile>();
+
+    /**
+     * @param aRootFolder
+     *            folder of the org
+     * @throws CommanderException
+     *             if the index of the archive cannot be read
+     */
+    public MetadataTree(File aRootFolder) throws CommanderException {
+        rootFolder = aRootFolder;
+        archiveFolder = new File(aRootFolder, ARCHIVE_FOLDER);
+        readIndex();
+    }
+
+    /**
+     * @return folder of the org
+     */
+    public File getRootFolder() {
+        return rootFolder;
+    }
+
+    /**
+     * @param aPath
+     *            path of a file
+     * @return true if the file is archived or extracted
+     */
+    public synchronized boolean exists(String aPath) {
+        return entries.containsKey(aPath)
+                || new File(rootFolder, aPath).isFile();
+    }
+
+    /**
+     * @param aFolder
+     *            path of a folder
+     * @return true if the folder contains archived files or exists on disk
+     */
+    public synchronized boolean isDirectory(String aFolder) {
+        return !getArchived(aFolder).isEmpty()
+                || new File(rootFolder, aFolder).isDirectory();
+    }
+
+    /**
+     * @param aFolder
+     *            path of a folder
+     * @param aFilter
+     *            filter of the file names, null for all files
+     * @return sorted names of the files directly in the folder
+     */
+    public synchronized List<String> list(String aFolder,
+            FilenameFilter aFilter) {
+        File folder = new File(rootFolder, aFolder);
+        Set<String> names = new TreeSet<String>();
+        for (String relativePath : getArchived(aFolder).keySet()) {
+            if (relativePath.indexOf('/') < 0) {
+                names.add(relativePath);
+            }
+        }
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile()) {
+                    names.add(file.getName());
+                }
+            }
+        }
+        List<String> result = new ArrayList<String>();
+        for (String name : names) {
+            if (aFilter == null || aFilter.accept(folder, name)) {
+                result.add(name);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param aFolder
+     *            path of a folder
+     * @return sorted paths of all files below the folder, relative to it
+     */
+    public synchronized List<String> listAll(String aFolder) {
+        Set<String> paths = new TreeSet<String>(
+                getArchived(aFolder).keySet());
+        addFiles(new File(rootFolder, aFolder), "", paths);
+        return new ArrayList<String>(paths);
+    }
+
+    /**
+     * @param aPath
+     *            path of a file
+     * @return content of the file, to be closed by the caller
+     * @throws CommanderException
+     *             if the file does not exist or cannot be read
+     */
+    public synchronized InputStream open(String aPath)
+            throws CommanderException {
+        String zipName = entries.get(aPath);
+        try {
+            if (zipName == null) {
+                return new FileInputStream(resolve(aPath));
+            }
+            ZipFile zip = getZipFile(zipName);
+            ZipEntry entry = zip.getEntry(aPath);
+            if (entry == null) {
+                throw new CommanderException("Archive " + zipName
+                        + " does not contain " + aPath);
+            }
+            return zip.getInputStream(entry);
+        } catch (FileNotFoundException e) {
+            throw new CommanderException("Could not find file: " + aPath, e);
+        } catch (IOException e) {
+            throw new CommanderException("Could not read file: " + aPath, e);
+        }
+    }
+
+    /**
+     * Extract the file if it is archived.
+     *
+     * @param aPath
+     *            path of a file
+     * @return the file on disk
+     * @throws CommanderException
+     *             if the file cannot be extracted
+     */
+    public synchronized File getFile(String aPath) throws CommanderException {
+        File file = resolve(aPath);
+        if (entries.containsKey(aPath)) {
+            write(aPath, open(aPath));
+        }
+        return file;
+    }
+
+    /**
+     * Write a file to disk, it replaces an archived version.
+     *
+     * @param aPath
+     *            path of the file
+     * @param aContent
+     *            content of the file, closed afterwards
+     * @throws CommanderException
+     *             if the file cannot be written
+     */
+    public synchronized void write(String aPath, InputStream aContent)
+            throws CommanderException {
+        File file = resolve(aPath);
+        try {
+            try {
+                file.getParentFile().mkdirs();
+                Files.copy(aContent, file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                aContent.close();
+            }
+        } catch (IOException e) {
+            throw new CommanderException(
+                    "Could not write file: " + file.getAbsolutePath(), e);
+        }
+        entries.remove(aPath);
+    }
+
+    /**
+     * Extract all files below a folder.
+     *
+     * @param aFolder
+     *            path of a folder, empty for the whole tree
+     * @throws CommanderException
+     *             if a file cannot be extracted
+     */
+    public synchronized void extract(String aFolder) throws CommanderException {
+        String prefix = aFolder.isEmpty() ? "" : aFolder + "/";
+        for (String relativePath : new ArrayList<String>(
+                getArchived(aFolder).keySet())) {
+            getFile(prefix + relativePath);
+        }
+    }
+
+    /**
+     * Delete a file or folder from the archive and the disk.
+     *
+     * @param aPath
+     *            path of a file or folder
+     * @throws CommanderException
+     *             if the path is outside of the tree
+     */
+    public synchronized void delete(String aPath) throws CommanderException {
+        File file = resolve(aPath);
+        entries.remove(aPath);
+        entries.subMap(aPath + "/", aPath + "/" + Character.MAX_VALUE).clear();
+        if (file.isDirectory()) {
+            XlsRenderer.deleteDirectory(file);
+        } else {
+            file.delete();
+        }
+    }
+
+    /**
+     * Move a retrieved zip-file into the archive. Its files replace the
+     * archived and extracted versions.
+     *
+     * @param aZipFile
+     *            retrieved zip-file
+     * @param aPaths
+     *            files of the zip-file to provide
+     * @throws CommanderException
+     *             if the zip-file cannot be moved or contains a path outside
+     *             of the tree
+     */
+    public synchronized void addZip(File aZipFile, Collection<String> aPaths)
+            throws CommanderException {
+        for (String path : aPaths) {
+            resolve(path);
+        }
+        archiveFolder.mkdirs();
+        long stamp = System.currentTimeMillis();
+        String zipName = stamp + "_" + aZipFile.getName();
+        while (new File(archiveFolder, zipName).exists()) {
+            zipName = ++stamp + "_" + aZipFile.getName();
+        }
+        try {
+            Files.move(aZipFile.toPath(),
+                    new File(archiveFolder, zipName).toPath());
+        } catch (IOException e) {
+            throw new CommanderException(
+                    "Could not archive zip-file: " + aZipFile.getAbsolutePath(),
+                    e);
+        }
+        for (String path : aPaths) {
+            entries.put(path, zipName);
+            // an extracted file of a previous retrieve is outdated
+            new File(rootFolder, path).delete();
+        }
+        zipSizes.put(zipName, aPaths.size());
+    }
+
+    /**
+     * Remove all archived files, e.g. before a full retrieve.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        zipSizes.clear();
+    }
+
+    /**
+     * Store the index and delete zip-files which are no longer used. The
+     * files of zip-files which provide less than half of their files anymore
+     * are extracted, so outdated zip-files do not pile up.
+     *
+     * @throws CommanderException
+     *             if the index cannot be written
+     */
+    public synchronized void save() throws CommanderException {
+        Map<String, Integer> liveCounts = new HashMap<String, Integer>();
+        for (String zipName : entries.values()) {
+            Integer count = liveCounts.get(zipName);
+            liveCounts.put(zipName, count == null ? 1 : count + 1);
+        }
+        for (Map.Entry<String, Integer> live : liveCounts.entrySet()) {
+            Integer size = zipSizes.get(live.getKey());
+            if (size != null && live.getValue() * 2 < size) {
+                for (Map.Entry<String, String> entry : new ArrayList<Map.Entry<String, String>>(
+                        entries.entrySet())) {
+                    if (entry.getValue().equals(live.getKey())) {
+                        getFile(entry.getKey());
+                    }
+                }
+            }
+        }
+        closeZipFiles();
+
+        Set<String> used = new HashSet<String>(entries.values());
+        zipSizes.keySet().retainAll(used);
+        File[] archived = archiveFolder.listFiles();
+        if (archived != null) {
+            for (File file : archived) {
+                if (!used.contains(file.getName())
+                        && !INDEX_FILE.equals(file.getName())) {
+                    file.delete();
+                }
+            }
+        }
+        writeIndex();
+    }
+
+    /**
+     * @param aFolder
+     *            path of a folder, empty for the whole tree
+     * @return zip-file of each archived file below the folder, keyed by the
+     *         path relative to the folder
+     */
+    private SortedMap<String, String> getArchived(String aFolder) {
+        if (aFolder.isEmpty()) {
+            return new TreeMap<String, String>(entries);
+        }
+        String prefix = aFolder + "/";
+        SortedMap<String, String> relative = new TreeMap<String, String>();
+        for (Map.Entry<String, String> entry : entries
+                .subMap(prefix, prefix + Character.MAX_VALUE).entrySet()) {
+            relative.put(entry.getKey().substring(prefix.length()),
+                    entry.getValue());
+        }
+        return relative;
+    }
+
+    private void addFiles(File aFolder, String aPrefix, Set<String> aPaths) {
+        File[] files = aFolder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                if (!ARCHIVE_FOLDER.equals(file.getName())) {
+                    addFiles(file, aPrefix + file.getName() + "/", aPaths);
+                }
+            } else {
+                aPaths.add(aPrefix + file.getName());
+            }
+        }
+    }
+
+    /**
+     * @param aPath
+     *            path of a file
+     * @return the file on disk
+     * @throws CommanderException
+     *             if the path leaves the tree
+     */
+    private File resolve(String aPath) throws CommanderException {
+        File file = new File(rootFolder, aPath);
+        try {
+            String rootPath = rootFolder.getCanonicalPath() + File.separator;
+            if (!file.getCanonicalPath().startsWith(rootPath)) {
+                throw new CommanderException(
+                        "Path is outside of the metadata tree: " + aPath);
+            }
+        } catch (IOException e) {
+            throw new CommanderException("Could not resolve path: " + aPath,
+                    e);
+        }
+        return file;
+    }
+
+    private ZipFile getZipFile(String aZipName) throws IOException {
+        ZipFile zip = zipFiles.get(aZipName);
+        if (zip == null) {
+            zip = new ZipFile(new File(archiveFolder, aZipName));
+            zipFiles.put(aZipName, zip);
+        }
+        return zip;
+    }
+
+    private void closeZipFiles() throws CommanderException {
+        try {
+            for (ZipFile zip : zipFiles.values()) {
+                zip.close();
+            }
+        } catch (IOException e) {
+            throw new CommanderException("Could not close archived zip-file.",
+                    e);
+        } finally {
+            zipFiles.clear();
+        }
+    }
+
+    private void readIndex() throws CommanderException {
+        File index = new File(archiveFolder, INDEX_FILE);
+        if (!index.isFile()) {
+            return;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(index), UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] columns = line.split(SEPARATOR, 3);
+                    if (columns.length < 3) {
+                        continue;
+                    }
+                    if (FILE_LINE.equals(columns[0])) {
+                        entries.put(columns[2], columns[1]);
+                    } else if (SIZE_LINE.equals(columns[0])) {
+                        zipSizes.put(columns[1],
+                                Integer.valueOf(columns[2]));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new CommanderException(
+                    "Could not read archive index: " + index.getAbsolutePath(),
+                    e);
+        } catch (NumberFormatException e) {
+            throw new CommanderException(
+                    "Could not read archive index: " + index.getAbsolutePath(),
+                    e);
+        }
+    }
+
+    private void writeIndex() throws CommanderException {
+        File index = new File(archiveFolder, INDEX_FILE);
+        if (entries.isEmpty()) {
+            index.delete();
+            archiveFolder.delete();
+            return;
+        }
+        try {
+            File tmpFile = File.createTempFile("index", ".tmp",
+                    archiveFolder);
+            Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tmpFile), UTF_8));
+            try {
+                for (Map.Entry<String, Integer> size : zipSizes.entrySet()) {
+                    writer.write(SIZE_LINE + SEPARATOR + size.getKey()
+                            + SEPARATOR + size.getValue() + "\n");
+                }
+                for (Map.Entry<String, String> entry : entries.entrySet()) {
+                    writer.write(FILE_LINE + SEPARATOR + entry.getValue()
+                            + SEPARATOR + entry.getKey() + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+            Files.move(tmpFile.toPath(), index.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new CommanderException(
+                    "Could not write archive index: " + index.getAbsolutePath(),
+                    e);
+        }
+    }
+}
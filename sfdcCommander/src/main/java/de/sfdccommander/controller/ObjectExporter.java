@@ -5,8 +5,12 @@ package de.sfdccommander.controller;
 
 import java.io.File;
 import java.io.IOException;
-import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -29,12 +33,10 @@ import com.sforce.soap.partner.DescribeGlobalResult;
 import com.sforce.soap.partner.DescribeGlobalSObjectResult;
 import com.sforce.soap.partner.DescribeSObjectResult;
 import com.sforce.soap.partner.Field;
-import com.sforce.soap.partner.SoapBindingStub;
-import com.sforce.soap.partner.fault.InvalidSObjectFault;
-import com.sforce.soap.partner.fault.UnexpectedErrorFault;
 
-import de.sfdccommander.controller.connection.SfdcConnectionPool;
+import de.sfdccommander.controller.connection.DescribeService;
 import de.sfdccommander.controller.helper.CommanderException;
+import de.sfdccommander.controller.helper.ConcurrentTaskRunner;
 import de.sfdccommander.model.CustomObjectFieldMap;
 import de.sfdccommander.model.SfdcConfig;
 import de.sfdccommander.viewer.SfdcCommander;
@@ -47,11 +49,10 @@ public class ObjectExporter {
 
     private final SfdcConfig config;
 
-    static SoapBindingStub binding;
-
     private SfdcCommander commander;
 
-    private SfdcConnectionPool connPool;
+    // retrieved metadata of the org
+    private MetadataTree tree;
 
     public ObjectExporter(SfdcConfig aConfig) {
         config = aConfig;
@@ -59,36 +60,48 @@ public class ObjectExporter {
 
     public void exportObjects() throws CommanderException {
         commander = SfdcCommander.getInstance();
-        connPool = SfdcConnectionPool.getInstance();
-
-        binding = connPool.getBinding(config);
-
-        DescribeGlobalResult global;
-        try {
-            global = binding.describeGlobal();
-            for (DescribeGlobalSObjectResult objectGlobalResult : global
-                    .getSobjects()) {
-                renderObjectXml(objectGlobalResult);
+        tree = new MetadataTree(new File(config.getSystemName()));
+
+        // describe the objects with an extracted file up front in batches
+        DescribeService describer = DescribeService.getInstance();
+        DescribeGlobalResult global = describer.describeGlobal(config);
+        List<String> objectNames = new ArrayList<String>();
+        for (DescribeGlobalSObjectResult objectGlobalResult : global
+                .getSobjects()) {
+            if (tree.exists(getObjectPath(objectGlobalResult))) {
+                objectNames.add(objectGlobalResult.getName());
             }
-        } catch (UnexpectedErrorFault e) {
-            throw new CommanderException(
-                    "Could not describe metadata to enhance metadata with standard fields.",
-                    e);
-        } catch (RemoteException e) {
-            throw new CommanderException(
-                    "Could not describe metadata to enhance metadata with standard fields.",
-                    e);
         }
-
+        describer.describeSObjects(config, objectNames);
+
+        // objects are independent, enhance them in parallel
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final DescribeGlobalSObjectResult objectGlobalResult : global
+                .getSobjects()) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws CommanderException {
+                    renderObjectXml(objectGlobalResult);
+                    return null;
+                }
+            });
+        }
+        ConcurrentTaskRunner.invokeAll("object-export",
+                config.getMaxConcurrentCalls(), tasks);
+        tree.save();
     }
 
     public void renderObjectXml(DescribeGlobalSObjectResult aObject)
             throws CommanderException {
         SfdcCommander commander = SfdcCommander.getInstance();
-        File objectFile = new File(config.getSystemName()
-                + "/unpackaged/objects/" + aObject.getName() + ".object");
+        if (tree == null) {
+            tree = new MetadataTree(new File(config.getSystemName()));
+        }
+        String objectPath = getObjectPath(aObject);
 
-        if (objectFile.exists()) {
+        if (tree.exists(objectPath)) {
+            // the enhanced file is written back, so it has to be extracted
+            File objectFile = tree.getFile(objectPath);
             try {
                 // read xml-file
                 DocumentBuilderFactory dbFactory = DocumentBuilderFactory
@@ -98,12 +111,16 @@ public class ObjectExporter {
                 Element customObjectElement = doc.getDocumentElement();
 
                 // Add salesforce standard fields
-                DescribeSObjectResult tmpDescribeSObject = binding
-                        .describeSObject(aObject.getName());
+                DescribeSObjectResult tmpDescribeSObject = DescribeService
+                        .getInstance()
+                        .describeSObject(config, aObject.getName());
                 commander.info("Generating enhanced XML for object: "
                         + tmpDescribeSObject.getName());
+                // files kept from a previous run already contain them
+                Set<String> existingFields = getFieldNames(customObjectElement);
                 for (Field field : tmpDescribeSObject.getFields()) {
-                    if (!field.isCustom()) {
+                    if (!field.isCustom()
+                            && !existingFields.contains(field.getName())) {
                         if (!field.getType().toString().equals("picklist")) {
                             customObjectElement
                                     .appendChild(getFieldElement(doc, field));
@@ -137,19 +154,6 @@ public class ObjectExporter {
             } catch (TransformerException e) {
                 throw new CommanderException("Could not update file: "
                         + objectFile.getAbsolutePath(), e);
-            } catch (InvalidSObjectFault e) {
-                throw new CommanderException(
-                        "Salesforce-Object invalid: " + aObject.getName(), e);
-            } catch (UnexpectedErrorFault e) {
-                throw new CommanderException(
-                        "Could not describe Salesforce-Object: "
-                                + aObject.getName(),
-                        e);
-            } catch (RemoteException e) {
-                throw new CommanderException(
-                        "Could not describe Salesforce-Object: "
-                                + aObject.getName(),
-                        e);
             } catch (IOException e) {
                 throw new CommanderException(
                         "Could not open file: " + objectFile.getAbsolutePath(),
@@ -159,6 +163,23 @@ public class ObjectExporter {
 
     }
 
+    private String getObjectPath(DescribeGlobalSObjectResult aObject) {
+        return "unpackaged/objects/" + aObject.getName() + ".object";
+    }
+
+    private Set<String> getFieldNames(Element aObjectElement) {
+        Set<String> names = new HashSet<String>();
+        NodeList fields = aObjectElement.getElementsByTagName("fields");
+        for (int i = 0; i < fields.getLength(); i++) {
+            NodeList fullNames = ((Element) fields.item(i))
+                    .getElementsByTagName("fullName");
+            if (fullNames.getLength() > 0) {
+                names.add(fullNames.item(0).getTextContent().trim());
+            }
+        }
+        return names;
+    }
+
     private Element getFieldElement(Document aDoc, Field aField) {
         Element field = aDoc.createElement("fields");
 
@@ -0,0 +1,151 @@
+/**
+ *
+ */
+package de.sfdccommander.controller;
+
+import org.apache.axis.message.MessageElement;
+
+import com.sforce.soap.partner.sobject.SObject;
+
+/**
+ * Picks the batch size of the pages of a query. Without a QueryOptions
+ * header the org decides the page size, which needs many queryMore calls for
+ * narrow records. The first page is sized by the number of queried fields,
+ * the following pages by the size and latency of the pages received so far,
+ * so a page holds about {@value #TARGET_PAGE_BYTES} bytes of records and
+ * takes at most {@value #TARGET_LATENCY} milliseconds.
+ *
+ * @author jochen
+ *
+ */
+public class QueryPageSizer {
+
+    /**
+     * Smallest batch size accepted by the api.
+     */
+    public static final int MIN_BATCH_SIZE = 200;
+
+    /**
+     * Largest batch size accepted by the api.
+     */
+    public static final int MAX_BATCH_SIZE = 2000;
+
+    /**
+     * Size of the records of a page in the response.
+     */
+    static final long TARGET_PAGE_BYTES = 2 * 1024 * 1024;
+
+    /**
+     * Duration of a call for a page in milliseconds.
+     */
+    static final long TARGET_LATENCY = 20000;
+
+    /**
+     * Assumed size of a field in the response before the first page.
+     */
+    private static final int INITIAL_FIELD_BYTES = 50;
+
+    /**
+     * Fixed batch size of the configuration, 0 if it is adaptive.
+     */
+    private final int fixedBatchSize;
+
+    /**
+     * Batch size of the next page.
+     */
+    private int batchSize;
+
+    /**
+     * Average size of a record in bytes, 0 before the first page.
+     */
+    private double recordBytes;
+
+    /**
+     * @param aFieldCount
+     *            number of queried fields
+     * @param aConfiguredBatchSize
+     *            batch size of the configuration, 0 for an adaptive size
+     */
+    public QueryPageSizer(int aFieldCount, int aConfiguredBatchSize) {
+        fixedBatchSize = aConfiguredBatchSize;
+        if (fixedBatchSize > 0) {
+            batchSize = clamp(fixedBatchSize);
+        } else {
+            batchSize = clamp(TARGET_PAGE_BYTES
+                    / (Math.max(1, aFieldCount) * INITIAL_FIELD_BYTES));
+        }
+    }
+
+    /**
+     * @return batch size of the next page
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param aRecords
+     *            records of a received page
+     * @param aMillis
+     *            duration of the call
+     */
+    public void update(SObject[] aRecords, long aMillis) {
+        if (fixedBatchSize == 0) {
+            update(aRecords.length, estimateBytes(aRecords), aMillis);
+        }
+    }
+
+    /**
+     * @param aRecordCount
+     *            number of records of a received page
+     * @param aBytes
+     *            size of the records
+     * @param aMillis
+     *            duration of the call
+     */
+    void update(int aRecordCount, long aBytes, long aMillis) {
+        if (aRecordCount == 0) {
+            return;
+        }
+        double pageRecordBytes = Math.max(1, (double) aBytes / aRecordCount);
+        // smoothed, a single page of large records does not shrink the pages
+        recordBytes = recordBytes == 0 ? pageRecordBytes
+                : (recordBytes + pageRecordBytes) / 2;
+        double size = TARGET_PAGE_BYTES / recordBytes;
+        double recordMillis = (double) aMillis / aRecordCount;
+        if (recordMillis * size > TARGET_LATENCY) {
+            size = TARGET_LATENCY / recordMillis;
+        }
+        // grow carefully, the next records may be wider
+        batchSize = clamp((long) Math.min(size, 2.0 * batchSize));
+    }
+
+    /**
+     * @param aRecords
+     *            queried records
+     * @return approximate size of the records in the response
+     */
+    static long estimateBytes(SObject[] aRecords) {
+        long bytes = 0;
+        for (SObject record : aRecords) {
+            MessageElement[] fields = record.get_any();
+            if (fields == null) {
+                continue;
+            }
+            for (MessageElement field : fields) {
+                // start and end tag around the value
+                bytes += 2 * field.getName().length() + 5;
+                String value = field.getValue();
+                if (value != null) {
+                    bytes += value.length();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static int clamp(long aBatchSize) {
+        return (int) Math.max(MIN_BATCH_SIZE,
+                Math.min(MAX_BATCH_SIZE, aBatchSize));
+    }
+}
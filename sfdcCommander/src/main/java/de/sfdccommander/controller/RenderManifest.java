@@ -0,0 +1,244 @@
+/**
+ *
+ */
+package de.sfdccommander.controller;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import de.sfdccommander.controller.helper.CommanderException;
+
+/**
+ * Sources of the pages of a rendered documentation. Each page is stored with
+ * the hash of the content it has been rendered from, together with the
+ * version of the stylesheets. A page whose source has the same hash is not
+ * rendered again as long as the stylesheets are unchanged, pages whose source
+ * is gone are deleted.
+ *
+ * <p>
+ * The manifest is stored as one line per page with its path relative to the
+ * output folder and its hash, the first line holds the version of the
+ * stylesheets. Pages can be added by several threads.
+ * </p>
+ *
+ * @author jochen
+ *
+ */
+public class RenderManifest {
+
+    /**
+     * Name of the manifest file in the output folder.
+     */
+    public static final String FILE_NAME = ".manifest";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String SEPARATOR = "\t";
+
+    private static final String VERSION_KEY = ":stylesheets";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Version of the stylesheets the pages have been rendered with.
+     */
+    private final String stylesheetVersion;
+
+    /**
+     * Hash of the source of each page, keyed by its path.
+     */
+    private final Map<String, String> hashes = new TreeMap<String, String>();
+
+    /**
+     * @param aStylesheetVersion
+     *            version of the stylesheets, see
+     *            {@link #getStylesheetVersion(File)}
+     */
+    public RenderManifest(String aStylesheetVersion) {
+        stylesheetVersion = aStylesheetVersion;
+    }
+
+    /**
+     * @return version of the stylesheets, null if unknown
+     */
+    public String getStylesheetVersion() {
+        return stylesheetVersion;
+    }
+
+    /**
+     * @param aPage
+     *            path of a page relative to the output folder
+     * @return hash of the source of the page, null if unknown
+     */
+    public synchronized String getHash(String aPage) {
+        return hashes.get(aPage);
+    }
+
+    /**
+     * @param aPage
+     *            path of a page relative to the output folder
+     * @param aHash
+     *            hash of the source of the page
+     */
+    public synchronized void put(String aPage, String aHash) {
+        hashes.put(aPage, aHash);
+    }
+
+    /**
+     * @return paths of all pages
+     */
+    public synchronized Set<String> getPages() {
+        return new HashSet<String>(hashes.keySet());
+    }
+
+    /**
+     * @param aContent
+     *            content of a source
+     * @return hash of the content
+     * @throws CommanderException
+     *             if no hash function is available
+     */
+    public static String hash(byte[] aContent) throws CommanderException {
+        MessageDigest digest = newDigest();
+        return toHex(digest.digest(aContent));
+    }
+
+    /**
+     * @param aTransformerFolder
+     *            folder of the stylesheets
+     * @return hash of the names and contents of all stylesheets, a change of
+     *         an imported stylesheet changes the version as well
+     * @throws CommanderException
+     *             if a stylesheet cannot be read
+     */
+    public static String getStylesheetVersion(File aTransformerFolder)
+            throws CommanderException {
+        MessageDigest digest = newDigest();
+        File[] files = aTransformerFolder.listFiles();
+        if (files == null) {
+            return null;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isFile()
+                    && (name.endsWith(".xsl") || name.endsWith(".xslt"))) {
+                try {
+                    digest.update(name.getBytes(UTF_8));
+                    digest.update(Files.readAllBytes(file.toPath()));
+                } catch (IOException e) {
+                    throw new CommanderException(
+                            "Could not read stylesheet "
+                                    + file.getAbsolutePath(),
+                            e);
+                }
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @param aFile
+     *            stored manifest
+     * @return the manifest, empty without version if the file does not exist
+     * @throws CommanderException
+     *             if the file cannot be read
+     */
+    public static RenderManifest read(File aFile) throws CommanderException {
+        if (!aFile.isFile()) {
+            return new RenderManifest(null);
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(aFile), UTF_8));
+            try {
+                String line = reader.readLine();
+                String[] columns = line == null ? new String[0]
+                        : line.split(SEPARATOR, 2);
+                if (columns.length != 2 || !VERSION_KEY.equals(columns[0])) {
+                    return new RenderManifest(null);
+                }
+                RenderManifest manifest = new RenderManifest(columns[1]);
+                while ((line = reader.readLine()) != null) {
+                    columns = line.split(SEPARATOR, 2);
+                    if (columns.length == 2) {
+                        manifest.hashes.put(columns[0], columns[1]);
+                    }
+                }
+                return manifest;
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new CommanderException(
+                    "Could not read manifest: " + aFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Replace the stored manifest with this one.
+     *
+     * @param aFile
+     *            target file
+     * @throws CommanderException
+     *             if the file cannot be written
+     */
+    public synchronized void write(File aFile) throws CommanderException {
+        try {
+            aFile.getAbsoluteFile().getParentFile().mkdirs();
+            File tmpFile = File.createTempFile("manifest", ".tmp",
+                    aFile.getAbsoluteFile().getParentFile());
+            Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(tmpFile), UTF_8));
+            try {
+                writer.write(VERSION_KEY + SEPARATOR + stylesheetVersion
+                        + "\n");
+                for (Map.Entry<String, String> entry : hashes.entrySet()) {
+                    writer.write(entry.getKey() + SEPARATOR + entry.getValue()
+                            + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+            Files.move(tmpFile.toPath(), aFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new CommanderException(
+                    "Could not write manifest: " + aFile.getAbsolutePath(), e);
+        }
+    }
+
+    private static MessageDigest newDigest() throws CommanderException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new CommanderException("Could not hash rendered sources", e);
+        }
+    }
+
+    private static String toHex(byte[] aBytes) {
+        char[] hex = new char[aBytes.length * 2];
+        for (int i = 0; i < aBytes.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(aBytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[aBytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ *
+ */
+package de.sfdccommander.controller;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.sforce.soap._2006._04.metadata.PackageTypeMembers;
+import com.sforce.soap._2006._04.metadata._package;
+
+import de.sfdccommander.model.WildcardMetadataTypeSet;
+
+/**
+ * Splits the package of an org into chunks which stay below the limits of a
+ * single retrieve. Members are added type by type until a chunk is full, a
+ * large type is spread over several chunks. A wildcard member counts as
+ * {@value #WILDCARD_WEIGHT} members. Profiles and permission sets only
+ * contain the permissions of the components retrieved with them, so they are
+ * part of every chunk and merged after extraction.
+ *
+ * @author jochen
+ *
+ */
+public class RetrievePlanner {
+
+    /**
+     * Estimated number of members behind a wildcard.
+     */
+    public static final int WILDCARD_WEIGHT = 250;
+
+    /**
+     * Types which are retrieved with every chunk.
+     */
+    public static final Set<String> SHARED_TYPES = new HashSet<String>(
+            Arrays.asList("Profile", "PermissionSet"));
+
+    /**
+     * Maximum number of members per chunk.
+     */
+    private final int chunkSize;
+
+    /**
+     * @param aChunkSize
+     *            maximum number of members per chunk
+     */
+    public RetrievePlanner(final int aChunkSize) {
+        this.chunkSize = Math.max(1, aChunkSize);
+    }
+
+    /**
+     * @param aPackage
+     *            package with all members of the org
+     * @return chunks which together contain all members of the package
+     */
+    public List<_package> plan(final _package aPackage) {
+        List<PackageTypeMembers> shared = new ArrayList<PackageTypeMembers>();
+        List<Map<String, List<String>>> chunks = new ArrayList<Map<String, List<String>>>();
+        Map<String, List<String>> chunk = new LinkedHashMap<String, List<String>>();
+        int size = 0;
+
+        if (aPackage.getTypes() != null) {
+            for (PackageTypeMembers type : aPackage.getTypes()) {
+                if (type.getMembers() == null
+                        || type.getMembers().length == 0) {
+                    continue;
+                }
+                if (SHARED_TYPES.contains(type.getName())) {
+                    shared.add(type);
+                    continue;
+                }
+                for (String member : type.getMembers()) {
+                    int weight = WildcardMetadataTypeSet.WILDCARD
+                            .equals(member) ? WILDCARD_WEIGHT : 1;
+                    if (size > 0 && size + weight > chunkSize) {
+                        chunks.add(chunk);
+                        chunk = new LinkedHashMap<String, List<String>>();
+                        size = 0;
+                    }
+                    List<String> members = chunk.get(type.getName());
+                    if (members == null) {
+                        members = new ArrayList<String>();
+                        chunk.put(type.getName(), members);
+                    }
+                    members.add(member);
+                    size += weight;
+                }
+            }
+        }
+        if (size > 0 || chunks.isEmpty()) {
+            chunks.add(chunk);
+        }
+
+        List<_package> plan = new ArrayList<_package>(chunks.size());
+        for (Map<String, List<String>> chunkTypes : chunks) {
+            List<PackageTypeMembers> types = new ArrayList<PackageTypeMembers>();
+            for (Map.Entry<String, List<String>> entry : chunkTypes
+                    .entrySet()) {
+                PackageTypeMembers type = new PackageTypeMembers();
+                type.setName(entry.getKey());
+                type.setMembers(entry.getValue()
+                        .toArray(new String[entry.getValue().size()]));
+                types.add(type);
+            }
+            types.addAll(shared);
+            _package chunkPackage = new _package();
+            chunkPackage.setTypes(
+                    types.toArray(new PackageTypeMembers[types.size()]));
+            chunkPackage.setVersion(aPackage.getVersion());
+            plan.add(chunkPackage);
+        }
+        return plan;
+    }
+
+    /**
+     * @return the chunkSize
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+}
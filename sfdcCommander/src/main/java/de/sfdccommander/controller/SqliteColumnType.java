@@ -0,0 +1,206 @@
+/**
+ *
+ */
+package de.sfdccommander.controller;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import com.sforce.soap.partner.Field;
+
+/**
+ * Storage class of the values of a field in the backup database. The values
+ * of the api are text, they are bound as INTEGER or REAL, booleans as 1 or 0,
+ * and datetimes as ISO-8601 text in UTC, so SQLite compares and sorts them
+ * without converting every row. A value which does not fit its type is kept
+ * as text, empty values of typed fields are stored as NULL.
+ *
+ * @author jochen
+ *
+ */
+public enum SqliteColumnType {
+
+    /**
+     * Text as returned by the api.
+     */
+    TEXT {
+        @Override
+        void bind(PreparedStatement aStatement, int aIndex, String aValue)
+                throws SQLException {
+            if (aValue == null) {
+                aStatement.setNull(aIndex, Types.VARCHAR);
+            } else {
+                aStatement.setString(aIndex, aValue);
+            }
+        }
+    },
+
+    /**
+     * Whole numbers.
+     */
+    INTEGER {
+        @Override
+        void bind(PreparedStatement aStatement, int aIndex, String aValue)
+                throws SQLException {
+            if (isEmpty(aValue)) {
+                aStatement.setNull(aIndex, Types.BIGINT);
+                return;
+            }
+            try {
+                aStatement.setLong(aIndex, Long.parseLong(aValue.trim()));
+            } catch (NumberFormatException e) {
+                TEXT.bind(aStatement, aIndex, aValue);
+            }
+        }
+    },
+
+    /**
+     * Decimal numbers, currencies and percentages.
+     */
+    REAL {
+        @Override
+        void bind(PreparedStatement aStatement, int aIndex, String aValue)
+                throws SQLException {
+            if (isEmpty(aValue)) {
+                aStatement.setNull(aIndex, Types.DOUBLE);
+                return;
+            }
+            try {
+                double value = Double.parseDouble(aValue.trim());
+                if (Double.isNaN(value) || Double.isInfinite(value)) {
+                    TEXT.bind(aStatement, aIndex, aValue);
+                } else {
+                    aStatement.setDouble(aIndex, value);
+                }
+            } catch (NumberFormatException e) {
+                TEXT.bind(aStatement, aIndex, aValue);
+            }
+        }
+    },
+
+    /**
+     * Booleans as 1 and 0.
+     */
+    BOOLEAN {
+        @Override
+        void bind(PreparedStatement aStatement, int aIndex, String aValue)
+                throws SQLException {
+            if (isEmpty(aValue)) {
+                aStatement.setNull(aIndex, Types.INTEGER);
+            } else if ("true".equalsIgnoreCase(aValue.trim())) {
+                aStatement.setInt(aIndex, 1);
+            } else if ("false".equalsIgnoreCase(aValue.trim())) {
+                aStatement.setInt(aIndex, 0);
+            } else {
+                TEXT.bind(aStatement, aIndex, aValue);
+            }
+        }
+    },
+
+    /**
+     * Points in time as ISO-8601 text in UTC with milliseconds.
+     */
+    DATETIME {
+        @Override
+        void bind(PreparedStatement aStatement, int aIndex, String aValue)
+                throws SQLException {
+            if (isEmpty(aValue)) {
+                aStatement.setNull(aIndex, Types.VARCHAR);
+                return;
+            }
+            Date date = parseDateTime(aValue.trim());
+            aStatement.setString(aIndex,
+                    date == null ? aValue : formatDateTime(date));
+        }
+    };
+
+    /**
+     * Formats of the datetimes of the api, with and without milliseconds.
+     */
+    private static final String[] DATETIME_PATTERNS = {
+            "yyyy-MM-dd'T'HH:mm:ss.SSSXXX", "yyyy-MM-dd'T'HH:mm:ssXXX" };
+
+    /**
+     * Bind a value of the api to a parameter of an insert.
+     *
+     * @param aStatement
+     *            insert statement
+     * @param aIndex
+     *            index of the parameter, starting at 1
+     * @param aValue
+     *            value as returned by the api, null for empty values
+     * @throws SQLException
+     *             if the value cannot be bound
+     */
+    abstract void bind(PreparedStatement aStatement, int aIndex,
+            String aValue) throws SQLException;
+
+    /**
+     * @param aField
+     *            field of an object
+     * @return storage class of the values of the field, text if the field
+     *         has no type
+     */
+    public static SqliteColumnType getColumnType(Field aField) {
+        if (aField.getType() == null) {
+            return TEXT;
+        }
+        return getColumnType(aField.getType().getValue());
+    }
+
+    /**
+     * @param aSfdcFieldType
+     *            type of a field as returned by describe
+     * @return storage class of the values of the type
+     */
+    public static SqliteColumnType getColumnType(String aSfdcFieldType) {
+        if ("int".equals(aSfdcFieldType) || "byte".equals(aSfdcFieldType)) {
+            return INTEGER;
+        } else if ("double".equals(aSfdcFieldType)
+                || "currency".equals(aSfdcFieldType)
+                || "percent".equals(aSfdcFieldType)) {
+            return REAL;
+        } else if ("boolean".equals(aSfdcFieldType)) {
+            return BOOLEAN;
+        } else if ("datetime".equals(aSfdcFieldType)) {
+            return DATETIME;
+        }
+        // dates are already ISO-8601 text without a time zone
+        return TEXT;
+    }
+
+    private static boolean isEmpty(String aValue) {
+        return aValue == null || aValue.trim().isEmpty();
+    }
+
+    /**
+     * @param aValue
+     *            ISO-8601 date and time with a time zone, with or without
+     *            milliseconds, e.g. 2015-03-01T10:00:00+01:00
+     * @return point in time, null if the value is no such date and time
+     */
+    static Date parseDateTime(String aValue) {
+        for (String pattern : DATETIME_PATTERNS) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern);
+            format.setLenient(false);
+            ParsePosition position = new ParsePosition(0);
+            Date date = format.parse(aValue, position);
+            if (date != null && position.getIndex() == aValue.length()) {
+                return date;
+            }
+        }
+        return null;
+    }
+
+    private static String formatDateTime(Date aDate) {
+        SimpleDateFormat format = new SimpleDateFormat(
+                "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(aDate);
+    }
+}
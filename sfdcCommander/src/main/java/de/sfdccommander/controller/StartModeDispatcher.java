@@ -3,6 +3,7 @@
  */
 package de.sfdccommander.controller;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.util.Arrays;
@@ -19,6 +20,10 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.log4j.Logger;
 
+import de.sfdccommander.controller.connection.DescribeService;
+import de.sfdccommander.controller.connection.PooledHttpSender;
+import de.sfdccommander.controller.connection.SessionCache;
+import de.sfdccommander.controller.connection.SfdcConnectionPool;
 import de.sfdccommander.controller.helper.CommanderException;
 import de.sfdccommander.model.CommanderConfig;
 import de.sfdccommander.viewer.SfdcCommander;
@@ -56,6 +61,10 @@ public class StartModeDispatcher {
      * 
      */
     private static final String RENDERXLS = "renderxls";
+    /**
+     * 
+     */
+    private static final String SERVE = "serve";
     /**
      * 
      */
@@ -98,6 +107,8 @@ public class StartModeDispatcher {
                 "Backup salesforce.com data in a local database to avoid data loss due to faulty data deletions.");
         options.addOption("r", RENDER, false,
                 "Extract salesforce.com configuration and render the entities to get a system overview.");
+        options.addOption("w", SERVE, false,
+                "Serve the retrieved salesforce.com configuration as html, rendered when a page is requested.");
         options.addOption("x", RENDERXLS, false,
                 "Extract salesforce.com schema and render the entities to MS Excel to get a system overview.");
         options.addOption("v", VERSIONIZE, false,
@@ -148,6 +159,19 @@ public class StartModeDispatcher {
                             System.setProperty(CommanderConfig.HTTP_PROXY_PORT,
                                     config.getHttpProxyPort());
                         }
+                        SfdcConnectionPool.getInstance()
+                                .setHttpSender(new PooledHttpSender(
+                                        config.getHttpMaxConnectionsPerHost(),
+                                        config.isHttpCompression()));
+                        if (config.isSessionCacheEnabled()) {
+                            SfdcConnectionPool.getInstance()
+                                    .setSessionCache(new SessionCache(new File(
+                                            config.getCachePath(),
+                                            "sessions")));
+                        }
+                        DescribeService.getInstance().setCache(
+                                new File(config.getCachePath(), "describe"),
+                                config.getDescribeCacheTtl());
                         if (cmd.hasOption("s")) {
                             // Extract salesforce config
                             MetadataExporter exporter = new MetadataExporter(
@@ -177,13 +201,29 @@ public class StartModeDispatcher {
                                     config.getSourceSfdcConfig());
                             ObjectExporter objExporter = new ObjectExporter(
                                     config.getSourceSfdcConfig());
-                            exporter.getEntities();
+                            // rendered straight from the retrieved zip-files
+                            exporter.getEntities(false);
                             objExporter.exportObjects();
                             HtmlRenderer renderer = new HtmlRenderer(
                                     config.getSourceSfdcConfig()
                                             .getSystemName(),
                                     config.getRenderPath());
                             renderer.generateOutput();
+                        } else if (cmd.hasOption("w")) {
+                            // Render the retrieved configuration on request
+                            DocumentationServer server = new DocumentationServer(
+                                    config.getSourceSfdcConfig()
+                                            .getSystemName(),
+                                    new File("config/transformer"),
+                                    DocumentationServer.DEFAULT_CACHE_BYTES);
+                            server.start(config.getRenderServeAddress(),
+                                    config.getRenderServePort());
+                            try {
+                                server.join();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                server.stop();
+                            }
                         } else if (cmd.hasOption("x")) {
                             // Extract and render salesforce configuration to MS
                             // Excel
@@ -192,7 +232,10 @@ public class StartModeDispatcher {
                         } else if (cmd.hasOption("d")) {
                             DatabaseHandler dbHandler = new DatabaseHandler(
                                     config.getSourceSfdcConfig(),
-                                    config.getBackupPath());
+                                    config.getBackupPath(),
+                                    config.isBackupIncremental());
+                            dbHandler.setBulkThreshold(
+                                    config.getBackupBulkThreshold());
                             dbHandler.backupOrganization();
                         } else {
                             commander.info("Missing command");
@@ -6,7 +6,9 @@ package de.sfdccommander.controller;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.apache.poi.hssf.usermodel.HSSFCell;
 import org.apache.poi.hssf.usermodel.HSSFFont;
@@ -21,13 +23,12 @@ import org.apache.poi.ss.util.CellRangeAddress;
 import com.sforce.soap.partner.DescribeGlobalResult;
 import com.sforce.soap.partner.DescribeGlobalSObjectResult;
 import com.sforce.soap.partner.DescribeSObjectResult;
-import com.sforce.soap.partner.SoapBindingStub;
-import com.sforce.soap.partner.fault.InvalidSObjectFault;
-import com.sforce.soap.partner.fault.UnexpectedErrorFault;
 
-import de.sfdccommander.controller.connection.SfdcConnectionPool;
+import de.sfdccommander.controller.connection.DescribeService;
 import de.sfdccommander.controller.helper.CommanderException;
+import de.sfdccommander.controller.helper.ConcurrentTaskRunner;
 import de.sfdccommander.model.CommanderConfig;
+import de.sfdccommander.model.SfdcConfig;
 import de.sfdccommander.viewer.SfdcCommander;
 
 /**
@@ -39,16 +40,10 @@ public class XlsRenderer {
      * Config for renderings.
      */
     private final CommanderConfig tmpConfig;
-    private SfdcConnectionPool connPool;
-
-    static SoapBindingStub binding;
 
     final short CONTENT_HEADER = 4;
     final short SHEET_TITLE = 0;
     final short SHEET_HEADER = 2;
-    private CellStyle heading1Cs;
-    private CellStyle heading2Cs;
-    private CellStyle heading3Cs;
     /**
      * Size of heading 1.
      */
@@ -93,10 +88,10 @@ public class XlsRenderer {
     }
 
     public void generatePartnerOutput() throws CommanderException {
-        connPool = SfdcConnectionPool.getInstance();
+        final SfdcConfig sfdcConfig = tmpConfig.getSourceSfdcConfig();
 
         // prepare XLS output folder
-        File outputFolder = new File(tmpConfig.getXlsPath() + "/"
+        final File outputFolder = new File(tmpConfig.getXlsPath() + "/"
                 + tmpConfig.getSourceSfdcConfig().getSystemName());
         if (outputFolder.exists()) {
             deleteDirectory(outputFolder);
@@ -105,27 +100,31 @@ public class XlsRenderer {
 
         commander.info("Generating XLS output.");
 
-        binding = connPool.getBinding(tmpConfig.getSourceSfdcConfig());
-
-        // run the different examples
-        DescribeGlobalResult global;
-        try {
-            global = binding.describeGlobal();
-            for (DescribeGlobalSObjectResult objectGlobalResult : global
-                    .getSobjects()) {
-                renderObjectXls(objectGlobalResult, outputFolder);
-            }
-            commander.info("XLS output successfully generated.");
-        } catch (UnexpectedErrorFault e) {
-            throw new CommanderException(
-                    "Could not describe salesforce metadata to render object-schema as xls-file.",
-                    e);
-        } catch (RemoteException e) {
-            throw new CommanderException(
-                    "Could not describe salesforce metadata to render object-schema as xls-file.",
-                    e);
+        // describe all objects up front in batches
+        DescribeService describer = DescribeService.getInstance();
+        DescribeGlobalResult global = describer.describeGlobal(sfdcConfig);
+        List<String> objectNames = new ArrayList<String>();
+        for (DescribeGlobalSObjectResult objectGlobalResult : global
+                .getSobjects()) {
+            objectNames.add(objectGlobalResult.getName());
         }
-
+        describer.describeSObjects(sfdcConfig, objectNames);
+
+        // every object gets its own workbook, render them in parallel
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final DescribeGlobalSObjectResult objectGlobalResult : global
+                .getSobjects()) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws CommanderException {
+                    renderObjectXls(objectGlobalResult, outputFolder);
+                    return null;
+                }
+            });
+        }
+        ConcurrentTaskRunner.invokeAll("xls-render",
+                sfdcConfig.getMaxConcurrentCalls(), tasks);
+        commander.info("XLS output successfully generated.");
     }
 
     /**
@@ -138,9 +137,10 @@ public class XlsRenderer {
 
         commander.info("Generating xls for object: " + aObject.getName());
 
-        DescribeSObjectResult tmpDescribeSObject;
+        DescribeSObjectResult tmpDescribeSObject = DescribeService
+                .getInstance().describeSObject(tmpConfig.getSourceSfdcConfig(),
+                        aObject.getName());
         try {
-            tmpDescribeSObject = binding.describeSObject(aObject.getName());
 
             HSSFWorkbook wb = new HSSFWorkbook();
 
@@ -151,9 +151,9 @@ public class XlsRenderer {
             fontHeading2 = wb.createFont();
             fontHeading3 = wb.createFont();
 
-            heading1Cs = wb.createCellStyle();
-            heading2Cs = wb.createCellStyle();
-            heading3Cs = wb.createCellStyle();
+            CellStyle heading1Cs = wb.createCellStyle();
+            CellStyle heading2Cs = wb.createCellStyle();
+            CellStyle heading3Cs = wb.createCellStyle();
 
             fontHeading1.setFontHeightInPoints(H1_SIZE);
             fontHeading1.setItalic(true);
@@ -174,14 +174,15 @@ public class XlsRenderer {
             HSSFRow row;
             HSSFCell cell;
 
-            createSheetTitle(sheet, "Salesforce.com Object Field List");
+            createSheetTitle(sheet, heading1Cs,
+                    "Salesforce.com Object Field List");
 
-            createSheetHeaderLine(sheet, SHEET_HEADER,
+            createSheetHeaderLine(sheet, heading2Cs, SHEET_HEADER,
                     tmpDescribeSObject.getName());
 
-            createContentHeader(sheet, "Name", "Label", "Required?", "Unique?",
-                    "External Id?", "Case Sensitive?", "Type", "Length",
-                    "Precision", "Scale");
+            createContentHeader(sheet, heading3Cs, "Name", "Label",
+                    "Required?", "Unique?", "External Id?", "Case Sensitive?",
+                    "Type", "Length", "Precision", "Scale");
 
             // fe
             for (int i = 0; i < tmpDescribeSObject.getFields().length; i++) {
@@ -219,21 +220,6 @@ public class XlsRenderer {
 
             saveFile(wb, outputFolder.getAbsolutePath() + "/"
                     + tmpDescribeSObject.getName() + ".xls");
-        } catch (InvalidSObjectFault e) {
-            throw new CommanderException(
-                    "Could not describe salesforce object as it seems to be invalid: "
-                            + aObject.getName(),
-                    e);
-        } catch (UnexpectedErrorFault e) {
-            throw new CommanderException(
-                    "Could not describe salesforce object: "
-                            + aObject.getName(),
-                    e);
-        } catch (RemoteException e) {
-            throw new CommanderException(
-                    "Could not describe salesforce object: "
-                            + aObject.getName(),
-                    e);
         } catch (IOException e) {
             commander.info(e.getMessage());
         }
@@ -241,10 +227,11 @@ public class XlsRenderer {
 
     /**
      * @param sheet
+     * @param style
      * @param strings
      */
     public final void createContentHeader(final HSSFSheet sheet,
-            final String... strings) {
+            final CellStyle style, final String... strings) {
         HSSFRow row;
         HSSFCell cell;
         row = sheet.createRow(CONTENT_HEADER);
@@ -252,7 +239,7 @@ public class XlsRenderer {
         for (int i = 0; i < strings.length; i++) {
             cell = row.createCell(i);
             cell.setCellValue(strings[i]);
-            cell.setCellStyle(heading3Cs);
+            cell.setCellStyle(style);
         }
         sheet.createFreezePane(0, CONTENT_HEADER + 1);
         sheet.setAutoFilter(new CellRangeAddress(CONTENT_HEADER, CONTENT_HEADER,
@@ -261,11 +248,12 @@ public class XlsRenderer {
 
     /**
      * @param sheet
+     * @param style
      * @param line
      * @param strings
      */
     public final void createSheetHeaderLine(final HSSFSheet sheet,
-            final int line, final String... strings) {
+            final CellStyle style, final int line, final String... strings) {
         HSSFRow row;
         HSSFCell cell;
         row = sheet.createRow(line);
@@ -273,22 +261,23 @@ public class XlsRenderer {
         for (int i = 0; i < strings.length; i++) {
             cell = row.createCell(i);
             cell.setCellValue(strings[i]);
-            cell.setCellStyle(heading2Cs);
+            cell.setCellStyle(style);
         }
     }
 
     /**
      * @param sheet
+     * @param style
      * @param title
      */
     public final void createSheetTitle(final HSSFSheet sheet,
-            final String title) {
+            final CellStyle style, final String title) {
         HSSFRow row;
         HSSFCell cell;
         row = sheet.createRow(SHEET_TITLE);
         cell = row.createCell(0);
         cell.setCellValue(title);
-        cell.setCellStyle(heading1Cs);
+        cell.setCellStyle(style);
     }
 
     /**
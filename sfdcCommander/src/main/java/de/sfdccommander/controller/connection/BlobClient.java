@@ -0,0 +1,170 @@
+/**
+ *
+ */
+package de.sfdccommander.controller.connection;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Collections;
+
+import org.apache.axis.AxisFault;
+import org.apache.axis.Constants;
+import org.w3c.dom.Element;
+
+import de.sfdccommander.controller.helper.CommanderException;
+
+/**
+ * Downloads the content of base64 fields, e.g. Attachment.Body, through the
+ * blob resource of the rest api. The content arrives as raw bytes and is
+ * streamed, while a query returns it as base64 text in the soap envelope,
+ * which axis keeps on the heap with the whole page.
+ *
+ * @author jochen
+ *
+ */
+final class BlobClient {
+
+    /**
+     * Session of the org.
+     */
+    private final OrgSession session;
+
+    /**
+     * Http transport of the org.
+     */
+    private final PooledHttpSender sender;
+
+    /**
+     * @param aSession
+     *            session of the org
+     * @param aSender
+     *            http transport
+     */
+    BlobClient(final OrgSession aSession, final PooledHttpSender aSender) {
+        this.session = aSession;
+        this.sender = aSender;
+    }
+
+    /**
+     * Open the content of a base64 field. Expired sessions are renewed and
+     * transient failures retried until the download starts. The call slot of
+     * the org is held until the stream is closed.
+     *
+     * @param aObjectName
+     *            object of the record
+     * @param aId
+     *            Id of the record
+     * @param aFieldName
+     *            base64 field
+     * @return content of the field, null if the field is empty
+     * @throws CommanderException
+     *             if the download cannot be started
+     */
+    InputStream open(final String aObjectName, final String aId,
+            final String aFieldName) throws CommanderException {
+        session.acquirePermit();
+        boolean streaming = false;
+        try {
+            InputStream in = RetryingBindingHandler.send(session,
+                    "download of " + aId, true,
+                    new RetryingBindingHandler.Request<InputStream>() {
+                        @Override
+                        public InputStream send(final String aSessionId)
+                                throws IOException {
+                            try {
+                                return sender.request(
+                                        getBlobUrl(aObjectName, aId,
+                                                aFieldName),
+                                        "GET", null,
+                                        Collections.singletonMap(
+                                                "Authorization",
+                                                "Bearer " + aSessionId),
+                                        null, OrgSession.DOWNLOAD_TIMEOUT);
+                            } catch (IOException e) {
+                                // the field is empty
+                                if (getHttpCode(e)
+                                        == HttpURLConnection.HTTP_NOT_FOUND) {
+                                    return null;
+                                }
+                                throw e;
+                            }
+                        }
+
+                        @Override
+                        public boolean isInvalidSession(
+                                final IOException aCause) {
+                            return getHttpCode(aCause)
+                                    == HttpURLConnection.HTTP_UNAUTHORIZED;
+                        }
+                    });
+            if (in == null) {
+                return null;
+            }
+            streaming = true;
+            return new FilterInputStream(in) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (!closed) {
+                            closed = true;
+                            session.releasePermit();
+                        }
+                    }
+                }
+            };
+        } catch (IOException e) {
+            throw new CommanderException("Could not download " + aObjectName
+                    + "." + aFieldName + " of " + aId, e);
+        } finally {
+            if (!streaming) {
+                session.releasePermit();
+            }
+        }
+    }
+
+    private URL getBlobUrl(final String aObjectName, final String aId,
+            final String aFieldName) throws IOException {
+        String serverUrl;
+        try {
+            serverUrl = session.getServerUrl();
+        } catch (CommanderException e) {
+            throw new IOException("Could not log in to " + session.getKey(),
+                    e);
+        }
+        int services = serverUrl.indexOf("/services/");
+        String instanceUrl = services < 0 ? serverUrl
+                : serverUrl.substring(0, services);
+        return new URL(instanceUrl + "/services/data/v"
+                + session.getKey().getApiVersion() + "/sobjects/"
+                + URLEncoder.encode(aObjectName, "UTF-8") + "/"
+                + URLEncoder.encode(aId, "UTF-8") + "/"
+                + URLEncoder.encode(aFieldName, "UTF-8"));
+    }
+
+    /**
+     * @return http status of a failed request, 0 if there is none
+     */
+    private static int getHttpCode(final IOException aCause) {
+        if (!(aCause instanceof AxisFault)) {
+            return 0;
+        }
+        Element httpCode = ((AxisFault) aCause)
+                .lookupFaultDetail(Constants.QNAME_FAULTDETAIL_HTTPERRORCODE);
+        if (httpCode == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(httpCode.getTextContent().trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
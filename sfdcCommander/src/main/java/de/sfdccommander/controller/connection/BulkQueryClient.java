@@ -0,0 +1,550 @@
+/**
+ *
+ */
+package de.sfdccommander.controller.connection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.axis.AxisFault;
+import org.w3c.dom.Element;
+
+import de.sfdccommander.controller.helper.CommanderException;
+import de.sfdccommander.viewer.SfdcCommander;
+
+/**
+ * Query jobs of the bulk api. The records of a query are extracted by the org
+ * in the background and downloaded as csv files, which is much faster for
+ * millions of records than the pages of queryAll. With primary key chunking
+ * the org splits the query into batches of Id ranges, which are processed in
+ * parallel. The calls share the session and the call limit with the bindings
+ * of the org.
+ *
+ * @author jochen
+ *
+ */
+public final class BulkQueryClient {
+
+    /**
+     * Handler of the csv results of a query.
+     */
+    public interface ResultHandler {
+
+        /**
+         * @param aCsv
+         *            csv file of a result with a header line, closed by the
+         *            client
+         * @throws IOException
+         *             if the result cannot be read
+         * @throws CommanderException
+         *             if the records cannot be processed
+         */
+        void handleResult(InputStream aCsv)
+                throws IOException, CommanderException;
+    }
+
+    private static final String ASYNC_NAMESPACE = "http://www.force.com/2009/06/asyncapi/dataload";
+
+    private static final String SESSION_HEADER = "X-SFDC-Session";
+
+    private static final String PK_CHUNKING_HEADER = "Sforce-Enable-PKChunking";
+
+    private static final String XML_CONTENT_TYPE = "application/xml; charset=UTF-8";
+
+    private static final String CSV_CONTENT_TYPE = "text/csv; charset=UTF-8";
+
+    private static final String INVALID_SESSION_ID = "InvalidSessionId";
+
+    /**
+     * Default pause between two checks of the batches in milliseconds.
+     */
+    static final long POLL_INTERVAL = 5000;
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = createFactory();
+
+    /**
+     * Session of the org.
+     */
+    private final OrgSession session;
+
+    /**
+     * Http transport of the org.
+     */
+    private final PooledHttpSender sender;
+
+    /**
+     * Pause between two checks of the batches.
+     */
+    private long pollInterval = POLL_INTERVAL;
+
+    /**
+     * Error response of the bulk api.
+     */
+    static final class BulkFault extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String exceptionCode;
+
+        BulkFault(final String aExceptionCode, final String aMessage) {
+            super(aExceptionCode + ": " + aMessage);
+            exceptionCode = aExceptionCode;
+        }
+
+        String getExceptionCode() {
+            return exceptionCode;
+        }
+    }
+
+    /**
+     * @param aSession
+     *            session of the org
+     * @param aSender
+     *            http transport
+     */
+    BulkQueryClient(final OrgSession aSession,
+            final PooledHttpSender aSender) {
+        this.session = aSession;
+        this.sender = aSender;
+    }
+
+    /**
+     * @param aPollInterval
+     *            pause between two checks of the batches in milliseconds
+     */
+    void setPollInterval(final long aPollInterval) {
+        this.pollInterval = aPollInterval;
+    }
+
+    /**
+     * Run a query job including deleted and archived records and pass the
+     * csv results to the handler as soon as their batch is completed.
+     *
+     * @param aObjectName
+     *            object of the query
+     * @param aSoql
+     *            query
+     * @param aChunkSize
+     *            records per batch with primary key chunking, 0 to query in
+     *            a single batch
+     * @param aHandler
+     *            handler of the results
+     * @throws CommanderException
+     *             if the job fails or a result cannot be processed
+     */
+    public void query(final String aObjectName, final String aSoql,
+            final int aChunkSize, final ResultHandler aHandler)
+            throws CommanderException {
+        SfdcCommander commander = SfdcCommander.getInstance();
+        String jobId = createJob(aObjectName, aChunkSize);
+        try {
+            String batchId = addBatch(jobId, aSoql);
+            commander.debug("Bulk query job " + jobId + " on " + aObjectName
+                    + ": " + aSoql);
+            Set<String> handled = new HashSet<String>();
+            while (true) {
+                boolean done = true;
+                boolean progress = false;
+                List<Map<String, String>> batches = getBatches(jobId);
+                for (Map<String, String> batch : batches) {
+                    String id = batch.get("id");
+                    String state = batch.get("state");
+                    if ("Failed".equals(state)) {
+                        throw new CommanderException("Bulk query batch " + id
+                                + " of " + aObjectName + " failed: "
+                                + batch.get("stateMessage"));
+                    } else if ("Completed".equals(state)) {
+                        if (handled.add(id)) {
+                            for (String resultId : getResultIds(jobId, id)) {
+                                getResult(jobId, id, resultId, aHandler);
+                            }
+                            progress = true;
+                        }
+                    } else if (!"NotProcessed".equals(state)) {
+                        done = false;
+                    }
+                }
+                // the original batch of a chunked query is not processed,
+                // its chunks are added before it gets that state
+                if (done && (batches.size() > 1
+                        || handled.contains(batchId))) {
+                    return;
+                }
+                if (!progress) {
+                    pause();
+                }
+            }
+        } finally {
+            try {
+                closeJob(jobId);
+            } catch (CommanderException e) {
+                // the org closes the job itself after a while
+                commander.debug("Could not close bulk query job " + jobId
+                        + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private String createJob(final String aObjectName, final int aChunkSize)
+            throws CommanderException {
+        String jobInfo = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<jobInfo xmlns=\"" + ASYNC_NAMESPACE + "\">"
+                + "<operation>queryAll</operation>"
+                + "<object>" + escape(aObjectName) + "</object>"
+                + "<concurrencyMode>Parallel</concurrencyMode>"
+                + "<contentType>CSV</contentType></jobInfo>";
+        Map<String, String> headers = Collections.emptyMap();
+        if (aChunkSize > 0) {
+            headers = Collections.singletonMap(PK_CHUNKING_HEADER,
+                    "chunkSize=" + aChunkSize);
+        }
+        return readFirst(call("POST", "job", XML_CONTENT_TYPE, headers,
+                jobInfo, false), "jobInfo").get("id");
+    }
+
+    private String addBatch(final String aJobId, final String aSoql)
+            throws CommanderException {
+        Map<String, String> headers = Collections.emptyMap();
+        return readFirst(call("POST", "job/" + aJobId + "/batch",
+                CSV_CONTENT_TYPE, headers, aSoql, false), "batchInfo")
+                        .get("id");
+    }
+
+    private List<Map<String, String>> getBatches(final String aJobId)
+            throws CommanderException {
+        Map<String, String> headers = Collections.emptyMap();
+        return readRecords(
+                call("GET", "job/" + aJobId + "/batch", null, headers, null,
+                        true),
+                "batchInfo");
+    }
+
+    private List<String> getResultIds(final String aJobId,
+            final String aBatchId) throws CommanderException {
+        Map<String, String> headers = Collections.emptyMap();
+        List<String> resultIds = new ArrayList<String>();
+        for (Map<String, String> result : readRecords(call("GET",
+                "job/" + aJobId + "/batch/" + aBatchId + "/result", null,
+                headers, null, true), "result")) {
+            resultIds.add(result.get("result"));
+        }
+        return resultIds;
+    }
+
+    private void closeJob(final String aJobId) throws CommanderException {
+        String jobInfo = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<jobInfo xmlns=\"" + ASYNC_NAMESPACE + "\">"
+                + "<state>Closed</state></jobInfo>";
+        Map<String, String> headers = Collections.emptyMap();
+        call("POST", "job/" + aJobId, XML_CONTENT_TYPE, headers, jobInfo,
+                true);
+    }
+
+    /**
+     * Stream a result into the handler. A failure after the handler has
+     * started is not retried, the handler may have processed some records.
+     */
+    private void getResult(final String aJobId, final String aBatchId,
+            final String aResultId, final ResultHandler aHandler)
+            throws CommanderException {
+        String path = "job/" + aJobId + "/batch/" + aBatchId + "/result/"
+                + aResultId;
+        session.acquirePermit();
+        try {
+            InputStream in = open("GET", path, null,
+                    Collections.<String, String> emptyMap(), null,
+                    OrgSession.DOWNLOAD_TIMEOUT, true);
+            try {
+                aHandler.handleResult(in);
+            } catch (IOException e) {
+                throw new CommanderException(
+                        "Could not read bulk query result " + path, e);
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    SfdcCommander.getInstance()
+                            .debug("Could not close result " + path);
+                }
+            }
+        } finally {
+            session.releasePermit();
+        }
+    }
+
+    /**
+     * Send a request and read the complete response. Expired sessions are
+     * renewed and transient failures of idempotent requests retried like the
+     * calls of the bindings. A request which creates a job or a batch is not
+     * repeated, the server may have accepted it before the failure.
+     */
+    private byte[] call(final String aMethod, final String aPath,
+            final String aContentType, final Map<String, String> aHeaders,
+            final String aBody, final boolean aIdempotent)
+            throws CommanderException {
+        session.acquirePermit();
+        try {
+            InputStream in = open(aMethod, aPath, aContentType, aHeaders,
+                    aBody, OrgSession.CALL_TIMEOUT, aIdempotent);
+            try {
+                return readFully(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new CommanderException("Could not read bulk api response "
+                    + aPath, e);
+        } finally {
+            session.releasePermit();
+        }
+    }
+
+    private InputStream open(final String aMethod, final String aPath,
+            final String aContentType, final Map<String, String> aHeaders,
+            final String aBody, final int aTimeout, final boolean aIdempotent)
+            throws CommanderException {
+        try {
+            return RetryingBindingHandler.send(session,
+                    "bulk api call " + aMethod + " " + aPath, aIdempotent,
+                    new RetryingBindingHandler.Request<InputStream>() {
+                        @Override
+                        public InputStream send(final String aSessionId)
+                                throws IOException {
+                            Map<String, String> headers = new HashMap<String, String>(
+                                    aHeaders);
+                            headers.put(SESSION_HEADER, aSessionId);
+                            return sender.request(
+                                    new URL(getAsyncUrl() + aPath), aMethod,
+                                    aContentType, headers,
+                                    aBody == null ? null
+                                            : aBody.getBytes("UTF-8"),
+                                    aTimeout);
+                        }
+
+                        @Override
+                        public boolean isInvalidSession(
+                                final IOException aCause) {
+                            IOException cause = toBulkFault(aCause);
+                            if (cause instanceof BulkFault) {
+                                return INVALID_SESSION_ID.equals(
+                                        ((BulkFault) cause)
+                                                .getExceptionCode());
+                            }
+                            return RetryingBindingHandler
+                                    .isInvalidSession(cause);
+                        }
+                    });
+        } catch (IOException e) {
+            throw new CommanderException(
+                    "Bulk api call " + aMethod + " " + aPath + " failed",
+                    toBulkFault(e));
+        }
+    }
+
+    /**
+     * @return url of the bulk api of the instance of the session
+     */
+    private String getAsyncUrl() throws IOException {
+        String serverUrl;
+        try {
+            serverUrl = session.getServerUrl();
+        } catch (CommanderException e) {
+            throw new IOException("Could not log in to " + session.getKey(),
+                    e);
+        }
+        int services = serverUrl.indexOf("/services/");
+        String instanceUrl = services < 0 ? serverUrl
+                : serverUrl.substring(0, services);
+        return instanceUrl + "/services/async/"
+                + session.getKey().getApiVersion() + "/";
+    }
+
+    /**
+     * Http errors of the bulk api carry an error element in the body.
+     */
+    private static IOException toBulkFault(final IOException aCause) {
+        if (!(aCause instanceof AxisFault)) {
+            return aCause;
+        }
+        Element[] details = ((AxisFault) aCause).getFaultDetails();
+        if (details == null) {
+            return aCause;
+        }
+        for (Element detail : details) {
+            String body = detail.getTextContent();
+            if (body != null && body.contains("exceptionCode")) {
+                try {
+                    readRecords(new ByteArrayInputStream(
+                            body.getBytes("UTF-8")), "error");
+                } catch (BulkFault fault) {
+                    return fault;
+                } catch (XMLStreamException e) {
+                    return aCause;
+                } catch (IOException e) {
+                    return aCause;
+                }
+            }
+        }
+        return aCause;
+    }
+
+    private static Map<String, String> readFirst(final byte[] aResponse,
+            final String aRecordName) throws CommanderException {
+        List<Map<String, String>> records = readRecords(aResponse,
+                aRecordName);
+        if (records.isEmpty()) {
+            throw new CommanderException(
+                    "Bulk api response without " + aRecordName);
+        }
+        return records.get(0);
+    }
+
+    private static List<Map<String, String>> readRecords(
+            final byte[] aResponse, final String aRecordName)
+            throws CommanderException {
+        try {
+            return readRecords(new ByteArrayInputStream(aResponse),
+                    aRecordName);
+        } catch (XMLStreamException e) {
+            throw new CommanderException("Could not parse bulk api response",
+                    e);
+        } catch (BulkFault e) {
+            throw new CommanderException("Bulk api call failed", e);
+        }
+    }
+
+    /**
+     * @param aIn
+     *            xml response of the bulk api
+     * @param aRecordName
+     *            name of the repeated element
+     * @return values of the child elements of each record, the text of a
+     *         record without children under its own name
+     * @throws XMLStreamException
+     *             if the response is no valid xml
+     * @throws BulkFault
+     *             if the response is an error
+     */
+    static List<Map<String, String>> readRecords(final InputStream aIn,
+            final String aRecordName) throws XMLStreamException, BulkFault {
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(aIn);
+        try {
+            List<Map<String, String>> records = new ArrayList<Map<String, String>>();
+            Map<String, String> error = null;
+            Map<String, String> record = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (aRecordName.equals(reader.getLocalName())) {
+                        record = null;
+                    }
+                    continue;
+                } else if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String name = reader.getLocalName();
+                if ("error".equals(name) && !"error".equals(aRecordName)) {
+                    error = new HashMap<String, String>();
+                    record = error;
+                } else if (aRecordName.equals(name)) {
+                    record = new HashMap<String, String>();
+                    records.add(record);
+                    readChildren(reader, aRecordName, record);
+                    record = null;
+                } else if (record != null) {
+                    record.put(name, reader.getElementText());
+                }
+            }
+            if (error == null && "error".equals(aRecordName)
+                    && !records.isEmpty()) {
+                error = records.get(0);
+            }
+            if (error != null) {
+                throw new BulkFault(error.get("exceptionCode"),
+                        error.get("exceptionMessage"));
+            }
+            return records;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Read the children of the current record element up to its end. A
+     * record without child elements keeps its text under its own name.
+     */
+    private static void readChildren(final XMLStreamReader aReader,
+            final String aRecordName, final Map<String, String> aRecord)
+            throws XMLStreamException {
+        StringBuilder text = new StringBuilder();
+        int depth = 1;
+        while (depth > 0) {
+            int event = aReader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (depth == 1) {
+                    aRecord.put(aReader.getLocalName(),
+                            aReader.getElementText());
+                } else {
+                    depth++;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            } else if (depth == 1 && (event == XMLStreamConstants.CHARACTERS
+                    || event == XMLStreamConstants.CDATA)) {
+                text.append(aReader.getText());
+            }
+        }
+        if (aRecord.isEmpty()) {
+            aRecord.put(aRecordName, text.toString().trim());
+        }
+    }
+
+    private void pause() throws CommanderException {
+        try {
+            Thread.sleep(pollInterval);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommanderException(
+                    "Interrupted while waiting for bulk query batches", e);
+        }
+    }
+
+    private static byte[] readFully(final InputStream aIn)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = aIn.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static String escape(final String aValue) {
+        return aValue.replace("&", "&amp;").replace("<", "&lt;")
+                .replace(">", "&gt;");
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                Boolean.FALSE);
+        return factory;
+    }
+}
@@ -0,0 +1,339 @@
+/**
+ *
+ */
+package de.sfdccommander.controller.connection;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sforce.soap.partner.DescribeGlobalResult;
+import com.sforce.soap.partner.DescribeSObjectResult;
+import com.sforce.soap.partner.Soap;
+
+import de.sfdccommander.controller.helper.CommanderException;
+import de.sfdccommander.controller.helper.ConcurrentTaskRunner;
+import de.sfdccommander.model.SfdcConfig;
+import de.sfdccommander.viewer.SfdcCommander;
+
+/**
+ * Describes the objects of an org for all modes. Objects are described in
+ * batches of up to {@value #BATCH_SIZE} names per describeSObjects call. The
+ * results are kept in memory for the run and, if a cache folder is set, on
+ * the local harddrive until they are older than the configured time to live.
+ *
+ * <pre>
+ * DescribeService describer = DescribeService.getInstance();
+ * DescribeGlobalResult global = describer.describeGlobal(config);
+ * Map&lt;String, DescribeSObjectResult&gt; objects = describer
+ *         .describeSObjects(config, names);
+ * </pre>
+ *
+ * @author jochen
+ *
+ */
+public final class DescribeService {
+
+    /**
+     * Maximum number of objects per describeSObjects call.
+     */
+    public static final int BATCH_SIZE = 100;
+
+    /**
+     * Default time to live of the cached results in hours.
+     */
+    public static final int DEFAULT_CACHE_TTL = 24;
+
+    /**
+     * DescribeService singleton.
+     */
+    private static final DescribeService INSTANCE = new DescribeService();
+
+    /**
+     * Global describe of each org.
+     */
+    private final ConcurrentMap<SessionKey, DescribeGlobalResult> globals;
+
+    /**
+     * Object describes of each org, keyed by object name.
+     */
+    private final ConcurrentMap<SessionKey, ConcurrentMap<String, DescribeSObjectResult>> objects;
+
+    /**
+     * Folder with the cached results, null if disabled.
+     */
+    private volatile File cacheFolder;
+
+    /**
+     * Time to live of the cached results in milliseconds.
+     */
+    private volatile long cacheTtl;
+
+    private DescribeService() {
+        globals = new ConcurrentHashMap<SessionKey, DescribeGlobalResult>();
+        objects = new ConcurrentHashMap<SessionKey, ConcurrentMap<String, DescribeSObjectResult>>();
+    }
+
+    /**
+     * @return DescribeService singleton
+     */
+    public static DescribeService getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param aCacheFolder
+     *            folder to keep the results between runs, null to disable it
+     * @param aTtlHours
+     *            hours a cached result is used, 0 disables the cache
+     */
+    public void setCache(final File aCacheFolder, final int aTtlHours) {
+        cacheTtl = TimeUnit.HOURS.toMillis(aTtlHours);
+        cacheFolder = aTtlHours > 0 ? aCacheFolder : null;
+    }
+
+    /**
+     * @param aConfig
+     *            org to describe
+     * @return global describe of the org, fetched once per run
+     * @throws CommanderException
+     *             if the describe fails
+     */
+    public DescribeGlobalResult describeGlobal(final SfdcConfig aConfig)
+            throws CommanderException {
+        SessionKey key = SessionKey.of(aConfig,
+                SfdcConnectionPool.API_VERSION);
+        DescribeGlobalResult global = globals.get(key);
+        if (global == null) {
+            SfdcConnectionPool connPool = SfdcConnectionPool.getInstance();
+            Soap binding = connPool.acquireBinding(aConfig);
+            try {
+                global = binding.describeGlobal();
+            } catch (RemoteException e) {
+                throw new CommanderException(
+                        "Could not describe salesforce metadata.", e);
+            } finally {
+                connPool.releaseBinding(aConfig, binding);
+            }
+            globals.put(key, global);
+        }
+        return global;
+    }
+
+    /**
+     * @param aConfig
+     *            org to describe
+     * @param aName
+     *            name of the object
+     * @return describe of the object
+     * @throws CommanderException
+     *             if the describe fails
+     */
+    public DescribeSObjectResult describeSObject(final SfdcConfig aConfig,
+            final String aName) throws CommanderException {
+        return describeSObjects(aConfig, Arrays.asList(aName)).get(aName);
+    }
+
+    /**
+     * Describe the given objects. Objects which are neither in memory nor in
+     * the cache folder are described in batches, the batches run in parallel.
+     *
+     * @param aConfig
+     *            org to describe
+     * @param aNames
+     *            names of the objects
+     * @return describes keyed by object name, in the order of the names
+     * @throws CommanderException
+     *             if a describe fails
+     */
+    public Map<String, DescribeSObjectResult> describeSObjects(
+            final SfdcConfig aConfig, final Collection<String> aNames)
+            throws CommanderException {
+        return describeSObjects(aConfig, aNames, false);
+    }
+
+    /**
+     * Describe the given objects, optionally bypassing the results kept in
+     * memory and in the cache folder. A backup needs the current fields of
+     * the objects, a field added since a result has been cached would be
+     * missing in the backup.
+     *
+     * @param aConfig
+     *            org to describe
+     * @param aNames
+     *            names of the objects
+     * @param aFresh
+     *            describe all objects with the api, the results replace the
+     *            kept ones
+     * @return describes keyed by object name, in the order of the names
+     * @throws CommanderException
+     *             if a describe fails
+     */
+    public Map<String, DescribeSObjectResult> describeSObjects(
+            final SfdcConfig aConfig, final Collection<String> aNames,
+            final boolean aFresh) throws CommanderException {
+        SessionKey key = SessionKey.of(aConfig,
+                SfdcConnectionPool.API_VERSION);
+        ConcurrentMap<String, DescribeSObjectResult> described = getObjects(
+                key);
+
+        List<String> missing = new ArrayList<String>();
+        for (String name : aNames) {
+            if (aFresh) {
+                missing.add(name);
+            } else if (!described.containsKey(name)) {
+                DescribeSObjectResult cached = load(key, name);
+                if (cached != null) {
+                    described.put(name, cached);
+                } else {
+                    missing.add(name);
+                }
+            }
+        }
+        if (!missing.isEmpty()) {
+            SfdcCommander.getInstance().debug("Describing " + missing.size()
+                    + " objects of " + key + ".");
+            List<Callable<DescribeSObjectResult[]>> tasks = new ArrayList<Callable<DescribeSObjectResult[]>>();
+            for (int i = 0; i < missing.size(); i += BATCH_SIZE) {
+                final String[] batch = missing
+                        .subList(i, Math.min(i + BATCH_SIZE, missing.size()))
+                        .toArray(new String[0]);
+                tasks.add(new Callable<DescribeSObjectResult[]>() {
+                    @Override
+                    public DescribeSObjectResult[] call()
+                            throws CommanderException {
+                        return describeBatch(aConfig, batch);
+                    }
+                });
+            }
+            for (DescribeSObjectResult[] results : ConcurrentTaskRunner
+                    .invokeAll("describe", aConfig.getMaxConcurrentCalls(),
+                            tasks)) {
+                for (DescribeSObjectResult result : results) {
+                    described.put(result.getName(), result);
+                    store(key, result);
+                }
+            }
+        }
+
+        Map<String, DescribeSObjectResult> result = new LinkedHashMap<String, DescribeSObjectResult>();
+        for (String name : aNames) {
+            DescribeSObjectResult describe = described.get(name);
+            if (describe == null) {
+                throw new CommanderException(
+                        "Could not describe Salesforce-Object: " + name);
+            }
+            result.put(name, describe);
+        }
+        return result;
+    }
+
+    private DescribeSObjectResult[] describeBatch(final SfdcConfig aConfig,
+            final String[] aNames) throws CommanderException {
+        SfdcConnectionPool connPool = SfdcConnectionPool.getInstance();
+        Soap binding = connPool.acquireBinding(aConfig);
+        try {
+            return binding.describeSObjects(aNames);
+        } catch (RemoteException e) {
+            throw new CommanderException("Could not describe Salesforce-Objects: "
+                    + Arrays.toString(aNames), e);
+        } finally {
+            connPool.releaseBinding(aConfig, binding);
+        }
+    }
+
+    private ConcurrentMap<String, DescribeSObjectResult> getObjects(
+            final SessionKey aKey) {
+        ConcurrentMap<String, DescribeSObjectResult> described = objects
+                .get(aKey);
+        if (described == null) {
+            ConcurrentMap<String, DescribeSObjectResult> newDescribed = new ConcurrentHashMap<String, DescribeSObjectResult>();
+            described = objects.putIfAbsent(aKey, newDescribed);
+            if (described == null) {
+                described = newDescribed;
+            }
+        }
+        return described;
+    }
+
+    private DescribeSObjectResult load(final SessionKey aKey,
+            final String aName) {
+        File file = getCacheFile(aKey, aName);
+        if (file == null || !file.isFile() || file.lastModified()
+                + cacheTtl < System.currentTimeMillis()) {
+            return null;
+        }
+        try {
+            ObjectInputStream in = new ObjectInputStream(
+                    new GZIPInputStream(new BufferedInputStream(
+                            new FileInputStream(file))));
+            try {
+                return (DescribeSObjectResult) in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            SfdcCommander.getInstance().debug("Could not read cached describe "
+                    + file + ": " + e.getMessage());
+        } catch (ClassNotFoundException e) {
+            SfdcCommander.getInstance().debug("Could not read cached describe "
+                    + file + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    private void store(final SessionKey aKey,
+            final DescribeSObjectResult aResult) {
+        File file = getCacheFile(aKey, aResult.getName());
+        if (file == null) {
+            return;
+        }
+        try {
+            file.getParentFile().mkdirs();
+            File tmpFile = File.createTempFile("describe", ".tmp",
+                    file.getParentFile());
+            ObjectOutputStream out = new ObjectOutputStream(
+                    new GZIPOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(tmpFile))));
+            try {
+                out.writeObject(aResult);
+            } finally {
+                out.close();
+            }
+            Files.move(tmpFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            SfdcCommander.getInstance().debug("Could not cache describe of "
+                    + aResult.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private File getCacheFile(final SessionKey aKey, final String aName) {
+        File folder = cacheFolder;
+        if (folder == null) {
+            return null;
+        }
+        return new File(new File(folder, SessionCache.hash(aKey.toString())),
+                aName + ".describe");
+    }
+}
@@ -0,0 +1,503 @@
+/**
+ *
+ */
+package de.sfdccommander.controller.connection;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+
+import javax.xml.rpc.ServiceException;
+
+import org.apache.axis.EngineConfiguration;
+import org.apache.axis.client.Stub;
+import org.apache.axis.message.SOAPHeaderElement;
+
+import com.sforce.soap._2006._04.metadata.MetadataBindingStub;
+import com.sforce.soap._2006._04.metadata.MetadataPortType;
+import com.sforce.soap._2006._04.metadata.MetadataServiceLocator;
+import com.sforce.soap.partner.LoginResult;
+import com.sforce.soap.partner.QueryOptions;
+import com.sforce.soap.partner.SessionHeader;
+import com.sforce.soap.partner.SforceServiceLocator;
+import com.sforce.soap.partner.Soap;
+import com.sforce.soap.partner.SoapBindingStub;
+import com.sforce.soap.partner.fault.InvalidIdFault;
+import com.sforce.soap.partner.fault.LoginFault;
+import com.sforce.soap.partner.fault.UnexpectedErrorFault;
+
+import de.sfdccommander.controller.connection.SessionCache.CachedSession;
+import de.sfdccommander.controller.helper.CommanderException;
+import de.sfdccommander.model.SfdcConfig;
+import de.sfdccommander.viewer.SfdcCommander;
+
+/**
+ * Login session of one org. All partner and metadata bindings leased from it
+ * share the session id, the number of leased bindings is limited to the
+ * concurrent calls allowed for the org. If a session cache is available, a
+ * cached session is reused as long as it is still valid. The leased bindings
+ * are proxies with a {@link RetryingBindingHandler}, which logs in again when
+ * the session expires.
+ *
+ * @author jochen
+ *
+ */
+final class OrgSession {
+
+    /**
+     * Timeout of a single api call in milliseconds.
+     */
+    static final int CALL_TIMEOUT = 60000;
+
+    /**
+     * Timeout of a download of the bulk, rest or metadata api in
+     * milliseconds.
+     */
+    static final int DOWNLOAD_TIMEOUT = 10 * CALL_TIMEOUT;
+
+    /**
+     * Name of the soap header with the session id.
+     */
+    private static final String SESSION_HEADER = "SessionHeader";
+
+    /**
+     * Name of the QueryOptions header of the partner api.
+     */
+    private static final String QUERY_OPTIONS_HEADER = "QueryOptions";
+
+    /**
+     * Key of this session.
+     */
+    private final SessionKey key;
+
+    /**
+     * Org configuration with the credentials.
+     */
+    private final SfdcConfig config;
+
+    /**
+     * Permits for in-flight calls on this org.
+     */
+    private final Semaphore callPermits;
+
+    /**
+     * Bindings which are currently not leased.
+     */
+    private final ConcurrentLinkedDeque<Soap> idleBindings;
+
+    /**
+     * Metadata bindings which are currently not leased.
+     */
+    private final ConcurrentLinkedDeque<MetadataPortType> idleMetadataBindings;
+
+    /**
+     * Locator to create partner bindings.
+     */
+    private final SforceServiceLocator locator;
+
+    /**
+     * Locator to create metadata bindings.
+     */
+    private final MetadataServiceLocator metadataLocator;
+
+    /**
+     * Cache of the sessions between runs, may be null.
+     */
+    private final SessionCache sessionCache;
+
+    /**
+     * Current session id.
+     */
+    private volatile String sessionId;
+
+    /**
+     * Partner endpoint of the org.
+     */
+    private volatile String serverUrl;
+
+    /**
+     * Metadata endpoint of the org.
+     */
+    private volatile String metadataServerUrl;
+
+    /**
+     * @param aKey
+     *            key of the session
+     * @param aConfig
+     *            org configuration with the credentials
+     * @param aSessionCache
+     *            cache of the sessions between runs, may be null
+     * @param aTransport
+     *            axis configuration with the http transport
+     */
+    OrgSession(final SessionKey aKey, final SfdcConfig aConfig,
+            final SessionCache aSessionCache,
+            final EngineConfiguration aTransport) {
+        this.key = aKey;
+        this.config = aConfig;
+        this.sessionCache = aSessionCache;
+        this.callPermits = new Semaphore(aConfig.getMaxConcurrentCalls(),
+                true);
+        this.idleBindings = new ConcurrentLinkedDeque<Soap>();
+        this.idleMetadataBindings = new ConcurrentLinkedDeque<MetadataPortType>();
+        this.locator = new SforceServiceLocator(aTransport);
+        this.metadataLocator = new MetadataServiceLocator(aTransport);
+    }
+
+    /**
+     * Lease a binding. Blocks until the org has a free call slot.
+     *
+     * @return binding for exclusive use until it is released
+     * @throws CommanderException
+     *             if login fails or the thread is interrupted
+     */
+    Soap acquire() throws CommanderException {
+        ensureLoggedIn();
+        acquirePermit();
+        Soap binding = idleBindings.pollFirst();
+        if (binding == null) {
+            try {
+                String sid = sessionId;
+                binding = createProxy(createBinding(serverUrl, sid), sid);
+            } catch (CommanderException e) {
+                callPermits.release();
+                throw e;
+            }
+        }
+        return binding;
+    }
+
+    /**
+     * @param aBinding
+     *            binding to hand back to the session
+     */
+    void release(final Soap aBinding) {
+        if (aBinding != null) {
+            // the next lease starts with the default page size
+            setQueryBatchSize(aBinding, 0);
+            idleBindings.offerFirst(aBinding);
+            callPermits.release();
+        }
+    }
+
+    /**
+     * Lease a metadata binding. Blocks until the org has a free call slot.
+     *
+     * @return metadata binding for exclusive use until it is released
+     * @throws CommanderException
+     *             if login fails or the thread is interrupted
+     */
+    MetadataPortType acquireMetadata() throws CommanderException {
+        ensureLoggedIn();
+        acquirePermit();
+        MetadataPortType binding = idleMetadataBindings.pollFirst();
+        if (binding == null) {
+            try {
+                String sid = sessionId;
+                binding = createMetadataProxy(createMetadataBinding(sid), sid);
+            } catch (CommanderException e) {
+                callPermits.release();
+                throw e;
+            }
+        }
+        return binding;
+    }
+
+    /**
+     * @param aBinding
+     *            metadata binding to hand back to the session
+     */
+    void releaseMetadata(final MetadataPortType aBinding) {
+        if (aBinding != null) {
+            idleMetadataBindings.offerFirst(aBinding);
+            callPermits.release();
+        }
+    }
+
+    /**
+     * @return the sessionId
+     * @throws CommanderException
+     *             if login fails
+     */
+    String getSessionId() throws CommanderException {
+        ensureLoggedIn();
+        return sessionId;
+    }
+
+    /**
+     * @return the serverUrl
+     * @throws CommanderException
+     *             if login fails
+     */
+    String getServerUrl() throws CommanderException {
+        ensureLoggedIn();
+        return serverUrl;
+    }
+
+    /**
+     * @return the metadataServerUrl
+     * @throws CommanderException
+     *             if login fails
+     */
+    String getMetadataServerUrl() throws CommanderException {
+        ensureLoggedIn();
+        return metadataServerUrl;
+    }
+
+    /**
+     * @return the key
+     */
+    SessionKey getKey() {
+        return key;
+    }
+
+    /**
+     * Log in again after the server rejected the given session id. If another
+     * thread already replaced that session, its new session is kept. The
+     * bindings of the org pick up the new session header before their next
+     * call.
+     *
+     * @param aExpiredSessionId
+     *            session id rejected by the server
+     * @throws CommanderException
+     *             if login fails
+     */
+    void renewSession(final String aExpiredSessionId)
+            throws CommanderException {
+        synchronized (this) {
+            if (aExpiredSessionId.equals(sessionId)) {
+                SfdcCommander.getInstance().info(
+                        "Session of " + key + " has expired, logging in again.");
+                if (sessionCache != null) {
+                    sessionCache.invalidate(key);
+                }
+                login();
+            }
+        }
+    }
+
+    /**
+     * Replace the session header of a stub and keep its other headers.
+     *
+     * @param aStub
+     *            partner or metadata stub
+     * @param aSessionId
+     *            session id for the header
+     */
+    void applySessionHeader(final Stub aStub, final String aSessionId) {
+        removeHeader(aStub, SESSION_HEADER);
+        if (aStub instanceof MetadataBindingStub) {
+            com.sforce.soap._2006._04.metadata.SessionHeader sh = new com.sforce.soap._2006._04.metadata.SessionHeader();
+            sh.setSessionId(aSessionId);
+            aStub.setHeader(metadataLocator.getServiceName().getNamespaceURI(),
+                    SESSION_HEADER, sh);
+        } else {
+            SessionHeader sh = new SessionHeader();
+            sh.setSessionId(aSessionId);
+            aStub.setHeader(locator.getServiceName().getNamespaceURI(),
+                    SESSION_HEADER, sh);
+        }
+    }
+
+    /**
+     * Set the QueryOptions header of a leased binding.
+     *
+     * @param aBinding
+     *            binding leased from this session
+     * @param aBatchSize
+     *            records per page of query, queryAll and queryMore, 0 for
+     *            the default of the org
+     */
+    void setQueryBatchSize(final Soap aBinding, final int aBatchSize) {
+        if (!Proxy.isProxyClass(aBinding.getClass())) {
+            return;
+        }
+        Stub stub = ((RetryingBindingHandler) Proxy
+                .getInvocationHandler(aBinding)).getStub();
+        removeHeader(stub, QUERY_OPTIONS_HEADER);
+        if (aBatchSize > 0) {
+            stub.setHeader(locator.getServiceName().getNamespaceURI(),
+                    QUERY_OPTIONS_HEADER, new QueryOptions(aBatchSize));
+        }
+    }
+
+    private static void removeHeader(final Stub aStub, final String aName) {
+        SOAPHeaderElement[] headers = aStub.getHeaders();
+        aStub.clearHeaders();
+        for (SOAPHeaderElement header : headers) {
+            if (!aName.equals(header.getName())) {
+                aStub.setHeader(header);
+            }
+        }
+    }
+
+    /**
+     * Take a call slot of the org for a call without a binding.
+     *
+     * @throws CommanderException
+     *             if the thread is interrupted
+     */
+    void acquirePermit() throws CommanderException {
+        try {
+            callPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommanderException(
+                    "Interrupted while waiting for a connection to " + key,
+                    e);
+        }
+    }
+
+    /**
+     * Hand back a call slot taken by {@link #acquirePermit()}.
+     */
+    void releasePermit() {
+        callPermits.release();
+    }
+
+    private void ensureLoggedIn() throws CommanderException {
+        if (sessionId == null) {
+            synchronized (this) {
+                if (sessionId == null && !reuseCachedSession()) {
+                    login();
+                }
+            }
+        }
+    }
+
+    private void login() throws CommanderException {
+        SfdcCommander commander = SfdcCommander.getInstance();
+        try {
+            SoapBindingStub loginBinding = (SoapBindingStub) locator
+                    .getSoap(new URL(key.getLoginUrl() + "/services/Soap/u/"
+                            + key.getApiVersion()));
+            loginBinding.setTimeout(CALL_TIMEOUT);
+            LoginResult lr = loginBinding.login(config.getUsername(),
+                    config.getPassword());
+            if (lr.isPasswordExpired()) {
+                commander.info(
+                        "An error has occurred. Your password has expired.");
+            }
+            serverUrl = lr.getServerUrl();
+            metadataServerUrl = lr.getMetadataServerUrl();
+            sessionId = lr.getSessionId();
+            if (sessionCache != null) {
+                sessionCache.store(key, config.getPassword(),
+                        new CachedSession(sessionId, serverUrl,
+                                metadataServerUrl));
+            }
+        } catch (LoginFault e) {
+            throw new CommanderException(
+                    "Login failed for the following reason: "
+                            + e.getFaultReason(),
+                    e);
+        } catch (UnexpectedErrorFault e) {
+            throw new CommanderException(
+                    "Login failed due to an unexcepted error. Please check the log file for details.",
+                    e);
+        } catch (InvalidIdFault e) {
+            throw new CommanderException("Login failed. Invalid Id.", e);
+        } catch (RemoteException e) {
+            throw new CommanderException(
+                    "Login failed due to a remote issue. Please check the log-file for details.",
+                    e);
+        } catch (ServiceException e) {
+            throw new CommanderException(
+                    "Could not connect to SOAP-API. Wrong URL?", e);
+        } catch (MalformedURLException e) {
+            throw new CommanderException(
+                    "Could not connect to SOAP-API. Wrong URL?", e);
+        }
+    }
+
+    /**
+     * Take over the session of a previous run if the server still accepts
+     * it. The check binding is kept for the first lease.
+     *
+     * @return true if the cached session is valid
+     */
+    private boolean reuseCachedSession() {
+        if (sessionCache == null) {
+            return false;
+        }
+        CachedSession cached = sessionCache.load(key, config.getPassword());
+        if (cached == null || cached.getMetadataServerUrl() == null) {
+            return false;
+        }
+        try {
+            SoapBindingStub binding = createBinding(cached.getServerUrl(),
+                    cached.getSessionId());
+            binding.getServerTimestamp();
+            idleBindings
+                    .offerFirst(createProxy(binding, cached.getSessionId()));
+            serverUrl = cached.getServerUrl();
+            metadataServerUrl = cached.getMetadataServerUrl();
+            sessionId = cached.getSessionId();
+            SfdcCommander.getInstance()
+                    .debug("Reusing cached session of " + key);
+            return true;
+        } catch (CommanderException e) {
+            SfdcCommander.getInstance().debug(
+                    "Cached session of " + key + " is not usable: "
+                            + e.getMessage());
+        } catch (RemoteException e) {
+            SfdcCommander.getInstance().debug(
+                    "Cached session of " + key + " has expired: "
+                            + e.getMessage());
+        }
+        sessionCache.invalidate(key);
+        return false;
+    }
+
+    private Soap createProxy(final SoapBindingStub aBinding,
+            final String aSessionId) {
+        return (Soap) Proxy.newProxyInstance(Soap.class.getClassLoader(),
+                new Class<?>[] {Soap.class },
+                new RetryingBindingHandler(this, aBinding, aSessionId));
+    }
+
+    private MetadataPortType createMetadataProxy(
+            final MetadataBindingStub aBinding, final String aSessionId) {
+        return (MetadataPortType) Proxy.newProxyInstance(
+                MetadataPortType.class.getClassLoader(),
+                new Class<?>[] {MetadataPortType.class },
+                new RetryingBindingHandler(this, aBinding, aSessionId));
+    }
+
+    private SoapBindingStub createBinding(final String aServerUrl,
+            final String aSessionId) throws CommanderException {
+        try {
+            SoapBindingStub binding = (SoapBindingStub) locator
+                    .getSoap(new URL(aServerUrl));
+            binding.setTimeout(CALL_TIMEOUT);
+            applySessionHeader(binding, aSessionId);
+            return binding;
+        } catch (ServiceException e) {
+            throw new CommanderException(
+                    "Could not connect to SOAP-API. Wrong URL?", e);
+        } catch (MalformedURLException e) {
+            throw new CommanderException(
+                    "Could not connect to SOAP-API. Wrong URL?", e);
+        }
+    }
+
+    private MetadataBindingStub createMetadataBinding(
+            final String aSessionId) throws CommanderException {
+        try {
+            MetadataBindingStub binding = (MetadataBindingStub) metadataLocator
+                    .getMetadata(new URL(metadataServerUrl));
+            binding.setTimeout(CALL_TIMEOUT);
+            applySessionHeader(binding, aSessionId);
+            return binding;
+        } catch (ServiceException e) {
+            throw new CommanderException(
+                    "Could not connection to salesforce-API.", e);
+        } catch (MalformedURLException e) {
+            throw new CommanderException(
+                    "Could not connection to salesforce-API.", e);
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/**
+ *
+ */
+package de.sfdccommander.controller.connection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.soap.SOAPException;
+
+import org.apache.axis.AxisFault;
+import org.apache.axis.Constants;
+import org.apache.axis.EngineConfiguration;
+import org.apache.axis.Message;
+import org.apache.axis.MessageContext;
+import org.apache.axis.SimpleTargetedChain;
+import org.apache.axis.configuration.EngineConfigurationFactoryFinder;
+import org.apache.axis.configuration.SimpleProvider;
+import org.apache.axis.handlers.BasicHandler;
+import org.apache.axis.transport.http.HTTPConstants;
+
+/**
+ * Http transport for the axis stubs. Connections are kept alive and reused
+ * by the keep-alive cache of {@link HttpURLConnection}, which also reuses the
+ * TLS sessions. Requests and responses are gzip compressed and the number of
+ * open connections per host is limited.
+ *
+ * @author jochen
+ *
+ */
+public class PooledHttpSender extends BasicHandler {
+
+    /**
+     * Default number of connections per host.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 10;
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String GZIP = "gzip";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Maximum number of connections per host.
+     */
+    private final int maxConnectionsPerHost;
+
+    /**
+     * Compress requests and accept compressed responses.
+     */
+    private final boolean compress;
+
+    /**
+     * Open connections per host.
+     */
+    private final transient ConcurrentMap<String, Semaphore> hostPermits;
+
+    /**
+     * @param aMaxConnectionsPerHost
+     *            maximum number of connections per host
+     * @param aCompress
+     *            compress requests and accept compressed responses
+     */
+    public PooledHttpSender(final int aMaxConnectionsPerHost,
+            final boolean aCompress) {
+        this.maxConnectionsPerHost = Math.max(1, aMaxConnectionsPerHost);
+        this.compress = aCompress;
+        this.hostPermits = new ConcurrentHashMap<String, Semaphore>();
+        // size of the keep-alive cache, only read before the first request
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections",
+                    Integer.toString(maxConnectionsPerHost));
+        }
+    }
+
+    /**
+     * @return axis client configuration which sends http and https calls
+     *         through this sender
+     */
+    public EngineConfiguration toEngineConfiguration() {
+        SimpleProvider provider = new SimpleProvider(
+                EngineConfigurationFactoryFinder.newFactory()
+                        .getClientEngineConfig());
+        // axis uses the http transport for https urls as well
+        provider.deployTransport("http", new SimpleTargetedChain(this));
+        return provider;
+    }
+
+    @Override
+    public void invoke(final MessageContext aMsgContext) throws AxisFault {
+        URL url;
+        try {
+            url = new URL(aMsgContext
+                    .getStrProp(MessageContext.TRANS_URL));
+        } catch (IOException e) {
+            throw AxisFault.makeFault(e);
+        }
+        Semaphore permits = getHostPermits(url);
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw AxisFault.makeFault(e);
+        }
+        try {
+            send(aMsgContext, url);
+        } catch (IOException e) {
+            throw AxisFault.makeFault(e);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * @return the maxConnectionsPerHost
+     */
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * @return true if the messages are compressed
+     */
+    public boolean isCompress() {
+        return compress;
+    }
+
+    /**
+     * Post a soap request and stream the response. The connection counts
+     * against the limit of its host until the returned stream is closed.
+     *
+     * @param aUrl
+     *            endpoint
+     * @param aSoapAction
+     *            soap action of the call
+     * @param aRequest
+     *            soap envelope of the request
+     * @param aTimeout
+     *            connect and read timeout in milliseconds
+     * @return decompressed response body, a soap fault for http 500
+     * @throws IOException
+     *             if the call fails, an {@link AxisFault} with the http error
+     *             code for other http errors
+     */
+    InputStream post(final URL aUrl, final String aSoapAction,
+            final byte[] aRequest, final int aTimeout) throws IOException {
+        return request(aUrl, "POST", "text/xml; charset=utf-8",
+                soapActionHeader(aSoapAction), aRequest, aTimeout);
+    }
+
+    /**
+     * Send a request of an api without axis stub, e.g. the bulk api, and
+     * stream the response. The connection counts against the limit of its
+     * host until the returned stream is closed.
+     *
+     * @param aUrl
+     *            endpoint
+     * @param aMethod
+     *            http method
+     * @param aContentType
+     *            content type of the request body, null without body
+     * @param aHeaders
+     *            additional request headers
+     * @param aRequest
+     *            request body, null without body
+     * @param aTimeout
+     *            connect and read timeout in milliseconds
+     * @return decompressed response body, the body of a http 500 with xml
+     * @throws IOException
+     *             if the call fails, an {@link AxisFault} with the http error
+     *             code and the response body for other http errors
+     */
+    InputStream request(final URL aUrl, final String aMethod,
+            final String aContentType, final Map<String, String> aHeaders,
+            final byte[] aRequest, final int aTimeout) throws IOException {
+        final Semaphore permits = getHostPermits(aUrl);
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                    "Interrupted while waiting for a connection to " + aUrl);
+        }
+        boolean streaming = false;
+        try {
+            HttpURLConnection connection = openConnection(aUrl, aTimeout,
+                    aMethod, aContentType, aHeaders);
+            if (aRequest != null) {
+                OutputStream out = connection.getOutputStream();
+                try {
+                    if (compress) {
+                        GZIPOutputStream gzipOut = new GZIPOutputStream(out,
+                                BUFFER_SIZE);
+                        gzipOut.write(aRequest);
+                        gzipOut.finish();
+                    } else {
+                        out.write(aRequest);
+                    }
+                } finally {
+                    out.close();
+                }
+            }
+            InputStream in = new FilterInputStream(
+                    getResponseStream(connection)) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (!closed) {
+                            closed = true;
+                            permits.release();
+                        }
+                    }
+                }
+            };
+            streaming = true;
+            return in;
+        } finally {
+            if (!streaming) {
+                permits.release();
+            }
+        }
+    }
+
+    private void send(final MessageContext aMsgContext, final URL aUrl)
+            throws IOException {
+        Message request = aMsgContext.getRequestMessage();
+        String action = aMsgContext.useSOAPAction()
+                ? aMsgContext.getSOAPActionURI() : "";
+        HttpURLConnection connection = openConnection(aUrl,
+                aMsgContext.getTimeout(), "POST",
+                request.getContentType(aMsgContext.getSOAPConstants()),
+                soapActionHeader(action));
+
+        OutputStream out = connection.getOutputStream();
+        try {
+            if (compress) {
+                GZIPOutputStream gzipOut = new GZIPOutputStream(out,
+                        BUFFER_SIZE);
+                request.writeTo(gzipOut);
+                gzipOut.finish();
+            } else {
+                request.writeTo(out);
+            }
+        } catch (SOAPException e) {
+            throw new IOException("Could not write soap request.", e);
+        } finally {
+            out.close();
+        }
+
+        InputStream in = getResponseStream(connection);
+        // read the complete body, so the connection goes back to the
+        // keep-alive cache
+        byte[] body = readFully(in, connection.getContentLength());
+        Message response = new Message(new ByteArrayInputStream(body), false,
+                connection.getContentType(), null);
+        response.setMessageType(Message.RESPONSE);
+        aMsgContext.setResponseMessage(response);
+    }
+
+    private HttpURLConnection openConnection(final URL aUrl,
+            final int aTimeout, final String aMethod,
+            final String aContentType, final Map<String, String> aHeaders)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) aUrl
+                .openConnection();
+        connection.setConnectTimeout(aTimeout);
+        connection.setReadTimeout(aTimeout);
+        connection.setRequestMethod(aMethod);
+        connection.setUseCaches(false);
+        if (aContentType != null) {
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(BUFFER_SIZE);
+            connection.setRequestProperty(HTTPConstants.HEADER_CONTENT_TYPE,
+                    aContentType);
+            if (compress) {
+                connection.setRequestProperty(
+                        HTTPConstants.HEADER_CONTENT_ENCODING, GZIP);
+            }
+        }
+        for (Map.Entry<String, String> header : aHeaders.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        connection.setRequestProperty(HTTPConstants.HEADER_USER_AGENT,
+                "sfdcCommander");
+        if (compress) {
+            connection.setRequestProperty(HTTPConstants.HEADER_ACCEPT_ENCODING,
+                    GZIP);
+        }
+        return connection;
+    }
+
+    private static Map<String, String> soapActionHeader(
+            final String aSoapAction) {
+        return Collections.singletonMap(HTTPConstants.HEADER_SOAP_ACTION,
+                "\"" + (aSoapAction == null ? "" : aSoapAction) + "\"");
+    }
+
+    /**
+     * @param aConnection
+     *            connection with a sent request
+     * @return decompressed response body, a soap fault for http 500
+     * @throws IOException
+     *             if the response cannot be read, an {@link AxisFault} with
+     *             the http error code for other http errors
+     */
+    private InputStream getResponseStream(final HttpURLConnection aConnection)
+            throws IOException {
+        int returnCode = aConnection.getResponseCode();
+        String contentType = aConnection.getContentType();
+        InputStream in;
+        if (returnCode >= 200 && returnCode < 300) {
+            in = aConnection.getInputStream();
+        } else {
+            in = aConnection.getErrorStream();
+            if (returnCode != HttpURLConnection.HTTP_INTERNAL_ERROR
+                    || contentType == null || !contentType.contains("xml")
+                    || in == null) {
+                String body = in == null ? ""
+                        : new String(readFully(decode(in, aConnection), 0),
+                                "UTF-8");
+                AxisFault fault = new AxisFault("HTTP",
+                        "(" + returnCode + ")"
+                                + aConnection.getResponseMessage(),
+                        null, null);
+                fault.setFaultDetailString(body);
+                fault.addFaultDetail(Constants.QNAME_FAULTDETAIL_HTTPERRORCODE,
+                        Integer.toString(returnCode));
+                throw fault;
+            }
+        }
+        return decode(in, aConnection);
+    }
+
+    private InputStream decode(final InputStream aIn,
+            final HttpURLConnection aConnection) throws IOException {
+        if (GZIP.equalsIgnoreCase(aConnection
+                .getHeaderField(HTTPConstants.HEADER_CONTENT_ENCODING))) {
+            return new GZIPInputStream(aIn, BUFFER_SIZE);
+        }
+        return aIn;
+    }
+
+    private byte[] readFully(final InputStream aIn, final int aLength)
+            throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(
+                aLength > 0 ? aLength : BUFFER_SIZE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            int read;
+            while ((read = aIn.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+        } finally {
+            aIn.close();
+        }
+        return body.toByteArray();
+    }
+
+    private Semaphore getHostPermits(final URL aUrl) {
+        String host = aUrl.getHost() + ":" + aUrl.getPort();
+        Semaphore permits = hostPermits.get(host);
+        if (permits == null) {
+            Semaphore newPermits = new Semaphore(maxConnectionsPerHost, true);
+            permits = hostPermits.putIfAbsent(host, newPermits);
+            if (permits == null) {
+                permits = newPermits;
+            }
+        }
+        return permits;
+    }
+}
@@ -0,0 +1,318 @@
+/**
+ *
+ */
+package de.sfdccommander.controller.connection;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.axis.AxisFault;
+import org.apache.axis.encoding.Base64;
+
+import com.sforce.soap._2006._04.metadata.RetrieveMessage;
+import com.sforce.soap._2006._04.metadata.RetrieveResult;
+import com.sforce.soap._2006._04.metadata.RetrieveStatus;
+import com.sforce.soap._2006._04.metadata.StatusCode;
+
+import de.sfdccommander.controller.helper.CommanderException;
+
+/**
+ * checkRetrieveStatus call of the metadata api without the axis stub. The
+ * stub keeps the base64 text of the zip-file in its message tree and decodes
+ * it into a byte array, which needs several times the size of the zip-file
+ * on the heap. This client reads the response with StAX instead and decodes
+ * the zipFile element in chunks straight into a file channel.
+ *
+ * @author jochen
+ *
+ */
+final class RetrieveZipClient {
+
+    private static final String METADATA_NAMESPACE = "http://soap.sforce.com/2006/04/metadata";
+
+    /**
+     * Number of base64 characters decoded at once, a multiple of four.
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = createFactory();
+
+    /**
+     * Session of the org.
+     */
+    private final OrgSession session;
+
+    /**
+     * Http transport of the org.
+     */
+    private final PooledHttpSender sender;
+
+    /**
+     * @param aSession
+     *            session of the org
+     * @param aSender
+     *            http transport
+     */
+    RetrieveZipClient(final OrgSession aSession,
+            final PooledHttpSender aSender) {
+        this.session = aSession;
+        this.sender = aSender;
+    }
+
+    /**
+     * Check the status of a retrieve. Expired sessions are renewed and
+     * transient failures retried like the calls of the bindings.
+     *
+     * @param aAsyncProcessId
+     *            id of the retrieve
+     * @param aZipFile
+     *            target of the zip-file, written if the retrieve is done
+     * @return status of the retrieve without the zip-file
+     * @throws CommanderException
+     *             if the call fails
+     */
+    RetrieveResult checkRetrieveStatus(final String aAsyncProcessId,
+            final File aZipFile) throws CommanderException {
+        session.acquirePermit();
+        try {
+            return RetryingBindingHandler.send(session, "checkRetrieveStatus",
+                    true, new RetryingBindingHandler.Request<RetrieveResult>() {
+                        @Override
+                        public RetrieveResult send(final String aSessionId)
+                                throws IOException {
+                            return call(aSessionId, aAsyncProcessId,
+                                    aZipFile);
+                        }
+
+                        @Override
+                        public boolean isInvalidSession(
+                                final IOException aCause) {
+                            return RetryingBindingHandler
+                                    .isInvalidSession(aCause);
+                        }
+                    });
+        } catch (IOException e) {
+            throw new CommanderException(
+                    "Could not download retrieve " + aAsyncProcessId, e);
+        } finally {
+            session.releasePermit();
+        }
+    }
+
+    private RetrieveResult call(final String aSessionId,
+            final String aAsyncProcessId, final File aZipFile)
+            throws IOException {
+        String envelope = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<soapenv:Envelope xmlns:soapenv="
+                + "\"http://schemas.xmlsoap.org/soap/envelope/\""
+                + " xmlns=\"" + METADATA_NAMESPACE + "\">"
+                + "<soapenv:Header><SessionHeader><sessionId>"
+                + escape(aSessionId) + "</sessionId></SessionHeader>"
+                + "</soapenv:Header><soapenv:Body><checkRetrieveStatus>"
+                + "<asyncProcessId>" + escape(aAsyncProcessId)
+                + "</asyncProcessId><includeZip>true</includeZip>"
+                + "</checkRetrieveStatus></soapenv:Body></soapenv:Envelope>";
+        URL url;
+        try {
+            url = new URL(session.getMetadataServerUrl());
+        } catch (CommanderException e) {
+            throw new IOException("Could not log in to " + session.getKey(),
+                    e);
+        }
+        InputStream in = sender.post(url, "", envelope.getBytes("UTF-8"),
+                OrgSession.DOWNLOAD_TIMEOUT);
+        try {
+            return readResponse(in, aZipFile);
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not read response of retrieve "
+                    + aAsyncProcessId, e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param aIn
+     *            soap response
+     * @param aZipFile
+     *            target of the zip-file
+     * @return status of the retrieve without the zip-file
+     * @throws XMLStreamException
+     *             if the response is no valid xml
+     * @throws IOException
+     *             if the zip-file cannot be written or the response is a
+     *             soap fault
+     */
+    static RetrieveResult readResponse(final InputStream aIn,
+            final File aZipFile) throws XMLStreamException, IOException {
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(aIn);
+        try {
+            RetrieveResult result = new RetrieveResult();
+            List<RetrieveMessage> messages = new ArrayList<RetrieveMessage>();
+            String faultCode = null;
+            String faultString = null;
+            int depth = 0;
+            int resultDepth = -1;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                    continue;
+                } else if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                depth++;
+                String name = reader.getLocalName();
+                if (resultDepth < 0) {
+                    if ("result".equals(name)) {
+                        resultDepth = depth;
+                    } else if ("faultcode".equals(name)) {
+                        faultCode = reader.getElementText();
+                        depth--;
+                    } else if ("faultstring".equals(name)) {
+                        faultString = reader.getElementText();
+                        depth--;
+                    }
+                    continue;
+                }
+                if (depth != resultDepth + 1) {
+                    continue;
+                }
+                if ("zipFile".equals(name)) {
+                    writeZip(reader, aZipFile);
+                    depth--;
+                } else if ("messages".equals(name)) {
+                    messages.add(readMessage(reader));
+                    depth--;
+                } else if ("fileProperties".equals(name)) {
+                    // not used, skipped with its children
+                    continue;
+                } else {
+                    setValue(result, name, reader.getElementText());
+                    depth--;
+                }
+            }
+            if (faultCode != null) {
+                String code = faultCode.substring(faultCode.indexOf(':') + 1);
+                throw new AxisFault(new QName(METADATA_NAMESPACE, code),
+                        faultString, null, null);
+            }
+            result.setMessages(
+                    messages.toArray(new RetrieveMessage[messages.size()]));
+            return result;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void setValue(final RetrieveResult aResult,
+            final String aName, final String aValue) {
+        if ("id".equals(aName)) {
+            aResult.setId(aValue);
+        } else if ("done".equals(aName)) {
+            aResult.setDone(Boolean.parseBoolean(aValue));
+        } else if ("success".equals(aName)) {
+            aResult.setSuccess(Boolean.parseBoolean(aValue));
+        } else if ("status".equals(aName)) {
+            aResult.setStatus(RetrieveStatus.fromString(aValue));
+        } else if ("errorMessage".equals(aName)) {
+            aResult.setErrorMessage(aValue);
+        } else if ("errorStatusCode".equals(aName)) {
+            try {
+                aResult.setErrorStatusCode(StatusCode.fromString(aValue));
+            } catch (IllegalArgumentException e) {
+                // code of a newer api version, the message explains it
+                aResult.setErrorMessage(aValue + ": "
+                        + aResult.getErrorMessage());
+            }
+        }
+    }
+
+    private static RetrieveMessage readMessage(final XMLStreamReader aReader)
+            throws XMLStreamException {
+        RetrieveMessage message = new RetrieveMessage();
+        while (aReader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = aReader.getLocalName();
+            String value = aReader.getElementText();
+            if ("fileName".equals(name)) {
+                message.setFileName(value);
+            } else if ("problem".equals(name)) {
+                message.setProblem(value);
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Decode the base64 text of the current element into the file. The text
+     * arrives in several events, whitespace is dropped and the characters are
+     * decoded in blocks of {@value #CHUNK_SIZE}.
+     */
+    private static void writeZip(final XMLStreamReader aReader,
+            final File aZipFile) throws XMLStreamException, IOException {
+        FileChannel channel = FileChannel.open(aZipFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        OutputStream out = new BufferedOutputStream(
+                Channels.newOutputStream(channel), CHUNK_SIZE);
+        try {
+            char[] text = new char[CHUNK_SIZE];
+            char[] pending = new char[CHUNK_SIZE];
+            int count = 0;
+            int event = aReader.next();
+            while (event != XMLStreamConstants.END_ELEMENT) {
+                if (event == XMLStreamConstants.CHARACTERS
+                        || event == XMLStreamConstants.CDATA) {
+                    int start = 0;
+                    int read;
+                    while ((read = aReader.getTextCharacters(start, text, 0,
+                            text.length)) > 0) {
+                        for (int i = 0; i < read; i++) {
+                            if (!Character.isWhitespace(text[i])) {
+                                pending[count++] = text[i];
+                                if (count == pending.length) {
+                                    Base64.decode(pending, 0, count, out);
+                                    count = 0;
+                                }
+                            }
+                        }
+                        start += read;
+                    }
+                }
+                event = aReader.next();
+            }
+            Base64.decode(pending, 0, count, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String escape(final String aValue) {
+        return aValue.replace("&", "&amp;").replace("<", "&lt;")
+                .replace(">", "&gt;");
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                Boolean.FALSE);
+        return factory;
+    }
+}
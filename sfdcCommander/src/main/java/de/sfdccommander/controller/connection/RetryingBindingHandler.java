@@ -0,0 +1,336 @@
+/**
+ *
+ */
+package de.sfdccommander.controller.connection;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.axis.AxisFault;
+import org.apache.axis.Constants;
+import org.apache.axis.client.Stub;
+import org.w3c.dom.Element;
+
+import com.sforce.soap.partner.fault.ApiFault;
+import com.sforce.soap.partner.fault.ExceptionCode;
+
+import de.sfdccommander.controller.helper.CommanderException;
+import de.sfdccommander.viewer.SfdcCommander;
+
+/**
+ * Invocation handler behind the bindings leased from an {@link OrgSession}.
+ * Before each call the binding picks up the current session header of the
+ * org. A call rejected with INVALID_SESSION_ID triggers a new login and is
+ * sent again; idempotent calls are also repeated with jittered exponential
+ * backoff after transient failures. The arguments of a repeated call are
+ * unchanged, so a queryMore continues with the same query locator. The http
+ * requests of the other clients of the org are sent the same way, see
+ * {@link #send(OrgSession, String, boolean, Request)}.
+ *
+ * @author jochen
+ *
+ */
+final class RetryingBindingHandler implements InvocationHandler {
+
+    /**
+     * Number of repetitions after transient failures.
+     */
+    static final int MAX_RETRIES = 5;
+
+    /**
+     * Backoff before the first repetition in milliseconds.
+     */
+    static final long BASE_BACKOFF = 500;
+
+    /**
+     * Upper bound of the backoff in milliseconds.
+     */
+    static final long MAX_BACKOFF = 30000;
+
+    private static final String INVALID_SESSION_ID = "INVALID_SESSION_ID";
+
+    private static final String SERVER_UNAVAILABLE = "SERVER_UNAVAILABLE";
+
+    /**
+     * Read calls of the partner and metadata api which may be sent twice,
+     * besides the describe calls. A retrieve is not repeated, each one starts
+     * another async job on the server.
+     */
+    private static final Set<String> IDEMPOTENT_CALLS = new HashSet<String>(
+            Arrays.asList("query", "queryAll", "queryMore", "search",
+                    "getServerTimestamp", "getUserInfo", "getUpdated",
+                    "getDeleted", "listMetadata", "readMetadata",
+                    "checkRetrieveStatus", "checkDeployStatus"));
+
+    /**
+     * Http request of a client of the org besides the bindings.
+     *
+     * @param <T>
+     *            type of the response
+     */
+    interface Request<T> {
+
+        /**
+         * @param aSessionId
+         *            current session id of the org
+         * @return response of the request
+         * @throws IOException
+         *             if the request fails
+         */
+        T send(String aSessionId) throws IOException;
+
+        /**
+         * @param aCause
+         *            failure of the request
+         * @return true if the server rejected the session id
+         */
+        boolean isInvalidSession(IOException aCause);
+    }
+
+    /**
+     * Session the binding belongs to.
+     */
+    private final OrgSession session;
+
+    /**
+     * Generated axis stub which sends the calls.
+     */
+    private final Stub stub;
+
+    /**
+     * Session id in the header of the stub.
+     */
+    private String appliedSessionId;
+
+    /**
+     * @param aSession
+     *            session the binding belongs to
+     * @param aStub
+     *            stub which sends the calls
+     * @param aSessionId
+     *            session id already in the header of the stub
+     */
+    RetryingBindingHandler(final OrgSession aSession, final Stub aStub,
+            final String aSessionId) {
+        this.session = aSession;
+        this.stub = aStub;
+        this.appliedSessionId = aSessionId;
+    }
+
+    /**
+     * @return stub which sends the calls
+     */
+    Stub getStub() {
+        return stub;
+    }
+
+    @Override
+    public Object invoke(final Object aProxy, final Method aMethod,
+            final Object[] aArgs) throws Throwable {
+        if (aMethod.getDeclaringClass() == Object.class) {
+            return invokeObjectMethod(aProxy, aMethod, aArgs);
+        }
+        boolean renewed = false;
+        int attempt = 0;
+        while (true) {
+            String sessionId = currentSessionId();
+            if (!sessionId.equals(appliedSessionId)) {
+                session.applySessionHeader(stub, sessionId);
+                appliedSessionId = sessionId;
+            }
+            try {
+                return aMethod.invoke(stub, aArgs);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (!renewed && isInvalidSession(cause)) {
+                    // the call has been rejected without any effect, so it
+                    // is sent again with the new session
+                    renewed = true;
+                    renewSession(sessionId);
+                } else if (attempt < MAX_RETRIES && isIdempotent(aMethod)
+                        && isTransient(cause)) {
+                    try {
+                        backoff(session, aMethod.getName(), attempt++, cause);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new RemoteException("Interrupted while retrying "
+                                + aMethod.getName(), cause);
+                    }
+                } else {
+                    throw cause;
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a request like a call of a binding. A request rejected for its
+     * session triggers a new login and is sent again; an idempotent request
+     * is also repeated with backoff after transient failures.
+     *
+     * @param aSession
+     *            session of the org
+     * @param aName
+     *            name of the request in the log
+     * @param aIdempotent
+     *            true if the request may be sent twice
+     * @param aRequest
+     *            request
+     * @return response of the request
+     * @throws IOException
+     *             last failure of the request
+     * @throws CommanderException
+     *             if the session cannot be renewed or the backoff is
+     *             interrupted
+     */
+    static <T> T send(final OrgSession aSession, final String aName,
+            final boolean aIdempotent, final Request<T> aRequest)
+            throws IOException, CommanderException {
+        boolean renewed = false;
+        int attempt = 0;
+        while (true) {
+            String sessionId = aSession.getSessionId();
+            try {
+                return aRequest.send(sessionId);
+            } catch (IOException e) {
+                if (!renewed && aRequest.isInvalidSession(e)) {
+                    renewed = true;
+                    aSession.renewSession(sessionId);
+                } else if (aIdempotent && attempt < MAX_RETRIES
+                        && isTransient(e)) {
+                    try {
+                        backoff(aSession, aName, attempt++, e);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new CommanderException(
+                                "Interrupted while retrying " + aName, e);
+                    }
+                } else {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param aCause
+     *            failure of a call
+     * @return true if the server rejected the session id
+     */
+    static boolean isInvalidSession(final Throwable aCause) {
+        if (aCause instanceof ApiFault) {
+            return ExceptionCode.INVALID_SESSION_ID
+                    .equals(((ApiFault) aCause).getExceptionCode());
+        }
+        return aCause instanceof AxisFault
+                && hasFaultCode((AxisFault) aCause, INVALID_SESSION_ID);
+    }
+
+    /**
+     * @param aCause
+     *            failure of a call
+     * @return true if the call may succeed when it is sent again
+     */
+    static boolean isTransient(final Throwable aCause) {
+        if (aCause instanceof ApiFault) {
+            return ExceptionCode.SERVER_UNAVAILABLE
+                    .equals(((ApiFault) aCause).getExceptionCode());
+        }
+        if (!(aCause instanceof AxisFault)) {
+            return aCause instanceof IOException;
+        }
+        AxisFault fault = (AxisFault) aCause;
+        if (fault.detail instanceof IOException
+                && !(fault.detail instanceof AxisFault)) {
+            return true;
+        }
+        if (hasFaultCode(fault, SERVER_UNAVAILABLE)) {
+            return true;
+        }
+        Element httpCode = fault
+                .lookupFaultDetail(Constants.QNAME_FAULTDETAIL_HTTPERRORCODE);
+        if (httpCode != null) {
+            try {
+                int code = Integer.parseInt(httpCode.getTextContent().trim());
+                return code >= 500 || code == 429;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param aAttempt
+     *            number of previous repetitions
+     * @return jittered exponential backoff before the next repetition
+     */
+    static long getBackoff(final int aAttempt) {
+        long ceiling = Math.min(MAX_BACKOFF, BASE_BACKOFF << aAttempt);
+        return ceiling / 2
+                + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+
+    static boolean isIdempotent(final Method aMethod) {
+        return IDEMPOTENT_CALLS.contains(aMethod.getName())
+                || aMethod.getName().startsWith("describe");
+    }
+
+    private static boolean hasFaultCode(final AxisFault aFault,
+            final String aCode) {
+        if (aFault.getFaultCode() != null
+                && aCode.equals(aFault.getFaultCode().getLocalPart())) {
+            return true;
+        }
+        String faultString = aFault.getFaultString();
+        return faultString != null && faultString.startsWith(aCode);
+    }
+
+    private String currentSessionId() throws RemoteException {
+        try {
+            return session.getSessionId();
+        } catch (CommanderException e) {
+            throw new RemoteException("Could not log in to " + session.getKey(),
+                    e);
+        }
+    }
+
+    private void renewSession(final String aExpiredSessionId)
+            throws RemoteException {
+        try {
+            session.renewSession(aExpiredSessionId);
+        } catch (CommanderException e) {
+            throw new RemoteException(
+                    "Could not renew the session of " + session.getKey(), e);
+        }
+    }
+
+    private static void backoff(final OrgSession aSession,
+            final String aName, final int aAttempt, final Throwable aCause)
+            throws InterruptedException {
+        long delay = getBackoff(aAttempt);
+        SfdcCommander.getInstance()
+                .debug("Retrying " + aName + " on " + aSession.getKey()
+                        + " in " + delay + "ms: " + aCause.getMessage());
+        Thread.sleep(delay);
+    }
+
+    private Object invokeObjectMethod(final Object aProxy,
+            final Method aMethod, final Object[] aArgs) {
+        String name = aMethod.getName();
+        if ("equals".equals(name)) {
+            return aProxy == aArgs[0];
+        }
+        if ("hashCode".equals(name)) {
+            return System.identityHashCode(aProxy);
+        }
+        return "Binding of " + session.getKey();
+    }
+}
@@ -0,0 +1,315 @@
+/**
+ *
+ */
+package de.sfdccommander.controller.connection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Properties;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import de.sfdccommander.viewer.SfdcCommander;
+
+/**
+ * Keeps the sessions of the orgs on the local harddrive, so a new run can
+ * reuse the session of the previous one instead of logging in again. Each
+ * entry is encrypted with a key derived from the password of the org user and
+ * authenticated with a second derived key, a changed entry is rejected
+ * before it is decrypted. The files are only readable by their owner.
+ *
+ * @author jochen
+ *
+ */
+public class SessionCache {
+
+    /**
+     * Length of salt and initialization vector.
+     */
+    private static final int BLOCK_LENGTH = 16;
+
+    /**
+     * Iterations of the key derivation.
+     */
+    private static final int KEY_ITERATIONS = 10000;
+
+    /**
+     * Length of each derived key in bits.
+     */
+    private static final int KEY_LENGTH = 128;
+
+    /**
+     * Length of the HmacSHA256 of initialization vector and cipher text.
+     */
+    private static final int MAC_LENGTH = 32;
+
+    private static final String SESSION_ID = "sessionId";
+    private static final String SERVER_URL = "serverUrl";
+    private static final String METADATA_SERVER_URL = "metadataServerUrl";
+
+    /**
+     * Folder with the cached sessions.
+     */
+    private final File cacheFolder;
+
+    private final SecureRandom random;
+
+    /**
+     * @param aCacheFolder
+     *            folder with the cached sessions
+     */
+    public SessionCache(final File aCacheFolder) {
+        this.cacheFolder = aCacheFolder;
+        this.random = new SecureRandom();
+    }
+
+    /**
+     * @param aKey
+     *            key of the session
+     * @param aPassword
+     *            password of the session user
+     * @return cached session or null if none is available or it cannot be
+     *         decrypted with the password
+     */
+    public synchronized CachedSession load(final SessionKey aKey,
+            final String aPassword) {
+        File sessionFile = getSessionFile(aKey);
+        if (!sessionFile.isFile()) {
+            return null;
+        }
+        try {
+            byte[] content = Files.readAllBytes(sessionFile.toPath());
+            int macStart = content.length - MAC_LENGTH;
+            if (macStart <= 2 * BLOCK_LENGTH) {
+                return null;
+            }
+            byte[] salt = Arrays.copyOfRange(content, 0, BLOCK_LENGTH);
+            byte[] iv = Arrays.copyOfRange(content, BLOCK_LENGTH,
+                    2 * BLOCK_LENGTH);
+            byte[] keys = deriveKeys(aPassword, salt);
+            byte[] mac = getMac(keys, content, macStart);
+            if (!MessageDigest.isEqual(mac,
+                    Arrays.copyOfRange(content, macStart, content.length))) {
+                // password changed or file corrupt, a new login replaces it
+                SfdcCommander.getInstance().debug(
+                        "Could not authenticate cached session of " + aKey);
+                return null;
+            }
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.DECRYPT_MODE, getCipherKey(keys),
+                    new IvParameterSpec(iv));
+            byte[] plain = cipher.doFinal(content, 2 * BLOCK_LENGTH,
+                    macStart - 2 * BLOCK_LENGTH);
+            Properties properties = new Properties();
+            properties.load(new ByteArrayInputStream(plain));
+            String sessionId = properties.getProperty(SESSION_ID);
+            String serverUrl = properties.getProperty(SERVER_URL);
+            if (sessionId == null || serverUrl == null) {
+                return null;
+            }
+            return new CachedSession(sessionId, serverUrl,
+                    properties.getProperty(METADATA_SERVER_URL));
+        } catch (IOException e) {
+            SfdcCommander.getInstance()
+                    .debug("Could not read cached session of " + aKey + ": "
+                            + e.getMessage());
+        } catch (GeneralSecurityException e) {
+            SfdcCommander.getInstance()
+                    .debug("Could not decrypt cached session of " + aKey);
+        } catch (IllegalArgumentException e) {
+            SfdcCommander.getInstance()
+                    .debug("Could not read cached session of " + aKey);
+        }
+        return null;
+    }
+
+    /**
+     * @param aKey
+     *            key of the session
+     * @param aPassword
+     *            password of the session user
+     * @param aSession
+     *            session to cache
+     */
+    public synchronized void store(final SessionKey aKey,
+            final String aPassword, final CachedSession aSession) {
+        File sessionFile = getSessionFile(aKey);
+        try {
+            Properties properties = new Properties();
+            properties.setProperty(SESSION_ID, aSession.getSessionId());
+            properties.setProperty(SERVER_URL, aSession.getServerUrl());
+            if (aSession.getMetadataServerUrl() != null) {
+                properties.setProperty(METADATA_SERVER_URL,
+                        aSession.getMetadataServerUrl());
+            }
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            properties.store(plain, null);
+
+            byte[] salt = new byte[BLOCK_LENGTH];
+            byte[] iv = new byte[BLOCK_LENGTH];
+            random.nextBytes(salt);
+            random.nextBytes(iv);
+            byte[] keys = deriveKeys(aPassword, salt);
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.ENCRYPT_MODE, getCipherKey(keys),
+                    new IvParameterSpec(iv));
+            byte[] encrypted = cipher.doFinal(plain.toByteArray());
+
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            content.write(salt);
+            content.write(iv);
+            content.write(encrypted);
+            content.write(getMac(keys, content.toByteArray(), content.size()));
+
+            cacheFolder.mkdirs();
+            // created readable by the owner only where the file system
+            // supports it, the permissions are kept by the move
+            Path tmpFile = Files.createTempFile(cacheFolder.toPath(),
+                    "session", ".tmp");
+            try {
+                Files.write(tmpFile, content.toByteArray());
+                Files.move(tmpFile, sessionFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmpFile);
+            }
+        } catch (IOException e) {
+            SfdcCommander.getInstance()
+                    .debug("Could not cache session of " + aKey + ": "
+                            + e.getMessage());
+        } catch (GeneralSecurityException e) {
+            SfdcCommander.getInstance().debug(
+                    "Could not encrypt session of " + aKey + ": "
+                            + e.getMessage());
+        }
+    }
+
+    /**
+     * @param aKey
+     *            key of the session to forget
+     */
+    public synchronized void invalidate(final SessionKey aKey) {
+        getSessionFile(aKey).delete();
+    }
+
+    private File getSessionFile(final SessionKey aKey) {
+        return new File(cacheFolder, hash(aKey.toString()) + ".session");
+    }
+
+    /**
+     * @return key of the cipher followed by the key of the mac
+     */
+    private byte[] deriveKeys(final String aPassword, final byte[] aSalt)
+            throws GeneralSecurityException {
+        SecretKeyFactory factory = SecretKeyFactory
+                .getInstance("PBKDF2WithHmacSHA1");
+        PBEKeySpec spec = new PBEKeySpec(
+                (aPassword == null ? "" : aPassword).toCharArray(), aSalt,
+                KEY_ITERATIONS, 2 * KEY_LENGTH);
+        return factory.generateSecret(spec).getEncoded();
+    }
+
+    private SecretKey getCipherKey(final byte[] aKeys) {
+        return new SecretKeySpec(aKeys, 0, KEY_LENGTH / 8, "AES");
+    }
+
+    /**
+     * @param aKeys
+     *            derived keys
+     * @param aContent
+     *            salt, initialization vector and cipher text
+     * @param aLength
+     *            length of the content without a mac
+     * @return mac of initialization vector and cipher text
+     */
+    private byte[] getMac(final byte[] aKeys, final byte[] aContent,
+            final int aLength) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(aKeys, KEY_LENGTH / 8, KEY_LENGTH / 8,
+                "HmacSHA256"));
+        mac.update(aContent, BLOCK_LENGTH, aLength - BLOCK_LENGTH);
+        return mac.doFinal();
+    }
+
+    /**
+     * @param aValue
+     *            value to hash
+     * @return hex encoded sha-1 hash of the value, usable as file name
+     */
+    static String hash(final String aValue) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest(aValue.getBytes("UTF-8"))) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Session data which is kept between runs.
+     */
+    public static final class CachedSession {
+        private final String sessionId;
+        private final String serverUrl;
+        private final String metadataServerUrl;
+
+        /**
+         * @param aSessionId
+         *            session id
+         * @param aServerUrl
+         *            partner endpoint
+         * @param aMetadataServerUrl
+         *            metadata endpoint
+         */
+        public CachedSession(final String aSessionId, final String aServerUrl,
+                final String aMetadataServerUrl) {
+            this.sessionId = aSessionId;
+            this.serverUrl = aServerUrl;
+            this.metadataServerUrl = aMetadataServerUrl;
+        }
+
+        /**
+         * @return the sessionId
+         */
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        /**
+         * @return the serverUrl
+         */
+        public String getServerUrl() {
+            return serverUrl;
+        }
+
+        /**
+         * @return the metadataServerUrl
+         */
+        public String getMetadataServerUrl() {
+            return metadataServerUrl;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ *
+ */
+package de.sfdccommander.controller.connection;
+
+import de.sfdccommander.model.SfdcConfig;
+
+/**
+ * Identifies one salesforce.com session: login url, user and api version.
+ *
+ * @author jochen
+ *
+ */
+public final class SessionKey {
+
+    /**
+     * Login url of the org.
+     */
+    private final String loginUrl;
+
+    /**
+     * User of the session.
+     */
+    private final String username;
+
+    /**
+     * Api version of the partner and metadata endpoints.
+     */
+    private final String apiVersion;
+
+    /**
+     * @param aLoginUrl
+     *            login url of the org
+     * @param aUsername
+     *            user of the session
+     * @param aApiVersion
+     *            api version of the endpoints
+     */
+    public SessionKey(final String aLoginUrl, final String aUsername,
+            final String aApiVersion) {
+        this.loginUrl = aLoginUrl;
+        this.username = aUsername;
+        this.apiVersion = aApiVersion;
+    }
+
+    /**
+     * @param aConfig
+     *            org configuration
+     * @param aApiVersion
+     *            api version of the endpoints
+     * @return key for the session of the given org
+     */
+    public static SessionKey of(final SfdcConfig aConfig,
+            final String aApiVersion) {
+        return new SessionKey(aConfig.getLoginUrl(), aConfig.getUsername(),
+                aApiVersion);
+    }
+
+    /**
+     * @return the loginUrl
+     */
+    public String getLoginUrl() {
+        return loginUrl;
+    }
+
+    /**
+     * @return the username
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * @return the apiVersion
+     */
+    public String getApiVersion() {
+        return apiVersion;
+    }
+
+    @Override
+    public boolean equals(final Object aObject) {
+        if (this == aObject) {
+            return true;
+        }
+        if (!(aObject instanceof SessionKey)) {
+            return false;
+        }
+        SessionKey other = (SessionKey) aObject;
+        return equal(loginUrl, other.loginUrl)
+                && equal(username, other.username)
+                && equal(apiVersion, other.apiVersion);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 17;
+        result = 31 * result + (loginUrl == null ? 0 : loginUrl.hashCode());
+        result = 31 * result + (username == null ? 0 : username.hashCode());
+        result = 31 * result
+                + (apiVersion == null ? 0 : apiVersion.hashCode());
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return username + "@" + loginUrl + " (v" + apiVersion + ")";
+    }
+
+    private static boolean equal(final String aFirst, final String aSecond) {
+        return aFirst == null ? aSecond == null : aFirst.equals(aSecond);
+    }
+}
@@ -3,131 +3,265 @@
  */
 package de.sfdccommander.controller.connection;
 
-import java.rmi.RemoteException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.File;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import javax.xml.rpc.ServiceException;
+import org.apache.axis.EngineConfiguration;
 
-import com.sforce.soap._2006._04.metadata.SessionHeader;
-import com.sforce.soap.partner.LoginResult;
-import com.sforce.soap.partner.SforceServiceLocator;
-import com.sforce.soap.partner.SoapBindingStub;
-import com.sforce.soap.partner.fault.InvalidIdFault;
-import com.sforce.soap.partner.fault.LoginFault;
-import com.sforce.soap.partner.fault.UnexpectedErrorFault;
+import com.sforce.soap._2006._04.metadata.MetadataPortType;
+import com.sforce.soap._2006._04.metadata.RetrieveResult;
+import com.sforce.soap.partner.Soap;
 
 import de.sfdccommander.controller.helper.CommanderException;
 import de.sfdccommander.model.SfdcConfig;
-import de.sfdccommander.viewer.SfdcCommander;
 
 /**
- * Pool of all active srvrmgr sessions.
- * 
+ * Pool of all active salesforce.com sessions, keyed by login url, user and
+ * api version. Each session leases independent bindings which share one
+ * session id; the number of bindings leased at the same time is capped per
+ * org. Partner and metadata bindings of an org use the same session, with a
+ * {@link SessionCache} the session also survives the run. All calls go
+ * through the keep-alive transport of the {@link PooledHttpSender}. Expired
+ * sessions are renewed and transient failures retried behind the leased
+ * bindings.
+ *
+ * <pre>
+ * Soap binding = pool.acquireBinding(config);
+ * try {
+ *     binding.describeGlobal();
+ * } finally {
+ *     pool.releaseBinding(config, binding);
+ * }
+ * </pre>
+ *
  * @author jochen
- * 
+ *
  */
 public final class SfdcConnectionPool {
     /**
-     * SrvrMgrConnectionPool singleton.
+     * Api version of the partner endpoint.
+     */
+    public static final String API_VERSION = "34.0";
+
+    /**
+     * SfdcConnectionPool singleton.
      */
-    private static SfdcConnectionPool instance;
+    private static final SfdcConnectionPool INSTANCE = new SfdcConnectionPool();
+
     /**
-     * List of sessions in pool.
+     * Sessions in pool.
      */
-    private final List<SoapBindingStub> bindings;
+    private final ConcurrentMap<SessionKey, OrgSession> sessions;
 
-    private final SfdcCommander commander;
+    /**
+     * Cache of the sessions between runs, null if disabled.
+     */
+    private volatile SessionCache sessionCache;
+
+    /**
+     * Http transport of new sessions.
+     */
+    private volatile PooledHttpSender sender;
+
+    /**
+     * Axis configuration with the http transport of new sessions.
+     */
+    private volatile EngineConfiguration transport;
 
     /**
      * Default constructor.
      */
     private SfdcConnectionPool() {
-        bindings = new ArrayList<SoapBindingStub>();
-        commander = SfdcCommander.getInstance();
+        sessions = new ConcurrentHashMap<SessionKey, OrgSession>();
+        setHttpSender(new PooledHttpSender(
+                PooledHttpSender.DEFAULT_MAX_CONNECTIONS_PER_HOST, true));
     }
 
     /**
-     * Provide SrvrMgrSession based on parameters.
-     * 
-     * @param config
+     * Lease a binding for the given org. The caller has exclusive use of the
+     * binding until it is handed back with
+     * {@link #releaseBinding(SfdcConfig, Soap)}. Blocks while the org has
+     * no free call slot.
+     *
+     * @param aConfig
      *            parameters for session
-     * @return either new or existing session based on parameters
+     * @return binding logged in to the org
      * @throws CommanderException
-     * @throws ConnectionException
-     * @throws ServerManagerException
-     *             if issue with srvrmgr occurs
+     *             if login fails
      */
-    public SoapBindingStub getBinding(final SfdcConfig aConfig)
+    public Soap acquireBinding(final SfdcConfig aConfig)
             throws CommanderException {
-        SoapBindingStub binding = null;
-        SforceServiceLocator salesForceSL = new SforceServiceLocator();
-        salesForceSL.setSoapEndpointAddress(
-                aConfig.getLoginUrl() + "/services/Soap/u/34.0");
-        boolean equals = false;
-        for (SoapBindingStub actBinding : bindings) {
-            // Compare Parameters
-            if (actBinding.getUsername().equals(aConfig.getUsername())) {
-                if (actBinding.getPassword().equals(aConfig.getPassword())) {
-                    equals = true;
-                }
-            }
-            if (equals) {
-                binding = actBinding;
-                break;
-            }
+        return getSession(aConfig).acquire();
+    }
+
+    /**
+     * @param aConfig
+     *            parameters for session
+     * @param aBinding
+     *            binding leased by {@link #acquireBinding(SfdcConfig)}
+     */
+    public void releaseBinding(final SfdcConfig aConfig,
+            final Soap aBinding) {
+        OrgSession session = sessions
+                .get(SessionKey.of(aConfig, API_VERSION));
+        if (session != null) {
+            session.release(aBinding);
+        }
+    }
+
+    /**
+     * Set the number of records per page of the queries of a leased binding.
+     * The setting is reset when the binding is released.
+     *
+     * @param aConfig
+     *            parameters for session
+     * @param aBinding
+     *            binding leased by {@link #acquireBinding(SfdcConfig)}
+     * @param aBatchSize
+     *            records per page, 0 for the default of the org
+     */
+    public void setQueryBatchSize(final SfdcConfig aConfig,
+            final Soap aBinding, final int aBatchSize) {
+        OrgSession session = sessions
+                .get(SessionKey.of(aConfig, API_VERSION));
+        if (session != null) {
+            session.setQueryBatchSize(aBinding, aBatchSize);
         }
-        if (binding == null) {
-            try {
-                binding = (SoapBindingStub) salesForceSL.getSoap();
-                binding.setTimeout(60000);
-                LoginResult lr;
-                lr = binding.login(aConfig.getUsername(),
-                        aConfig.getPassword());
-
-                SessionHeader sh = new SessionHeader();
-                sh.setSessionId(lr.getSessionId());
-                binding._setProperty(SoapBindingStub.ENDPOINT_ADDRESS_PROPERTY,
-                        lr.getServerUrl());
-                binding.setHeader(
-                        salesForceSL.getServiceName().getNamespaceURI(),
-                        "SessionHeader", sh);
-                if (lr.isPasswordExpired()) {
-                    commander.info(
-                            "An error has occurred. Your password has expired.");
+    }
+
+    /**
+     * Lease a metadata binding for the given org. It shares the session and
+     * the call limit with the partner bindings of the org.
+     *
+     * @param aConfig
+     *            parameters for session
+     * @return metadata binding logged in to the org
+     * @throws CommanderException
+     *             if login fails
+     */
+    public MetadataPortType acquireMetadataBinding(final SfdcConfig aConfig)
+            throws CommanderException {
+        return getSession(aConfig).acquireMetadata();
+    }
+
+    /**
+     * @param aConfig
+     *            parameters for session
+     * @param aBinding
+     *            binding leased by {@link #acquireMetadataBinding(SfdcConfig)}
+     */
+    public void releaseMetadataBinding(final SfdcConfig aConfig,
+            final MetadataPortType aBinding) {
+        OrgSession session = sessions
+                .get(SessionKey.of(aConfig, API_VERSION));
+        if (session != null) {
+            session.releaseMetadata(aBinding);
+        }
+    }
+
+    /**
+     * @param aSessionCache
+     *            cache to keep sessions between runs, null to disable it
+     */
+    public void setSessionCache(final SessionCache aSessionCache) {
+        sessionCache = aSessionCache;
+    }
+
+    /**
+     * @param aSender
+     *            http transport for the sessions created from now on
+     */
+    public void setHttpSender(final PooledHttpSender aSender) {
+        transport = aSender.toEngineConfiguration();
+        sender = aSender;
+    }
+
+    /**
+     * Check the status of a retrieve and stream its zip-file to disk. The
+     * base64 content is decoded while the response is read, so the size of
+     * the zip-file does not matter for the heap. The call shares the session
+     * and the call limit with the bindings of the org.
+     *
+     * @param aConfig
+     *            parameters for session
+     * @param aAsyncProcessId
+     *            id of the retrieve
+     * @param aZipFile
+     *            target of the zip-file, written if the retrieve is done
+     * @return status of the retrieve without the zip-file
+     * @throws CommanderException
+     *             if the call fails
+     */
+    public RetrieveResult checkRetrieveStatus(final SfdcConfig aConfig,
+            final String aAsyncProcessId, final File aZipFile)
+            throws CommanderException {
+        return new RetrieveZipClient(getSession(aConfig), sender)
+                .checkRetrieveStatus(aAsyncProcessId, aZipFile);
+    }
+
+    /**
+     * @param aConfig
+     *            parameters for session
+     * @return client of the bulk api query jobs, sharing the session and the
+     *         call limit with the bindings of the org
+     */
+    public BulkQueryClient getBulkQueryClient(final SfdcConfig aConfig) {
+        return new BulkQueryClient(getSession(aConfig), sender);
+    }
+
+    /**
+     * Stream the content of a base64 field, e.g. Attachment.Body, as raw
+     * bytes instead of querying it as base64 text. The download shares the
+     * session and the call limit with the bindings of the org and holds a
+     * call slot until the stream is closed.
+     *
+     * @param aConfig
+     *            parameters for session
+     * @param aObjectName
+     *            object of the record
+     * @param aId
+     *            Id of the record
+     * @param aFieldName
+     *            base64 field
+     * @return content of the field, null if the field is empty
+     * @throws CommanderException
+     *             if the download cannot be started
+     */
+    public InputStream openBlob(final SfdcConfig aConfig,
+            final String aObjectName, final String aId,
+            final String aFieldName) throws CommanderException {
+        return new BlobClient(getSession(aConfig), sender).open(aObjectName,
+                aId, aFieldName);
+    }
+
+    /**
+     * @param aConfig
+     *            parameters for session
+     * @return session of the org, created on first use
+     */
+    OrgSession getSession(final SfdcConfig aConfig) {
+        SessionKey key = SessionKey.of(aConfig, API_VERSION);
+        OrgSession session = sessions.get(key);
+        if (session == null) {
+            // the axis engine configuration must not be read concurrently
+            synchronized (sessions) {
+                session = sessions.get(key);
+                if (session == null) {
+                    session = new OrgSession(key, aConfig, sessionCache,
+                            transport);
+                    sessions.put(key, session);
                 }
-            } catch (LoginFault e) {
-                throw new CommanderException(
-                        "Login failed for the following reason: "
-                                + e.getFaultReason(),
-                        e);
-            } catch (UnexpectedErrorFault e) {
-                throw new CommanderException(
-                        "Login failed due to an unexcepted error. Please check the log file for details.",
-                        e);
-            } catch (InvalidIdFault e) {
-                throw new CommanderException("Login failed. Invalid Id.", e);
-            } catch (RemoteException e) {
-                throw new CommanderException(
-                        "Login failed due to a remote issue. Please check the log-file for details.",
-                        e);
-            } catch (ServiceException e) {
-                throw new CommanderException(
-                        "Could not connect to SOAP-API. Wrong URL?", e);
             }
-
-            bindings.add(binding);
         }
-        return binding;
+        return session;
     }
 
     /**
-     * @return SrvrMgrConnectionPool Singleton
+     * @return SfdcConnectionPool Singleton
      */
     public static SfdcConnectionPool getInstance() {
-        if (SfdcConnectionPool.instance == null) {
-            SfdcConnectionPool.instance = new SfdcConnectionPool();
-        }
-        return SfdcConnectionPool.instance;
+        return INSTANCE;
     }
 }
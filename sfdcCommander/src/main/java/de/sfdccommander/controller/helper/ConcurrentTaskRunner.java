@@ -0,0 +1,117 @@
+/**
+ *
+ */
+package de.sfdccommander.controller.helper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs independent tasks on a bounded number of worker threads.
+ *
+ * @author jochen
+ *
+ */
+public final class ConcurrentTaskRunner {
+
+    private ConcurrentTaskRunner() {
+    }
+
+    /**
+     * Run all tasks and wait for them. The results keep the order of the
+     * tasks. If a task fails, the remaining tasks are cancelled and the
+     * failure is rethrown.
+     *
+     * @param aName
+     *            name prefix of the worker threads
+     * @param aThreads
+     *            maximum number of tasks running at the same time
+     * @param aTasks
+     *            tasks to run
+     * @return results of the tasks
+     * @throws CommanderException
+     *             first failure of a task
+     */
+    public static <T> List<T> invokeAll(final String aName, final int aThreads,
+            final List<? extends Callable<T>> aTasks)
+            throws CommanderException {
+        List<T> results = new ArrayList<T>(aTasks.size());
+        if (aTasks.isEmpty()) {
+            return results;
+        }
+        ExecutorService executor = newExecutor(aName,
+                Math.max(1, Math.min(aThreads, aTasks.size())));
+        try {
+            List<Future<T>> futures = new ArrayList<Future<T>>(aTasks.size());
+            for (Callable<T> task : aTasks) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<T> future : futures) {
+                results.add(getResult(future));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * @param aName
+     *            name prefix of the worker threads
+     * @param aThreads
+     *            number of worker threads
+     * @return executor with daemon worker threads
+     */
+    public static ExecutorService newExecutor(final String aName,
+            final int aThreads) {
+        return Executors.newFixedThreadPool(aThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable aRunnable) {
+                Thread thread = new Thread(aRunnable,
+                        aName + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Wait for a future and unwrap its failure.
+     *
+     * @param aFuture
+     *            future of a submitted task
+     * @return result of the task
+     * @throws CommanderException
+     *             failure of the task
+     */
+    public static <T> T getResult(final Future<T> aFuture)
+            throws CommanderException {
+        try {
+            return aFuture.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommanderException("Task has been interrupted.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CommanderException) {
+                throw (CommanderException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new CommanderException(cause);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ *
+ */
+package de.sfdccommander.controller.helper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the records of a csv file as written by the bulk api: comma
+ * separated, values with commas, quotes or line breaks in double quotes, and
+ * quotes in values doubled. The records are read one by one, so large files
+ * are not loaded at once.
+ *
+ * @author jochen
+ *
+ */
+public class CsvReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Reader reader;
+
+    private final char[] buffer = new char[BUFFER_SIZE];
+
+    private int position;
+
+    private int length;
+
+    /**
+     * @param aReader
+     *            csv content, closed by {@link #close()}
+     */
+    public CsvReader(Reader aReader) {
+        reader = aReader;
+    }
+
+    /**
+     * @return values of the next record, null at the end of the file
+     * @throws IOException
+     *             if the content cannot be read
+     */
+    public String[] readRecord() throws IOException {
+        int c = read();
+        if (c == -1) {
+            return null;
+        }
+        List<String> values = new ArrayList<String>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        while (true) {
+            if (quoted) {
+                if (c == -1) {
+                    throw new IOException("Unterminated quoted value in csv");
+                }
+                if (c == '"') {
+                    c = read();
+                    if (c != '"') {
+                        quoted = false;
+                        continue;
+                    }
+                }
+                value.append((char) c);
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else if (c == '\n' || c == -1) {
+                break;
+            } else if (c == '\r') {
+                c = read();
+                if (c != '\n' && c != -1) {
+                    // a single carriage return ends the record as well
+                    position--;
+                }
+                break;
+            } else {
+                value.append((char) c);
+            }
+            c = read();
+        }
+        values.add(value.toString());
+        return values.toArray(new String[values.size()]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private int read() throws IOException {
+        if (position == length) {
+            length = reader.read(buffer, 0, buffer.length);
+            position = 0;
+            if (length <= 0) {
+                length = 0;
+                return -1;
+            }
+        }
+        return buffer[position++];
+    }
+}
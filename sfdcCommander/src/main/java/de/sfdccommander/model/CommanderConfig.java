@@ -29,6 +29,11 @@ public class CommanderConfig {
      */
     public static final String SF_SERVERURL = "sf.serverurl";
 
+    /**
+     * 
+     */
+    public static final String SF_MAX_CONCURRENT_CALLS = "sf.maxconcurrentcalls";
+
     /**
      * 
      */
@@ -39,6 +44,16 @@ public class CommanderConfig {
      */
     public static final String HTTP_PROXY_PORT = "http.proxyPort";
 
+    /**
+     * 
+     */
+    public static final String HTTP_MAX_CONNECTIONS_PER_HOST = "http.maxconnectionsperhost";
+
+    /**
+     * 
+     */
+    public static final String HTTP_COMPRESSION = "http.compression";
+
     /**
      * 
      */
@@ -59,6 +74,16 @@ public class CommanderConfig {
      */
     public static final String RENDER_PATH = "render.path";
 
+    /**
+     * 
+     */
+    public static final String RENDER_SERVE_PORT = "render.serveport";
+
+    /**
+     * 
+     */
+    public static final String RENDER_SERVE_ADDRESS = "render.serveaddress";
+
     /**
      * 
      */
@@ -69,6 +94,31 @@ public class CommanderConfig {
      */
     public static final String BACKUP_PATH = "backup.path";
 
+    /**
+     * 
+     */
+    public static final String BACKUP_INCREMENTAL = "backup.incremental";
+
+    /**
+     * 
+     */
+    public static final String BACKUP_BULK_THRESHOLD = "backup.bulkthreshold";
+
+    /**
+     * 
+     */
+    public static final String CACHE_PATH = "cache.path";
+
+    /**
+     * 
+     */
+    public static final String SESSION_CACHE = "session.cache";
+
+    /**
+     * 
+     */
+    public static final String DESCRIBE_CACHE_TTL = "describe.cachettl";
+
     /**
      * 
      */
@@ -89,6 +139,41 @@ public class CommanderConfig {
      */
     public static final String SF_TARGET_SERVERURL = "target.serverurl";
 
+    /**
+     * 
+     */
+    public static final String SF_TARGET_MAX_CONCURRENT_CALLS = "target.maxconcurrentcalls";
+
+    /**
+     * 
+     */
+    public static final String SF_RETRIEVE_CHUNK_SIZE = "sf.retrievechunksize";
+
+    /**
+     * 
+     */
+    public static final String SF_TARGET_RETRIEVE_CHUNK_SIZE = "target.retrievechunksize";
+
+    /**
+     * 
+     */
+    public static final String SF_QUERY_BATCH_SIZE = "sf.querybatchsize";
+
+    /**
+     * 
+     */
+    public static final String SF_TARGET_QUERY_BATCH_SIZE = "target.querybatchsize";
+
+    /**
+     * 
+     */
+    public static final String SF_INCREMENTAL_RETRIEVE = "sf.incrementalretrieve";
+
+    /**
+     * 
+     */
+    public static final String SF_TARGET_INCREMENTAL_RETRIEVE = "target.incrementalretrieve";
+
     /**
      * 
      */
@@ -102,6 +187,14 @@ public class CommanderConfig {
      * 
      */
     private String httpProxyPort;
+    /**
+     * 
+     */
+    private int httpMaxConnectionsPerHost;
+    /**
+     * 
+     */
+    private boolean httpCompression;
 
     /**
      * 
@@ -112,6 +205,14 @@ public class CommanderConfig {
      * 
      */
     private String renderPath;
+    /**
+     * 
+     */
+    private int renderServePort;
+    /**
+     * 
+     */
+    private String renderServeAddress;
     /**
      * 
      */
@@ -120,6 +221,26 @@ public class CommanderConfig {
      * 
      */
     private String backupPath;
+    /**
+     * 
+     */
+    private boolean backupIncremental;
+    /**
+     * 
+     */
+    private int backupBulkThreshold;
+    /**
+     * 
+     */
+    private String cachePath;
+    /**
+     * 
+     */
+    private boolean sessionCacheEnabled;
+    /**
+     * 
+     */
+    private int describeCacheTtl;
 
     /**
      * 
@@ -141,6 +262,37 @@ public class CommanderConfig {
         renderPath = aRenderPath;
     }
 
+    /**
+     * @return the port of the documentation server
+     */
+    public final int getRenderServePort() {
+        return renderServePort;
+    }
+
+    /**
+     * @param aRenderServePort
+     *            the port of the documentation server to set
+     */
+    public final void setRenderServePort(int aRenderServePort) {
+        renderServePort = aRenderServePort;
+    }
+
+    /**
+     * @return the address the documentation server listens on, null for the
+     *         loopback interface
+     */
+    public final String getRenderServeAddress() {
+        return renderServeAddress;
+    }
+
+    /**
+     * @param aRenderServeAddress
+     *            the address the documentation server listens on to set
+     */
+    public final void setRenderServeAddress(String aRenderServeAddress) {
+        renderServeAddress = aRenderServeAddress;
+    }
+
     /**
      * @return the httpProxyHost
      */
@@ -171,6 +323,37 @@ public class CommanderConfig {
         httpProxyPort = aHttpProxyPort;
     }
 
+    /**
+     * @return the httpMaxConnectionsPerHost
+     */
+    public final int getHttpMaxConnectionsPerHost() {
+        return httpMaxConnectionsPerHost;
+    }
+
+    /**
+     * @param aHttpMaxConnectionsPerHost
+     *            the httpMaxConnectionsPerHost to set
+     */
+    public final void setHttpMaxConnectionsPerHost(
+            int aHttpMaxConnectionsPerHost) {
+        httpMaxConnectionsPerHost = aHttpMaxConnectionsPerHost;
+    }
+
+    /**
+     * @return the httpCompression
+     */
+    public final boolean isHttpCompression() {
+        return httpCompression;
+    }
+
+    /**
+     * @param aHttpCompression
+     *            the httpCompression to set
+     */
+    public final void setHttpCompression(boolean aHttpCompression) {
+        httpCompression = aHttpCompression;
+    }
+
     /**
      * @return the xlsPath
      */
@@ -201,6 +384,81 @@ public class CommanderConfig {
         backupPath = aBackupPath;
     }
 
+    /**
+     * @return the backupIncremental
+     */
+    public final boolean isBackupIncremental() {
+        return backupIncremental;
+    }
+
+    /**
+     * @param aBackupIncremental
+     *            the backupIncremental to set
+     */
+    public final void setBackupIncremental(boolean aBackupIncremental) {
+        backupIncremental = aBackupIncremental;
+    }
+
+    /**
+     * @return the backupBulkThreshold
+     */
+    public final int getBackupBulkThreshold() {
+        return backupBulkThreshold;
+    }
+
+    /**
+     * @param aBackupBulkThreshold
+     *            the backupBulkThreshold to set
+     */
+    public final void setBackupBulkThreshold(int aBackupBulkThreshold) {
+        backupBulkThreshold = Math.max(0, aBackupBulkThreshold);
+    }
+
+    /**
+     * @return the cachePath
+     */
+    public final String getCachePath() {
+        return cachePath;
+    }
+
+    /**
+     * @param aCachePath
+     *            the cachePath to set
+     */
+    public final void setCachePath(String aCachePath) {
+        cachePath = aCachePath;
+    }
+
+    /**
+     * @return the sessionCacheEnabled
+     */
+    public final boolean isSessionCacheEnabled() {
+        return sessionCacheEnabled;
+    }
+
+    /**
+     * @param aSessionCacheEnabled
+     *            the sessionCacheEnabled to set
+     */
+    public final void setSessionCacheEnabled(boolean aSessionCacheEnabled) {
+        sessionCacheEnabled = aSessionCacheEnabled;
+    }
+
+    /**
+     * @return the describeCacheTtl in hours
+     */
+    public final int getDescribeCacheTtl() {
+        return describeCacheTtl;
+    }
+
+    /**
+     * @param aDescribeCacheTtl
+     *            the describeCacheTtl in hours to set
+     */
+    public final void setDescribeCacheTtl(int aDescribeCacheTtl) {
+        describeCacheTtl = aDescribeCacheTtl;
+    }
+
     /**
      * @return the svnConfig
      */
@@ -20,6 +20,36 @@ public class SfdcConfig {
 
     private String loginUrl;
 
+    /**
+     * Default number of api calls running in parallel on one org.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_CALLS = 4;
+
+    /**
+     * Number of api calls which may run in parallel on the org.
+     */
+    private int maxConcurrentCalls = DEFAULT_MAX_CONCURRENT_CALLS;
+
+    /**
+     * Default number of metadata members per retrieve.
+     */
+    public static final int DEFAULT_RETRIEVE_CHUNK_SIZE = 2500;
+
+    /**
+     * Number of metadata members per retrieve.
+     */
+    private int retrieveChunkSize = DEFAULT_RETRIEVE_CHUNK_SIZE;
+
+    /**
+     * Records per page of a query, 0 to size the pages by the records.
+     */
+    private int queryBatchSize;
+
+    /**
+     * Retrieve only the metadata changed since the last snapshot.
+     */
+    private boolean incrementalRetrieve = true;
+
     /**
      * SFDC System Name.
      */
@@ -88,4 +118,64 @@ public class SfdcConfig {
         }
     }
 
+    /**
+     * @return the maxConcurrentCalls
+     */
+    public int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+
+    /**
+     * @param aMaxConcurrentCalls
+     *            the maxConcurrentCalls to set, at least one
+     */
+    public void setMaxConcurrentCalls(int aMaxConcurrentCalls) {
+        maxConcurrentCalls = Math.max(1, aMaxConcurrentCalls);
+    }
+
+    /**
+     * @return the retrieveChunkSize
+     */
+    public int getRetrieveChunkSize() {
+        return retrieveChunkSize;
+    }
+
+    /**
+     * @param aRetrieveChunkSize
+     *            the retrieveChunkSize to set, at least one
+     */
+    public void setRetrieveChunkSize(int aRetrieveChunkSize) {
+        retrieveChunkSize = Math.max(1, aRetrieveChunkSize);
+    }
+
+    /**
+     * @return the queryBatchSize, 0 if it is adaptive
+     */
+    public int getQueryBatchSize() {
+        return queryBatchSize;
+    }
+
+    /**
+     * @param aQueryBatchSize
+     *            the queryBatchSize to set, 0 or less for an adaptive size
+     */
+    public void setQueryBatchSize(int aQueryBatchSize) {
+        queryBatchSize = Math.max(0, aQueryBatchSize);
+    }
+
+    /**
+     * @return the incrementalRetrieve
+     */
+    public boolean isIncrementalRetrieve() {
+        return incrementalRetrieve;
+    }
+
+    /**
+     * @param aIncrementalRetrieve
+     *            the incrementalRetrieve to set
+     */
+    public void setIncrementalRetrieve(boolean aIncrementalRetrieve) {
+        incrementalRetrieve = aIncrementalRetrieve;
+    }
+
 }
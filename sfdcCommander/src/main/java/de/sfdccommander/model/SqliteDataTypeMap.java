@@ -41,7 +41,7 @@ public class SqliteDataTypeMap extends HashMap<String, String> {
         this.put("anyType", "VARCHAR(255)");
         this.put("calculated", "TEXT");
         this.put("combobox", "VARCHAR(255)");
-        this.put("currency", "VARCHAR(255)");
+        this.put("currency", "DOUBLE");
         this.put("DataCategoryGroupReference", "VARCHAR(100)");
         this.put("email", "VARCHAR(100)");
         this.put("encryptedstring", "VARCHAR(180)");
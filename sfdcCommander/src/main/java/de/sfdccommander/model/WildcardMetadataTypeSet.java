@@ -0,0 +1,87 @@
+/**
+ *
+ */
+package de.sfdccommander.model;
+
+import java.util.HashSet;
+
+/**
+ * Metadata types which are retrieved with the wildcard member * instead of
+ * listing their members. CustomObject is missing on purpose, as the wildcard
+ * skips the standard objects, and so are the types stored in folders, which
+ * do not support it. The wildcard does not match the components of installed
+ * packages either, so nothing is retrieved by wildcard in an org with
+ * installed packages.
+ *
+ * @author jochen
+ *
+ */
+public class WildcardMetadataTypeSet extends HashSet<String> {
+
+    /**
+     *
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Wildcard member of package.xml.
+     */
+    public static final String WILDCARD = "*";
+
+    /**
+     * Metadata type of the installed packages.
+     */
+    public static final String INSTALLED_PACKAGE = "InstalledPackage";
+
+    public WildcardMetadataTypeSet() {
+        super();
+        init();
+    }
+
+    /**
+     * @param aType
+     *            name of the metadata type
+     * @param aInFolder
+     *            whether the members of the type are stored in folders
+     * @param aPackagesInstalled
+     *            whether the org has installed packages
+     * @return true if the members of the type are retrieved by wildcard
+     *         instead of listing them
+     */
+    public boolean isWildcard(String aType, boolean aInFolder,
+            boolean aPackagesInstalled) {
+        return contains(aType) && !aInFolder && !aPackagesInstalled;
+    }
+
+    private void init() {
+        this.add("ApexClass");
+        this.add("ApexComponent");
+        this.add("ApexPage");
+        this.add("ApexTrigger");
+        this.add("AuraDefinitionBundle");
+        this.add("ConnectedApp");
+        this.add("CustomApplication");
+        this.add("CustomApplicationComponent");
+        this.add("CustomLabels");
+        this.add("CustomPageWebLink");
+        this.add("CustomPermission");
+        this.add("CustomSite");
+        this.add("CustomTab");
+        this.add("FlexiPage");
+        this.add("Flow");
+        this.add("FlowDefinition");
+        this.add("Group");
+        this.add("HomePageComponent");
+        this.add("HomePageLayout");
+        this.add("Layout");
+        this.add("Letterhead");
+        this.add("PermissionSet");
+        this.add("Profile");
+        this.add("Queue");
+        this.add("RemoteSiteSetting");
+        this.add("Role");
+        this.add("StaticResource");
+        this.add("Workflow");
+    }
+
+}
@@ -0,0 +1,181 @@
+/**
+ *
+ */
+package de.sfdccommander.controller;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.apache.axis.message.MessageElement;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.sforce.soap.partner.Field;
+import com.sforce.soap.partner.FieldType;
+import com.sforce.soap.partner.sobject.SObject;
+
+/**
+ * @author jochen
+ *
+ */
+public class BackupTableWriterTest {
+
+    @Test
+    public void generateInsertStatementTest() {
+        Assert.assertEquals(
+                "INSERT INTO `Account` (`Id`, `Name`) VALUES (?, ?);",
+                BackupTableWriter.generateInsertStatement("Account",
+                        fields("Id", "Name")));
+    }
+
+    @Test
+    public void insertTest() throws Exception {
+        File dbFile = File.createTempFile("backup", ".sqlite");
+        try {
+            Class.forName("org.sqlite.JDBC");
+            String url = "jdbc:sqlite:" + dbFile.getAbsolutePath();
+            Field[] fields = fields("Id", "Name");
+            BackupTableWriter writer = new BackupTableWriter(
+                    DriverManager.getConnection(url));
+            writer.execute("CREATE TABLE `Account` (`Id` VARCHAR(20), "
+                    + "`Name` VARCHAR(255));");
+            writer.execute("CREATE TABLE `Contact` (`Id` VARCHAR(20), "
+                    + "`Name` VARCHAR(255));");
+            writer.startTable("Account", fields);
+            writer.startTable("Contact", fields);
+            // more than a batch, the last one is incomplete
+            int count = BackupTableWriter.BATCH_SIZE * 2 + 17;
+            for (int i = 0; i < count; i++) {
+                writer.insert("Account", record("001" + i, "O'Brien " + i));
+                if (i % 2 == 0) {
+                    writer.insert("Contact", record("003" + i, "Contact"));
+                }
+            }
+            writer.insert("Account", record("001x", null));
+            writer.finishTable("Contact");
+            writer.close();
+
+            Connection connection = DriverManager.getConnection(url);
+            try {
+                Statement statement = connection.createStatement();
+                ResultSet rs = statement
+                        .executeQuery("SELECT COUNT(*) FROM `Account`;");
+                Assert.assertEquals(count + 1, rs.getInt(1));
+                rs = statement.executeQuery(
+                        "SELECT `Name` FROM `Account` WHERE `Id` = '0017';");
+                Assert.assertEquals("O'Brien 7", rs.getString(1));
+                rs = statement.executeQuery(
+                        "SELECT COUNT(*) FROM `Account` WHERE `Name` IS NULL;");
+                Assert.assertEquals(1, rs.getInt(1));
+                rs = statement.executeQuery("SELECT COUNT(*) FROM `Contact`;");
+                Assert.assertEquals(count / 2 + 1, rs.getInt(1));
+            } finally {
+                connection.close();
+            }
+        } finally {
+            dbFile.delete();
+        }
+    }
+
+    @Test
+    public void typedInsertTest() throws Exception {
+        File dbFile = File.createTempFile("backup", ".sqlite");
+        try {
+            Class.forName("org.sqlite.JDBC");
+            String url = "jdbc:sqlite:" + dbFile.getAbsolutePath();
+            Field[] fields = new Field[] { field("Id", "id"),
+                    field("NumberOfEmployees", "int"),
+                    field("AnnualRevenue", "currency"),
+                    field("IsDeleted", "boolean"),
+                    field("CreatedDate", "datetime"),
+                    field("Birthdate", "date") };
+            BackupTableWriter writer = new BackupTableWriter(
+                    DriverManager.getConnection(url));
+            writer.execute("CREATE TABLE `Account` (`Id` VARCHAR(20), "
+                    + "`NumberOfEmployees` INT, `AnnualRevenue` DOUBLE, "
+                    + "`IsDeleted` BOOLEAN, `CreatedDate` DATETIME, "
+                    + "`Birthdate` DATE);");
+            writer.startTable("Account", fields);
+            writer.insert("Account", new String[] { "0011", "42", "1.5",
+                    "true", "2015-03-01T10:00:00+01:00", "1970-01-31" });
+            writer.insert("Account", new String[] { "0012", "many", "",
+                    "false", "2015-03-01T09:30:00.000Z", null });
+            writer.insert("Account", new String[] { "0013", null, null,
+                    null, "yesterday", null });
+            writer.close();
+
+            Connection connection = DriverManager.getConnection(url);
+            try {
+                Statement statement = connection.createStatement();
+                ResultSet rs = statement.executeQuery("SELECT "
+                        + "typeof(`NumberOfEmployees`), `NumberOfEmployees`, "
+                        + "typeof(`AnnualRevenue`), `AnnualRevenue`, "
+                        + "`IsDeleted`, `CreatedDate`, `Birthdate` "
+                        + "FROM `Account` ORDER BY `Id`;");
+                Assert.assertTrue(rs.next());
+                Assert.assertEquals("integer", rs.getString(1));
+                Assert.assertEquals(42, rs.getLong(2));
+                Assert.assertEquals("real", rs.getString(3));
+                Assert.assertEquals(1.5, rs.getDouble(4), 0);
+                Assert.assertEquals(1, rs.getInt(5));
+                Assert.assertEquals("2015-03-01T09:00:00.000Z",
+                        rs.getString(6));
+                Assert.assertEquals("1970-01-31", rs.getString(7));
+                Assert.assertTrue(rs.next());
+                // values which do not fit their type are kept as text
+                Assert.assertEquals("text", rs.getString(1));
+                Assert.assertEquals("many", rs.getString(2));
+                Assert.assertEquals("null", rs.getString(3));
+                Assert.assertEquals(0, rs.getInt(5));
+                Assert.assertEquals("2015-03-01T09:30:00.000Z",
+                        rs.getString(6));
+                Assert.assertTrue(rs.next());
+                Assert.assertEquals("yesterday", rs.getString(6));
+                rs = statement.executeQuery("SELECT COUNT(*) FROM `Account` "
+                        + "WHERE `CreatedDate` < '2015-03-01T09:15';");
+                Assert.assertEquals(1, rs.getInt(1));
+            } finally {
+                connection.close();
+            }
+        } finally {
+            dbFile.delete();
+        }
+    }
+
+    private Field field(String aName, String aType) {
+        Field field = new Field();
+        field.setName(aName);
+        field.setType(FieldType.fromString(aType));
+        return field;
+    }
+
+    private Field[] fields(String... aNames) {
+        Field[] fields = new Field[aNames.length];
+        for (int i = 0; i < aNames.length; i++) {
+            fields[i] = new Field();
+            fields[i].setName(aNames[i]);
+        }
+        return fields;
+    }
+
+    private SObject record(String aId, String aName) throws Exception {
+        SObject record = new SObject();
+        record.setType("Account");
+        record.setId(aId);
+        record.set_any(new MessageElement[] { element("Id", aId),
+                element("Name", aName) });
+        return record;
+    }
+
+    private MessageElement element(String aName, String aValue)
+            throws Exception {
+        MessageElement element = new MessageElement("", aName);
+        if (aValue != null) {
+            element.addTextNode(aValue);
+        }
+        return element;
+    }
+}
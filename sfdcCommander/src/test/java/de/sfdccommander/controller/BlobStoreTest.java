@@ -0,0 +1,56 @@
+/**
+ *
+ */
+package de.sfdccommander.controller;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.sfdccommander.controller.helper.DeleteDirVisitor;
+
+/**
+ * @author jochen
+ *
+ */
+public class BlobStoreTest {
+
+    private File root;
+
+    @Before
+    public void createRoot() throws IOException {
+        root = Files.createTempDirectory("blobs").toFile();
+    }
+
+    @After
+    public void deleteRoot() throws IOException {
+        Files.walkFileTree(root.toPath(), new DeleteDirVisitor());
+    }
+
+    @Test
+    public void storeTest() throws Exception {
+        BlobStore store = new BlobStore(root);
+        byte[] content = "Hello World".getBytes("UTF-8");
+        String hash = store.store(new ByteArrayInputStream(content));
+        Assert.assertEquals(
+                "a591a6d40bf420404a011733cfb7b190d62c65bf0bcda32b57b277d9ad9f146e",
+                hash);
+        Assert.assertArrayEquals(content,
+                Files.readAllBytes(store.getFile(hash).toPath()));
+        Assert.assertEquals(new File(new File(root, "a5"), hash),
+                store.getFile(hash));
+
+        // the same content is stored once
+        Assert.assertEquals(hash,
+                store.store(new ByteArrayInputStream(content)));
+        Assert.assertNotEquals(hash,
+                store.store(new ByteArrayInputStream(new byte[0])));
+        Assert.assertEquals(2, root.listFiles().length);
+    }
+}
@@ -10,6 +10,7 @@ import org.junit.rules.ExpectedException;
 
 import de.sfdccommander.controller.helper.CommanderException;
 import de.sfdccommander.model.CommanderConfig;
+import de.sfdccommander.model.SfdcConfig;
 
 /**
  * @author jochen
@@ -30,16 +31,36 @@ public class CommanderPropertiesHandlerTest {
                 config.getSourceSfdcConfig().getPassword());
         Assert.assertEquals("https://login.salesforce.com",
                 config.getSourceSfdcConfig().getLoginUrl());
+        Assert.assertEquals(8,
+                config.getSourceSfdcConfig().getMaxConcurrentCalls());
+        Assert.assertEquals(SfdcConfig.DEFAULT_MAX_CONCURRENT_CALLS,
+                config.getTargetSfdcConfig().getMaxConcurrentCalls());
+        Assert.assertEquals(2500,
+                config.getSourceSfdcConfig().getRetrieveChunkSize());
+        Assert.assertEquals(500,
+                config.getSourceSfdcConfig().getQueryBatchSize());
+        Assert.assertEquals(0,
+                config.getTargetSfdcConfig().getQueryBatchSize());
+        Assert.assertTrue(config.getSourceSfdcConfig().isIncrementalRetrieve());
         Assert.assertEquals("TestProxyHost", config.getHttpProxyHost());
         Assert.assertEquals("8080", config.getHttpProxyPort());
+        Assert.assertEquals(10, config.getHttpMaxConnectionsPerHost());
+        Assert.assertTrue(config.isHttpCompression());
         Assert.assertEquals("https://my.svn.server/repository/",
                 config.getSvnConfig().getSvnRepository());
         Assert.assertEquals("svnUsername", config.getSvnConfig().getSvnUser());
         Assert.assertEquals("svnPassword",
                 config.getSvnConfig().getSvnPassword());
         Assert.assertEquals("c:/html/", config.getRenderPath());
+        Assert.assertEquals(8181, config.getRenderServePort());
+        Assert.assertEquals("127.0.0.1", config.getRenderServeAddress());
         Assert.assertEquals("c:/xls/", config.getXlsPath());
         Assert.assertEquals("c:/sfdcBackup/", config.getBackupPath());
+        Assert.assertTrue(config.isBackupIncremental());
+        Assert.assertEquals(200000, config.getBackupBulkThreshold());
+        Assert.assertEquals("cache/", config.getCachePath());
+        Assert.assertTrue(config.isSessionCacheEnabled());
+        Assert.assertEquals(24, config.getDescribeCacheTtl());
         Assert.assertEquals("MyTargetOrg",
                 config.getTargetSfdcConfig().getSystemName());
         Assert.assertEquals("user@testAccount.com",
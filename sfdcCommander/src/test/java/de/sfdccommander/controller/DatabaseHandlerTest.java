@@ -3,9 +3,21 @@
  */
 package de.sfdccommander.controller;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.sforce.soap.partner.DescribeSObjectResult;
+import com.sforce.soap.partner.Field;
+import com.sforce.soap.partner.FieldType;
+
 /**
  * @author jochen
  *
@@ -18,4 +30,125 @@ public class DatabaseHandlerTest {
         String dropStmt = dbHandler.generateDropTableStatement("objects");
         Assert.assertEquals("DROP TABLE IF EXISTS `objects`;", dropStmt);
     }
+
+    @Test
+    public void sortLargestFirstTest() {
+        List<DescribeSObjectResult> objects = new ArrayList<DescribeSObjectResult>();
+        for (String name : new String[] { "Account", "Contact", "Task",
+                "Vote" }) {
+            DescribeSObjectResult describe = new DescribeSObjectResult();
+            describe.setName(name);
+            objects.add(describe);
+        }
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        counts.put("Account", 20);
+        counts.put("Contact", 20);
+        counts.put("Task", 5000);
+
+        DatabaseHandler.sortLargestFirst(objects, counts);
+
+        // unknown sizes first, equal sizes by name
+        Assert.assertEquals("Vote", objects.get(0).getName());
+        Assert.assertEquals("Task", objects.get(1).getName());
+        Assert.assertEquals("Account", objects.get(2).getName());
+        Assert.assertEquals("Contact", objects.get(3).getName());
+    }
+
+    @Test
+    public void generateAddColumnStatementTest() {
+        DatabaseHandler dbHandler = new DatabaseHandler(null, null, true);
+        Field field = new Field();
+        field.setName("Rating__c");
+        field.setType(FieldType.fromString("picklist"));
+        Assert.assertEquals(
+                "ALTER TABLE `Account` ADD COLUMN `Rating__c` VARCHAR(255);",
+                dbHandler.generateAddColumnStatement("Account", field));
+    }
+
+    @Test
+    public void formatDateTimeTest() {
+        Calendar date = Calendar
+                .getInstance(TimeZone.getTimeZone("Europe/Berlin"));
+        date.clear();
+        date.set(2015, Calendar.JUNE, 1, 14, 30, 5);
+        Assert.assertEquals("2015-06-01T12:30:05Z",
+                DatabaseHandler.formatDateTime(date));
+    }
+
+    @Test
+    public void getSliceConditionsTest() {
+        Assert.assertEquals(Arrays.asList((String) null), DatabaseHandler
+                .getSliceConditions(new ArrayList<String>()));
+        Assert.assertEquals(
+                Arrays.asList("Id < '00T1'", "Id >= '00T1' AND Id < '00T2'",
+                        "Id >= '00T2'"),
+                DatabaseHandler
+                        .getSliceConditions(Arrays.asList("00T1", "00T2")));
+        Assert.assertEquals("", DatabaseHandler.getWhereClause(null, null));
+        Assert.assertEquals(" WHERE Id < '00T1'",
+                DatabaseHandler.getWhereClause(null, "Id < '00T1'"));
+        Assert.assertEquals(
+                " WHERE SystemModstamp > 2015-06-01T00:00:00Z AND Id < '00T1'",
+                DatabaseHandler.getWhereClause(
+                        "SystemModstamp > 2015-06-01T00:00:00Z",
+                        "Id < '00T1'"));
+    }
+
+    @Test
+    public void bulkFieldsTest() {
+        DescribeSObjectResult describe = new DescribeSObjectResult();
+        describe.setName("Account");
+        describe.setFields(new Field[] { field("Id", "id"),
+                field("Name", "string"), field("BillingAddress", "address"),
+                field("BillingCity", "string") });
+        Assert.assertTrue(DatabaseHandler.isBulkQueryable(describe));
+        Assert.assertEquals(Arrays.asList("Id", "Name", "BillingCity"),
+                DatabaseHandler.getBulkFields(describe.getFields()));
+
+        int[] positions = DatabaseHandler.getColumnPositions(
+                new String[] { "BillingCity", "NAME", "Id" },
+                describe.getFields());
+        Assert.assertArrayEquals(new int[] { 2, 1, -1, 0 }, positions);
+        Assert.assertArrayEquals(new String[] { "001", null, null, "Bonn" },
+                DatabaseHandler.toRow(new String[] { "Bonn", "", "001" },
+                        positions));
+
+    }
+
+    @Test
+    public void blobFieldsTest() {
+        Field[] fields = new Field[] { field("Id", "id"),
+                field("Name", "string"), field("Body", "base64") };
+        Field[] recordFields = DatabaseHandler.getRecordFields(fields);
+        Assert.assertEquals(2, recordFields.length);
+        Assert.assertEquals("Name", recordFields[1].getName());
+        Assert.assertEquals(Arrays.asList("Body"),
+                DatabaseHandler.getBlobFields(fields));
+
+        // the files are downloaded separately, the records can be bulk
+        // queried
+        DescribeSObjectResult describe = new DescribeSObjectResult();
+        describe.setName("Attachment");
+        describe.setFields(fields);
+        Assert.assertTrue(DatabaseHandler.isBulkQueryable(describe));
+    }
+
+    @Test
+    public void indexFieldsTest() {
+        Field[] fields = new Field[] { field("Id", "id"),
+                field("Name", "string"), field("OwnerId", "reference"),
+                field("ParentId", "reference") };
+        Assert.assertEquals(Arrays.asList("Id", "OwnerId", "ParentId"),
+                DatabaseHandler.getIndexFields(fields));
+        Assert.assertEquals("CREATE INDEX IF NOT EXISTS `Account_OwnerId` ON "
+                + "`Account` (`OwnerId`);", DatabaseHandler
+                        .generateCreateIndexStatement("Account", "OwnerId"));
+    }
+
+    private Field field(String aName, String aType) {
+        Field field = new Field();
+        field.setName(aName);
+        field.setType(FieldType.fromString(aType));
+        return field;
+    }
 }
@@ -0,0 +1,55 @@
+/**
+ *
+ */
+package de.sfdccommander.controller;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.om.DocumentInfo;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author jochen
+ *
+ */
+public class DocumentStoreTest {
+
+    @Test
+    public void getDocumentTest() throws Exception {
+        DocumentStore store = new DocumentStore(new Configuration(), 1024);
+        byte[] role = "<Role><name>CEO</name></Role>".getBytes("UTF-8");
+        String hash = RenderManifest.hash(role);
+
+        DocumentInfo document = store.getDocument("roles/CEO.role", hash, role,
+                "file:/roles/CEO.role");
+        Assert.assertEquals("CEO", document.getStringValue());
+        // the same content is parsed once
+        Assert.assertSame(document, store.getDocument("roles/CEO.role", hash,
+                role, "file:/roles/CEO.role"));
+
+        byte[] changed = "<Role><name>CFO</name></Role>".getBytes("UTF-8");
+        DocumentInfo changedDocument = store.getDocument("roles/CEO.role",
+                RenderManifest.hash(changed), changed, "file:/roles/CEO.role");
+        Assert.assertEquals("CFO", changedDocument.getStringValue());
+        Assert.assertEquals(1, store.size());
+    }
+
+    @Test
+    public void evictTest() throws Exception {
+        byte[] content = "<Role><name>CEO</name></Role>".getBytes("UTF-8");
+        String hash = RenderManifest.hash(content);
+        // room for two trees
+        DocumentStore store = new DocumentStore(new Configuration(),
+                content.length * 2);
+        DocumentInfo first = store.getDocument("a", hash, content, "file:/a");
+        store.getDocument("b", hash, content, "file:/b");
+        // the first tree is used again, so the second is the oldest
+        store.getDocument("a", hash, content, "file:/a");
+        store.getDocument("c", hash, content, "file:/c");
+        Assert.assertEquals(2, store.size());
+        Assert.assertSame(first,
+                store.getDocument("a", hash, content, "file:/a"));
+        Assert.assertEquals(2, store.size());
+    }
+}
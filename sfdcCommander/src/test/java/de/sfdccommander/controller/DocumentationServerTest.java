@@ -0,0 +1,131 @@
+/**
+ *
+ */
+package de.sfdccommander.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.sfdccommander.controller.helper.DeleteDirVisitor;
+
+/**
+ * Requests pages of a small org from the documentation server.
+ *
+ * @author jochen
+ *
+ */
+public class DocumentationServerTest {
+
+    private static final String STYLESHEET_START = "<xsl:stylesheet version=\"2.0\""
+            + " xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+            + "<xsl:output method=\"html\"/><xsl:template match=\"/\">";
+
+    private static final String STYLESHEET_END = "</xsl:template></xsl:stylesheet>";
+
+    private File folder;
+
+    private DocumentationServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        folder = Files.createTempDirectory("serve").toFile();
+        File transformerFolder = new File(folder, "transformer");
+        write(new File(transformerFolder, "labels.xslt"), STYLESHEET_START
+                + "<p><xsl:value-of select=\"//*:fullName\"/></p>"
+                + STYLESHEET_END);
+        write(new File(transformerFolder, "classes.xslt"), STYLESHEET_START
+                + "<p><xsl:value-of select=\"//*:status\"/></p>"
+                + STYLESHEET_END);
+        write(new File(transformerFolder, "lists.xslt"), STYLESHEET_START
+                + "<p><xsl:value-of select=\"count(//*:file)\"/></p>"
+                + STYLESHEET_END);
+        write(new File(transformerFolder, "index.xsl"), STYLESHEET_START
+                + "<p><xsl:value-of select=\"//*:file\"/></p>"
+                + STYLESHEET_END);
+        write(new File(transformerFolder, "css/style.css"), "p {}");
+        File org = new File(folder, "org");
+        write(new File(org, "unpackaged/labels/CustomLabels.labels"),
+                "<CustomLabels xmlns=\"http://soap.sforce.com/2006/04/metadata\">"
+                        + "<labels><fullName>Greeting</fullName></labels>"
+                        + "</CustomLabels>");
+        write(new File(org, "unpackaged/classes/Foo.cls"),
+                "public class Foo {}");
+        write(new File(org, "unpackaged/classes/Foo.cls-meta.xml"),
+                "<ApexClass xmlns=\"http://soap.sforce.com/2006/04/metadata\">"
+                        + "<status>Active</status></ApexClass>");
+
+        server = new DocumentationServer(org.getAbsolutePath(),
+                transformerFolder, DocumentationServer.DEFAULT_CACHE_BYTES);
+        server.start(0);
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        server.stop();
+        Files.walkFileTree(folder.toPath(), new DeleteDirVisitor());
+    }
+
+    @Test
+    public void serveTest() throws Exception {
+        Assert.assertTrue(server.getAddress().isLoopbackAddress());
+        Assert.assertEquals("<p>Greeting</p>",
+                get("/labels/CustomLabels.html").trim());
+        // the second request is served from the cache
+        Assert.assertEquals("<p>Greeting</p>",
+                get("/labels/CustomLabels.html").trim());
+        Assert.assertEquals(1, server.getCachedPages());
+
+        Assert.assertEquals("<p>Active</p>",
+                get("/classes/Foo.cls-meta.html").trim());
+        Assert.assertEquals("public class Foo {}", get("/classes/Foo.cls"));
+        Assert.assertEquals("p {}", get("/css/style.css"));
+        Assert.assertEquals("<p>1</p>", get("/lists/labels.html").trim());
+        Assert.assertEquals("<p>classes labels</p>", get("/").trim());
+        // the lists are generated once on start
+        File listFile = new File(folder, "org/unpackaged/lists/labels.xml");
+        long modified = listFile.lastModified();
+        Assert.assertEquals("<p>classes labels</p>", get("/").trim());
+        Assert.assertEquals(modified, listFile.lastModified());
+
+        Assert.assertNull(get("/labels/Missing.html"));
+        Assert.assertNull(get("/css/%2e%2e/labels.xslt"));
+    }
+
+    /**
+     * @return body of the response, null if it is not found
+     */
+    private String get(String aPath) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+                "http://localhost:" + server.getPort() + aPath)
+                        .openConnection();
+        if (connection.getResponseCode() == 404) {
+            connection.getErrorStream().close();
+            return null;
+        }
+        Assert.assertEquals(200, connection.getResponseCode());
+        InputStream in = connection.getInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
+    private static void write(File aFile, String aContent) throws IOException {
+        aFile.getParentFile().mkdirs();
+        Files.write(aFile.toPath(), aContent.getBytes("UTF-8"));
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ *
+ */
+package de.sfdccommander.controller;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.soap.SOAPException;
+
+import org.apache.axis.message.MessageElement;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.sforce.soap.partner.Field;
+import com.sforce.soap.partner.QueryResult;
+import com.sforce.soap.partner.sobject.SObject;
+
+/**
+ * @author jochen
+ *
+ */
+public class FieldGroupReaderTest {
+
+    private static final int PAGE_SIZE = 3;
+
+    @Test
+    public void getFieldGroupsTest() {
+        Assert.assertFalse(FieldGroupReader.isWide(fields(10)));
+        Assert.assertEquals(Arrays.asList(Arrays.asList("Id", "F1", "F2")),
+                FieldGroupReader.getFieldGroups(fields(3)));
+
+        List<List<String>> groups = FieldGroupReader
+                .getFieldGroups(fields(450));
+        Assert.assertEquals(3, groups.size());
+        Assert.assertEquals(FieldGroupReader.MAX_GROUP_FIELDS,
+                groups.get(0).size());
+        Assert.assertEquals(52, groups.get(2).size());
+        for (List<String> group : groups) {
+            Assert.assertEquals("Id", group.get(0));
+        }
+        Assert.assertEquals("F449", groups.get(2).get(51));
+
+        // long names are split by the length of the field list
+        Field[] longNames = fields(100);
+        for (int i = 1; i < longNames.length; i++) {
+            longNames[i].setName(String.format("Field_%03d_%0150d__c", i, 0));
+        }
+        Assert.assertTrue(FieldGroupReader.isWide(longNames));
+    }
+
+    @Test
+    public void nextPageTest() throws Exception {
+        Field[] fields = fields(450);
+        final List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 10; i++) {
+            ids.add("001" + i);
+        }
+        FieldGroupReader reader = new FieldGroupReader("Account", fields,
+                " WHERE Name != null", 0, new FieldGroupReader.QueryCall() {
+                    @Override
+                    public QueryResult call(String aSoql,
+                            String aQueryLocator, int aBatchSize)
+                            throws RemoteException {
+                        String soql = aSoql;
+                        int offset = 0;
+                        if (soql == null) {
+                            soql = aQueryLocator.substring(
+                                    aQueryLocator.indexOf('|') + 1);
+                            offset = Integer.parseInt(aQueryLocator
+                                    .substring(0, aQueryLocator.indexOf('|')));
+                        }
+                        Assert.assertTrue(soql.endsWith(
+                                " FROM Account WHERE Name != null ORDER BY Id"));
+                        String[] names = soql
+                                .substring(7, soql.indexOf(" FROM "))
+                                .split(", ");
+                        List<SObject> records = new ArrayList<SObject>();
+                        for (int i = offset; i < offset + PAGE_SIZE
+                                && i < ids.size(); i++) {
+                            // deleted before the last group was queried
+                            if (i == 4 && soql.contains("F449")) {
+                                continue;
+                            }
+                            try {
+                                records.add(record(ids.get(i), names));
+                            } catch (SOAPException e) {
+                                throw new RemoteException("Invalid record", e);
+                            }
+                        }
+                        QueryResult result = new QueryResult();
+                        result.setRecords(
+                                records.toArray(new SObject[records.size()]));
+                        result.setSize(ids.size());
+                        result.setDone(offset + PAGE_SIZE >= ids.size());
+                        result.setQueryLocator(
+                                (offset + PAGE_SIZE) + "|" + soql);
+                        return result;
+                    }
+                });
+
+        List<SObject> joined = new ArrayList<SObject>();
+        SObject[] page = reader.nextPage();
+        while (page != null) {
+            joined.addAll(Arrays.asList(page));
+            page = reader.nextPage();
+        }
+        Assert.assertEquals(10, reader.getSize());
+        Assert.assertEquals(9, joined.size());
+        for (SObject record : joined) {
+            Assert.assertFalse("0014".equals(record.getId()));
+            MessageElement[] values = record.get_any();
+            Assert.assertEquals(fields.length, values.length);
+            Assert.assertEquals(record.getId(), values[0].getValue());
+            for (int i = 1; i < values.length; i++) {
+                Assert.assertEquals("F" + i, values[i].getName());
+                Assert.assertEquals(record.getId() + "F" + i,
+                        values[i].getValue());
+            }
+        }
+        Assert.assertEquals("0019", joined.get(8).getId());
+        reader.close();
+    }
+
+    @Test
+    public void missingPageTest() throws Exception {
+        Field[] fields = fields(450);
+        final List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            ids.add(String.format("001%02d", i));
+        }
+        final AtomicInteger lastGroupCalls = new AtomicInteger();
+        FieldGroupReader reader = new FieldGroupReader("Account", fields, "",
+                0, new FieldGroupReader.QueryCall() {
+                    @Override
+                    public QueryResult call(String aSoql,
+                            String aQueryLocator, int aBatchSize)
+                            throws RemoteException {
+                        String soql = aSoql;
+                        int offset = 0;
+                        if (soql == null) {
+                            soql = aQueryLocator.substring(
+                                    aQueryLocator.indexOf('|') + 1);
+                            offset = Integer.parseInt(aQueryLocator
+                                    .substring(0, aQueryLocator.indexOf('|')));
+                        }
+                        List<String> groupIds = ids;
+                        if (soql.contains("F449")) {
+                            // the first page of the other groups is missing
+                            lastGroupCalls.incrementAndGet();
+                            groupIds = ids.subList(PAGE_SIZE, ids.size());
+                        }
+                        String[] names = soql
+                                .substring(7, soql.indexOf(" FROM "))
+                                .split(", ");
+                        List<SObject> records = new ArrayList<SObject>();
+                        for (int i = offset; i < offset + PAGE_SIZE
+                                && i < groupIds.size(); i++) {
+                            try {
+                                records.add(record(groupIds.get(i), names));
+                            } catch (SOAPException e) {
+                                throw new RemoteException("Invalid record", e);
+                            }
+                        }
+                        QueryResult result = new QueryResult();
+                        result.setRecords(
+                                records.toArray(new SObject[records.size()]));
+                        result.setSize(groupIds.size());
+                        result.setDone(offset + PAGE_SIZE >= groupIds.size());
+                        result.setQueryLocator(
+                                (offset + PAGE_SIZE) + "|" + soql);
+                        return result;
+                    }
+                });
+        try {
+            SObject[] page = reader.nextPage();
+            Assert.assertEquals("00103", page[0].getId());
+            // the groups ahead wait for the others instead of reading on
+            Assert.assertEquals(1, lastGroupCalls.get());
+            int count = page.length;
+            while ((page = reader.nextPage()) != null) {
+                count += page.length;
+            }
+            Assert.assertEquals(ids.size() - PAGE_SIZE, count);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private Field[] fields(int aCount) {
+        Field[] fields = new Field[aCount];
+        for (int i = 0; i < aCount; i++) {
+            fields[i] = new Field();
+            fields[i].setName(i == 0 ? "Id" : "F" + i);
+        }
+        return fields;
+    }
+
+    private SObject record(String aId, String[] aNames)
+            throws SOAPException {
+        MessageElement[] values = new MessageElement[aNames.length];
+        for (int i = 0; i < aNames.length; i++) {
+            values[i] = new MessageElement("", aNames[i]);
+            values[i].addTextNode(i == 0 ? aId : aId + aNames[i]);
+        }
+        SObject record = new SObject();
+        record.setType("Account");
+        record.set_any(values);
+        return record;
+    }
+}
@@ -59,10 +59,17 @@ public class HtmlRendererTest {
         for (int i = 0; i < roles.getLength(); i++) {
             if (roles.item(i).getNodeType() == Node.ELEMENT_NODE) {
                 Assert.assertEquals("Role", roles.item(i).getNodeName());
+                Assert.assertEquals("http://soap.sforce.com/2006/04/metadata",
+                        roles.item(i).getNamespaceURI());
                 j++;
             }
         }
         Assert.assertEquals(2, j);
+        Assert.assertEquals("CEO", rootElement
+                .getElementsByTagNameNS("http://soap.sforce.com/2006/04/metadata",
+                        "name")
+                .item(0).getTextContent());
+        Assert.assertFalse(testFile1.exists());
 
         // Cleanup
         allRoles.delete();
@@ -81,6 +88,25 @@ public class HtmlRendererTest {
         Assert.assertTrue(indexOutput.isFile());
     }
 
+    @Test
+    public void renderCompiledTest() throws CommanderException, IOException {
+        File indexTransformer = new File("config/transformer/index.xsl");
+        File indexSource = new File("src/test/resources/lists.xml");
+        File first = File.createTempFile("index", ".html");
+        File second = File.createTempFile("index", ".html");
+        try {
+            // the second file is rendered by the compiled stylesheet
+            HtmlRenderer renderer = new HtmlRenderer("", "");
+            renderer.render(indexTransformer, indexSource, first);
+            renderer.render(indexTransformer, indexSource, second);
+            Assert.assertArrayEquals(Files.readAllBytes(first.toPath()),
+                    Files.readAllBytes(second.toPath()));
+        } finally {
+            first.delete();
+            second.delete();
+        }
+    }
+
     @Test
     public void generateFileListTest() throws CommanderException, SAXException,
             IOException, ParserConfigurationException {
@@ -0,0 +1,179 @@
+/**
+ *
+ */
+package de.sfdccommander.controller;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Merges the versions of a profile retrieved by several chunks.
+ *
+ * @author jochen
+ *
+ */
+public class MetadataExporterTest {
+
+    private static final String PROFILE_START = "<Profile xmlns=\"http://soap.sforce.com/2006/04/metadata\">\n";
+
+    private static final String PROFILE_END = "</Profile>\n";
+
+    @Test
+    public void mergeOrderTest() throws Exception {
+        File file = File.createTempFile("merge", ".profile");
+        try {
+            write(file, PROFILE_START
+                    + "    <classAccesses><apexClass>Foo</apexClass>"
+                    + "<enabled>true</enabled></classAccesses>\n"
+                    + fieldPermission("Account.Name")
+                    + fieldPermission("Contact.Name")
+                    + "    <userLicense>Salesforce</userLicense>\n"
+                    + PROFILE_END);
+            MetadataExporter.mergeXml(file, content(PROFILE_START
+                    + fieldPermission("Account.Type")
+                    + fieldPermission("Lead.Name")
+                    + "    <applicationVisibilities><application>App"
+                    + "</application><visible>true</visible>"
+                    + "</applicationVisibilities>\n"
+                    + "    <userPermissions><enabled>true</enabled>"
+                    + "<name>ApiEnabled</name></userPermissions>\n"
+                    + PROFILE_END), members("Account.Type", "Lead", "App"));
+
+            // the elements keep the order the api returns them in
+            Assert.assertEquals(Arrays.asList("applicationVisibilities:App",
+                    "classAccesses:Foo", "fieldPermissions:Account.Name",
+                    "fieldPermissions:Account.Type",
+                    "fieldPermissions:Contact.Name",
+                    "fieldPermissions:Lead.Name", "userLicense:Salesforce",
+                    "userPermissions:ApiEnabled"), elements(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void removeMembersTest() throws Exception {
+        File file = File.createTempFile("merge", ".profile");
+        try {
+            write(file, PROFILE_START
+                    + fieldPermission("Account.Name")
+                    + fieldPermission("AccountTeam.Name")
+                    + fieldPermission("Contact.Name")
+                    + fieldPermission("Lead.Name")
+                    + "    <userLicense>Salesforce</userLicense>\n"
+                    + PROFILE_END);
+            // the name before the first dot is the parent member
+            MetadataExporter.mergeXml(file, null,
+                    members("Account", "Lead.Name"));
+
+            Assert.assertEquals(Arrays.asList(
+                    "fieldPermissions:AccountTeam.Name",
+                    "fieldPermissions:Contact.Name", "userLicense:Salesforce"),
+                    elements(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void replaceElementsTest() throws Exception {
+        File file = File.createTempFile("merge", ".profile");
+        try {
+            write(file, PROFILE_START
+                    + fieldPermission("Account.Name")
+                    + fieldPermission("Contact.Name")
+                    + "    <userPermissions><enabled>true</enabled>"
+                    + "<name>ApiEnabled</name></userPermissions>\n"
+                    + "    <userPermissions><enabled>true</enabled>"
+                    + "<name>ViewSetup</name></userPermissions>\n"
+                    + PROFILE_END);
+            // elements of a kind which refer to no member replace all
+            // elements of their kind, those of a kind with members of the
+            // chunk only replace the elements of these members
+            MetadataExporter.mergeXml(file, content(PROFILE_START
+                    + fieldPermission("Contact.Name")
+                    + fieldPermission("Global.Name")
+                    + "    <userPermissions><enabled>true</enabled>"
+                    + "<name>ModifyAllData</name></userPermissions>\n"
+                    + PROFILE_END), members("Contact"));
+
+            Assert.assertEquals(Arrays.asList(
+                    "fieldPermissions:Account.Name",
+                    "fieldPermissions:Contact.Name",
+                    "fieldPermissions:Global.Name",
+                    "userPermissions:ModifyAllData"), elements(file));
+
+            // the same version again changes nothing
+            MetadataExporter.mergeXml(file, content(PROFILE_START
+                    + fieldPermission("Contact.Name") + PROFILE_END),
+                    members("Contact"));
+            Assert.assertEquals(4, elements(file).size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static String fieldPermission(String aField) {
+        return "    <fieldPermissions><editable>false</editable><field>"
+                + aField + "</field><readable>true</readable>"
+                + "</fieldPermissions>\n";
+    }
+
+    private static ByteArrayInputStream content(String aContent)
+            throws IOException {
+        return new ByteArrayInputStream(aContent.getBytes("UTF-8"));
+    }
+
+    private static HashSet<String> members(String... aMembers) {
+        return new HashSet<String>(Arrays.asList(aMembers));
+    }
+
+    private static void write(File aFile, String aContent)
+            throws IOException {
+        Files.write(aFile.toPath(), aContent.getBytes("UTF-8"));
+    }
+
+    /**
+     * @return name and first value of each element of the file, e.g.
+     *         fieldPermissions:Account.Name
+     */
+    private static List<String> elements(File aFile) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        NodeList children = factory.newDocumentBuilder().parse(aFile)
+                .getDocumentElement().getChildNodes();
+        List<String> elements = new ArrayList<String>();
+        for (int i = 0; i < children.getLength(); i++) {
+            if (children.item(i).getNodeType() != Node.ELEMENT_NODE) {
+                continue;
+            }
+            Element element = (Element) children.item(i);
+            String value = element.getTextContent();
+            NodeList values = element.getChildNodes();
+            for (int j = 0; j < values.getLength(); j++) {
+                String text = values.item(j).getTextContent().trim();
+                if (values.item(j).getNodeType() == Node.ELEMENT_NODE
+                        && !"true".equals(text) && !"false".equals(text)) {
+                    value = text;
+                    break;
+                }
+            }
+            elements.add(element.getLocalName() + ":" + value);
+        }
+        return elements;
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ *
+ */
+package de.sfdccommander.controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sforce.soap._2006._04.metadata.PackageTypeMembers;
+import com.sforce.soap._2006._04.metadata._package;
+
+import de.sfdccommander.controller.helper.DeleteDirVisitor;
+
+/**
+ * Compares the listed members of an org with the snapshot of the last
+ * retrieve.
+ *
+ * @author jochen
+ *
+ */
+public class MetadataRetrieverTest {
+
+    private static final Set<String> NONE = Collections.emptySet();
+
+    private File treeFolder;
+
+    @Before
+    public void createTree() throws IOException {
+        treeFolder = Files.createTempDirectory("unpackaged").toFile();
+        for (String file : new String[] { "classes/Foo.cls",
+                "classes/Bar.cls", "objects/Account.object",
+                "profiles/Admin.profile" }) {
+            File target = new File(treeFolder, file);
+            target.getParentFile().mkdirs();
+            Files.write(target.toPath(), new byte[0]);
+        }
+    }
+
+    @After
+    public void deleteTree() throws IOException {
+        Files.walkFileTree(treeFolder.toPath(), new DeleteDirVisitor());
+    }
+
+    @Test
+    public void buildChangedPackageTest() {
+        MetadataSnapshot previous = snapshot(date(1));
+        MetadataSnapshot current = snapshot(date(1));
+        // a field of the object changed, Baz is new
+        current.addChild(key("CustomObject", "Account"),
+                key("CustomField", "Account.Foo__c"), date(2));
+        current.addMember(key("ApexClass", "Baz"), "classes/Baz.cls",
+                date(2));
+        _package retrieved = retrievedPackage("Foo", "Bar", "Baz");
+
+        Map<String, List<String>> changed = members(
+                MetadataRetriever.buildChangedPackage(retrieved, current,
+                        previous, NONE, treeFolder, 0));
+        Assert.assertEquals(Arrays.asList("Baz"), changed.get("ApexClass"));
+        Assert.assertEquals(Arrays.asList("Account"),
+                changed.get("CustomObject"));
+        // shared types are retrieved completely
+        Assert.assertEquals(Arrays.asList("Admin"), changed.get("Profile"));
+        Assert.assertEquals("34.0", MetadataRetriever.buildChangedPackage(
+                retrieved, current, previous, NONE, treeFolder, 0)
+                .getVersion());
+    }
+
+    @Test
+    public void unchangedPackageTest() {
+        _package retrieved = retrievedPackage("Foo", "Bar");
+        Assert.assertNull(MetadataRetriever.buildChangedPackage(retrieved,
+                snapshot(date(1)), snapshot(date(1)), NONE, treeFolder, 0));
+
+        // a changed profile alone retrieves the shared types
+        MetadataSnapshot current = snapshot(date(1));
+        current.addMember(key("Profile", "Admin"), "profiles/Admin.profile",
+                date(3));
+        Map<String, List<String>> shared = members(
+                MetadataRetriever.buildChangedPackage(retrieved, current,
+                        snapshot(date(1)), NONE, treeFolder, 0));
+        Assert.assertEquals(Collections.singleton("Profile"),
+                shared.keySet());
+
+        // a missing file is retrieved again
+        new File(treeFolder, "classes/Bar.cls").delete();
+        Map<String, List<String>> changed = members(
+                MetadataRetriever.buildChangedPackage(retrieved,
+                        snapshot(date(1)), snapshot(date(1)), NONE,
+                        treeFolder, 0));
+        Assert.assertEquals(Arrays.asList("Bar"), changed.get("ApexClass"));
+        Assert.assertNull(changed.get("CustomObject"));
+
+        // all members of an unlisted type are retrieved
+        changed = members(MetadataRetriever.buildChangedPackage(retrieved,
+                snapshot(date(1)), snapshot(date(1)),
+                Collections.singleton("CustomObject"), treeFolder, 0));
+        Assert.assertEquals(Arrays.asList("Account"),
+                changed.get("CustomObject"));
+    }
+
+    private static MetadataSnapshot snapshot(Calendar aDate) {
+        MetadataSnapshot snapshot = new MetadataSnapshot();
+        snapshot.addMember(key("ApexClass", "Foo"), "classes/Foo.cls", aDate);
+        snapshot.addMember(key("ApexClass", "Bar"), "classes/Bar.cls", aDate);
+        snapshot.addMember(key("CustomObject", "Account"),
+                "objects/Account.object", aDate);
+        snapshot.addChild(key("CustomObject", "Account"),
+                key("CustomField", "Account.Foo__c"), aDate);
+        snapshot.addMember(key("Profile", "Admin"), "profiles/Admin.profile",
+                aDate);
+        return snapshot;
+    }
+
+    private static _package retrievedPackage(String... aClasses) {
+        _package retrieved = new _package();
+        retrieved.setTypes(new PackageTypeMembers[] {
+                type("ApexClass", aClasses), type("CustomObject", "Account"),
+                type("Profile", "Admin"), type("Workflow") });
+        retrieved.setVersion("34.0");
+        return retrieved;
+    }
+
+    private static PackageTypeMembers type(String aName,
+            String... aMembers) {
+        PackageTypeMembers type = new PackageTypeMembers();
+        type.setName(aName);
+        if (aMembers.length > 0) {
+            type.setMembers(aMembers);
+        }
+        return type;
+    }
+
+    /**
+     * @return members of the package by type
+     */
+    private static Map<String, List<String>> members(_package aPackage) {
+        Map<String, List<String>> members = new HashMap<String, List<String>>();
+        for (PackageTypeMembers type : aPackage.getTypes()) {
+            members.put(type.getName(),
+                    new ArrayList<String>(Arrays.asList(type.getMembers())));
+        }
+        return members;
+    }
+
+    private static String key(String aType, String aFullName) {
+        return MetadataSnapshot.getKey(aType, aFullName);
+    }
+
+    private static Calendar date(int aDay) {
+        Calendar date = Calendar.getInstance();
+        date.clear();
+        date.set(2015, Calendar.JUNE, aDay);
+        return date;
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ *
+ */
+package de.sfdccommander.controller;
+
+import java.io.File;
+import java.util.Calendar;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author jochen
+ *
+ */
+public class MetadataSnapshotTest {
+
+    private static final String ACCOUNT = MetadataSnapshot
+            .getKey("CustomObject", "Account");
+
+    private static final String FOO_CLASS = MetadataSnapshot
+            .getKey("ApexClass", "Foo");
+
+    @Test
+    public void childVersionTest() {
+        MetadataSnapshot previous = snapshot(date(1), date(2));
+        MetadataSnapshot unchanged = snapshot(date(1), date(2));
+        MetadataSnapshot fieldChanged = snapshot(date(1), date(3));
+
+        Assert.assertEquals(previous.getVersion(ACCOUNT),
+                unchanged.getVersion(ACCOUNT));
+        // the object itself keeps its date when a field changes
+        Assert.assertNotEquals(previous.getVersion(ACCOUNT),
+                fieldChanged.getVersion(ACCOUNT));
+        Assert.assertEquals(previous.getVersion(FOO_CLASS),
+                fieldChanged.getVersion(FOO_CLASS));
+        Assert.assertEquals("Account.Name",
+                MetadataSnapshot.getFullName("CustomField:Account.Name"));
+    }
+
+    @Test
+    public void readWriteTest() throws Exception {
+        File file = File.createTempFile("metadata", ".snapshot");
+        try {
+            MetadataSnapshot snapshot = snapshot(date(1), date(2));
+            snapshot.write(file);
+
+            MetadataSnapshot stored = MetadataSnapshot.read(file);
+            Assert.assertEquals(snapshot.getKeys(), stored.getKeys());
+            Assert.assertEquals(snapshot.getVersion(ACCOUNT),
+                    stored.getVersion(ACCOUNT));
+            Assert.assertEquals("classes/Foo.cls",
+                    stored.getFileName(FOO_CLASS));
+        } finally {
+            file.delete();
+        }
+        Assert.assertTrue(MetadataSnapshot.read(file).getKeys().isEmpty());
+    }
+
+    private MetadataSnapshot snapshot(Calendar aObjectDate,
+            Calendar aFieldDate) {
+        MetadataSnapshot snapshot = new MetadataSnapshot();
+        snapshot.addMember(ACCOUNT, "objects/Account.object", aObjectDate);
+        snapshot.addMember(FOO_CLASS, "classes/Foo.cls", aObjectDate);
+        snapshot.addChild(ACCOUNT, "CustomField:Account.Bar__c", aObjectDate);
+        snapshot.addChild(ACCOUNT, "CustomField:Account.Foo__c", aFieldDate);
+        return snapshot;
+    }
+
+    private Calendar date(int aDay) {
+        Calendar date = Calendar.getInstance();
+        date.clear();
+        date.set(2015, Calendar.JUNE, aDay);
+        return date;
+    }
+}
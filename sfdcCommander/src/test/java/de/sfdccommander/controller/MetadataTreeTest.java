@@ -0,0 +1,150 @@
+/**
+ *
+ */
+package de.sfdccommander.controller;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Scanner;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.sfdccommander.controller.helper.CommanderException;
+
+/**
+ * @author jochen
+ *
+ */
+public class MetadataTreeTest {
+
+    private static final String ROLES = "unpackaged/roles";
+
+    private static final String CEO = ROLES + "/CEO.role";
+
+    private static final String SALES = ROLES + "/Sales.role";
+
+    private static final String FOO_CLASS = "unpackaged/classes/Foo.cls";
+
+    private File rootFolder;
+
+    @Before
+    public void createFolder() throws IOException {
+        rootFolder = Files.createTempDirectory("tree").toFile();
+    }
+
+    @After
+    public void deleteFolder() {
+        XlsRenderer.deleteDirectory(rootFolder);
+    }
+
+    @Test
+    public void archiveTest() throws Exception {
+        MetadataTree tree = new MetadataTree(rootFolder);
+        tree.addZip(zip("first.zip", CEO, SALES, FOO_CLASS),
+                Arrays.asList(CEO, SALES, FOO_CLASS));
+
+        Assert.assertTrue(tree.isDirectory(ROLES));
+        Assert.assertFalse(tree.isDirectory("unpackaged/objects"));
+        Assert.assertEquals(Arrays.asList("CEO.role", "Sales.role"),
+                tree.list(ROLES, null));
+        Assert.assertEquals(Arrays.asList("classes/Foo.cls", "roles/CEO.role",
+                "roles/Sales.role"), tree.listAll("unpackaged"));
+        Assert.assertEquals(CEO, read(tree, CEO));
+        // nothing is extracted until a file is needed
+        Assert.assertFalse(new File(rootFolder, "unpackaged").exists());
+
+        File ceo = tree.getFile(CEO);
+        Assert.assertTrue(ceo.isFile());
+        tree.write(CEO, new ByteArrayInputStream("changed".getBytes("UTF-8")));
+        Assert.assertEquals("changed", read(tree, CEO));
+        tree.save();
+
+        MetadataTree stored = new MetadataTree(rootFolder);
+        Assert.assertEquals("changed", read(stored, CEO));
+        Assert.assertEquals(SALES, read(stored, SALES));
+        Assert.assertEquals(Arrays.asList("CEO.role", "Sales.role"),
+                stored.list(ROLES, new FilenameFilter() {
+                    @Override
+                    public boolean accept(File aDir, String aName) {
+                        return aName.endsWith(".role");
+                    }
+                }));
+
+        stored.extract("");
+        stored.save();
+        Assert.assertEquals(FOO_CLASS, new String(Files.readAllBytes(
+                new File(rootFolder, FOO_CLASS).toPath()), "UTF-8"));
+        Assert.assertFalse(
+                new File(rootFolder, MetadataTree.ARCHIVE_FOLDER).exists());
+    }
+
+    @Test
+    public void replaceTest() throws Exception {
+        MetadataTree tree = new MetadataTree(rootFolder);
+        tree.addZip(zip("first.zip", CEO, SALES, FOO_CLASS),
+                Arrays.asList(CEO, SALES, FOO_CLASS));
+        tree.getFile(FOO_CLASS);
+        tree.addZip(zip("second.zip", CEO, FOO_CLASS),
+                Arrays.asList(CEO, FOO_CLASS));
+        // the outdated extracted file is gone
+        Assert.assertFalse(new File(rootFolder, FOO_CLASS).exists());
+        tree.delete(ROLES);
+        Assert.assertFalse(tree.exists(CEO));
+        Assert.assertFalse(tree.isDirectory(ROLES));
+        tree.save();
+
+        // the first zip-file provides no file anymore
+        File archive = new File(rootFolder, MetadataTree.ARCHIVE_FOLDER);
+        Assert.assertEquals(2, archive.list().length);
+        // the second provides one of two files, kept
+        Assert.assertEquals(FOO_CLASS,
+                read(new MetadataTree(rootFolder), FOO_CLASS));
+        Assert.assertFalse(new File(rootFolder, FOO_CLASS).exists());
+    }
+
+    @Test(expected = CommanderException.class)
+    public void outsidePathTest() throws Exception {
+        MetadataTree tree = new MetadataTree(rootFolder);
+        tree.addZip(zip("evil.zip", "../evil.txt"),
+                Arrays.asList("../evil.txt"));
+    }
+
+    /**
+     * @return zip-file with the path of each entry as its content
+     */
+    private File zip(String aName, String... aPaths) throws IOException {
+        File file = new File(rootFolder, aName);
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            for (String path : aPaths) {
+                out.putNextEntry(new ZipEntry(path));
+                out.write(path.getBytes("UTF-8"));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private String read(MetadataTree aTree, String aPath) throws Exception {
+        InputStream in = aTree.open(aPath);
+        Scanner scanner = new Scanner(in, "UTF-8").useDelimiter("\\A");
+        try {
+            return scanner.next();
+        } finally {
+            scanner.close();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ *
+ */
+package de.sfdccommander.controller;
+
+import org.apache.axis.message.MessageElement;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.sforce.soap.partner.sobject.SObject;
+
+/**
+ * @author jochen
+ *
+ */
+public class QueryPageSizerTest {
+
+    @Test
+    public void initialBatchSizeTest() {
+        Assert.assertEquals(QueryPageSizer.MAX_BATCH_SIZE,
+                new QueryPageSizer(5, 0).getBatchSize());
+        Assert.assertEquals(838, new QueryPageSizer(50, 0).getBatchSize());
+        Assert.assertEquals(QueryPageSizer.MIN_BATCH_SIZE,
+                new QueryPageSizer(800, 0).getBatchSize());
+        Assert.assertEquals(500, new QueryPageSizer(50, 500).getBatchSize());
+    }
+
+    @Test
+    public void adaptiveBatchSizeTest() {
+        QueryPageSizer sizer = new QueryPageSizer(100, 0);
+        Assert.assertEquals(419, sizer.getBatchSize());
+
+        // narrow records, growing by at most the double
+        sizer.update(419, 419 * 500, 1000);
+        Assert.assertEquals(838, sizer.getBatchSize());
+        sizer.update(838, 838 * 500, 2000);
+        Assert.assertEquals(1676, sizer.getBatchSize());
+        sizer.update(1676, 1676 * 500, 4000);
+        Assert.assertEquals(QueryPageSizer.MAX_BATCH_SIZE,
+                sizer.getBatchSize());
+
+        // slow pages are shrunk to the target latency
+        sizer.update(2000, 2000 * 500, 4 * QueryPageSizer.TARGET_LATENCY);
+        Assert.assertEquals(500, sizer.getBatchSize());
+
+        // wide records
+        sizer.update(500, 500 * 40000L, 1000);
+        Assert.assertEquals(QueryPageSizer.MIN_BATCH_SIZE,
+                sizer.getBatchSize());
+    }
+
+    @Test
+    public void fixedBatchSizeTest() throws Exception {
+        QueryPageSizer sizer = new QueryPageSizer(100, 1000);
+        SObject record = new SObject();
+        MessageElement name = new MessageElement("", "Name");
+        name.addTextNode("Foo");
+        record.set_any(new MessageElement[] { name });
+        sizer.update(new SObject[] { record }, 100000);
+        Assert.assertEquals(1000, sizer.getBatchSize());
+        Assert.assertEquals(16,
+                QueryPageSizer.estimateBytes(new SObject[] { record }));
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ *
+ */
+package de.sfdccommander.controller;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author jochen
+ *
+ */
+public class RenderManifestTest {
+
+    @Test
+    public void readWriteTest() throws Exception {
+        File file = File.createTempFile("render", ".manifest");
+        try {
+            RenderManifest manifest = new RenderManifest("v1");
+            manifest.put("objects/Account.html",
+                    RenderManifest.hash("<a/>".getBytes("UTF-8")));
+            manifest.put("index.html", "42");
+            manifest.write(file);
+
+            RenderManifest stored = RenderManifest.read(file);
+            Assert.assertEquals("v1", stored.getStylesheetVersion());
+            Assert.assertEquals(manifest.getPages(), stored.getPages());
+            Assert.assertEquals(RenderManifest.hash("<a/>".getBytes("UTF-8")),
+                    stored.getHash("objects/Account.html"));
+            Assert.assertNotEquals(
+                    RenderManifest.hash("<b/>".getBytes("UTF-8")),
+                    stored.getHash("objects/Account.html"));
+        } finally {
+            file.delete();
+        }
+        RenderManifest missing = RenderManifest.read(file);
+        Assert.assertNull(missing.getStylesheetVersion());
+        Assert.assertTrue(missing.getPages().isEmpty());
+    }
+
+    @Test
+    public void stylesheetVersionTest() throws Exception {
+        File folder = Files.createTempDirectory("transformer").toFile();
+        File templates = new File(folder, "templates.xsl");
+        File objects = new File(folder, "objects.xslt");
+        try {
+            Files.write(templates.toPath(), "<a/>".getBytes("UTF-8"));
+            Files.write(objects.toPath(), "<b/>".getBytes("UTF-8"));
+            String version = RenderManifest.getStylesheetVersion(folder);
+            Assert.assertEquals(version,
+                    RenderManifest.getStylesheetVersion(folder));
+
+            // an imported stylesheet changes the version of all pages
+            Files.write(templates.toPath(), "<c/>".getBytes("UTF-8"));
+            Assert.assertNotEquals(version,
+                    RenderManifest.getStylesheetVersion(folder));
+        } finally {
+            templates.delete();
+            objects.delete();
+            folder.delete();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * 
+ */
+package de.sfdccommander.controller;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.sforce.soap._2006._04.metadata.PackageTypeMembers;
+import com.sforce.soap._2006._04.metadata._package;
+
+/**
+ * @author jochen
+ *
+ */
+public class RetrievePlannerTest {
+
+    @Test
+    public void planTest() {
+        _package org = new _package();
+        org.setVersion("34.0");
+        org.setTypes(new PackageTypeMembers[] {
+                type("CustomObject", "Account", "Contact", "Foo__c"),
+                type("Profile", "Admin"), type("ApexClass", "*"),
+                type("Report"), type("Layout", "Account-Layout") });
+
+        List<_package> plan = new RetrievePlanner(
+                RetrievePlanner.WILDCARD_WEIGHT + 3).plan(org);
+
+        Assert.assertEquals(2, plan.size());
+        // first chunk is full after the wildcard
+        PackageTypeMembers[] first = plan.get(0).getTypes();
+        Assert.assertEquals("CustomObject", first[0].getName());
+        Assert.assertEquals(3, first[0].getMembers().length);
+        Assert.assertEquals("ApexClass", first[1].getName());
+        Assert.assertEquals("Profile", first[2].getName());
+        // profiles are part of every chunk, empty types of none
+        PackageTypeMembers[] second = plan.get(1).getTypes();
+        Assert.assertEquals(2, second.length);
+        Assert.assertEquals("Layout", second[0].getName());
+        Assert.assertEquals("Profile", second[1].getName());
+        Assert.assertEquals("34.0", plan.get(1).getVersion());
+    }
+
+    @Test
+    public void planSplitTypeTest() {
+        _package org = new _package();
+        org.setTypes(new PackageTypeMembers[] {
+                type("ApexPage", "A", "B", "C", "D", "E") });
+
+        List<_package> plan = new RetrievePlanner(2).plan(org);
+
+        Assert.assertEquals(3, plan.size());
+        Assert.assertArrayEquals(new String[] {"E" },
+                plan.get(2).getTypes()[0].getMembers());
+    }
+
+    private PackageTypeMembers type(String aName, String... aMembers) {
+        PackageTypeMembers type = new PackageTypeMembers();
+        type.setName(aName);
+        type.setMembers(aMembers);
+        return type;
+    }
+}
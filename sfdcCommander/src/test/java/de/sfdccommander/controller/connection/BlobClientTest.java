@@ -0,0 +1,75 @@
+/**
+ *
+ */
+package de.sfdccommander.controller.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import de.sfdccommander.model.SfdcConfig;
+
+/**
+ * Downloads files from a local stand-in of the blob resource of the rest api.
+ *
+ * @author jochen
+ *
+ */
+public class BlobClientTest {
+
+    private static final String JSON = "application/json";
+
+    private StandInOrg org;
+
+    private final byte[] body = new byte[1024 * 1024 + 3];
+
+    @Before
+    public void startServer() throws IOException {
+        new Random(7).nextBytes(body);
+        org = new StandInOrg();
+        org.addEndpoint("/services/data/v34.0/sobjects/",
+                new StandInOrg.Endpoint() {
+                    @Override
+                    public void handle(final HttpExchange aExchange,
+                            final String aRequest) throws IOException {
+                        String path = aExchange.getRequestURI().getPath();
+                        if (!"Bearer S2".equals(aExchange.getRequestHeaders()
+                                .getFirst("Authorization"))) {
+                            StandInOrg.respond(aExchange, 401, JSON,
+                                    "[{\"errorCode\":\"INVALID_SESSION_ID\"}]");
+                        } else if (path.endsWith("/Attachment/00P1/Body")) {
+                            StandInOrg.respond(aExchange, 200,
+                                    "application/octet-stream", body);
+                        } else {
+                            StandInOrg.respond(aExchange, 404, JSON,
+                                    "[{\"errorCode\":\"NOT_FOUND\"}]");
+                        }
+                    }
+                });
+    }
+
+    @After
+    public void stopServer() {
+        org.stop();
+    }
+
+    @Test
+    public void openBlobTest() throws Exception {
+        SfdcConfig config = org.newConfig("blob@test.org");
+        SfdcConnectionPool pool = SfdcConnectionPool.getInstance();
+
+        InputStream in = pool.openBlob(config, "Attachment", "00P1", "Body");
+        Assert.assertArrayEquals(body, StandInOrg.read(in));
+        // the first session has expired
+        Assert.assertEquals(2, org.getLogins());
+
+        Assert.assertNull(pool.openBlob(config, "Attachment", "00P2", "Body"));
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ *
+ */
+package de.sfdccommander.controller.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import de.sfdccommander.controller.helper.CommanderException;
+import de.sfdccommander.controller.helper.CsvReader;
+import de.sfdccommander.model.SfdcConfig;
+
+/**
+ * Runs a chunked bulk query against a local stand-in of the async endpoints.
+ *
+ * @author jochen
+ *
+ */
+public class BulkQueryClientTest {
+
+    private static final String NAMESPACE = " xmlns=\"http://www.force.com/2009/06/asyncapi/dataload\"";
+
+    private StandInOrg org;
+
+    private final AtomicInteger polls = new AtomicInteger();
+
+    private final List<String> requests = Collections
+            .synchronizedList(new ArrayList<String>());
+
+    private volatile String chunking;
+
+    private volatile String soql;
+
+    private volatile boolean failBatch;
+
+    @Before
+    public void startServer() throws IOException {
+        org = new StandInOrg();
+        org.addEndpoint("/services/async/34.0/", new StandInOrg.Endpoint() {
+            @Override
+            public void handle(final HttpExchange aExchange,
+                    final String aBody) throws IOException {
+                String path = aExchange.getRequestURI().getPath()
+                        .substring("/services/async/34.0/".length());
+                String request = aExchange.getRequestMethod() + " " + path;
+                if (!"S2".equals(aExchange.getRequestHeaders()
+                        .getFirst("X-SFDC-Session"))) {
+                    StandInOrg.respond(aExchange, 400, "application/xml",
+                            "<error" + NAMESPACE + "><exceptionCode>"
+                                    + "InvalidSessionId</exceptionCode>"
+                                    + "<exceptionMessage>Invalid session id"
+                                    + "</exceptionMessage></error>");
+                    return;
+                }
+                requests.add(request);
+                if ("POST job".equals(request)) {
+                    Assert.assertTrue(aBody.contains(
+                            "<operation>queryAll</operation>"));
+                    chunking = aExchange.getRequestHeaders()
+                            .getFirst("Sforce-Enable-PKChunking");
+                    StandInOrg.respond(aExchange, 201, "application/xml",
+                            "<jobInfo" + NAMESPACE + "><id>750J</id>"
+                                    + "<state>Open</state></jobInfo>");
+                } else if ("POST job/750J/batch".equals(request)) {
+                    if (failBatch) {
+                        aExchange.sendResponseHeaders(503, -1);
+                        aExchange.close();
+                        return;
+                    }
+                    soql = aBody;
+                    StandInOrg.respond(aExchange, 201, "application/xml",
+                            "<batchInfo" + NAMESPACE + "><id>751A</id>"
+                                    + "<jobId>750J</jobId><state>Queued"
+                                    + "</state></batchInfo>");
+                } else if ("GET job/750J/batch".equals(request)) {
+                    int poll = polls.incrementAndGet();
+                    StringBuilder batches = new StringBuilder(
+                            "<batchInfoList" + NAMESPACE + ">");
+                    if (poll == 1) {
+                        batches.append(batch("751A", "InProgress"));
+                    } else {
+                        batches.append(batch("751A", "NotProcessed"))
+                                .append(batch("751B", "Completed"))
+                                .append(batch("751C",
+                                        poll == 2 ? "InProgress"
+                                                : "Completed"));
+                    }
+                    StandInOrg.respond(aExchange, 200, "application/xml",
+                            batches.append("</batchInfoList>").toString());
+                } else if (request.endsWith("/result")) {
+                    String batchId = path.substring(
+                            "job/750J/batch/".length(), path.length() - 7);
+                    StandInOrg.respond(aExchange, 200, "application/xml",
+                            "<result-list" + NAMESPACE + "><result>"
+                                    + batchId + "-1</result>"
+                                    + ("751C".equals(batchId) ? "<result>"
+                                            + batchId + "-2</result>" : "")
+                                    + "</result-list>");
+                } else if (request.contains("/result/")) {
+                    String resultId = path.substring(path.lastIndexOf('/') + 1);
+                    String csv = "\"Id\",\"Name\",\"Description\"\n";
+                    if ("751B-1".equals(resultId)) {
+                        csv += "\"001B1\",\"Smith, Jones\",\"\"\n"
+                                + "\"001B2\",\"O\"\"Brien\",\"two\nlines\"\n";
+                    } else if ("751C-2".equals(resultId)) {
+                        csv += "\"001C2\",\"Last\",\"\"\n";
+                    } else {
+                        csv = "Records not found for this query";
+                    }
+                    StandInOrg.respond(aExchange, 200, "text/csv", csv);
+                } else if ("POST job/750J".equals(request)) {
+                    Assert.assertTrue(aBody.contains("<state>Closed</state>"));
+                    StandInOrg.respond(aExchange, 200, "application/xml",
+                            "<jobInfo" + NAMESPACE + "><id>750J</id>"
+                                    + "<state>Closed</state></jobInfo>");
+                } else {
+                    StandInOrg.respond(aExchange, 404, "text/plain", request);
+                }
+            }
+        });
+    }
+
+    @After
+    public void stopServer() {
+        org.stop();
+    }
+
+    @Test
+    public void queryTest() throws Exception {
+        SfdcConfig config = org.newConfig("bulk@test.org");
+        BulkQueryClient client = SfdcConnectionPool.getInstance()
+                .getBulkQueryClient(config);
+        client.setPollInterval(10);
+
+        final List<String[]> rows = new ArrayList<String[]>();
+        client.query("Account", "SELECT Id, Name, Description FROM Account",
+                1000, new BulkQueryClient.ResultHandler() {
+                    @Override
+                    public void handleResult(final InputStream aCsv)
+                            throws IOException, CommanderException {
+                        CsvReader reader = new CsvReader(
+                                new InputStreamReader(aCsv, "UTF-8"));
+                        String[] row;
+                        while ((row = reader.readRecord()) != null) {
+                            rows.add(row);
+                        }
+                    }
+                });
+
+        // the first session has expired
+        Assert.assertEquals(2, org.getLogins());
+        Assert.assertEquals("chunkSize=1000", chunking);
+        Assert.assertEquals("SELECT Id, Name, Description FROM Account",
+                soql);
+        Assert.assertEquals(3, polls.get());
+        Assert.assertEquals("POST job/750J",
+                requests.get(requests.size() - 1));
+
+        // header and rows of each result
+        Assert.assertEquals(6, rows.size());
+        Assert.assertArrayEquals(
+                new String[] { "001B1", "Smith, Jones", "" }, rows.get(1));
+        Assert.assertArrayEquals(
+                new String[] { "001B2", "O\"Brien", "two\nlines" },
+                rows.get(2));
+        Assert.assertArrayEquals(
+                new String[] { "Records not found for this query" },
+                rows.get(3));
+        Assert.assertArrayEquals(new String[] { "001C2", "Last", "" },
+                rows.get(5));
+    }
+
+    @Test
+    public void addBatchNotRepeatedTest() throws Exception {
+        failBatch = true;
+        SfdcConfig config = org.newConfig("bulk@test.org");
+        BulkQueryClient client = SfdcConnectionPool.getInstance()
+                .getBulkQueryClient(config);
+        try {
+            client.query("Account", "SELECT Id FROM Account", 0,
+                    new BulkQueryClient.ResultHandler() {
+                        @Override
+                        public void handleResult(final InputStream aCsv) {
+                            Assert.fail();
+                        }
+                    });
+            Assert.fail();
+        } catch (CommanderException e) {
+            // the server may have accepted the batch before the failure
+        }
+        Assert.assertEquals(1,
+                Collections.frequency(requests, "POST job/750J/batch"));
+        Assert.assertEquals("POST job/750J",
+                requests.get(requests.size() - 1));
+    }
+
+    private static String batch(final String aId, final String aState) {
+        return "<batchInfo><id>" + aId + "</id><jobId>750J</jobId><state>"
+                + aState + "</state></batchInfo>";
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ *
+ */
+package de.sfdccommander.controller.connection;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sforce.soap.partner.DescribeSObjectResult;
+import com.sun.net.httpserver.HttpExchange;
+
+import de.sfdccommander.controller.XlsRenderer;
+import de.sfdccommander.model.SfdcConfig;
+
+/**
+ * Describes objects through a local stand-in of the partner endpoint.
+ *
+ * @author jochen
+ *
+ */
+public class DescribeServiceTest {
+
+    private static final String ENVELOPE_START = "<soapenv:Envelope"
+            + " xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\""
+            + " xmlns=\"urn:partner.soap.sforce.com\"><soapenv:Body>";
+
+    private static final String ENVELOPE_END = "</soapenv:Body></soapenv:Envelope>";
+
+    private static final Pattern SOBJECT_TYPE = Pattern
+            .compile("sObjectType>([^<]+)<");
+
+    private StandInOrg org;
+
+    private File cacheFolder;
+
+    private final List<Integer> batchSizes = Collections
+            .synchronizedList(new ArrayList<Integer>());
+
+    @Before
+    public void startServer() throws IOException {
+        cacheFolder = Files.createTempDirectory("describe").toFile();
+        org = new StandInOrg();
+        org.setSoapEndpoint(new StandInOrg.Endpoint() {
+            @Override
+            public void handle(final HttpExchange aExchange,
+                    final String aRequest) throws IOException {
+                StringBuilder response = new StringBuilder(ENVELOPE_START)
+                        .append("<describeSObjectsResponse>");
+                Matcher matcher = SOBJECT_TYPE.matcher(aRequest);
+                int count = 0;
+                while (matcher.find()) {
+                    response.append("<result><name>")
+                            .append(matcher.group(1))
+                            .append("</name><queryable>true</queryable>")
+                            .append("</result>");
+                    count++;
+                }
+                batchSizes.add(count);
+                response.append("</describeSObjectsResponse>")
+                        .append(ENVELOPE_END);
+                StandInOrg.respond(aExchange, 200,
+                        StandInOrg.XML_CONTENT_TYPE, response.toString());
+            }
+        });
+    }
+
+    @After
+    public void stopServer() {
+        org.stop();
+        DescribeService.getInstance().setCache(null, 0);
+        XlsRenderer.deleteDirectory(cacheFolder);
+    }
+
+    @Test
+    public void describeSObjectsTest() throws Exception {
+        SfdcConfig config = org.newConfig("describe@test.org");
+
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 150; i++) {
+            names.add("Object" + i + "__c");
+        }
+        DescribeService describer = DescribeService.getInstance();
+        describer.setCache(cacheFolder, 1);
+        Map<String, DescribeSObjectResult> describes = describer
+                .describeSObjects(config, names);
+
+        Assert.assertEquals(names, new ArrayList<String>(describes.keySet()));
+        Assert.assertTrue(describes.get("Object149__c").isQueryable());
+        Collections.sort(batchSizes);
+        Assert.assertEquals(2, batchSizes.size());
+        Assert.assertEquals(Integer.valueOf(50), batchSizes.get(0));
+        Assert.assertEquals(Integer.valueOf(DescribeService.BATCH_SIZE),
+                batchSizes.get(1));
+
+        // second request is answered from memory
+        Assert.assertEquals("Object7__c",
+                describer.describeSObject(config, "Object7__c").getName());
+        Assert.assertEquals(2, batchSizes.size());
+
+        // every result is kept on disk for the next run
+        File[] orgFolders = cacheFolder.listFiles();
+        Assert.assertEquals(1, orgFolders.length);
+        Assert.assertEquals(150, orgFolders[0].list().length);
+
+        // a backup describes the objects again
+        describer.describeSObjects(config, names.subList(0, 10), true);
+        Assert.assertEquals(3, batchSizes.size());
+    }
+}
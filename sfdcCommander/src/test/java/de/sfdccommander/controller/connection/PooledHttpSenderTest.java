@@ -0,0 +1,158 @@
+/**
+ * 
+ */
+package de.sfdccommander.controller.connection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.axis.AxisFault;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sforce.soap.partner.SforceServiceLocator;
+import com.sforce.soap.partner.SoapBindingStub;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Calls a local stand-in of the partner endpoint through the
+ * {@link PooledHttpSender}.
+ *
+ * @author jochen
+ *
+ */
+public class PooledHttpSenderTest {
+
+    private static final String RESPONSE = "<soapenv:Envelope"
+            + " xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\""
+            + " xmlns=\"urn:partner.soap.sforce.com\"><soapenv:Body>"
+            + "<getServerTimestampResponse><result>"
+            + "<timestamp>2015-06-01T10:00:00.000Z</timestamp>"
+            + "</result></getServerTimestampResponse>"
+            + "</soapenv:Body></soapenv:Envelope>";
+
+    private HttpServer server;
+
+    private final List<String> contentEncodings = Collections
+            .synchronizedList(new ArrayList<String>());
+
+    private final List<String> acceptEncodings = Collections
+            .synchronizedList(new ArrayList<String>());
+
+    private final List<String> requests = Collections
+            .synchronizedList(new ArrayList<String>());
+
+    private final List<Integer> clientPorts = Collections
+            .synchronizedList(new ArrayList<Integer>());
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/services/Soap/u/34.0", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange aExchange)
+                    throws IOException {
+                contentEncodings.add(aExchange.getRequestHeaders()
+                        .getFirst("Content-Encoding"));
+                acceptEncodings.add(aExchange.getRequestHeaders()
+                        .getFirst("Accept-Encoding"));
+                clientPorts.add(aExchange.getRemoteAddress().getPort());
+                requests.add(new String(
+                        read(new GZIPInputStream(aExchange.getRequestBody())),
+                        "UTF-8"));
+
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                GZIPOutputStream gzipOut = new GZIPOutputStream(body);
+                gzipOut.write(RESPONSE.getBytes("UTF-8"));
+                gzipOut.close();
+                aExchange.getResponseHeaders().set("Content-Type",
+                        "text/xml; charset=utf-8");
+                aExchange.getResponseHeaders().set("Content-Encoding",
+                        "gzip");
+                aExchange.sendResponseHeaders(200, body.size());
+                OutputStream out = aExchange.getResponseBody();
+                out.write(body.toByteArray());
+                out.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void gzipKeepAliveTest() throws Exception {
+        PooledHttpSender sender = new PooledHttpSender(2, true);
+        SforceServiceLocator locator = new SforceServiceLocator(
+                sender.toEngineConfiguration());
+        SoapBindingStub binding = (SoapBindingStub) locator
+                .getSoap(new URL("http://localhost:"
+                        + server.getAddress().getPort()
+                        + "/services/Soap/u/34.0"));
+
+        Calendar expected = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+        expected.clear();
+        expected.set(2015, Calendar.JUNE, 1, 10, 0, 0);
+        for (int i = 0; i < 2; i++) {
+            Calendar timestamp = binding.getServerTimestamp().getTimestamp();
+            Assert.assertEquals(expected.getTimeInMillis(),
+                    timestamp.getTimeInMillis());
+        }
+
+        Assert.assertEquals(2, requests.size());
+        Assert.assertTrue(requests.get(0).contains("getServerTimestamp"));
+        Assert.assertEquals("gzip", contentEncodings.get(0));
+        Assert.assertEquals("gzip", acceptEncodings.get(0));
+        // second call reuses the kept alive connection
+        Assert.assertEquals(clientPorts.get(0), clientPorts.get(1));
+    }
+
+    @Test
+    public void httpErrorTest() throws Exception {
+        server.removeContext("/services/Soap/u/34.0");
+        PooledHttpSender sender = new PooledHttpSender(1, false);
+        Assert.assertEquals(1, sender.getMaxConnectionsPerHost());
+        Assert.assertFalse(sender.isCompress());
+        SforceServiceLocator locator = new SforceServiceLocator(
+                sender.toEngineConfiguration());
+        SoapBindingStub binding = (SoapBindingStub) locator
+                .getSoap(new URL("http://localhost:"
+                        + server.getAddress().getPort()
+                        + "/services/Soap/u/34.0"));
+        try {
+            binding.getServerTimestamp();
+            Assert.fail("missing endpoint must fail");
+        } catch (AxisFault e) {
+            Assert.assertTrue(e.getFaultString().contains("404"));
+        }
+    }
+
+    private static byte[] read(final InputStream aIn) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = aIn.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        aIn.close();
+        return out.toByteArray();
+    }
+}
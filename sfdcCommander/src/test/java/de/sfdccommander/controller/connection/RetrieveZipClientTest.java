@@ -0,0 +1,113 @@
+/**
+ *
+ */
+package de.sfdccommander.controller.connection;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.apache.axis.encoding.Base64;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sforce.soap._2006._04.metadata.RetrieveResult;
+import com.sforce.soap._2006._04.metadata.RetrieveStatus;
+import com.sun.net.httpserver.HttpExchange;
+
+import de.sfdccommander.model.SfdcConfig;
+
+/**
+ * Streams a retrieve from a local stand-in of the metadata endpoint.
+ *
+ * @author jochen
+ *
+ */
+public class RetrieveZipClientTest {
+
+    private static final String ENVELOPE_START = "<soapenv:Envelope"
+            + " xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\">"
+            + "<soapenv:Body>";
+
+    private static final String ENVELOPE_END = "</soapenv:Body></soapenv:Envelope>";
+
+    private StandInOrg org;
+
+    private File zipFile;
+
+    private final byte[] zip = new byte[3 * 1024 * 1024 + 7];
+
+    @Before
+    public void startServer() throws IOException {
+        new Random(42).nextBytes(zip);
+        zipFile = File.createTempFile("retrieve", ".zip");
+        // base64 with line breaks, as sent by the server
+        final String content = Base64.encode(zip).replaceAll("(.{76})",
+                "$1\n");
+        org = new StandInOrg();
+        org.setSoapEndpoint(new StandInOrg.Endpoint() {
+            @Override
+            public void handle(final HttpExchange aExchange,
+                    final String aRequest) throws IOException {
+                Assert.assertTrue(aRequest.contains("checkRetrieveStatus"));
+                StringBuilder response = new StringBuilder(ENVELOPE_START);
+                int status = 200;
+                if (!aRequest.contains("<sessionId>S2</sessionId>")) {
+                    status = 500;
+                    response.append("<soapenv:Fault><faultcode")
+                            .append(" xmlns:sf=\"urn:fault.partner.soap.sforce.com\">")
+                            .append("sf:INVALID_SESSION_ID</faultcode>")
+                            .append("<faultstring>INVALID_SESSION_ID: ")
+                            .append("Invalid Session ID</faultstring>")
+                            .append("</soapenv:Fault>");
+                } else {
+                    response.append("<checkRetrieveStatusResponse")
+                            .append(" xmlns=\"http://soap.sforce.com/2006/04/metadata\">")
+                            .append("<result><done>true</done>")
+                            .append("<fileProperties><id>01p</id>")
+                            .append("<fileName>classes/Foo.cls</fileName>")
+                            .append("</fileProperties><id>09S</id>")
+                            .append("<messages><fileName>objects/Foo__c.object")
+                            .append("</fileName><problem>Entity not found")
+                            .append("</problem></messages>")
+                            .append("<status>Succeeded</status>")
+                            .append("<success>true</success><zipFile>")
+                            .append(content)
+                            .append("</zipFile></result>")
+                            .append("</checkRetrieveStatusResponse>");
+                }
+                response.append(ENVELOPE_END);
+                StandInOrg.respond(aExchange, status,
+                        StandInOrg.XML_CONTENT_TYPE, response.toString());
+            }
+        });
+    }
+
+    @After
+    public void stopServer() {
+        org.stop();
+        zipFile.delete();
+    }
+
+    @Test
+    public void checkRetrieveStatusTest() throws Exception {
+        SfdcConfig config = org.newConfig("retrieve@test.org");
+
+        RetrieveResult result = SfdcConnectionPool.getInstance()
+                .checkRetrieveStatus(config, "09S", zipFile);
+
+        // the first session has expired
+        Assert.assertEquals(2, org.getLogins());
+        Assert.assertTrue(result.isDone());
+        Assert.assertEquals("09S", result.getId());
+        Assert.assertEquals(RetrieveStatus.Succeeded, result.getStatus());
+        Assert.assertNull(result.getZipFile());
+        Assert.assertEquals(1, result.getMessages().length);
+        Assert.assertEquals("Entity not found",
+                result.getMessages()[0].getProblem());
+        Assert.assertArrayEquals(zip, Files.readAllBytes(zipFile.toPath()));
+    }
+}
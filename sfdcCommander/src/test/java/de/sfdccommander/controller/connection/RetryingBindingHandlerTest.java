@@ -0,0 +1,126 @@
+/**
+ *
+ */
+package de.sfdccommander.controller.connection;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sforce.soap._2006._04.metadata.MetadataPortType;
+import com.sforce.soap._2006._04.metadata.RetrieveRequest;
+import com.sforce.soap.partner.QueryResult;
+import com.sforce.soap.partner.Soap;
+import com.sun.net.httpserver.HttpExchange;
+
+import de.sfdccommander.model.SfdcConfig;
+
+/**
+ * Sends a queryMore to a local stand-in of the partner endpoint, which first
+ * rejects the session and then fails once with a transient http error.
+ *
+ * @author jochen
+ *
+ */
+public class RetryingBindingHandlerTest {
+
+    private static final String ENVELOPE_START = "<soapenv:Envelope"
+            + " xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\""
+            + " xmlns=\"urn:partner.soap.sforce.com\""
+            + " xmlns:sf=\"urn:fault.partner.soap.sforce.com\""
+            + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">"
+            + "<soapenv:Body>";
+
+    private static final String ENVELOPE_END = "</soapenv:Body></soapenv:Envelope>";
+
+    private static final String INVALID_SESSION = ENVELOPE_START
+            + "<soapenv:Fault><faultcode>sf:INVALID_SESSION_ID</faultcode>"
+            + "<faultstring>INVALID_SESSION_ID: Invalid Session ID found in"
+            + " SessionHeader</faultstring><detail>"
+            + "<sf:UnexpectedErrorFault xsi:type=\"sf:UnexpectedErrorFault\">"
+            + "<sf:exceptionCode>INVALID_SESSION_ID</sf:exceptionCode>"
+            + "<sf:exceptionMessage>Invalid Session ID</sf:exceptionMessage>"
+            + "</sf:UnexpectedErrorFault></detail></soapenv:Fault>"
+            + ENVELOPE_END;
+
+    private static final String QUERY_MORE = ENVELOPE_START
+            + "<queryMoreResponse><result><done>true</done>"
+            + "<queryLocator xsi:nil=\"true\"/><size>0</size>"
+            + "</result></queryMoreResponse>" + ENVELOPE_END;
+
+    private StandInOrg org;
+
+    private final List<String> queryMoreRequests = Collections
+            .synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void startServer() throws IOException {
+        org = new StandInOrg();
+        org.setSoapEndpoint(new StandInOrg.Endpoint() {
+            @Override
+            public void handle(final HttpExchange aExchange,
+                    final String aRequest) throws IOException {
+                queryMoreRequests.add(aRequest);
+                if (aRequest.contains(":sessionId>S1<")) {
+                    StandInOrg.respond(aExchange, 500,
+                            StandInOrg.XML_CONTENT_TYPE, INVALID_SESSION);
+                } else if (queryMoreRequests.size() == 2) {
+                    aExchange.sendResponseHeaders(503, -1);
+                    aExchange.close();
+                } else {
+                    StandInOrg.respond(aExchange, 200,
+                            StandInOrg.XML_CONTENT_TYPE, QUERY_MORE);
+                }
+            }
+        });
+    }
+
+    @After
+    public void stopServer() {
+        org.stop();
+    }
+
+    @Test
+    public void renewSessionAndRetryTest() throws Exception {
+        SfdcConfig config = org.newConfig("retry@test.org");
+
+        SfdcConnectionPool pool = SfdcConnectionPool.getInstance();
+        Soap binding = pool.acquireBinding(config);
+        try {
+            QueryResult result = binding.queryMore("LOC-1");
+            Assert.assertTrue(result.isDone());
+        } finally {
+            pool.releaseBinding(config, binding);
+        }
+
+        Assert.assertEquals(2, org.getLogins());
+        Assert.assertEquals(3, queryMoreRequests.size());
+        for (String request : queryMoreRequests) {
+            Assert.assertTrue(request.contains("LOC-1"));
+        }
+        Assert.assertTrue(queryMoreRequests.get(2)
+                .contains(":sessionId>S2<"));
+        Assert.assertEquals("S2", pool.getSession(config).getSessionId());
+    }
+
+    @Test
+    public void idempotentCallsTest() throws Exception {
+        Assert.assertTrue(RetryingBindingHandler.isIdempotent(Soap.class
+                .getMethod("queryMore", String.class)));
+        Assert.assertTrue(RetryingBindingHandler.isIdempotent(Soap.class
+                .getMethod("describeSObject", String.class)));
+        Assert.assertTrue(RetryingBindingHandler.isIdempotent(
+                MetadataPortType.class.getMethod("checkRetrieveStatus",
+                        String.class, boolean.class)));
+        // each retrieve starts another job on the server
+        Assert.assertFalse(RetryingBindingHandler.isIdempotent(
+                MetadataPortType.class.getMethod("retrieve",
+                        RetrieveRequest.class)));
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ *
+ */
+package de.sfdccommander.controller.connection;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.sfdccommander.controller.connection.SessionCache.CachedSession;
+import de.sfdccommander.controller.helper.DeleteDirVisitor;
+import de.sfdccommander.model.SfdcConfig;
+
+/**
+ * @author jochen
+ *
+ */
+public class SessionCacheTest {
+
+    private static final String SESSION_ID = "00D000000000001!AQ4AQHq9";
+
+    private File cacheFolder;
+
+    private SessionKey key;
+
+    @Before
+    public void createCache() throws IOException {
+        cacheFolder = Files.createTempDirectory("sessions").toFile();
+        SfdcConfig config = new SfdcConfig();
+        config.setLoginUrl("https://login.salesforce.com");
+        config.setUsername("user@devAccount.com");
+        key = SessionKey.of(config, "34.0");
+    }
+
+    @After
+    public void deleteCache() throws IOException {
+        Files.walkFileTree(cacheFolder.toPath(), new DeleteDirVisitor());
+    }
+
+    @Test
+    public void storeLoadTest() throws IOException {
+        SessionCache cache = new SessionCache(cacheFolder);
+        Assert.assertNull(cache.load(key, "secret"));
+        cache.store(key, "secret", new CachedSession(SESSION_ID,
+                "https://na1.salesforce.com/services/Soap/u/34.0", null));
+
+        // a new run reads the session of the previous one
+        CachedSession session = new SessionCache(cacheFolder).load(key,
+                "secret");
+        Assert.assertEquals(SESSION_ID, session.getSessionId());
+        Assert.assertEquals("https://na1.salesforce.com/services/Soap/u/34.0",
+                session.getServerUrl());
+        Assert.assertNull(session.getMetadataServerUrl());
+
+        // the session id is not stored in plain text
+        File[] files = cacheFolder.listFiles();
+        Assert.assertEquals(1, files.length);
+        Assert.assertTrue(files[0].getName().endsWith(".session"));
+        Assert.assertFalse(new String(Files.readAllBytes(files[0].toPath()),
+                "ISO-8859-1").contains(SESSION_ID));
+        // and only readable by its owner
+        if (Files.getFileStore(files[0].toPath())
+                .supportsFileAttributeView(PosixFileAttributeView.class)) {
+            Assert.assertEquals(
+                    EnumSet.of(PosixFilePermission.OWNER_READ,
+                            PosixFilePermission.OWNER_WRITE),
+                    Files.getPosixFilePermissions(files[0].toPath()));
+        }
+
+        cache.invalidate(key);
+        Assert.assertNull(cache.load(key, "secret"));
+    }
+
+    @Test
+    public void wrongPasswordTest() {
+        SessionCache cache = new SessionCache(cacheFolder);
+        cache.store(key, "secret", new CachedSession("S1",
+                "https://na1.salesforce.com/services/Soap/u/34.0",
+                "https://na1.salesforce.com/services/Soap/m/34.0"));
+        Assert.assertNull(cache.load(key, "changed"));
+        Assert.assertEquals("https://na1.salesforce.com/services/Soap/m/34.0",
+                cache.load(key, "secret").getMetadataServerUrl());
+    }
+
+    @Test
+    public void corruptFileTest() throws IOException {
+        SessionCache cache = new SessionCache(cacheFolder);
+        cache.store(key, "secret", new CachedSession("S1",
+                "https://na1.salesforce.com/services/Soap/u/34.0", null));
+        File sessionFile = cacheFolder.listFiles()[0];
+        byte[] content = Files.readAllBytes(sessionFile.toPath());
+
+        // truncated to salt and initialization vector
+        Files.write(sessionFile.toPath(),
+                Arrays.copyOf(content, 32));
+        Assert.assertNull(cache.load(key, "secret"));
+
+        // a changed initialization vector only garbles the first block of
+        // the entry, the mac rejects it
+        content[20] ^= 0x55;
+        Files.write(sessionFile.toPath(), content);
+        Assert.assertNull(cache.load(key, "secret"));
+        content[20] ^= 0x55;
+        content[content.length - 1] ^= 0x55;
+        Files.write(sessionFile.toPath(), content);
+        Assert.assertNull(cache.load(key, "secret"));
+        content[content.length - 1] ^= 0x55;
+        Files.write(sessionFile.toPath(), content);
+        Assert.assertEquals("S1", cache.load(key, "secret").getSessionId());
+
+        // a new login replaces the corrupt file
+        cache.store(key, "secret", new CachedSession("S2",
+                "https://na1.salesforce.com/services/Soap/u/34.0", null));
+        Assert.assertEquals("S2", cache.load(key, "secret").getSessionId());
+    }
+}
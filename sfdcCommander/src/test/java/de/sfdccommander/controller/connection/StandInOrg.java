@@ -0,0 +1,204 @@
+/**
+ *
+ */
+package de.sfdccommander.controller.connection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.sfdccommander.model.SfdcConfig;
+
+/**
+ * Local stand-in of an org for the tests of the connection package. The
+ * stand-in answers the logins itself, each login gets the next session id
+ * S1, S2 and so on. The tests add the endpoints they call.
+ *
+ * @author jochen
+ *
+ */
+final class StandInOrg {
+
+    /**
+     * Endpoint of the stand-in.
+     */
+    interface Endpoint {
+
+        /**
+         * @param aExchange
+         *            request to answer, see {@link StandInOrg#respond}
+         * @param aRequest
+         *            body of the request
+         * @throws IOException
+         *             if the response cannot be sent
+         */
+        void handle(HttpExchange aExchange, String aRequest)
+                throws IOException;
+    }
+
+    static final String XML_CONTENT_TYPE = "text/xml; charset=utf-8";
+
+    private static final Pattern LOGIN = Pattern.compile("<(\\w+:)?login[ >]");
+
+    private final HttpServer server;
+
+    private final String url;
+
+    private final AtomicInteger logins = new AtomicInteger();
+
+    /**
+     * Soap calls of the partner and metadata api besides the login.
+     */
+    private volatile Endpoint soapEndpoint;
+
+    /**
+     * Start the stand-in on a free port.
+     *
+     * @throws IOException
+     *             if the server cannot be started
+     */
+    StandInOrg() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        url = "http://localhost:" + server.getAddress().getPort();
+        server.createContext("/services/Soap/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange aExchange)
+                    throws IOException {
+                String request = read(aExchange);
+                Endpoint endpoint = soapEndpoint;
+                if (LOGIN.matcher(request).find()) {
+                    respond(aExchange, 200, XML_CONTENT_TYPE,
+                            login(logins.incrementAndGet()));
+                } else if (endpoint != null) {
+                    endpoint.handle(aExchange, request);
+                } else {
+                    respond(aExchange, 404, "text/plain", request);
+                }
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * @param aEndpoint
+     *            soap calls of the partner and metadata api besides the
+     *            login
+     */
+    void setSoapEndpoint(final Endpoint aEndpoint) {
+        soapEndpoint = aEndpoint;
+    }
+
+    /**
+     * @param aPath
+     *            path of the requests of the endpoint
+     * @param aEndpoint
+     *            endpoint
+     */
+    void addEndpoint(final String aPath, final Endpoint aEndpoint) {
+        server.createContext(aPath, new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange aExchange)
+                    throws IOException {
+                aEndpoint.handle(aExchange, read(aExchange));
+            }
+        });
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * @return url of the stand-in
+     */
+    String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return number of logins so far
+     */
+    int getLogins() {
+        return logins.get();
+    }
+
+    /**
+     * @param aUsername
+     *            user of the config
+     * @return config logging in to the stand-in
+     */
+    SfdcConfig newConfig(final String aUsername) {
+        SfdcConfig config = new SfdcConfig();
+        config.setLoginUrl(url);
+        config.setUsername(aUsername);
+        config.setPassword("secret");
+        return config;
+    }
+
+    private String login(final int aLogin) {
+        return "<soapenv:Envelope xmlns:soapenv="
+                + "\"http://schemas.xmlsoap.org/soap/envelope/\">"
+                + "<soapenv:Body><loginResponse"
+                + " xmlns=\"urn:partner.soap.sforce.com\"><result>"
+                + "<metadataServerUrl>" + url
+                + "/services/Soap/m/34.0</metadataServerUrl>"
+                + "<passwordExpired>false</passwordExpired>"
+                + "<sandbox>true</sandbox><serverUrl>" + url
+                + "/services/Soap/u/34.0</serverUrl><sessionId>S" + aLogin
+                + "</sessionId></result></loginResponse>"
+                + "</soapenv:Body></soapenv:Envelope>";
+    }
+
+    static void respond(final HttpExchange aExchange, final int aStatus,
+            final String aContentType, final String aBody)
+            throws IOException {
+        respond(aExchange, aStatus, aContentType, aBody.getBytes("UTF-8"));
+    }
+
+    static void respond(final HttpExchange aExchange, final int aStatus,
+            final String aContentType, final byte[] aBody)
+            throws IOException {
+        aExchange.getResponseHeaders().set("Content-Type", aContentType);
+        aExchange.sendResponseHeaders(aStatus, aBody.length);
+        OutputStream out = aExchange.getResponseBody();
+        out.write(aBody);
+        out.close();
+    }
+
+    /**
+     * @param aIn
+     *            stream to read, closed
+     * @return content of the stream
+     * @throws IOException
+     *             if the stream cannot be read
+     */
+    static byte[] read(final InputStream aIn) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = aIn.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        aIn.close();
+        return out.toByteArray();
+    }
+
+    private static String read(final HttpExchange aExchange)
+            throws IOException {
+        InputStream in = aExchange.getRequestBody();
+        if ("gzip".equals(aExchange.getRequestHeaders()
+                .getFirst("Content-Encoding"))) {
+            in = new GZIPInputStream(in);
+        }
+        return new String(read(in), "UTF-8");
+    }
+}
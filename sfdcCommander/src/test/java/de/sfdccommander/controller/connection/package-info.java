@@ -0,0 +1,8 @@
+/**
+ * 
+ */
+/**
+ * @author jochen
+ *
+ */
+package de.sfdccommander.controller.connection;
@@ -0,0 +1,26 @@
+/**
+ *
+ */
+package de.sfdccommander.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author jochen
+ *
+ */
+public class WildcardMetadataTypeSetTest {
+
+    @Test
+    public void isWildcardTest() {
+        WildcardMetadataTypeSet types = new WildcardMetadataTypeSet();
+        Assert.assertTrue(types.isWildcard("ApexClass", false, false));
+        // the wildcard skips the standard objects
+        Assert.assertFalse(types.isWildcard("CustomObject", false, false));
+        // and is not supported in folders
+        Assert.assertFalse(types.isWildcard("ApexClass", true, false));
+        // nor does it match the components of installed packages
+        Assert.assertFalse(types.isWildcard("ApexClass", false, true));
+    }
+}